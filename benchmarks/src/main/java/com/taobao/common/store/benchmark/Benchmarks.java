@@ -0,0 +1,91 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 基准测试共用的方法
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+final class Benchmarks {
+	private Benchmarks() {
+	}
+
+	/**
+	 * 生成一个16字节的key，前8字节是线程编号，后8字节是序号
+	 * @param thread
+	 * @param seq
+	 * @return key
+	 */
+	static byte[] key(long thread, long seq) {
+		byte[] key = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			key[i] = (byte)(thread >>> (56 - i * 8));
+			key[8 + i] = (byte)(seq >>> (56 - i * 8));
+		}
+		return key;
+	}
+
+	/**
+	 * 生成指定长度的数据，内容是一半可压缩的文本
+	 * @param size
+	 * @return 数据
+	 */
+	static byte[] value(int size) {
+		byte[] value = new byte[size];
+		Random random = new Random(size);
+		for (int i = 0; i < size; i++) {
+			value[i] = (byte)(i % 2 == 0 ? 'a' + random.nextInt(26) : ' ');
+		}
+		return value;
+	}
+
+	/**
+	 * 在系统的临时目录下建一个新的目录
+	 * @param prefix
+	 * @return 目录
+	 * @throws IOException
+	 */
+	static File tempDir(String prefix) throws IOException {
+		File f = File.createTempFile("store4j-" + prefix, "");
+		if (!f.delete() || !f.mkdirs()) {
+			throw new IOException("不能创建目录：" + f);
+		}
+		return f;
+	}
+
+	/**
+	 * 删除目录和下面的所有文件
+	 * @param dir
+	 */
+	static void deleteDir(File dir) {
+		File[] fs = dir.listFiles();
+		if (null != fs) {
+			for (File f : fs) {
+				deleteDir(f);
+			}
+		}
+		dir.delete();
+	}
+}
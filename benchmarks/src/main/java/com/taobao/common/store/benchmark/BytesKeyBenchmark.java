@@ -0,0 +1,114 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.common.store.util.BytesKey;
+
+/**
+ * <b>BytesKey的hash和比较</b>
+ * <p>索引的每次查找都要算一次hash、比较一次key。mapGet在一个放了{@link #KEYS}个key的HashMap中查找，
+ * hash的分布不好时会比单独的hashCode慢很多。key通过{@link BytesKey#valueOf(byte[])}生成，
+ * 16字节的是{@link com.taobao.common.store.util.Key128}。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BytesKeyBenchmark {
+	/** HashMap中key的个数，必须是2的幂 */
+	static final int KEYS = 1 << 16;
+
+	@Param({"16", "64"})
+	public int keyLength;
+
+	private BytesKey key;
+	private BytesKey same;
+	private BytesKey different;
+	private BytesKey[] probes;
+	private Map<BytesKey, Object> map;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		key = BytesKey.valueOf(newKey(1));
+		same = BytesKey.valueOf(newKey(1));
+		different = BytesKey.valueOf(newKey(2));
+		probes = new BytesKey[KEYS];
+		map = new HashMap<BytesKey, Object>();
+		for (int i = 0; i < KEYS; i++) {
+			probes[i] = BytesKey.valueOf(newKey(i));
+			map.put(BytesKey.valueOf(newKey(i)), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * 除了最后8字节的序号，其余部分都一样，和UniqId生成的key类似
+	 */
+	private byte[] newKey(long seq) {
+		byte[] k = new byte[keyLength];
+		for (int i = 0; i < keyLength - 8; i++) {
+			k[i] = (byte)i;
+		}
+		for (int i = 0; i < 8; i++) {
+			k[keyLength - 8 + i] = (byte)(seq >>> (56 - i * 8));
+		}
+		return k;
+	}
+
+	@Benchmark
+	public int hash() {
+		return key.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+		return key.equals(same);
+	}
+
+	@Benchmark
+	public boolean equalsDifferent() {
+		return key.equals(different);
+	}
+
+	@Benchmark
+	public Object mapGet() {
+		return map.get(probes[next++ & (KEYS - 1)]);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Param;
+
+import com.taobao.common.store.Store;
+import com.taobao.common.store.journal.JournalStore;
+import com.taobao.common.store.journal.JournalStoreConfig;
+
+/**
+ * JournalStore的基本操作，文件放在系统的临时目录下
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class JournalStoreBenchmark extends StoreBenchmark {
+	/** 落盘方式：不落盘、每次写入落盘、组提交 */
+	@Param({"none", "force", "groupCommit"})
+	public String sync;
+
+	private File dir;
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.benchmark.StoreBenchmark#open()
+	 */
+	@Override
+	protected Store open() throws IOException {
+		dir = Benchmarks.tempDir("journal");
+		JournalStoreConfig config = new JournalStoreConfig();
+		config.setForce(!"none".equals(sync));
+		config.setGroupCommit("groupCommit".equals(sync));
+		return new JournalStore(dir.getPath(), "bench", config);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.benchmark.StoreBenchmark#cleanup()
+	 */
+	@Override
+	protected void cleanup() {
+		Benchmarks.deleteDir(dir);
+	}
+}
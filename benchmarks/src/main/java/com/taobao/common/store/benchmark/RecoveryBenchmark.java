@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.common.store.journal.JournalStore;
+import com.taobao.common.store.journal.JournalStoreConfig;
+
+/**
+ * <b>JournalStore启动恢复的耗时</b>
+ * <p>先写好指定个数的数据并关闭，每次测量打开存储的时间，也就是遍历文件恢复索引的时间，
+ * 打开之后在测量之外关闭。数据文件在操作系统的缓存中，测的是解析和建索引的速度，不是磁盘的速度。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecoveryBenchmark {
+	@Param({"100000", "1000000"})
+	public int records;
+
+	@Param({"false", "true"})
+	public boolean singleFileSegment;
+
+	@Param({"false", "true"})
+	public boolean checkpoint;
+
+	@Param({"1", "4"})
+	public int recoveryThreads;
+
+	private File dir;
+	private JournalStoreConfig config;
+	private JournalStore store;
+
+	@Setup(Level.Trial)
+	public void prepare() throws IOException {
+		dir = Benchmarks.tempDir("recovery");
+		config = new JournalStoreConfig();
+		config.setSingleFileSegment(singleFileSegment);
+		config.setCheckpoint(checkpoint);
+		config.setCheckpointInterval(0);
+		config.setRecoveryThreads(recoveryThreads);
+		JournalStore s = new JournalStore(dir.getPath(), "bench", config);
+		byte[] value = Benchmarks.value(256);
+		for (int i = 0; i < records; i++) {
+			s.add(Benchmarks.key(0, i), value);
+		}
+		//删掉一部分，恢复时要处理删除的日志
+		for (int i = 0; i < records; i += 4) {
+			s.remove(Benchmarks.key(0, i));
+		}
+		s.close();
+	}
+
+	@Benchmark
+	public JournalStore open() throws IOException {
+		store = new JournalStore(dir.getPath(), "bench", config);
+		return store;
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws IOException {
+		if (null != store) {
+			store.close();
+			store = null;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		Benchmarks.deleteDir(dir);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.common.store.Store;
+
+/**
+ * <b>存储的基本操作的基准测试</b>
+ * <p>每轮测试开始时打开一个新的存储，预先放入{@link #PRELOADED}个数据，
+ * get、update在这些数据中随机选取，结束时关闭并删除，所以每轮之间互不影响。</p>
+ * <p>add是一直增长的操作，使用SingleShotTime，每个线程每轮固定添加{@link #ADD_BATCH}个数据；
+ * 其他操作用吞吐量衡量。线程数通过JMH的-t参数或者{@link ThreadScaling}指定。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class StoreBenchmark {
+	/** 预先放入的数据个数 */
+	static final int PRELOADED = 10000;
+	/** add每个线程每轮添加的个数 */
+	static final int ADD_BATCH = 10000;
+
+	@Param({"128", "1024", "10240"})
+	public int valueSize;
+
+	protected Store store;
+	protected byte[] value;
+
+	/**
+	 * 打开一个新的空存储
+	 * @return 存储
+	 * @throws IOException
+	 */
+	protected abstract Store open() throws IOException;
+
+	/**
+	 * 存储关闭之后删除它的文件
+	 */
+	protected void cleanup() {
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		value = Benchmarks.value(valueSize);
+		store = open();
+		for (int i = 0; i < PRELOADED; i++) {
+			store.add(Benchmarks.key(0, i), value);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		store.close();
+		cleanup();
+	}
+
+	/**
+	 * 每个线程自己的key，新添加的key不会和其他线程重复
+	 */
+	@State(Scope.Thread)
+	public static class Keys {
+		private static final AtomicInteger THREADS = new AtomicInteger(1);
+		private final int thread = THREADS.getAndIncrement();
+		private final Random random = new Random(thread);
+		private long seq = 0;
+
+		byte[] next() {
+			return Benchmarks.key(thread, seq++);
+		}
+
+		byte[] preloaded() {
+			return Benchmarks.key(0, random.nextInt(PRELOADED));
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = ADD_BATCH)
+	@Measurement(iterations = 5, batchSize = ADD_BATCH)
+	public void add(Keys keys) throws IOException {
+		store.add(keys.next(), value);
+	}
+
+	@Benchmark
+	public byte[] get(Keys keys) throws IOException {
+		return store.get(keys.preloaded());
+	}
+
+	@Benchmark
+	public boolean update(Keys keys) throws IOException {
+		return store.update(keys.preloaded(), value);
+	}
+
+	/**
+	 * 添加一个新的数据再删除，数据的个数保持不变
+	 */
+	@Benchmark
+	public boolean addRemove(Keys keys) throws IOException {
+		byte[] key = keys.next();
+		store.add(key, value);
+		return store.remove(key);
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <b>用不同的线程数依次运行存储的基准测试</b>
+ * <p>JMH的-t一次只能指定一个线程数，这里按-Dthreads=1,4,16（默认值）依次运行，
+ * 参数是要运行的基准测试的正则表达式，默认是所有的{@link StoreBenchmark}：</p>
+ * <pre>
+ * java -Dthreads=1,8 -cp target/benchmarks.jar com.taobao.common.store.benchmark.ThreadScaling JournalStoreBenchmark.get
+ * </pre>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class ThreadScaling {
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "(JournalStore|MemStore)Benchmark";
+		for (String t : System.getProperty("threads", "1,4,16").split(",")) {
+			int threads = Integer.parseInt(t.trim());
+			Options opt = new OptionsBuilder()
+					.include(include)
+					.threads(threads)
+					.output("jmh-" + threads + "-threads.txt")
+					.build();
+			new Runner(opt).run();
+		}
+	}
+}
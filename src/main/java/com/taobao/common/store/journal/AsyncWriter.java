@@ -0,0 +1,151 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 异步写入线程
+ * <p>调用者把写请求放入一个有界队列，队列满的时候调用者会被阻塞。
+ * 写线程每次取出队列中所有的请求交给JournalStore一次写完，并按顺序完成每个请求的Future。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class AsyncWriter implements Runnable {
+	static Logger log = Logger.getLogger(AsyncWriter.class);
+
+	static final byte ADD = 1;
+	static final byte UPDATE = 2;
+	static final byte REMOVE = 3;
+
+	/**
+	 * 一个异步的写请求
+	 */
+	static class Request {
+		byte type;
+		byte[] key;
+		byte[] data;
+		WriteFuture<Boolean> future = new WriteFuture<Boolean>();
+		/** 处理的结果，不为null表示请求已经生效，由JournalStore在持有fileLock的写锁时设置 */
+		Boolean result;
+		/** 单个请求的失败原因，由JournalStore在持有fileLock的写锁时设置 */
+		IOException error;
+
+		Request(byte type, byte[] key, byte[] data) {
+			this.type = type;
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	private final JournalStore store;
+	private final BlockingQueue<Request> queue;
+	private final int maxBatch;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param store
+	 * @param capacity 队列的长度
+	 */
+	AsyncWriter(JournalStore store, int capacity) {
+		this.store = store;
+		this.queue = new ArrayBlockingQueue<Request>(capacity);
+		this.maxBatch = capacity;
+		this.thread = new Thread(this, "store4j-async-writer-" + store.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * 提交一个写请求，如果队列满了，会阻塞直到有空位
+	 * @param r
+	 * @throws IOException
+	 */
+	void submit(Request r) throws IOException {
+		if (!running) {
+			throw new IOException("异步写入已经关闭");
+		}
+		try {
+			queue.put(r);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待写入队列时被中断");
+		}
+		//在放入期间被关闭了，如果请求还没有被处理，自己拿回来
+		if (!running && queue.remove(r)) {
+			throw new IOException("异步写入已经关闭");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		List<Request> batch = new ArrayList<Request>();
+		while (running || !queue.isEmpty()) {
+			try {
+				Request r = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (null == r) {
+					continue;
+				}
+				batch.add(r);
+				queue.drainTo(batch, maxBatch - 1);
+				store.writeAsync(batch);
+			} catch (InterruptedException e) {
+				//由running控制退出，这里继续
+			} catch (Throwable e) {
+				log.error("async write error", e);
+				for (Request r : batch) {
+					if (!r.future.isDone()) {
+						r.future.fail(e);
+					}
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * 关闭写线程，已经在队列中的请求会被写完
+	 */
+	void close() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		//关闭之后才进来的请求，直接失败
+		Request r = null;
+		while (null != (r = queue.poll())) {
+			r.future.fail(new IOException("异步写入已经关闭"));
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import com.taobao.common.store.util.BytesKey;
+
+/**
+ * <b>索引的检查点</b>
+ * <p>某一时刻的索引、每个文件的引用计数和日志写到的位置，启动时读入检查点，
+ * 只需要重放每个文件在这个位置之后的日志。</p>
+ * <p>文件格式为：魔数 + 版本号 + 文件个数 + 每个文件的状态 + 每个索引的OpItem + 索引个数 + CRC32，
+ * OpItem是变长key的格式加上8字节的过期时间。版本3的索引个数在OpItem之前，
+ * 版本2是变长key的格式，版本1是固定16字节key的格式，都可以读取。
+ * 先写入临时文件，刷盘之后再改名，所以检查点文件要么是旧的，要么是新的。</p>
+ * <p>写锁内只记下文件的状态，并开始一个{@link Snapshot}，索引在锁外边遍历边写入文件，
+ * 遍历期间被修改的key使用修改之前记下的索引项，写出的仍然是取文件状态那一刻的索引。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class Checkpoint {
+	static final String SUFFIX = ".ckp";
+	static final String TEMP_SUFFIX = ".tmp";
+	static final int MAGIC = 0x53344A43; //S4JC
+	static final int VERSION = 4;
+	static final int EXPIRE_VERSION = 3;
+	static final int VARIABLE_KEY_VERSION = 2;
+	static final int FIXED_KEY_VERSION = 1;
+	/** 每个文件状态的长度：编号 + 是否单文件格式 + 日志位置 + 数据长度 + 引用计数 */
+	static final int FILE_STATE_LENGTH = 4 + 1 + 8 + 8 + 4;
+	/** 读写检查点文件的缓冲，比最长的一条索引还大 */
+	static final int BUFFER_SIZE = 128 * 1024;
+
+	/**
+	 * 检查点时一个文件的状态
+	 */
+	static class FileState {
+		final int number;
+		final boolean segment;
+		/** 日志写到的位置，单文件格式为文件的长度 */
+		final long logLength;
+		final long dataLength;
+		final int referenceCount;
+
+		FileState(int number, boolean segment, long logLength, long dataLength, int referenceCount) {
+			this.number = number;
+			this.segment = segment;
+			this.logLength = logLength;
+			this.dataLength = dataLength;
+			this.referenceCount = referenceCount;
+		}
+	}
+
+	/**
+	 * 写检查点期间索引的修改记录：一个key在快照开始之后第一次被修改之前，记下它原来的索引项，
+	 * 只保存被修改过的key，占用的内存和这段时间写入的key的个数成正比
+	 */
+	static class Snapshot {
+		/** key到它在快照时的索引项，快照时不存在的key对应的op为null */
+		private final Map<BytesKey, Before> befores = new ConcurrentHashMap<BytesKey, Before>();
+
+		/**
+		 * 修改索引中的一个key之前调用，需要持有这个key的锁或者写锁，同一个key的修改不会同时进行
+		 * @param key
+		 * @param indices
+		 */
+		void modifying(BytesKey key, Map<BytesKey, OpItem> indices) {
+			if (!this.befores.containsKey(key)) {
+				this.befores.put(key, new Before(indices.get(key)));
+			}
+		}
+
+		/**
+		 * @param key
+		 * @return 这个key在快照之后有没有被修改，修改过返回修改之前的记录，否则返回null
+		 */
+		Before before(BytesKey key) {
+			return this.befores.get(key);
+		}
+	}
+
+	/**
+	 * 一个key在快照时的索引项
+	 */
+	static class Before {
+		final OpItem op;
+		/** 是否已经写到检查点中了，只有写检查点的线程访问 */
+		boolean written = false;
+
+		Before(OpItem op) {
+			this.op = op;
+		}
+	}
+
+	/** 文件编号到文件状态 */
+	final Map<Integer, FileState> files = new HashMap<Integer, FileState>();
+	/** 文件编号到这个文件的索引 */
+	final Map<Integer, Map<BytesKey, OpItem>> indices = new HashMap<Integer, Map<BytesKey, OpItem>>();
+
+	/**
+	 * 写入检查点文件，先写临时文件，刷盘之后改名。
+	 * 索引一边遍历一边通过一个小的缓冲写入，不需要持有锁，也不需要和索引一样大的内存。
+	 * 遍历时已经被修改的key写入快照时的索引项，遍历之前被删除的key最后补上；
+	 * 遍历过之后才被修改的key会再写一次同样的索引项，读取时后面的覆盖前面的，结果一样
+	 * @param file
+	 * @param files 快照时每个文件的状态
+	 * @param indices 索引，可以同时被修改
+	 * @param snapshot 快照开始之后索引的修改记录
+	 * @throws IOException
+	 */
+	static void write(File file, Collection<FileState> files, Map<BytesKey, OpItem> indices,
+			Snapshot snapshot) throws IOException {
+		File tmp = new File(file.getAbsolutePath() + TEMP_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			fc.truncate(0);
+			CRC32 crc = new CRC32();
+			ByteBuffer bf = ByteBuffer.allocate(BUFFER_SIZE);
+			bf.putInt(MAGIC);
+			bf.putInt(VERSION);
+			bf.putInt(files.size());
+			for (FileState f : files) {
+				if (bf.remaining() < FILE_STATE_LENGTH) {
+					flush(fc, bf, crc);
+				}
+				bf.putInt(f.number);
+				bf.put((byte)(f.segment ? 1 : 0));
+				bf.putLong(f.logLength);
+				bf.putLong(f.dataLength);
+				bf.putInt(f.referenceCount);
+			}
+			int count = 0;
+			for (Map.Entry<BytesKey, OpItem> e : indices.entrySet()) {
+				OpItem op = e.getValue();
+				//先取值再查修改记录：修改之前一定已经记下了，取到的是修改之后的值时一定能查到
+				Before b = snapshot.before(e.getKey());
+				if (null != b) {
+					if (b.written) {
+						continue;
+					}
+					b.written = true;
+					op = b.op;
+				}
+				if (null != op) {
+					put(fc, bf, crc, e.getKey(), op);
+					count++;
+				}
+			}
+			//遍历时已经不在索引中的key
+			for (Map.Entry<BytesKey, Before> e : snapshot.befores.entrySet()) {
+				Before b = e.getValue();
+				if (!b.written && null != b.op) {
+					b.written = true;
+					put(fc, bf, crc, e.getKey(), b.op);
+					count++;
+				}
+			}
+			if (bf.remaining() < 4 + 8) {
+				flush(fc, bf, crc);
+			}
+			bf.putInt(count);
+			crc.update(bf.array(), 0, bf.position());
+			bf.putLong(crc.getValue());
+			bf.flip();
+			while (bf.hasRemaining()) {
+				fc.write(bf);
+			}
+			fc.force(true);
+		} finally {
+			raf.close();
+		}
+		rename(tmp, file);
+	}
+
+	/**
+	 * 写入一个小文件，先写临时文件，刷盘之后改名
+	 * @param file
+	 * @param bf 文件的内容
+	 * @throws IOException
+	 */
+	static void write(File file, ByteBuffer bf) throws IOException {
+		File tmp = new File(file.getAbsolutePath() + TEMP_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			fc.truncate(0);
+			while (bf.hasRemaining()) {
+				fc.write(bf);
+			}
+			fc.force(true);
+		} finally {
+			raf.close();
+		}
+		rename(tmp, file);
+	}
+
+	/**
+	 * 刷过盘的临时文件改名成正式的文件
+	 */
+	private static void rename(File tmp, File file) throws IOException {
+		if (!tmp.renameTo(file)) {
+			//有的系统不能覆盖已经存在的文件
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("检查点文件改名失败:" + tmp);
+			}
+		}
+	}
+
+	/**
+	 * 把一条索引放入缓冲，缓冲放不下时先写入文件。
+	 * 索引中16字节key的OpItem不带key，key从索引的key中取
+	 */
+	private static void put(FileChannel fc, ByteBuffer bf, CRC32 crc, BytesKey key, OpItem op) throws IOException {
+		byte[] k = null == op.key ? key.getData() : op.key;
+		if (bf.remaining() < OpItem.minSize(OpItem.FORMAT_VARIABLE) + k.length + OpItem.EXPIRE_LENGTH) {
+			flush(fc, bf, crc);
+		}
+		op.writeTo(bf, OpItem.FORMAT_VARIABLE, k);
+		bf.putLong(op.expire);
+	}
+
+	/**
+	 * 把缓冲中的内容计入校验和并写入文件，缓冲清空后重用
+	 */
+	private static void flush(FileChannel fc, ByteBuffer bf, CRC32 crc) throws IOException {
+		crc.update(bf.array(), 0, bf.position());
+		bf.flip();
+		while (bf.hasRemaining()) {
+			fc.write(bf);
+		}
+		bf.clear();
+	}
+
+	/**
+	 * 读取检查点文件，通过一个小的缓冲分段读入，先校验整个文件再解析
+	 * @param file
+	 * @return 检查点
+	 * @throws IOException 文件不完整或者损坏
+	 */
+	static Checkpoint read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long length = fc.size();
+			if (length < 4 + 4 + 4 + 4 + 8) {
+				throw new IOException("检查点文件长度不对:" + length);
+			}
+			long end = length - 8;
+			Input in = new Input(fc, end);
+			CRC32 crc = new CRC32();
+			while (in.fill()) {
+				ByteBuffer bf = in.buffer();
+				crc.update(bf.array(), bf.position(), bf.remaining());
+				bf.position(bf.limit());
+			}
+			ByteBuffer sum = ByteBuffer.allocate(8);
+			while (sum.hasRemaining()) {
+				if (fc.read(sum, end + sum.position()) < 0) {
+					throw new IOException("检查点文件不完整");
+				}
+			}
+			if (crc.getValue() != sum.getLong(0)) {
+				throw new IOException("检查点文件校验失败");
+			}
+			return parse(new Input(fc, end));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 解析校验过的检查点文件
+	 */
+	private static Checkpoint parse(Input in) throws IOException {
+		if (in.need(4 + 4 + 4).getInt() != MAGIC) {
+			throw new IOException("不是可以识别的检查点文件");
+		}
+		int version = in.buffer().getInt();
+		if (version < FIXED_KEY_VERSION || version > VERSION) {
+			throw new IOException("不是可以识别的检查点文件，version:" + version);
+		}
+		int format = version == FIXED_KEY_VERSION ? OpItem.FORMAT_FIXED : OpItem.FORMAT_VARIABLE;
+		Checkpoint ckp = new Checkpoint();
+		int fileCount = in.buffer().getInt();
+		for (int i = 0; i < fileCount; i++) {
+			ByteBuffer bf = in.need(FILE_STATE_LENGTH);
+			FileState f = new FileState(bf.getInt(), bf.get() == 1, bf.getLong(), bf.getLong(), bf.getInt());
+			ckp.files.put(new Integer(f.number), f);
+			ckp.indices.put(new Integer(f.number), new HashMap<BytesKey, OpItem>());
+		}
+		//版本4的索引个数在最后，之前的版本在索引之前
+		int size = version == VERSION ? -1 : in.need(4).getInt();
+		int count = 0;
+		while (version == VERSION ? in.remaining() > 4 : count < size) {
+			OpItem op = new OpItem();
+			if (!op.readFrom(in.buffer(), format) && (!in.fill() || !op.readFrom(in.buffer(), format))) {
+				throw new IOException("检查点文件长度不对");
+			}
+			if (version >= EXPIRE_VERSION) {
+				op.expire = in.need(OpItem.EXPIRE_LENGTH).getLong();
+			}
+			Map<BytesKey, OpItem> idx = ckp.indices.get(new Integer(op.number));
+			if (null == idx) {
+				throw new IOException("检查点中的索引指向不存在的文件:" + op);
+			}
+			idx.put(BytesKey.valueOf(op.key), op);
+			count++;
+		}
+		if (version == VERSION && in.need(4).getInt() != count) {
+			throw new IOException("检查点文件中索引的个数不对");
+		}
+		if (in.remaining() > 0) {
+			throw new IOException("检查点文件长度不对");
+		}
+		return ckp;
+	}
+
+	/**
+	 * 通过一个重用的缓冲顺序读取文件的一段
+	 */
+	private static class Input {
+		private final FileChannel fc;
+		private final long end;
+		private final ByteBuffer bf = ByteBuffer.allocate(BUFFER_SIZE);
+		/** 下一次从文件读取的位置 */
+		private long pos = 0;
+
+		Input(FileChannel fc, long end) {
+			this.fc = fc;
+			this.end = end;
+			this.bf.flip();
+		}
+
+		ByteBuffer buffer() {
+			return this.bf;
+		}
+
+		/**
+		 * @return 还没有读取的字节数，包括缓冲中的
+		 */
+		long remaining() {
+			return this.bf.remaining() + this.end - this.pos;
+		}
+
+		/**
+		 * 保证缓冲中至少有n个字节
+		 * @param n
+		 * @return 缓冲
+		 * @throws IOException 文件中没有这么多内容
+		 */
+		ByteBuffer need(int n) throws IOException {
+			if (this.bf.remaining() < n && (!fill() || this.bf.remaining() < n)) {
+				throw new IOException("检查点文件长度不对");
+			}
+			return this.bf;
+		}
+
+		/**
+		 * 保留缓冲中没有读取的内容，从文件中接着读入，直到缓冲满或者读到结尾
+		 * @return 是否读入了新的内容
+		 * @throws IOException
+		 */
+		boolean fill() throws IOException {
+			if (this.pos >= this.end) {
+				return false;
+			}
+			this.bf.compact();
+			this.bf.limit((int)Math.min(this.bf.capacity(), this.bf.position() + this.end - this.pos));
+			while (this.bf.hasRemaining()) {
+				int n = this.fc.read(this.bf, this.pos);
+				if (n < 0) {
+					throw new IOException("检查点文件不完整");
+				}
+				this.pos += n;
+			}
+			this.bf.flip();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 定期写检查点的线程
+ * <p>每隔一段时间调用一次{@link JournalStore#checkpoint()}。和整理线程一样，
+ * 不能通过中断来停止，等待通过这个对象的wait/notify完成。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class Checkpointer implements Runnable {
+	static Logger log = Logger.getLogger(Checkpointer.class);
+
+	private final JournalStore store;
+	private final long interval;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param store
+	 * @param interval 两次检查点之间的间隔，单位毫秒
+	 */
+	Checkpointer(JournalStore store, long interval) {
+		this.store = store;
+		this.interval = interval;
+		this.thread = new Thread(this, "store4j-checkpointer-" + store.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			synchronized (this) {
+				if (running) {
+					try {
+						wait(interval);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			if (!running) {
+				break;
+			}
+			try {
+				store.checkpoint();
+			} catch (Throwable e) {
+				log.error("checkpoint error", e);
+			}
+		}
+	}
+
+	/**
+	 * 停止线程，正在写的检查点会写完
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
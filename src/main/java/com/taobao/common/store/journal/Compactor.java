@@ -0,0 +1,115 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 后台整理线程
+ * <p>每隔一段时间调用一次{@link JournalStore#compact()}，把有效数据比例低的已写满文件中的数据搬到当前文件，
+ * 让旧文件可以被删除。不能通过中断来停止，中断会关闭正在读写的FileChannel，
+ * 所以等待和限速都通过这个对象的wait/notify完成。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class Compactor implements Runnable {
+	static Logger log = Logger.getLogger(Compactor.class);
+
+	private final JournalStore store;
+	private final long interval;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param store
+	 * @param interval 两次整理之间的间隔，单位毫秒
+	 */
+	Compactor(JournalStore store, long interval) {
+		this.store = store;
+		this.interval = interval;
+		this.thread = new Thread(this, "store4j-compactor-" + store.getName());
+		this.thread.setDaemon(true);
+		this.thread.setPriority(Thread.MIN_PRIORITY);
+		this.thread.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			pause(interval);
+			if (!running || !store.isCompactionEnabled()) {
+				continue;
+			}
+			try {
+				store.compact();
+			} catch (Throwable e) {
+				log.error("compact error", e);
+			}
+		}
+	}
+
+	/**
+	 * 等待一段时间，关闭时会被唤醒
+	 * @param millis
+	 * @return 是否还在运行
+	 */
+	boolean pause(long millis) {
+		if (millis <= 0) {
+			return running;
+		}
+		synchronized (this) {
+			if (running) {
+				try {
+					wait(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return running;
+	}
+
+	/**
+	 * 是否还在运行
+	 * @return 是否还在运行
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 停止整理线程，正在进行的整理会在搬完当前这条数据之后停止
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -23,8 +23,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.taobao.common.store.util.Crc32c;
+import com.taobao.common.store.util.Util;
 
 /**
  * 代表了一个数据文件
@@ -32,10 +39,39 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author dogun (yuexuqiang at gmail.com)
  */
 class DataFile {
+	/** 带校验的格式中，封存标记在文件头中的位置，前面是魔数和版本号 */
+	static final int SEAL_OFFSET = 8;
+	/** 封存标记的长度：封存的长度 + 它的CRC32C */
+	static final int SEAL_LENGTH = 8 + 4;
+	/** 预先分配空间时每次写入的全0块的大小 */
+	private static final int PREALLOCATE_CHUNK = 1024 * 1024;
+	
 	private File file;
 	private AtomicInteger referenceCount = new AtomicInteger(0);
 	protected FileChannel fc;
 	protected RandomAccessFile raf;
+	
+	//只读的内存映射，读的时候持有读锁，解除映射的时候持有写锁，保证不会访问已经释放的映射
+	private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+	private MappedByteBuffer mapped = null;
+	private AtomicLong mappedBudget = null;
+	private boolean closed = false;
+	
+	//日志记录的格式，由子类在打开文件时确定
+	protected int format = OpItem.FORMAT_FIXED;
+	
+	//带校验的格式中，文件头里封存标记记下的长度，这个长度之前的内容已经落盘并且校验过，恢复时可以信任
+	private volatile long sealedLength = 0;
+	
+	//追加写的位置，写入者先通过reserve预留一段空间，多个线程可以同时写入各自预留的位置
+	private final AtomicLong appendPos;
+	
+	//追加写的内存映射，映射和解除映射由调用者保证没有写入在进行，解除映射和force之间通过writeMapLock互斥
+	private final Object writeMapLock = new Object();
+	private final boolean sync;
+	private volatile MappedByteBuffer writeMap = null;
+	//文件的物理长度是预先分配的大小，追加写的位置之后都是0，解除映射或者关闭时截断到实际的长度
+	private boolean preallocated = false;
 
 	/**
 	 * 构造函数，会打开指定的文件，并且将指针指向文件结尾
@@ -54,10 +90,12 @@ class DataFile {
 	 */
 	DataFile(File file, boolean force) throws IOException {
 		this.file = file;
+		this.sync = force;
 		raf = new RandomAccessFile(file, force?"rws":"rw");
 		fc = raf.getChannel();
 		//指针移到最后
 		fc.position(fc.size());
+		appendPos = new AtomicLong(fc.size());
 	}
 
 	/**
@@ -67,7 +105,101 @@ class DataFile {
 	 * @throws IOException
 	 */
 	long getLength() throws IOException {
-		return fc.size();
+		//追加写映射的时候，文件的物理长度是映射的大小，这里返回的是已经预留的长度
+		return appendPos.get();
+	}
+
+	/**
+	 * 在文件结尾预留length字节的空间，多个线程可以同时预留，然后各自写入预留的位置
+	 * @param length
+	 * @param limit 文件的长度已经达到limit时不再预留
+	 * @return 预留的位置，文件已经写满返回-1
+	 */
+	long reserve(long length, long limit) {
+		while (true) {
+			long pos = appendPos.get();
+			if (pos >= limit) {
+				return -1;
+			}
+			if (appendPos.compareAndSet(pos, pos + length)) {
+				return pos;
+			}
+		}
+	}
+
+	/**
+	 * 这个文件中的日志记录使用的格式
+	 * @return 记录的格式
+	 */
+	int getFormat() {
+		return format;
+	}
+
+	/**
+	 * 两个文件的格式下，数据文件中的数据按日志文件的格式存放
+	 * @param format 日志文件的格式
+	 */
+	void setFormat(int format) {
+		this.format = format;
+	}
+
+	/**
+	 * @return 第一条记录的位置
+	 */
+	long getHeaderLength() {
+		return 0;
+	}
+
+	/**
+	 * @return 封存标记记下的长度，没有封存过返回0
+	 */
+	long getSealedLength() {
+		return sealedLength;
+	}
+
+	/**
+	 * 带校验的格式中，生成文件头里封存标记的部分：封存的长度 + 它的CRC32C
+	 * @param length
+	 * @return 封存标记
+	 */
+	static ByteBuffer newSeal(long length) {
+		ByteBuffer bf = ByteBuffer.allocate(SEAL_LENGTH);
+		bf.putLong(length);
+		bf.putInt(Crc32c.checksum(bf.array(), 0, 8));
+		bf.flip();
+		return bf;
+	}
+
+	/**
+	 * 从文件头中读出封存标记，标记不完整或者校验不对时当作没有封存过
+	 * @param bf 封存标记
+	 */
+	protected void readSeal(ByteBuffer bf) {
+		ByteBuffer b = bf.duplicate();
+		b.limit(b.position() + 8);
+		long length = bf.getLong();
+		int crc = bf.getInt();
+		if (crc == Crc32c.checksum(b)) {
+			this.sealedLength = length;
+		}
+	}
+
+	/**
+	 * 封存文件的[0, length)：先把文件落盘，再把封存标记写入文件头并落盘。
+	 * 恢复时这个长度之前的记录和数据不用再校验，只需要校验之后追加的部分。
+	 * 只有带校验的格式的文件头中有封存标记，需要保证没有写入在进行。
+	 * 恢复时截短了的文件也会按新的长度重新封存
+	 * @param length
+	 * @throws IOException
+	 */
+	void seal(long length) throws IOException {
+		if (!OpItem.hasChecksum(this.format) || length == this.sealedLength) {
+			return;
+		}
+		force();
+		write(SEAL_OFFSET, newSeal(length));
+		force();
+		this.sealedLength = length;
 	}
 
 	/**
@@ -86,18 +218,261 @@ class DataFile {
 	 * @throws IOException
 	 */
 	void force() throws IOException {
+		synchronized (writeMapLock) {
+			if (null != writeMap) {
+				writeMap.force();
+			}
+		}
 		fc.force(true);
 	}
 
+	/**
+	 * 把文件截断到指定的长度，文件指针移到结尾
+	 * @param length
+	 * @throws IOException
+	 */
+	void truncate(long length) throws IOException {
+		if (null != writeMap) {
+			//映射的部分清零，这样恢复的时候能知道数据在哪里结束
+			int capacity = writeMap.capacity();
+			if (length < capacity) {
+				ByteBuffer dst = writeMap.duplicate();
+				dst.position((int)length);
+				dst.limit((int)Math.min(appendPos.get(), capacity));
+				while (dst.hasRemaining()) {
+					dst.put((byte)0);
+				}
+			}
+			if (fc.size() > Math.max(length, capacity)) {
+				fc.truncate(Math.max(length, capacity));
+			}
+			appendPos.set(length);
+			return;
+		}
+		fc.truncate(length);
+		fc.position(length);
+		appendPos.set(length);
+	}
+
+	/**
+	 * 把文件预先分配到capacity：在结尾写入全0，让文件系统提前分配好磁盘块，之后的追加写不用再扩展文件。
+	 * 追加写的位置不变，恢复时遇到全0的记录就知道数据在哪里结束；
+	 * 解除追加写的映射或者关闭时截断到实际写入的长度
+	 * @param capacity
+	 * @throws IOException
+	 */
+	void preallocate(long capacity) throws IOException {
+		synchronized (writeMapLock) {
+			long pos = fc.size();
+			if (pos >= capacity) {
+				return;
+			}
+			ByteBuffer zeros = ByteBuffer.allocate((int)Math.min(PREALLOCATE_CHUNK, capacity - pos));
+			while (pos < capacity) {
+				zeros.clear();
+				zeros.limit((int)Math.min(zeros.capacity(), capacity - pos));
+				pos += fc.write(zeros, pos);
+			}
+			preallocated = true;
+		}
+	}
+
+	/**
+	 * 文件改名，改名之后文件仍然是打开的
+	 * @param dest 新的名字
+	 * @throws IOException 改名失败
+	 */
+	void renameTo(File dest) throws IOException {
+		if (!file.renameTo(dest)) {
+			throw new IOException("文件改名失败：" + file + " -> " + dest);
+		}
+		file = dest;
+	}
+
+	/**
+	 * 把文件的[0, capacity)映射到内存用于追加写，之后的写入直接复制到映射中，
+	 * 超出映射范围的部分仍然通过FileChannel写。
+	 * 映射期间文件的物理长度是capacity，{@link #getLength()}返回的是实际写入的长度，
+	 * 解除映射时文件会被截断到实际的长度
+	 * @param capacity
+	 * @throws IOException
+	 */
+	void mapForWrite(long capacity) throws IOException {
+		synchronized (writeMapLock) {
+			long pos = appendPos.get();
+			if (null != writeMap || pos >= capacity || capacity > Integer.MAX_VALUE) {
+				return;
+			}
+			writeMap = fc.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+	}
+
+	/**
+	 * 解除追加写的映射，并把文件截断到实际写入的长度，预先分配过空间的文件也在这里截断
+	 * @throws IOException
+	 */
+	void unmapForWrite() throws IOException {
+		synchronized (writeMapLock) {
+			if (null == writeMap && !preallocated) {
+				return;
+			}
+			if (null != writeMap) {
+				MappedByteBuffer m = writeMap;
+				if (sync) {
+					m.force();
+				}
+				writeMap = null;
+				Util.release(m);
+			}
+			preallocated = false;
+			long pos = appendPos.get();
+			fc.truncate(pos);
+			fc.position(pos);
+		}
+	}
+
+	/**
+	 * 把数据写到指定的位置，有追加写的映射并且在映射范围内时复制到映射中，否则通过FileChannel写
+	 * @param offset
+	 * @param bf
+	 * @throws IOException
+	 */
+	private void put(long offset, ByteBuffer bf) throws IOException {
+		MappedByteBuffer m = writeMap;
+		if (null != m && offset + bf.remaining() <= m.capacity()) {
+			ByteBuffer dst = m.duplicate();
+			dst.position((int)offset);
+			dst.put(bf);
+			return;
+		}
+		int size = 0;
+		while (bf.hasRemaining()) {
+			int l = fc.write(bf, offset + size);
+			size += l;
+			if (l < 0) break;
+		}
+	}
+
+	/**
+	 * 同步写入模式下，把追加写的映射刷盘，FileChannel的写入本身就是同步的
+	 */
+	private void forceMapped() {
+		MappedByteBuffer m = writeMap;
+		if (sync && null != m) {
+			m.force();
+		}
+	}
+
+	/**
+	 * 文件是否还处于打开状态
+	 * @return 是否打开
+	 */
+	boolean isOpen() {
+		return fc.isOpen();
+	}
+
 	/**
 	 * 关闭文件
 	 * 
 	 * @throws IOException
 	 */
 	void close() throws IOException {
+		if (fc.isOpen()) {
+			unmapForWrite();
+		}
+		mapLock.writeLock().lock();
+		try {
+			closed = true;
+			unmap();
+		} finally {
+			mapLock.writeLock().unlock();
+		}
 		fc.close();
 		raf.close();
 	}
+
+	/**
+	 * 把文件的[0, length)以只读方式映射到内存，只有不会再被写入数据的文件才能映射。
+	 * 映射的大小计入budget，超出max的时候不映射
+	 * @param length
+	 * @param budget 所有文件共享的已映射字节数
+	 * @param max 最多可以映射的字节数
+	 * @return 是否已经映射
+	 * @throws IOException
+	 */
+	boolean map(long length, AtomicLong budget, long max) throws IOException {
+		mapLock.writeLock().lock();
+		try {
+			if (null != mapped) {
+				return true;
+			}
+			if (closed || length > Integer.MAX_VALUE) {
+				return false;
+			}
+			if (budget.addAndGet(length) > max) {
+				budget.addAndGet(-length);
+				return false;
+			}
+			try {
+				mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} catch (IOException e) {
+				budget.addAndGet(-length);
+				throw e;
+			}
+			mappedBudget = budget;
+			return true;
+		} finally {
+			mapLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 是否已经映射到内存
+	 * @return 是否已经映射
+	 */
+	boolean isMapped() {
+		mapLock.readLock().lock();
+		try {
+			return null != mapped;
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 从内存映射的指定位置读取数据到bf，直到读满
+	 * @param bf
+	 * @param offset
+	 * @return 是否读到了，没有映射或者超出映射范围时返回false
+	 */
+	boolean readMapped(ByteBuffer bf, long offset) {
+		mapLock.readLock().lock();
+		try {
+			if (null == mapped || offset + bf.remaining() > mapped.capacity()) {
+				return false;
+			}
+			ByteBuffer src = mapped.duplicate();
+			src.position((int)offset);
+			src.limit((int)offset + bf.remaining());
+			bf.put(src);
+			return true;
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 解除内存映射，需要持有mapLock的写锁
+	 */
+	private void unmap() {
+		if (null != mapped) {
+			MappedByteBuffer m = mapped;
+			mapped = null;
+			mappedBudget.addAndGet(-m.capacity());
+			mappedBudget = null;
+			Util.release(m);
+		}
+	}
 	
 	/**
 	 * 从文件读取数据到bf，直到读满或者读到文件结尾。
@@ -133,32 +508,80 @@ class DataFile {
 	}
 
 	/**
-	 * 写入bf长度的数据到文件，文件指针会向后移动
+	 * 把文件中指定位置的数据直接传输到target，由操作系统复制，不经过堆内存。
+	 * <br />
+	 * 文件指针不会移动
+	 * 
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @return 传输的字节数，读到文件结尾或者target暂时写不进去时小于length
+	 * @throws IOException
+	 */
+	long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+		long size = 0;
+		while (size < length) {
+			long l = fc.transferTo(offset + size, length - size, target);
+			if (l <= 0) break;
+			size += l;
+		}
+		return size;
+	}
+
+	/**
+	 * 在文件结尾追加bf长度的数据
 	 * @param bf
-	 * @return 写入后的文件position
+	 * @return 写入后的文件长度
 	 * @throws IOException
 	 */
 	long write(ByteBuffer bf) throws IOException {
-		while (bf.hasRemaining()) {
-			int l = fc.write(bf);
-			if (l < 0) break;
-		}
-		return fc.position();
+		int len = bf.remaining();
+		long pos = reserve(len, Long.MAX_VALUE);
+		write(pos, bf);
+		return pos + len;
 	}
 	
 	/**
-	 * 从指定位置写入bf长度的数据到文件，文件指针<b>不会</b>向后移动
+	 * 在文件结尾一次追加多个bf的数据
+	 * @param bfs
+	 * @return 写入后的文件长度
+	 * @throws IOException
+	 */
+	long write(ByteBuffer[] bfs) throws IOException {
+		long total = 0;
+		for (ByteBuffer bf : bfs) {
+			total += bf.remaining();
+		}
+		long pos = reserve(total, Long.MAX_VALUE);
+		write(pos, bfs);
+		return pos + total;
+	}
+
+	/**
+	 * 从指定位置写入bf长度的数据到文件，位置一般是通过{@link #reserve(long, long)}预留的
 	 * @param offset
 	 * @param bf
 	 * @throws IOException
 	 */
 	void write(long offset, ByteBuffer bf) throws IOException {
-		int size = 0;
-		while (bf.hasRemaining()) {
-			int l = fc.write(bf, offset + size);
-			size += l;
-			if (l < 0) break;
+		put(offset, bf);
+		forceMapped();
+	}
+
+	/**
+	 * 从指定位置开始依次写入多个bf的数据
+	 * @param offset
+	 * @param bfs
+	 * @throws IOException
+	 */
+	void write(long offset, ByteBuffer[] bfs) throws IOException {
+		long pos = offset;
+		for (ByteBuffer bf : bfs) {
+			int len = bf.remaining();
+			put(pos, bf);
+			pos += len;
 		}
+		forceMapped();
 	}
 
 	/**
@@ -169,6 +592,15 @@ class DataFile {
 		return referenceCount.incrementAndGet();
 	}
 
+	/**
+	 * 引用计数增加指定的数量
+	 * @param count
+	 * @return 增加后的引用计数
+	 */
+	int increment(int count) {
+		return referenceCount.addAndGet(count);
+	}
+
 	/**
 	 * 对文件减少一个引用计数
 	 * @return 减少后的引用计数
@@ -0,0 +1,325 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <b>按文件顺序遍历存储中的key/value对</b>
+ * <p>生成时取一份索引的快照，按数据文件分组，每个文件内按数据的位置排序，
+ * 遍历时每次从文件顺序读入{@link #READ_AHEAD}字节，一个文件中的数据是一遍顺序读完的，不是每个key一次随机读。</p>
+ * <p>和Java 8的Spliterator一样，{@link #trySplit()}把还没有开始的文件分出一半交给另一个遍历器，
+ * 分出来的遍历器可以在别的线程中遍历，{@link #forEachRemaining(EntryVisitor, int)}就是这样并行遍历的。
+ * 一个遍历器不是线程安全的。</p>
+ * <p>遍历是弱一致的：快照之后删除的数据不会访问到，更新的数据访问到的是新的值，快照之后添加的数据不会访问到。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class EntryScanner {
+	/** 每次从文件读入的字节数，比这更大的数据单独读 */
+	static final int READ_AHEAD = 1024 * 1024;
+
+	private final JournalStore store;
+	/** 还没有遍历完的文件，第一个是正在遍历的 */
+	private LinkedList<FileEntries> files;
+	/** 正在遍历的文件中下一个数据的序号 */
+	private int next = 0;
+	/** 读入的一段文件，position为0 */
+	private ByteBuffer window = null;
+	/** window在文件中的起始位置 */
+	private long windowStart = 0;
+
+	/**
+	 * @param store
+	 * @param files 每个文件的数据，已经按位置排好序
+	 */
+	EntryScanner(JournalStore store, List<FileEntries> files) {
+		this.store = store;
+		this.files = new LinkedList<FileEntries>(files);
+	}
+
+	/**
+	 * 访问下一个数据
+	 * @param visitor
+	 * @return 是否还有数据，没有数据时不会调用visitor
+	 * @throws IOException
+	 */
+	public boolean tryAdvance(EntryVisitor visitor) throws IOException {
+		while (!files.isEmpty()) {
+			FileEntries f = files.getFirst();
+			if (next >= f.ops.size()) {
+				files.removeFirst();
+				next = 0;
+				window = null;
+				continue;
+			}
+			OpItem op = f.ops.get(next++);
+			byte[] value = value(f, next - 1);
+			if (null != value) {
+				visitor.visit(op.key, value);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 在当前线程中访问剩下的所有数据
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void forEachRemaining(EntryVisitor visitor) throws IOException {
+		while (tryAdvance(visitor)) {
+			;
+		}
+	}
+
+	/**
+	 * 把剩下的文件分成最多threads份，同时遍历，全部遍历完才返回
+	 * @param visitor 会在多个线程中同时调用，必须是线程安全的
+	 * @param threads 线程数
+	 * @throws IOException 某一份遍历失败，其他份还没有开始的文件不会再遍历
+	 */
+	public void forEachRemaining(final EntryVisitor visitor, int threads) throws IOException {
+		List<EntryScanner> parts = new ArrayList<EntryScanner>();
+		parts.add(this);
+		//每一轮把每一份各分一次，直到够了或者分不开
+		boolean split = true;
+		while (split && parts.size() < threads) {
+			split = false;
+			for (int i = 0, n = parts.size(); i < n && parts.size() < threads; i++) {
+				EntryScanner s = parts.get(i).trySplit();
+				if (null != s) {
+					parts.add(s);
+					split = true;
+				}
+			}
+		}
+		if (parts.size() == 1) {
+			forEachRemaining(visitor);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(parts.size(), new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "store4j-scan-" + store.getName() + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(parts.size());
+		try {
+			for (final EntryScanner s : parts) {
+				futures.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						s.forEachRemaining(visitor);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : futures) {
+				get(f);
+			}
+		} finally {
+			for (Future<Object> f : futures) { //出错的时候，其他份不用再遍历了
+				f.cancel(false);
+			}
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * 把还没有开始的文件中的后一半分给一个新的遍历器
+	 * @return 新的遍历器，只剩一个文件时返回null
+	 */
+	public EntryScanner trySplit() {
+		int total = files.size();
+		if (total < 2) {
+			return null;
+		}
+		int mid = (total + 1) / 2;
+		List<FileEntries> tail = new ArrayList<FileEntries>(files.subList(mid, total));
+		files = new LinkedList<FileEntries>(files.subList(0, mid));
+		return new EntryScanner(store, tail);
+	}
+
+	/**
+	 * 剩下的数据个数，快照之后删除的数据也算在内
+	 * @return 剩下的数据个数
+	 */
+	public long estimateSize() {
+		long size = -next;
+		for (FileEntries f : files) {
+			size += f.ops.size();
+		}
+		return Math.max(0, size);
+	}
+
+	/**
+	 * 剩下的文件数
+	 * @return 剩下的文件数，包括正在遍历的
+	 */
+	public int getFileCount() {
+		return files.size();
+	}
+
+	/**
+	 * 读取快照中的一个数据
+	 * @param f
+	 * @param i 数据在f中的序号
+	 * @return 数据，已经被删除返回null
+	 * @throws IOException
+	 */
+	private byte[] value(FileEntries f, int i) throws IOException {
+		OpItem op = f.ops.get(i);
+		OpItem current = store.locate(op.key);
+		if (null == current) {
+			return null;
+		}
+		if (current.number != op.number || current.offset != op.offset) {
+			//快照之后更新了，或者被整理搬走了
+			return store.get(op.key);
+		}
+		DataFile df = store.dataFile(op);
+		if (null == df) {
+			return null;
+		}
+		try {
+			return read(df, f, i);
+		} catch (IOException e) {
+			//读的时候文件被删除了，数据已经不在这个位置了
+			current = store.locate(op.key);
+			if (null != current && current.number == op.number && current.offset == op.offset) {
+				throw e;
+			}
+			return null == current ? null : store.get(op.key);
+		}
+	}
+
+	/**
+	 * 从读入的一段文件中取出数据，不在这一段时从数据的位置开始读入下一段，
+	 * 一直读到这一段中能放下的最后一个数据的结尾
+	 */
+	private byte[] read(DataFile df, FileEntries f, int i) throws IOException {
+		OpItem op = f.ops.get(i);
+		int length = op.length;
+		byte[] stored;
+		int off;
+		if (length > READ_AHEAD) {
+			stored = new byte[length];
+			off = 0;
+			fill(df, ByteBuffer.wrap(stored), op.offset);
+		} else {
+			if (null == window || op.offset < windowStart || op.offset + length > windowStart + window.limit()) {
+				if (null == window) {
+					window = ByteBuffer.allocate(READ_AHEAD);
+				}
+				long end = op.offset + length;
+				for (int j = i + 1; j < f.ops.size(); j++) {
+					OpItem o = f.ops.get(j);
+					if (o.offset + o.length - op.offset > READ_AHEAD) {
+						break;
+					}
+					end = Math.max(end, o.offset + o.length);
+				}
+				window.clear();
+				window.limit((int)(end - op.offset));
+				windowStart = op.offset;
+				try {
+					fill(df, window, op.offset);
+				} catch (IOException e) {
+					window = null;
+					throw e;
+				}
+				window.flip();
+			}
+			stored = window.array();
+			off = (int)(op.offset - windowStart);
+		}
+		if (OpItem.isCompressed(df.getFormat())) {
+			return ValueCodec.decode(stored, off, length);
+		}
+		if (off == 0 && stored.length == length) {
+			return stored;
+		}
+		byte[] value = new byte[length];
+		System.arraycopy(stored, off, value, 0, length);
+		return value;
+	}
+
+	/**
+	 * 从offset开始读满bf
+	 */
+	private static void fill(DataFile df, ByteBuffer bf, long offset) throws IOException {
+		if (!df.readMapped(bf, offset)) {
+			df.read(bf, offset);
+		}
+		if (bf.hasRemaining()) {
+			throw new IOException("数据不完整：" + df + ", offset:" + offset);
+		}
+	}
+
+	/**
+	 * 获得一个已经完成的任务的结果
+	 */
+	private static void get(Future<Object> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待遍历时被中断");
+		} catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException) {
+				throw (IOException)c;
+			}
+			if (c instanceof RuntimeException) {
+				throw (RuntimeException)c;
+			}
+			IOException ioe = new IOException("遍历失败");
+			ioe.initCause(c);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * 一个文件中的数据，按位置排序
+	 */
+	static final class FileEntries {
+		final int number;
+		final List<OpItem> ops = new ArrayList<OpItem>();
+
+		FileEntries(int number) {
+			this.number = number;
+		}
+	}
+}
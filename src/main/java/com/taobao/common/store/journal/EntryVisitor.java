@@ -0,0 +1,38 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+
+/**
+ * 遍历存储中的key/value对时，对每一对调用一次
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ * @see EntryScanner
+ */
+public interface EntryVisitor {
+	/**
+	 * 访问一个数据
+	 * @param key
+	 * @param value 数据的副本，可以保留
+	 * @throws IOException 抛出时停止遍历
+	 */
+	void visit(byte[] key, byte[] value) throws IOException;
+}
@@ -0,0 +1,100 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 删除过期数据的线程
+ * <p>每隔一个tick转一次{@link TimingWheel}，把到期的key一批交给{@link JournalStore#expire(List)}。
+ * 和检查点线程一样，不能通过中断来停止，等待通过这个对象的wait/notify完成。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class Expirer implements Runnable {
+	static Logger log = Logger.getLogger(Expirer.class);
+
+	private final JournalStore store;
+	private final TimingWheel wheel;
+	private final long tick;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param store
+	 * @param wheel
+	 * @param tick 检查的间隔，单位毫秒
+	 */
+	Expirer(JournalStore store, TimingWheel wheel, long tick) {
+		this.store = store;
+		this.wheel = wheel;
+		this.tick = tick;
+		this.thread = new Thread(this, "store4j-expirer-" + store.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			synchronized (this) {
+				if (running) {
+					try {
+						wait(tick);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			if (!running) {
+				break;
+			}
+			try {
+				List<TimingWheel.Timer> expired = wheel.advance(System.currentTimeMillis());
+				if (!expired.isEmpty()) {
+					store.expire(expired);
+				}
+			} catch (Throwable e) {
+				log.error("expire error", e);
+			}
+		}
+	}
+
+	/**
+	 * 停止线程，正在删除的一批会删完
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 组提交
+ * <p>写入者把数据写到文件之后，先通过{@link #markDirty(DataFile)}登记被写过的文件，
+ * 再通过{@link #commit()}获得一个提交序号，然后调用{@link #await(long)}等待自己的序号落盘。
+ * 同一时间只有一个线程在做force，它会把在上一次刷盘期间到达的所有写入一次性刷到硬盘。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class GroupCommitter {
+	private final AtomicLong writeSeq = new AtomicLong(0);
+	private volatile long syncedSeq = 0;
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final ConcurrentHashMap<DataFile, Boolean> dirtyFiles = new ConcurrentHashMap<DataFile, Boolean>();
+
+	private final AtomicLong syncCount = new AtomicLong(0);
+	private final AtomicLong syncedRecords = new AtomicLong(0);
+	private final AtomicLong syncNanos = new AtomicLong(0);
+	private volatile long lastBatchSize = 0;
+	private volatile long lastSyncNanos = 0;
+
+	/**
+	 * 登记一个被写过、需要刷盘的文件。必须在对应的{@link #commit()}之前调用
+	 * @param df
+	 */
+	void markDirty(DataFile df) {
+		dirtyFiles.put(df, Boolean.TRUE);
+	}
+
+	/**
+	 * 完成一次写入，获得这次写入的提交序号
+	 * @return 提交序号
+	 */
+	long commit() {
+		return writeSeq.incrementAndGet();
+	}
+
+	/**
+	 * 等待指定序号之前的写入全部落盘
+	 * @param seq
+	 * @throws IOException
+	 */
+	void await(long seq) throws IOException {
+		if (syncedSeq >= seq) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			if (syncedSeq >= seq) { //在等锁期间已经被别人刷掉了
+				return;
+			}
+			//先取序号，再取文件，保证序号之前的写入所登记的文件都在这一批里
+			long target = writeSeq.get();
+			List<DataFile> files = new ArrayList<DataFile>(dirtyFiles.keySet());
+			for (DataFile df : files) {
+				dirtyFiles.remove(df);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < files.size(); i++) {
+				DataFile df = files.get(i);
+				if (!df.isOpen()) { //文件已经被删除了，不用再刷
+					continue;
+				}
+				try {
+					df.force();
+				} catch (IOException e) {
+					if (!df.isOpen()) {
+						continue;
+					}
+					//没有刷成功的文件放回去，留给下一批
+					for (int j = i; j < files.size(); j++) {
+						markDirty(files.get(j));
+					}
+					throw e;
+				}
+			}
+			long cost = System.nanoTime() - start;
+			long batch = target - syncedSeq;
+			syncedSeq = target;
+
+			syncCount.incrementAndGet();
+			syncedRecords.addAndGet(batch);
+			syncNanos.addAndGet(cost);
+			lastBatchSize = batch;
+			lastSyncNanos = cost;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * @return 刷盘的次数
+	 */
+	long getSyncCount() {
+		return syncCount.get();
+	}
+
+	/**
+	 * @return 平均每次刷盘覆盖的写入数
+	 */
+	double getAvgBatchSize() {
+		long count = syncCount.get();
+		return count == 0 ? 0 : syncedRecords.get() * 1.0d / count;
+	}
+
+	/**
+	 * @return 最近一次刷盘覆盖的写入数
+	 */
+	long getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	/**
+	 * @return 平均每次刷盘的耗时，单位微秒
+	 */
+	double getAvgSyncMicros() {
+		long count = syncCount.get();
+		return count == 0 ? 0 : syncNanos.get() / 1000.0d / count;
+	}
+
+	/**
+	 * @return 最近一次刷盘的耗时，单位微秒
+	 */
+	long getLastSyncMicros() {
+		return lastSyncNanos / 1000;
+	}
+}
@@ -19,31 +19,53 @@
  */
 package com.taobao.common.store.journal;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
 import com.taobao.common.store.Store;
 import com.taobao.common.store.util.BytesKey;
+import com.taobao.common.store.util.Crc32c;
+import com.taobao.common.store.util.Key128;
 import com.taobao.common.store.util.Util;
 
 /**
  * <b>一个通过日志文件实现的key/value对的存储</b>
  * 
- * key必须是16字节 <br />
+ * key默认必须是16字节，可以配置为1到maxKeyLength字节的变长key <br />
  * 1、数据文件和日志文件在一起，不记录索引文件<br />
  * 	 name.1 name.1.log<br />
  * 2、data为真正的数据，顺序存放，使用引用计数<br />
@@ -53,27 +75,136 @@ import com.taobao.common.store.util.Util;
  * 6、获取数据时，直接从内存索引获得数据偏移量<br />
  * 7、更新数据时，调用添加<br />
  * 8、启动时，遍历每一个log文件，通过日志的操作恢复内存索引<br />
+ * 9、可以配置为单文件格式，日志和数据写在同一个文件name.1.seg中，启动时扫描每一条记录恢复内存索引<br />
+ * 10、可以配置为通过内存映射追加写入，当前文件预先映射，换文件或者关闭时截断到实际长度，
+ * 启动时从全0的日志处截断没有写入的部分<br />
+ * 11、可以启动后台整理，把有效数据比例低的已写满文件中的数据搬到当前文件，让旧文件可以被删除<br />
+ * 12、可以使用索引的检查点，启动时读入检查点，只重放检查点之后的日志<br />
+ * 13、可以在读取时缓存数据，按字节数限制大小，更新和删除时去掉缓存<br />
+ * 14、单条的添加、更新、删除只锁住key所在的段，数据文件的空间通过CAS预留，不同key的写入可以同时进行，
+ * 只有日志的追加是顺序的；换文件、删除文件、批量写入、检查点和关闭会等待所有的写入完成<br />
+ * 15、变长key的日志记录以key的长度开头，每个文件自己记录是哪种格式，固定16字节key的旧文件可以直接读取，
+ * 但不再追加新的数据<br />
+ * 16、可以配置为带校验的格式，每条日志记录和每个数据都带有CRC32C，换文件和关闭时在文件头写入封存标记，
+ * 启动时只校验封存之后追加的部分，从第一条校验失败的记录开始截掉<br />
+ * 17、可以配置为压缩的格式，超过阈值的数据用LZ4压缩后写入，数据前面记录压缩方式和原始长度，
+ * 读取时解压，索引和日志中的长度都是压缩之后的长度<br />
+ * 18、可以把数据读到调用者的缓冲区，或者直接传输到一个channel，查找索引和读取时不生成新的对象<br />
+ * 19、大的数据可以流式写入和读取：写入时先写到临时文件，关闭时映射到内存添加；读取时按位置分段读，
+ * 可以只读数据的一部分<br />
+ * 20、统计添加、读取、更新、删除的耗时分布，写入的字节数，换文件的次数和等待appendLock的时间，通过MBean查看和清空<br />
+ * 21、可以按文件顺序遍历所有的key/value对，每个文件中的数据按位置顺序读，不同的文件可以同时遍历<br />
+ * 22、可以配置为带过期时间的格式，添加时指定存活时间，过期时间记在添加的日志中。过期的数据读不到，
+ * 由时间轮成批地从索引中去掉，不写删除日志；启动时过期的数据直接丢弃<br />
+ * 23、文件大小可以配置；可以配置为由后台线程提前生成下一个文件并预先分配空间，换文件时改名直接换上。
+ * 预先分配的部分是全0，恢复时遇到全0的记录就知道数据在哪里结束<br />
+ * 24、单条添加的日志和记录编码在每个线程重用的堆外缓冲区里，写入时不再生成临时的缓冲区；
+ * 可以直接添加堆外缓冲区中的数据，不用先复制成字节数组<br />
+ * 25、16字节的key在索引中表示成两个long，比较和计算hash不用再逐个字节进行<br />
  * 
  * @author dogun (yuexuqiang at gmail.com)
  */
 public class JournalStore implements Store, JournalStoreMBean {
 	static Logger log = Logger.getLogger(JournalStore.class);
 	
+	/** 默认的文件大小，可以通过{@link JournalStoreConfig#setFileSize(int)}配置 */
 	public static final int FILE_SIZE = 1024 * 1024 * 50; //20M
 	
+	/** 异步写入时，连续的添加合并成一次写入的最大字节数 */
+	private static final int MAX_COALESCE_BYTES = 1024 * 1024 * 4;
+	
+	/** 按key分段的锁的个数，必须是2的幂 */
+	private static final int KEY_LOCKS = 64;
+	
+	/** 恢复时每次读入的日志条数 */
+	private static final int RECOVERY_READ_RECORDS = 4096;
+	
+	/** 读取时每个线程保留的缓冲区的最大字节数，更大的数据每次单独分配 */
+	private static final int MAX_READ_BUFFER = 1024 * 1024;
+	
+	/** 每个线程读取时重用的对象 */
+	private static final ThreadLocal<ReadContext> READ_CONTEXT = new ThreadLocal<ReadContext>() {
+		@Override
+		protected ReadContext initialValue() {
+			return new ReadContext();
+		}
+	};
+	
+	/** 写入时每个线程保留的堆外缓冲区的最大字节数，更大的记录每次单独分配 */
+	private static final int MAX_WRITE_BUFFER = 1024 * 1024;
+	
+	/** 每个线程写入时重用的对象 */
+	private static final ThreadLocal<WriteContext> WRITE_CONTEXT = new ThreadLocal<WriteContext>() {
+		@Override
+		protected WriteContext initialValue() {
+			return new WriteContext();
+		}
+	};
+	
 	private String path;
 	private String name;
 	private boolean force;
+	private JournalStoreConfig config;
+	/** 数据文件写到这个长度之后换下一个文件 */
+	private int fileSize;
+	/** 内存映射追加写和预先分配空间时，日志文件的大小，是OpItem长度的整数倍 */
+	private int logMapSize;
+	/** 新生成的文件使用的记录格式 */
+	private int format;
+	private GroupCommitter groupCommitter = null;
+	private volatile AsyncWriter asyncWriter = null;
+	private volatile boolean closed = false;
+	private AtomicLong mappedBytes = new AtomicLong(0);
+	/** 压缩的格式下，编码之前和之后的数据字节数 */
+	private AtomicLong rawBytes = new AtomicLong(0);
+	private AtomicLong storedBytes = new AtomicLong(0);
+	/** 操作的耗时、写入的字节数等运行统计 */
+	private final StoreStatistics statistics = new StoreStatistics();
+	
+	private volatile Compactor compactor = null;
+	private volatile boolean compactionEnabled;
+	private volatile double compactionThreshold;
+	private volatile long compactionRate;
+	private ReentrantLock compactLock = new ReentrantLock();
+	private AtomicLong compactedFiles = new AtomicLong(0);
+	private AtomicLong compactedBytes = new AtomicLong(0);
+	
+	private volatile long recoveryTime = 0;
+	private volatile long recoveryRecords = 0;
+	private volatile long recoveryVerifiedBytes = 0;
+	
+	private volatile Checkpointer checkpointer = null;
+	private volatile Preparer preparer = null;
 	
-	private Map<BytesKey, OpItem> indices = new ConcurrentHashMap<BytesKey, OpItem>(10000, 0.8F, 40);
+	/** 会过期的key，到期时成批删除 */
+	private TimingWheel wheel;
+	private volatile Expirer expirer = null;
+	private AtomicLong expiredCount = new AtomicLong(0);
+	private ReentrantLock checkpointLock = new ReentrantLock();
+	private volatile long lastCheckpointTime = 0;
+	private boolean recoveredFromCheckpoint = false;
+	/** 正在写检查点时索引的修改记录，没有在写检查点时为null */
+	private volatile Checkpoint.Snapshot snapshot = null;
+	
+	private ValueCache cache = null;
+	/** 正在从文件读取的数据，同一个key同时读取时只读一次 */
+	private ConcurrentHashMap<BytesKey, Load> loading = new ConcurrentHashMap<BytesKey, Load>();
+	
+	private Map<BytesKey, OpItem> indices;
 	private Map<Integer, DataFile> dataFiles = new ConcurrentHashMap<Integer, DataFile>();
 	private Map<Integer, LogFile> logFiles = new ConcurrentHashMap<Integer, LogFile>();
 	
-	private DataFile dataFile = null;
-	private LogFile logFile = null;
+	private volatile DataFile dataFile = null;
+	private volatile LogFile logFile = null;
 	private AtomicInteger number = new AtomicInteger(0);
 	
-	private ReentrantLock addLock = new ReentrantLock();
+	//单条的写入持有读锁和key所在段的锁；换文件、删除文件、批量写入、检查点和关闭持有写锁
+	private ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+	private ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS];
+	//日志是顺序追加的，多个线程的日志一起在appendLock内写入；单文件格式下记录和数据一起在这个锁内写入
+	private final LogAppender appender = new LogAppender(this.statistics);
+	//引用计数变成0的文件编号，在写锁内检查是否可以删除
+	private ConcurrentHashMap<Integer, Boolean> unusedFiles = new ConcurrentHashMap<Integer, Boolean>();
 	
 	/**
 	 * 默认构造函数，会在path下使用name作为名字生成数据文件
@@ -83,21 +214,81 @@ public class JournalStore implements Store, JournalStoreMBean {
 	 * @throws IOException
 	 */
 	public JournalStore(String path, String name, boolean force) throws IOException {
+		this(path, name, new JournalStoreConfig(force));
+	}
+
+	/**
+	 * 使用指定的配置，在path下使用name作为名字生成数据文件
+	 * @param path
+	 * @param name
+	 * @param config
+	 * @throws IOException
+	 */
+	public JournalStore(String path, String name, JournalStoreConfig config) throws IOException {
 		Util.registMBean(this, name);
 		this.path = path;
 		this.name = name;
-		this.force = force;
+		this.config = config;
+		this.fileSize = config.getFileSize();
+		this.logMapSize = Math.max(this.fileSize / 16 / OpItem.LENGTH, 1) * OpItem.LENGTH;
+		if (config.isExpiration()) {
+			this.format = OpItem.FORMAT_EXPIRE;
+		} else if (config.isCompression()) {
+			this.format = OpItem.FORMAT_COMPRESSED;
+		} else if (config.isChecksum()) {
+			this.format = OpItem.FORMAT_CHECKSUM;
+		} else {
+			this.format = config.getMaxKeyLength() > 0 ? OpItem.FORMAT_VARIABLE : OpItem.FORMAT_FIXED;
+		}
+		if (config.isOffHeapIndex()) {
+			this.indices = new OffHeapIndex(config.getIndexCapacity(), OpItem.hasExpire(this.format));
+		} else {
+			this.indices = new ConcurrentHashMap<BytesKey, OpItem>(10000, 0.8F, 40);
+		}
+		if (config.isForce() && config.isGroupCommit()) {
+			//组提交模式下，文件不再每次写入都同步，由GroupCommitter统一刷盘
+			this.force = false;
+			this.groupCommitter = new GroupCommitter();
+		} else {
+			this.force = config.isForce();
+		}
+		if (config.getCacheSize() > 0) {
+			this.cache = new ValueCache(config.getCacheSize());
+		}
+		this.compactionThreshold = config.getCompactionThreshold();
+		this.compactionRate = config.getCompactionRate();
+		for (int i = 0; i < this.keyLocks.length; i++) {
+			this.keyLocks[i] = new ReentrantLock();
+		}
+		this.wheel = new TimingWheel(config.getExpirationTick(), System.currentTimeMillis());
 		
-		addLock.lock();
+		long seq = 0;
+		fileLock.writeLock().lock();
 		try {
 			initLoad();
 			//如果当前没有可用文件，生成
-			if (null == this.dataFile || null == this.logFile) {
+			if (null == this.dataFile) {
 				newDataFile();
 			}
+			seq = commit();
 			//准备好了
 		} finally {
-			addLock.unlock();
+			fileLock.writeLock().unlock();
+		}
+		//恢复的过程中可能补写了日志，需要落盘
+		sync(seq);
+		
+		if (config.isCompaction()) {
+			setCompactionEnabled(true);
+		}
+		if (config.isCheckpoint() && config.getCheckpointInterval() > 0) {
+			this.checkpointer = new Checkpointer(this, config.getCheckpointInterval());
+		}
+		if (config.isPreallocate()) {
+			this.preparer = new Preparer(this);
+		}
+		if (OpItem.hasExpire(this.format)) { //配置了过期时间，或者已有的文件中可能有会过期的数据
+			this.expirer = new Expirer(this, this.wheel, config.getExpirationTick());
 		}
 		
 		//当应用被关闭的时候,如果没有关闭文件,关闭之.对某些操作系统有用
@@ -125,365 +316,2889 @@ public class JournalStore implements Store, JournalStoreMBean {
 	/* (non-Javadoc)
 	 * @see com.taobao.common.store.Store#add(byte[], byte[])
 	 */
-	public void add(byte[] key, byte[] data) throws IOException {
+	public void add(final byte[] key, final byte[] data) throws IOException {
 		//先检查是否已经存在，如果已经存在抛出异常 判断文件是否满了，添加name.1，获得offset，记录日志，增加引用计数，加入或更新内存索引
 		checkParam(key, data);
-		addLock.lock();
+		long begin = System.nanoTime();
 		try {
-			innerAdd(key, data);
+			writeKey(key, new KeyWrite() {
+				public Boolean write() throws IOException {
+					return null == innerAdd(key, data) ? null : Boolean.TRUE;
+				}
+			});
 		} finally {
-			addLock.unlock();
+			this.statistics.record(StoreStatistics.ADD, begin);
 		}
 	}
 
 	/**
-	 * 内部添加数据
+	 * 添加一个会过期的数据，过期之后读不到，并且会被删除
 	 * @param key
 	 * @param data
+	 * @param ttl 存活的毫秒数
 	 * @throws IOException
+	 * @throws IllegalStateException 没有配置带过期时间的格式
+	 * @see JournalStoreConfig#setExpiration(boolean)
 	 */
-	private OpItem innerAdd(byte[] key, byte[] data)
-			throws IOException {
-		BytesKey k = new BytesKey(key);
-		if (this.indices.containsKey(k)) {
-			throw new IOException("发现重复的key");
-		}
-		if (this.dataFile.getLength() >= FILE_SIZE) { //满了
-			newDataFile();
-		}
-		
-		int num = this.number.get();
-		DataFile df = this.dataFile;
-		LogFile lf = this.logFile;
-		
-		if (null != df && null != lf) {
-			long pos = df.write(ByteBuffer.wrap(data));
-			OpItem op = new OpItem();
-			op.key = key;
-			op.length = data.length;
-			op.offset = pos - op.length;
-			op.op = OpItem.OP_ADD;
-			op.number = num;
-			lf.write(ByteBuffer.wrap(op.toByte()));
-			df.increment();
-			this.indices.put(k, op);
-			return op;
-		} else {
-			throw new IOException("文件在使用的同时被删除了:" + num);
-		}
+	public void add(final byte[] key, final byte[] data, long ttl) throws IOException {
+		checkParam(key, data);
+		add(key, ByteBuffer.wrap(data), expireOf(ttl));
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.Store#get(byte[])
+	/**
+	 * 添加数据，key和value可以是堆外的缓冲区，比如网络框架收到的数据。value直接写入文件，不复制成字节数组
+	 * @param key 剩下的字节是key，会复制一份放到索引中，position不变
+	 * @param value 剩下的字节是数据，写入期间会移动它的position，返回之前恢复，不能同时被其他线程使用
+	 * @throws IOException
 	 */
-	public byte[] get(byte[] key) throws IOException {
-		OpItem op = this.indices.get(new BytesKey(key));
-		byte[] data = null;
-		if (null != op) {
-			DataFile df = this.dataFiles.get(new Integer(op.number));
-			if (null != df) {
-				ByteBuffer bf = ByteBuffer.wrap(new byte[(int)op.length]);
-				df.read(bf, op.offset);
-				data = bf.array();
-			} else {
-				log.warn("数据文件丢失：" + op);
-			}
+	public void add(ByteBuffer key, ByteBuffer value) throws IOException {
+		add(copyKey(key, value), value, 0);
+	}
+
+	/**
+	 * 添加一个会过期的数据，key和value可以是堆外的缓冲区
+	 * @param key 剩下的字节是key，会复制一份放到索引中，position不变
+	 * @param value 剩下的字节是数据，写入期间会移动它的position，返回之前恢复，不能同时被其他线程使用
+	 * @param ttl 存活的毫秒数
+	 * @throws IOException
+	 * @throws IllegalStateException 没有配置带过期时间的格式
+	 * @see #add(byte[], byte[], long)
+	 */
+	public void add(ByteBuffer key, ByteBuffer value, long ttl) throws IOException {
+		byte[] k = copyKey(key, value);
+		add(k, value, expireOf(ttl));
+	}
+
+	/**
+	 * 检查存活时间，并计算过期的时间
+	 * @param ttl 存活的毫秒数
+	 * @return 过期的时间
+	 */
+	private long expireOf(long ttl) {
+		if (ttl <= 0) throw new IllegalArgumentException("ttl must be positive");
+		if (!OpItem.hasExpire(this.format)) {
+			throw new IllegalStateException("没有配置带过期时间的格式");
 		}
-		return data;
+		return System.currentTimeMillis() + ttl;
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.Store#iterator()
+	/**
+	 * 检查参数，并把key剩下的字节复制出来，不移动key的position
+	 * @param key
+	 * @param value
+	 * @return key的副本
 	 */
-	public Iterator<byte[]> iterator() throws IOException {
-		final Iterator<BytesKey> it = this.indices.keySet().iterator();
-		return new Iterator<byte[]>() {
-			public boolean hasNext() {
-				return it.hasNext();
-			}
-			public byte[] next() {
-				BytesKey bk = it.next();
-				if (null != bk) {
-					return bk.getData();
-				}
-				return null;
-			}
-			public void remove() {
-				throw new UnsupportedOperationException("不支持删除，请直接调用store.remove方法");
-			}
-		};
+	private byte[] copyKey(ByteBuffer key, ByteBuffer value) {
+		if (null == key || null == value) throw new NullPointerException("key/data can't be null");
+		byte[] k = new byte[key.remaining()];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = key.get(key.position() + i);
+		}
+		checkKey(k);
+		return k;
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.Store#remove(byte[])
+	/**
+	 * 添加数据，会过期的数据在写入之后放入时间轮
+	 * @param key
+	 * @param value
+	 * @param expire 过期的时间，0表示不过期
+	 * @throws IOException
 	 */
-	public boolean remove(byte[] key) throws IOException {
-		//获得记录在那个文件，记录日志，删除内存索引，减少文件计数，判断大小是否满足大小了，并且无引用了，就删除数据文件和日志文件
-		boolean ret = false;
-		addLock.lock();
+	private void add(final byte[] key, final ByteBuffer value, final long expire) throws IOException {
+		long begin = System.nanoTime();
 		try {
-			ret = innerRemove(key);
+			writeKey(key, new KeyWrite() {
+				public Boolean write() throws IOException {
+					return null == innerAdd(key, value, false, expire) ? null : Boolean.TRUE;
+				}
+			});
 		} finally {
-			addLock.unlock();
+			this.statistics.record(StoreStatistics.ADD, begin);
+		}
+		if (0 != expire) {
+			this.wheel.add(BytesKey.valueOf(key), expire);
 		}
-		return ret;
 	}
 
 	/**
-	 * 内部删除
+	 * 流式添加一个数据，适合不能一次放在内存中的大数据。
+	 * 写入的数据在关闭返回的ValueWriter时才添加到存储中，key已经存在时关闭会抛出异常
 	 * @param key
-	 * @return 是否删除了数据
+	 * @return 数据的写入器
 	 * @throws IOException
 	 */
-	private boolean innerRemove(byte[] key) throws IOException {
-		boolean ret = false;
-		BytesKey k = new BytesKey(key);
-		OpItem op = this.indices.get(k);
-		if (null != op) {
-			ret = innerRemove(op);
-			if(ret){
-				this.indices.remove(k);
-			}
-		}
-		return ret;
+	public ValueWriter openWriter(byte[] key) throws IOException {
+		if (null == key) throw new NullPointerException("key can't be null");
+		checkKey(key);
+		return new ValueWriter(this, key, new File(path), name + ".", OpItem.isCompressed(this.format));
 	}
 
 	/**
-	 * 根据OpItem对象，在日志文件中记录删除的操作日志，并且修改对应数据文件的引用计数.
-	 * @param op
-	 * @return
+	 * 添加一个ByteBuffer中的数据，供{@link ValueWriter}使用
+	 * @param key
+	 * @param value 数据，写入时不会移动它的position
+	 * @param framed value是否已经是压缩的格式中存放的形式
 	 * @throws IOException
 	 */
-	private boolean innerRemove(OpItem op) throws IOException {
-		DataFile df = this.dataFiles.get(new Integer(op.number));
-		LogFile lf = this.logFiles.get(new Integer(op.number));
-		if(null != df && null != lf){
-			OpItem o = new OpItem();
-			o.key = op.key;
-			o.length = op.length;
-			o.number = op.number;
-			o.offset = op.offset;
-			o.op = OpItem.OP_DEL;
-			lf.write(ByteBuffer.wrap(o.toByte()));
-			df.decrement();
-			//判断是否可以删了
-			if (df.getLength() >= FILE_SIZE && df.isUnUsed()) {
-				if (this.dataFile == df) { //判断如果是当前文件，生成新的
-					newDataFile();
-				}
-				log.info("删除文件：" + df);
-				this.dataFiles.remove(new Integer(op.number));
-				this.logFiles.remove(new Integer(op.number));
-				df.delete();
-				lf.delete();
+	void add(final byte[] key, final ByteBuffer value, final boolean framed) throws IOException {
+		writeKey(key, new KeyWrite() {
+			public Boolean write() throws IOException {
+				return null == innerAdd(key, value, framed) ? null : Boolean.TRUE;
 			}
-			return true;
-		}
-		return false;
+		});
 	}
-	
+
 	/**
-	 * 检查参数是否合法
-	 * @param key
-	 * @param data
+	 * 持有读锁和key所在段的锁进行的一次单条写入
 	 */
-	private void checkParam(byte[] key, byte[] data) {
-		if (null == key || null == data) throw new NullPointerException("key/data can't be null");
-		if (key.length != 16) throw new IllegalArgumentException("key.length must be 16");
+	private interface KeyWrite {
+		/**
+		 * @return 是否写入了，当前文件已经写满返回null，换文件之后会重试
+		 * @throws IOException
+		 */
+		Boolean write() throws IOException;
 	}
-	
+
 	/**
-	 * 生成一个新的数据文件
-	 * @throws FileNotFoundException
+	 * 执行一次单条写入：持有读锁和key所在段的锁写入，当前文件写满时在锁外换文件之后重试，
+	 * 然后删除引用计数变成0的文件，最后等待落盘
+	 * @param key
+	 * @param w
+	 * @return 是否写入了
+	 * @throws IOException
 	 */
-	private void newDataFile()
-			throws IOException {
-		int n = this.number.incrementAndGet();
-		this.dataFile = new DataFile(new File(path + File.separator + name + "." + n), force);
-		this.logFile = new LogFile(new File(path + File.separator + name + "." + n + ".log"), force);
-		this.dataFiles.put(new Integer(n), this.dataFile);
-		this.logFiles.put(new Integer(n), this.logFile);
-		log.info("生成新文件：" + this.dataFile);
+	private boolean writeKey(byte[] key, KeyWrite w) throws IOException {
+		return writeKey(keyLock(key), w);
 	}
 
 	/**
-	 * 类初始化的时候，需要遍历所有的日志文件，恢复内存的索引
+	 * 执行一次单条写入，已经取得了key所在段的锁
+	 * @param kl key所在段的锁
+	 * @param w
+	 * @return 是否写入了
 	 * @throws IOException
 	 */
-	private void initLoad() throws IOException {
-		log.warn("开始恢复数据");
-		final String nm = name + ".";
-		File dir = new File(path);
-		File[] fs = dir.listFiles(new FilenameFilter() {
-			public boolean accept(File dir, String n) {
-				return n.startsWith(nm) && !n.endsWith(".log");
-			}
-		});
-		log.warn("遍历每个数据文件");
-		List<Integer> indexList = new LinkedList<Integer>();
-		for (File f : fs) {
-			try{
-				String fn = f.getName();
-				int n = Integer.parseInt(fn.substring(nm.length()));
-				indexList.add(new Integer(n));
-			}
-			catch(Exception e){
-				log.error("parse file index error" + f, e);
-			}
-		}
-		
-		Integer[] indices = indexList.toArray(new Integer[indexList.size()]);
-		
-		//对文件顺序进行排序
-		Arrays.sort(indices);
-		
-		for (Integer n : indices) {
-			log.warn("处理index为" +n + "的文件");
-			//保存本数据文件的索引信息
-			Map<BytesKey, OpItem> idx = new HashMap<BytesKey, OpItem>();
-			//生成dataFile和logFile
-			File f = new File(dir, name + "." + n);
-			DataFile df = new DataFile(f, force);
-			LogFile lf = new LogFile(new File(f.getAbsolutePath() + ".log"), force);
-			long size = lf.getLength() / OpItem.LENGTH;
-			
-			for (int i = 0; i < size; ++i) { //循环每一个操作
-				ByteBuffer bf = ByteBuffer.wrap(new byte[OpItem.LENGTH]);
-				lf.read(bf, i * OpItem.LENGTH);
-				if (bf.hasRemaining()) {
-					log.warn("log file error:" + lf + ", index:" + i);
-					continue;
-				}
-				OpItem op = new OpItem();
-				op.parse(bf.array());
-				BytesKey key = new BytesKey(op.key);
-				switch(op.op){
-				case OpItem.OP_ADD: //如果是添加的操作，加入索引，增加引用计数
-					OpItem o = this.indices.get(key);
-					if(null != o){
-						//已经在之前添加过，那么必然是Update的时候，Remove的操作日志没有写入。
-						
-						//写入Remove日志
-						innerRemove(o);
-						
-						//从map中删除
-						this.indices.remove(key);
-					}
-					boolean addRefCount = true;
-					if(idx.get(key) != null){
-						//在同一个文件中add或者update过，那么只是更新内容，而不增加引用计数。
-						addRefCount = false;
-					}
-					
-					idx.put(key, op);
-
-					if(addRefCount){
-						df.increment();
-					}
-					break;
-
-				case OpItem.OP_DEL: //如果是删除的操作，索引去除，减少引用计数
-					idx.remove(key);
-					df.decrement();
-					break;
-										
-				default :
-					log.warn("unknow op:" + (int)op.op);
-					break;
+	private boolean writeKey(ReentrantLock kl, KeyWrite w) throws IOException {
+		Boolean ret = null;
+		long seq = 0;
+		while (null == ret) {
+			DataFile current = null;
+			fileLock.readLock().lock();
+			kl.lock();
+			try {
+				current = this.dataFile;
+				ret = w.write();
+				if (Boolean.TRUE.equals(ret)) {
+					seq = commit();
 				}
+			} finally {
+				kl.unlock();
+				fileLock.readLock().unlock();
 			}
-			if (df.getLength() >= FILE_SIZE && df.isUnUsed()) { //如果这个数据文件已经达到指定大小，并且不再使用，删除
-				df.delete();
-				lf.delete();
-				log.warn("不用了，也超过了大小，删除");
-			} else { //否则加入map
-				this.dataFiles.put(n, df);
-				this.logFiles.put(n, lf);
-				if (!df.isUnUsed()) { //如果有索引，加入总索引 
-					this.indices.putAll(idx);
-					log.warn("还在使用，放入索引，referenceCount:" + df.getReferenceCount() + ", index:" + idx.size());
-				}
+			if (null == ret) {
+				rollover(current);
 			}
 		}
-		//校验加载的文件，并设置当前文件
-		if(this.dataFiles.size() > 0){
-			indices = this.dataFiles.keySet().toArray(new Integer[0]);
-			Arrays.sort(indices);
-			for(int i=0; i < indices.length - 1; i++){
-				DataFile df = this.dataFiles.get(indices[i]);
-				if(df.isUnUsed() || df.getLength() < FILE_SIZE){
-					throw new IllegalStateException("非当前文件的状态是大于等于文件块长度，并且是used状态");
-				}
-			}
-			Integer n = indices[indices.length - 1];
-			this.number.set(n.intValue());
-			this.dataFile = this.dataFiles.get(n);
-			this.logFile = this.logFiles.get(n);
+		deleteUnused();
+		if (ret.booleanValue()) {
+			sync(seq);
 		}
-		log.warn("恢复数据：" + this.size());
+		return ret.booleanValue();
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.Store#size()
+	/**
+	 * 取key所在段的锁
+	 * @param key
+	 * @return key所在段的锁
 	 */
-	public int size() throws IOException {
-		return this.indices.size();
+	private ReentrantLock keyLock(byte[] key) {
+		return keyLock(BytesKey.hash(key));
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.Store#update(byte[], byte[])
+	/**
+	 * 取key所在段的锁，和内容相同的byte[]取到的是同一个锁，{@link Key128}不用生成数组
+	 * @param k
+	 * @return key所在段的锁
+	 */
+	private ReentrantLock keyLock(BytesKey k) {
+		return keyLock(k.hashCode());
+	}
+
+	private ReentrantLock keyLock(int h) {
+		h ^= h >>> 16;
+		return this.keyLocks[h & (KEY_LOCKS - 1)];
+	}
+
+	/**
+	 * 当前文件写满了，换一个新的文件，需要在读锁外调用
+	 * @param full 写满的文件，已经被别的线程换掉时不用再换
+	 * @throws IOException
 	 */
-	public boolean update(byte[] key, byte[] data) throws IOException {
-		addLock.lock();
+	private void rollover(DataFile full) throws IOException {
+		fileLock.writeLock().lock();
 		try {
-			//对于Update的消息，我们写入OpCode为Update的日志。
-			BytesKey k = new BytesKey(key);
-			OpItem op = this.indices.get(k);
-			if(null != op){
-				this.indices.remove(k);
-				OpItem o = innerAdd(key, data);
-				if(o.number != op.number){
-					//不在同一个文件上更新，才进行删除。
-					innerRemove(op);
-				}
-				else{
-					DataFile df = this.dataFiles.get(new Integer(op.number));
-					df.decrement();
-				}
-				return true;
+			if (null != full && this.dataFile == full && full.getLength() >= this.fileSize) {
+				newDataFile();
 			}
 		} finally {
-			addLock.unlock();
+			fileLock.writeLock().unlock();
 		}
-		return false;
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.journal.JournalStoreMBean#getDataFilesInfo()
-	 */
-	public String getDataFilesInfo() {
-		return this.dataFiles.toString();
-	}
-	
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLogFilesInfo()
+	/**
+	 * 删除引用计数变成0的文件中已经写满的，需要在读锁外调用
+	 * @throws IOException
 	 */
-	public String getLogFilesInfo() {
-		return this.logFiles.toString();
+	private void deleteUnused() throws IOException {
+		if (this.unusedFiles.isEmpty()) {
+			return;
+		}
+		fileLock.writeLock().lock();
+		try {
+			for (Integer n : new ArrayList<Integer>(this.unusedFiles.keySet())) {
+				this.unusedFiles.remove(n);
+				DataFile df = this.dataFiles.get(n);
+				if (null != df) {
+					deleteIfUnused(n.intValue(), df, this.logFiles.get(n));
+				}
+			}
+		} finally {
+			fileLock.writeLock().unlock();
+		}
 	}
-	
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.journal.JournalStoreMBean#getNumber()
+
+	/**
+	 * 异步添加一个数据，写入由单独的写线程完成。
+	 * 写入队列满的时候会阻塞，直到队列有空位。
+	 * 写入已经生效但是刷盘失败时，Future抛出的ExecutionException的原因是{@link NotDurableException}，
+	 * 其他的失败表示没有写入
+	 * @param key
+	 * @param data
+	 * @return 写入的结果，完成时为true
+	 * @throws IOException
 	 */
-	public int getNumber() {
-		return this.number.get();
+	public Future<Boolean> addAsync(byte[] key, byte[] data) throws IOException {
+		checkParam(key, data);
+		return submitAsync(new AsyncWriter.Request(AsyncWriter.ADD, key, data));
 	}
 
-	/* (non-Javadoc)
-	 * @see com.taobao.common.store.journal.JournalStoreMBean#getPath()
+	/**
+	 * 异步更新一个数据
+	 * @param key
+	 * @param data
+	 * @return 写入的结果，是否有更新到
+	 * @throws IOException
+	 * @see #addAsync(byte[], byte[])
 	 */
-	public String getPath() {
-		return path;
+	public Future<Boolean> updateAsync(byte[] key, byte[] data) throws IOException {
+		checkParam(key, data);
+		return submitAsync(new AsyncWriter.Request(AsyncWriter.UPDATE, key, data));
+	}
+
+	/**
+	 * 异步删除一个数据
+	 * @param key
+	 * @return 写入的结果，是否删除了数据
+	 * @throws IOException
+	 * @see #addAsync(byte[], byte[])
+	 */
+	public Future<Boolean> removeAsync(byte[] key) throws IOException {
+		if (null == key) throw new NullPointerException("key can't be null");
+		return submitAsync(new AsyncWriter.Request(AsyncWriter.REMOVE, key, null));
+	}
+
+	/**
+	 * 提交一个异步写请求，第一次调用时启动写线程
+	 * @param r
+	 * @return 写入的结果
+	 * @throws IOException
+	 */
+	private Future<Boolean> submitAsync(AsyncWriter.Request r) throws IOException {
+		AsyncWriter w = this.asyncWriter;
+		if (null == w) {
+			synchronized (this) {
+				if (this.closed) {
+					throw new IOException("store已经关闭");
+				}
+				w = this.asyncWriter;
+				if (null == w) {
+					w = new AsyncWriter(this, this.config.getAsyncQueueSize());
+					this.asyncWriter = w;
+				}
+			}
+		}
+		w.submit(r);
+		return r.future;
+	}
+
+	/**
+	 * 由写线程调用，一次写入一批异步请求，并按顺序完成它们。
+	 * 执行中途失败时，只有还没有生效的请求失败；已经生效的请求在之后的刷盘失败时，
+	 * 以{@link NotDurableException}完成，里面带着写入的结果
+	 * @param reqs
+	 */
+	void writeAsync(List<AsyncWriter.Request> reqs) {
+		//执行请求时的失败，之后的请求都没有执行
+		IOException error = null;
+		//请求生效之后，换文件或者刷盘的失败
+		IOException syncError = null;
+		long seq = 0;
+		fileLock.writeLock().lock();
+		try {
+			try {
+				applyAsync(reqs);
+			} catch (IOException e) {
+				error = e;
+			}
+			seq = commit();
+			deleteUnused();
+		} catch (IOException e) {
+			syncError = e;
+		} finally {
+			fileLock.writeLock().unlock();
+		}
+		try {
+			sync(seq);
+		} catch (IOException e) {
+			if (null == syncError) {
+				syncError = e;
+			}
+		}
+		for (AsyncWriter.Request r : reqs) {
+			if (null != r.error) {
+				r.future.fail(r.error);
+			} else if (null == r.result) {
+				r.future.fail(error);
+			} else if (null != syncError) {
+				r.future.fail(new NotDurableException(r.result, syncError));
+			} else {
+				r.future.complete(r.result);
+			}
+		}
+	}
+
+	/**
+	 * 按顺序执行一批异步请求，生效的请求设置结果，需要持有写锁
+	 * @param reqs
+	 * @throws IOException 出错之后的请求不再执行
+	 */
+	private void applyAsync(List<AsyncWriter.Request> reqs) throws IOException {
+		int i = 0;
+		while (i < reqs.size()) {
+			AsyncWriter.Request r = reqs.get(i);
+			if (r.type == AsyncWriter.ADD) {
+				//把连续的添加合并到一起写
+				int j = i;
+				long bytes = 0;
+				while (j < reqs.size() && reqs.get(j).type == AsyncWriter.ADD
+						&& bytes < MAX_COALESCE_BYTES) {
+					bytes += reqs.get(j).data.length;
+					j++;
+				}
+				innerAddAll(reqs.subList(i, j));
+				i = j;
+			} else {
+				try {
+					if (r.type == AsyncWriter.UPDATE) {
+						r.result = innerUpdate(r.key, r.data);
+						if (null == r.result) { //当前文件满了
+							newDataFile();
+							r.result = innerUpdate(r.key, r.data);
+						}
+					} else {
+						r.result = Boolean.valueOf(innerRemove(r.key));
+					}
+				} catch (IOException e) {
+					r.error = e;
+				}
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * 内部添加一批数据，所有数据一次写入数据文件，所有日志一次写入日志文件。
+	 * 重复的key只让对应的请求失败
+	 * @param reqs
+	 * @throws IOException
+	 */
+	private void innerAddAll(List<AsyncWriter.Request> reqs) throws IOException {
+		List<AsyncWriter.Request> valid = new ArrayList<AsyncWriter.Request>(reqs.size());
+		Set<BytesKey> keys = new HashSet<BytesKey>();
+		for (AsyncWriter.Request r : reqs) {
+			BytesKey k = BytesKey.valueOf(r.key);
+			if (null != current(k) || !keys.add(k)) {
+				r.error = new IOException("发现重复的key");
+			} else {
+				valid.add(r);
+			}
+		}
+		if (valid.isEmpty()) {
+			return;
+		}
+		if (this.dataFile.getLength() >= this.fileSize) { //满了
+			newDataFile();
+		}
+		
+		int num = this.number.get();
+		DataFile df = this.dataFile;
+		LogFile lf = this.logFile;
+		checkCurrent(num, df, lf);
+		
+		List<OpItem> ops = new ArrayList<OpItem>(valid.size());
+		List<ByteBuffer> values = new ArrayList<ByteBuffer>(valid.size());
+		for (AsyncWriter.Request r : valid) {
+			ops.add(newAdd(r.key, r.data.length, num));
+			values.add(ByteBuffer.wrap(r.data));
+		}
+		append(df, lf, null, ops, values, Long.MAX_VALUE);
+		for (int i = 0; i < ops.size(); i++) {
+			df.increment();
+			putIndex(BytesKey.valueOf(ops.get(i).key), ops.get(i));
+			valid.get(i).result = Boolean.TRUE;
+		}
+	}
+
+	/**
+	 * 把一组操作日志写入当前文件。
+	 * <p>ADD的操作日志按顺序对应values中的数据，写入之后才能确定它们的offset，所以由这个方法设置。
+	 * 两个文件的格式下，先一次写入所有数据，再一次写入所有日志；单文件格式下，日志和数据交错着一次写入。
+	 * 如果head不为空，会写在所有日志的前面。</p>
+	 * <p>两个文件的格式下，数据写入通过CAS预留的位置，可以和其他线程同时进行，日志在appendLock内顺序追加，
+	 * 同时等待的多个线程的日志由拿到锁的线程一次写入；单文件格式下，整条记录都在appendLock内写入。
+	 * 带校验的格式下，数据的CRC32C在加锁之前算好；压缩的格式下，数据也在加锁之前编码，ADD的length改为编码之后的长度。</p>
+	 * @param df
+	 * @param lf 单文件格式为null
+	 * @param head
+	 * @param records
+	 * @param values
+	 * @param limit 文件的长度已经达到limit时不写入
+	 * @return 是否写入了，文件已经写满返回false
+	 * @throws IOException
+	 */
+	private boolean append(DataFile df, LogFile lf, OpItem head, List<OpItem> records, List<ByteBuffer> values,
+			long limit) throws IOException {
+		return append(df, lf, head, records, values, limit, false);
+	}
+
+	/**
+	 * 把一组操作日志写入当前文件
+	 * @param df
+	 * @param lf 单文件格式为null
+	 * @param head
+	 * @param records
+	 * @param values
+	 * @param limit 文件的长度已经达到limit时不写入
+	 * @param framed values是否已经是压缩的格式中存放的形式，这时当前文件必须是压缩的格式
+	 * @return 是否写入了，文件已经写满返回false
+	 * @throws IOException
+	 * @see #append(DataFile, LogFile, OpItem, List, List, long)
+	 */
+	private boolean append(DataFile df, LogFile lf, OpItem head, List<OpItem> records, List<ByteBuffer> values,
+			long limit, boolean framed) throws IOException {
+		int format = getFormat(df, lf);
+		if (OpItem.isCompressed(format)) {
+			if (!framed) {
+				values = encode(records, values, format);
+			}
+		} else if (framed) {
+			throw new IOException("当前文件不是压缩的格式：" + df);
+		}
+		if (!OpItem.hasExpire(format)) {
+			for (OpItem op : records) {
+				if (op.expire != 0) {
+					throw new IOException("当前文件不是带过期时间的格式：" + df);
+				}
+			}
+		}
+		if (OpItem.hasChecksum(format)) {
+			checksum(records, values);
+		}
+		if (null == lf) {
+			this.appender.lock();
+			try {
+				long start = df.getLength();
+				if (start >= limit) {
+					return false;
+				}
+				appendSegment(df, head, records, values);
+				this.statistics.written(df.getLength() - start);
+			} finally {
+				this.appender.unlock();
+			}
+			markDirty(df);
+			return true;
+		}
+		
+		if (!values.isEmpty()) {
+			long total = 0;
+			for (ByteBuffer bf : values) {
+				total += bf.remaining();
+			}
+			long pos = df.reserve(total, limit);
+			if (pos < 0) {
+				return false;
+			}
+			for (OpItem op : records) {
+				if (op.op == OpItem.OP_ADD) {
+					op.offset = pos;
+					pos += op.length;
+				}
+			}
+			if (values.size() == 1) {
+				df.write(pos - total, values.get(0));
+			} else {
+				df.write(pos - total, values.toArray(new ByteBuffer[values.size()]));
+			}
+			this.statistics.written(total);
+			markDirty(df);
+		}
+		ByteBuffer logBuf = WRITE_CONTEXT.get().buffer(size(head, records, format));
+		if (null != head) {
+			head.writeTo(logBuf, format);
+		}
+		for (OpItem op : records) {
+			op.writeTo(logBuf, format);
+		}
+		logBuf.flip();
+		appendLog(lf, logBuf);
+		return true;
+	}
+
+	/**
+	 * 编码添加的数据，ADD的length改为编码之后的长度
+	 * @param records
+	 * @param values 按顺序对应records中的添加
+	 * @param format 记录的格式，带过期时间的格式只有配置了压缩才压缩
+	 * @return 编码之后的数据
+	 */
+	private List<ByteBuffer> encode(List<OpItem> records, List<ByteBuffer> values, int format) {
+		List<ByteBuffer> encoded = new ArrayList<ByteBuffer>(values.size());
+		int threshold = this.config.getCompressionThreshold();
+		if (OpItem.hasExpire(format) && !this.config.isCompression()) {
+			threshold = Integer.MAX_VALUE;
+		}
+		int v = 0;
+		for (OpItem op : records) {
+			if (op.op == OpItem.OP_ADD) {
+				ByteBuffer raw = values.get(v++);
+				ByteBuffer bf = ValueCodec.encode(raw, threshold);
+				this.rawBytes.addAndGet(raw.remaining());
+				this.storedBytes.addAndGet(bf.remaining());
+				op.length = bf.remaining();
+				encoded.add(bf);
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * 计算添加的数据的CRC32C，记在对应的操作日志中
+	 * @param records
+	 * @param values 按顺序对应records中的添加
+	 */
+	private void checksum(List<OpItem> records, List<ByteBuffer> values) {
+		int v = 0;
+		for (OpItem op : records) {
+			if (op.op == OpItem.OP_ADD) {
+				op.checksum = Crc32c.checksum(values.get(v++));
+			}
+		}
+	}
+
+	/**
+	 * 顺序追加日志，单文件格式下追加到数据文件中。失败时截掉写了一半的部分
+	 * @param lf 日志文件，单文件格式下是数据文件
+	 * @param logBuf
+	 * @throws IOException
+	 * @see LogAppender#append(DataFile, ByteBuffer)
+	 */
+	private void appendLog(DataFile lf, ByteBuffer logBuf) throws IOException {
+		int length = logBuf.remaining();
+		this.appender.append(lf, logBuf);
+		this.statistics.written(length);
+		markDirty(lf);
+	}
+
+	/**
+	 * 单文件格式下，把记录头和数据交错着一次写入，需要持有appendLock。
+	 * 不超过{@link #MAX_WRITE_BUFFER}时整批复制到线程自己的堆外缓冲区里连续写入，否则记录头和数据分开写入
+	 * @param df
+	 * @param head
+	 * @param records
+	 * @param values
+	 * @throws IOException
+	 */
+	private void appendSegment(DataFile df, OpItem head, List<OpItem> records, List<ByteBuffer> values)
+			throws IOException {
+		int format = df.getFormat();
+		long start = df.getLength();
+		long pos = start;
+		int heads = size(head, records, format);
+		if (null != head) {
+			pos += head.size(format);
+		}
+		for (OpItem op : records) {
+			pos += op.size(format);
+			if (op.op == OpItem.OP_ADD) {
+				op.offset = pos;
+				pos += op.length;
+			}
+		}
+		try {
+			if (pos - start <= MAX_WRITE_BUFFER) {
+				ByteBuffer bf = WRITE_CONTEXT.get().buffer((int)(pos - start));
+				if (null != head) {
+					head.writeTo(bf, format);
+				}
+				int v = 0;
+				for (OpItem op : records) {
+					op.writeTo(bf, format);
+					if (op.op == OpItem.OP_ADD) {
+						ByteBuffer value = values.get(v++);
+						int p = value.position();
+						bf.put(value);
+						value.position(p);
+					}
+				}
+				bf.flip();
+				df.write(bf);
+				return;
+			}
+			//所有记录头写在同一个缓冲里，和数据交错着一次写入
+			List<ByteBuffer> bfs = new ArrayList<ByteBuffer>(records.size() + values.size() + 1);
+			ByteBuffer hs = ByteBuffer.allocate(heads);
+			if (null != head) {
+				bfs.add(slice(hs, head, format));
+			}
+			int v = 0;
+			for (OpItem op : records) {
+				bfs.add(slice(hs, op, format));
+				if (op.op == OpItem.OP_ADD) {
+					bfs.add(values.get(v++));
+				}
+			}
+			df.write(bfs.toArray(new ByteBuffer[bfs.size()]));
+		} catch (IOException e) {
+			//不能留下半条记录，否则后面的记录会错位
+			df.truncate(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * 一组操作日志在指定格式下的总字节数
+	 * @param head 可以为null
+	 * @param records
+	 * @param format 记录的格式
+	 * @return 总字节数
+	 */
+	private int size(OpItem head, List<OpItem> records, int format) {
+		int size = null == head ? 0 : head.size(format);
+		for (OpItem op : records) {
+			size += op.size(format);
+		}
+		return size;
+	}
+
+	/**
+	 * 把一个操作日志写入共享的缓冲，返回只包含这个操作日志的部分
+	 * @param bf
+	 * @param op
+	 * @param format 记录的格式
+	 * @return 这个操作日志的缓冲
+	 */
+	private ByteBuffer slice(ByteBuffer bf, OpItem op, int format) {
+		int start = bf.position();
+		op.writeTo(bf, format);
+		ByteBuffer ret = bf.duplicate();
+		ret.position(start);
+		ret.limit(bf.position());
+		return ret;
+	}
+
+	/**
+	 * 生成一个添加的操作日志，offset在写入时确定
+	 * @param key
+	 * @param length
+	 * @param num
+	 * @return 添加的操作日志
+	 */
+	private OpItem newAdd(byte[] key, int length, int num) {
+		return newAdd(key, length, num, 0);
+	}
+
+	/**
+	 * 生成一个添加的操作日志
+	 * @param key
+	 * @param length
+	 * @param num
+	 * @param expire 过期的时间，0表示不过期
+	 * @return 添加的操作日志
+	 */
+	private OpItem newAdd(byte[] key, int length, int num, long expire) {
+		OpItem op = new OpItem();
+		op.key = key;
+		op.length = length;
+		op.op = OpItem.OP_ADD;
+		op.number = num;
+		op.expire = expire;
+		return op;
+	}
+
+	/**
+	 * 检查当前文件是否可用
+	 * @param num
+	 * @param df
+	 * @param lf
+	 * @throws IOException
+	 */
+	private void checkCurrent(int num, DataFile df, LogFile lf) throws IOException {
+		if (null == df || (null == lf && !(df instanceof SegmentFile))) {
+			throw new IOException("文件在使用的同时被删除了:" + num);
+		}
+	}
+
+	/**
+	 * 内部添加数据，需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param key
+	 * @param data
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem innerAdd(byte[] key, byte[] data)
+			throws IOException {
+		return innerAdd(key, ByteBuffer.wrap(data), false);
+	}
+
+	/**
+	 * 内部添加数据，需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param key
+	 * @param value 数据，写入时不会移动它的position
+	 * @param framed value是否已经是压缩的格式中存放的形式
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem innerAdd(byte[] key, ByteBuffer value, boolean framed)
+			throws IOException {
+		return innerAdd(key, value, framed, 0);
+	}
+
+	/**
+	 * 内部添加数据，需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param key
+	 * @param value 数据，写入时不会移动它的position
+	 * @param framed value是否已经是压缩的格式中存放的形式
+	 * @param expire 过期的时间，0表示不过期
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem innerAdd(byte[] key, ByteBuffer value, boolean framed, long expire)
+			throws IOException {
+		BytesKey k = BytesKey.valueOf(key);
+		if (null != current(k)) {
+			throw new IOException("发现重复的key");
+		}
+		OpItem op = appendCurrent(key, value, framed, expire);
+		if (null != op) {
+			putIndex(k, op);
+		}
+		return op;
+	}
+
+	/**
+	 * 把一条数据追加到当前文件，并增加当前文件的引用计数，不修改索引
+	 * @param key
+	 * @param data
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem appendCurrent(byte[] key, byte[] data) throws IOException {
+		return appendCurrent(key, ByteBuffer.wrap(data), false);
+	}
+
+	/**
+	 * 把一条数据追加到当前文件，并增加当前文件的引用计数，不修改索引
+	 * @param key
+	 * @param value 数据，写入时不会移动它的position
+	 * @param framed value是否已经是压缩的格式中存放的形式
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem appendCurrent(byte[] key, ByteBuffer value, boolean framed) throws IOException {
+		return appendCurrent(key, value, framed, 0);
+	}
+
+	/**
+	 * 把一条数据追加到当前文件，并增加当前文件的引用计数，不修改索引
+	 * @param key
+	 * @param value 数据，写入时不会移动它的position
+	 * @param framed value是否已经是压缩的格式中存放的形式
+	 * @param expire 过期的时间，0表示不过期
+	 * @return 添加的操作日志，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private OpItem appendCurrent(byte[] key, ByteBuffer value, boolean framed, long expire) throws IOException {
+		int num = this.number.get();
+		DataFile df = this.dataFile;
+		LogFile lf = this.logFile;
+		checkCurrent(num, df, lf);
+		
+		OpItem op = newAdd(key, value.remaining(), num, expire);
+		WriteContext ctx = WRITE_CONTEXT.get();
+		ctx.records.add(op);
+		ctx.values.add(value);
+		int p = value.position();
+		try {
+			if (!append(df, lf, null, ctx.records, ctx.values, this.fileSize, framed)) {
+				return null;
+			}
+		} finally {
+			value.position(p);
+			ctx.release();
+		}
+		df.increment();
+		return op;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#get(byte[])
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		long begin = System.nanoTime();
+		try {
+			BytesKey k = BytesKey.valueOf(key);
+			OpItem op = this.indices.get(k);
+			byte[] data = null;
+			if (null != op && !op.isExpired(System.currentTimeMillis())) {
+				data = null == this.cache ? read(op) : readCached(k, op);
+			}
+			return data;
+		} finally {
+			this.statistics.record(StoreStatistics.GET, begin);
+		}
+	}
+
+	/**
+	 * 先从缓存读取数据，没有缓存时从文件读取并放入缓存。
+	 * 同一个key的同一个位置同时读取时，只有一个线程读文件，其他线程等待它的结果
+	 * @param k
+	 * @param op
+	 * @return 数据的副本
+	 * @throws IOException
+	 */
+	private byte[] readCached(BytesKey k, final OpItem op) throws IOException {
+		byte[] data = this.cache.get(k, op);
+		if (null != data) {
+			return data.clone();
+		}
+		Load task = new Load(op, new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				return read(op);
+			}
+		});
+		Load f = this.loading.putIfAbsent(k, task);
+		if (null == f) {
+			try {
+				task.run();
+				data = getLoaded(task);
+				if (null != data) {
+					this.cache.put(k, op, data);
+				}
+			} finally {
+				this.loading.remove(k, task);
+			}
+			return null == data ? null : data.clone();
+		}
+		if (f.op.number != op.number || f.op.offset != op.offset) {
+			//别人读的是另一个位置的数据，自己读
+			return read(op);
+		}
+		data = getLoaded(f);
+		return null == data ? null : data.clone();
+	}
+
+	/**
+	 * 每个线程读取时重用的对象，读取的时候不生成新的对象
+	 */
+	private static final class ReadContext {
+		/** 查找索引用的key */
+		final BytesKey key = new BytesKey(null);
+		/** 堆外索引查找时填入位置 */
+		final OpItem op = new OpItem();
+		/** 数据在文件中存放的字节，压缩的格式下读到这里再解压 */
+		private ByteBuffer stored = ByteBuffer.allocate(4096);
+		/** 解压之后的数据，不能直接解压到调用者的缓冲区时使用 */
+		private ByteBuffer raw = ByteBuffer.allocate(4096);
+
+		ByteBuffer stored(int length) {
+			ByteBuffer bf = buffer(this.stored, length);
+			if (bf.capacity() <= MAX_READ_BUFFER) {
+				this.stored = bf;
+			}
+			return bf;
+		}
+
+		ByteBuffer raw(int length) {
+			ByteBuffer bf = buffer(this.raw, length);
+			if (bf.capacity() <= MAX_READ_BUFFER) {
+				this.raw = bf;
+			}
+			return bf;
+		}
+
+		/**
+		 * 准备一个position为0、limit为length的缓冲区，bf不够大时分配新的
+		 */
+		private static ByteBuffer buffer(ByteBuffer bf, int length) {
+			if (bf.capacity() < length) {
+				bf = ByteBuffer.allocate(length);
+			}
+			bf.clear();
+			bf.limit(length);
+			return bf;
+		}
+
+		/**
+		 * 读取完成之后去掉对调用者的key的引用
+		 */
+		void release() {
+			this.key.setData(null);
+			this.op.key = null;
+		}
+	}
+
+	/**
+	 * 每个线程写入时重用的对象，单条写入的时候不生成临时的缓冲区和列表。
+	 * 日志和记录编码在线程自己的堆外缓冲区里，FileChannel写入时不用再复制到JDK临时的堆外缓冲区
+	 */
+	private static final class WriteContext {
+		/** 单条添加的操作日志和数据 */
+		final List<OpItem> records = new ArrayList<OpItem>(1);
+		final List<ByteBuffer> values = new ArrayList<ByteBuffer>(1);
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+		/**
+		 * 准备一个position为0、limit为length的缓冲区，超过{@link JournalStore#MAX_WRITE_BUFFER}的每次单独分配
+		 */
+		ByteBuffer buffer(int length) {
+			if (length > MAX_WRITE_BUFFER) {
+				return ByteBuffer.allocate(length);
+			}
+			if (this.buffer.capacity() < length) {
+				Util.release(this.buffer);
+				this.buffer = ByteBuffer.allocateDirect(Math.min(Math.max(length, this.buffer.capacity() * 2),
+						MAX_WRITE_BUFFER));
+			}
+			this.buffer.clear();
+			this.buffer.limit(length);
+			return this.buffer;
+		}
+
+		/**
+		 * 写入完成之后去掉对调用者的数据的引用
+		 */
+		void release() {
+			this.records.clear();
+			this.values.clear();
+		}
+	}
+
+	/**
+	 * 一次从文件读取数据，记录了读的位置
+	 */
+	private static class Load extends FutureTask<byte[]> {
+		final OpItem op;
+
+		Load(OpItem op, Callable<byte[]> c) {
+			super(c);
+			this.op = op;
+		}
+	}
+
+	/**
+	 * 等待读取的结果
+	 * @param f
+	 * @return 读到的数据
+	 * @throws IOException
+	 */
+	private byte[] getLoaded(FutureTask<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待读取数据时被中断");
+		} catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException) {
+				throw (IOException)c;
+			}
+			if (c instanceof RuntimeException) {
+				throw (RuntimeException)c;
+			}
+			IOException ioe = new IOException("读取数据失败");
+			ioe.initCause(c);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * 数据被更新或者删除时，去掉缓存
+	 * @param k
+	 */
+	private void invalidate(BytesKey k) {
+		if (null != this.cache) {
+			this.cache.invalidate(k);
+		}
+	}
+
+	/**
+	 * 读取一个操作日志对应的数据
+	 * @param op
+	 * @return 数据，数据文件不存在返回null
+	 * @throws IOException
+	 */
+	private byte[] read(OpItem op) throws IOException {
+		DataFile df = this.dataFiles.get(Integer.valueOf(op.number));
+		if (null == df) {
+			log.warn("数据文件丢失：" + op);
+			return null;
+		}
+		if (OpItem.isCompressed(df.getFormat())) {
+			return readCompressed(df, op);
+		}
+		ByteBuffer bf = ByteBuffer.wrap(new byte[(int)op.length]);
+		if (!readMapped(df, bf, op.offset)) {
+			df.read(bf, op.offset);
+		}
+		return bf.array();
+	}
+
+	/**
+	 * 读取压缩的格式中的数据，编码之后的数据读到线程自己的缓冲区中，解码到新的数组
+	 * @param df
+	 * @param op
+	 * @return 原始数据
+	 * @throws IOException 数据不完整或者不能解码
+	 */
+	private byte[] readCompressed(DataFile df, OpItem op) throws IOException {
+		ByteBuffer bf = readStored(READ_CONTEXT.get(), df, op, op.length);
+		return ValueCodec.decode(bf.array(), 0, op.length);
+	}
+
+	/**
+	 * 读取数据在文件中存放的前length个字节，读到线程自己的缓冲区中
+	 * @param ctx
+	 * @param df
+	 * @param op
+	 * @param length
+	 * @return 缓冲区，数据从0开始
+	 * @throws IOException 数据不完整
+	 */
+	private ByteBuffer readStored(ReadContext ctx, DataFile df, OpItem op, int length) throws IOException {
+		ByteBuffer bf = ctx.stored(length);
+		if (!readMapped(df, bf, op.offset)) {
+			df.read(bf, op.offset);
+		}
+		if (bf.hasRemaining()) {
+			throw new IOException("数据不完整：" + op);
+		}
+		return bf;
+	}
+
+	/**
+	 * 不生成新对象地查找索引，ctx中的key指向调用者的key，
+	 * 返回的OpItem可能是ctx中重用的，只能在这个线程下一次查找之前使用
+	 * @param ctx
+	 * @param key
+	 * @return 数据的位置，没有这个数据返回null
+	 */
+	private OpItem lookup(ReadContext ctx, byte[] key) {
+		ctx.key.setData(key);
+		OpItem op;
+		if (this.indices instanceof OffHeapIndex) {
+			op = ((OffHeapIndex)this.indices).get(ctx.key, ctx.op) ? ctx.op : null;
+		} else {
+			op = this.indices.get(ctx.key);
+		}
+		return null == op || op.isExpired(System.currentTimeMillis()) ? null : op;
+	}
+
+	/**
+	 * 获得数据所在的文件
+	 * @param op
+	 * @return 数据文件，文件不存在返回null
+	 */
+	DataFile dataFile(OpItem op) {
+		DataFile df = this.dataFiles.get(Integer.valueOf(op.number));
+		if (null == df) {
+			log.warn("数据文件丢失：" + op);
+		}
+		return df;
+	}
+
+	/**
+	 * 获得数据的长度，可以用来准备{@link #get(byte[], ByteBuffer)}的缓冲区。查找时不生成新的对象
+	 * @param key
+	 * @return 数据的长度，压缩的格式下是解压之后的长度；没有这个数据返回-1
+	 * @throws IOException
+	 */
+	public int getLength(byte[] key) throws IOException {
+		ReadContext ctx = READ_CONTEXT.get();
+		try {
+			OpItem op = lookup(ctx, key);
+			if (null == op) {
+				return -1;
+			}
+			DataFile df = dataFile(op);
+			if (null == df) {
+				return -1;
+			}
+			if (OpItem.isCompressed(df.getFormat())) {
+				ByteBuffer bf = readStored(ctx, df, op, ValueCodec.HEADER_LENGTH);
+				return ValueCodec.rawLength(bf.array(), 0);
+			}
+			return op.length;
+		} finally {
+			ctx.release();
+		}
+	}
+
+	/**
+	 * 读取数据到调用者的缓冲区，从dst的position开始写，写完之后position移到数据的结尾。
+	 * <p>查找和读取时不生成新的对象。有缓存时，命中的数据从缓存复制；
+	 * 没有命中时直接从文件读到dst中，不放入缓存。</p>
+	 * @param key
+	 * @param dst
+	 * @return 数据的长度，没有这个数据返回-1
+	 * @throws BufferOverflowException dst的剩余空间放不下数据，这时dst不会被修改
+	 * @throws IOException
+	 */
+	public int get(byte[] key, ByteBuffer dst) throws IOException {
+		ReadContext ctx = READ_CONTEXT.get();
+		try {
+			OpItem op = lookup(ctx, key);
+			if (null == op) {
+				return -1;
+			}
+			if (null != this.cache) {
+				byte[] data = this.cache.get(ctx.key, op);
+				if (null != data) {
+					if (data.length > dst.remaining()) {
+						throw new BufferOverflowException();
+					}
+					dst.put(data);
+					return data.length;
+				}
+			}
+			DataFile df = dataFile(op);
+			if (null == df) {
+				return -1;
+			}
+			if (OpItem.isCompressed(df.getFormat())) {
+				return decode(ctx, readStored(ctx, df, op, op.length), op.length, dst);
+			}
+			if (op.length > dst.remaining()) {
+				throw new BufferOverflowException();
+			}
+			int limit = dst.limit();
+			int position = dst.position();
+			dst.limit(position + op.length);
+			try {
+				if (!readMapped(df, dst, op.offset)) {
+					df.read(dst, op.offset);
+				}
+				if (dst.hasRemaining()) {
+					dst.position(position);
+					throw new IOException("数据不完整：" + op);
+				}
+			} finally {
+				dst.limit(limit);
+			}
+			return op.length;
+		} finally {
+			ctx.release();
+		}
+	}
+
+	/**
+	 * 流式读取一个数据，通过数据文件的指定位置读取，不会把整个数据读到内存中。
+	 * 压缩的格式下，压缩过的数据需要整个解压到内存中，流式写入的数据没有压缩，不受影响。
+	 * <p>数据被更新或者删除之后，所在的文件可能被删除，这之后再读取会抛出IOException。</p>
+	 * @param key
+	 * @return 数据的输入流，没有这个数据或者已经过期返回null
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(byte[] key) throws IOException {
+		//时间轮删除之前，过期的数据也还在索引中
+		OpItem op = locate(key);
+		if (null == op) {
+			return null;
+		}
+		DataFile df = dataFile(op);
+		if (null == df) {
+			return null;
+		}
+		long offset = op.offset;
+		int length = op.length;
+		if (OpItem.isCompressed(df.getFormat())) {
+			ByteBuffer bf = readStored(READ_CONTEXT.get(), df, op, ValueCodec.HEADER_LENGTH);
+			if (ValueCodec.NONE != bf.get(0)) {
+				return new ByteArrayInputStream(readCompressed(df, op));
+			}
+			offset += ValueCodec.HEADER_LENGTH;
+			length -= ValueCodec.HEADER_LENGTH;
+		}
+		return new ValueInputStream(df, offset, length);
+	}
+
+	/**
+	 * 读取数据的一部分
+	 * @param key
+	 * @param offset 在数据中的起始位置
+	 * @param length 最多读取的字节数
+	 * @return 读到的数据，超出数据结尾的部分不返回；没有这个数据或者已经过期返回null
+	 * @throws IOException
+	 */
+	public byte[] get(byte[] key, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("offset and length must not be negative");
+		}
+		InputStream in = getInputStream(key);
+		if (null == in) {
+			return null;
+		}
+		try {
+			long skipped = in.skip(offset);
+			byte[] data = new byte[skipped < offset ? 0 : Math.min(length, in.available())];
+			int size = 0;
+			while (size < data.length) {
+				int l = in.read(data, size, data.length - size);
+				if (l < 0) {
+					throw new IOException("数据不完整：" + BytesKey.valueOf(key));
+				}
+				size += l;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 把编码之后的数据解码到dst中，dst是堆上的缓冲区时直接解码进去
+	 * @param ctx
+	 * @param stored
+	 * @param length 编码之后的长度
+	 * @param dst
+	 * @return 原始长度
+	 * @throws BufferOverflowException dst的剩余空间放不下数据
+	 * @throws IOException
+	 */
+	private int decode(ReadContext ctx, ByteBuffer stored, int length, ByteBuffer dst) throws IOException {
+		int rawLength = ValueCodec.rawLength(stored.array(), 0);
+		if (rawLength > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			ValueCodec.decode(stored.array(), 0, length, dst.array(), dst.arrayOffset() + dst.position());
+			dst.position(dst.position() + rawLength);
+		} else {
+			ByteBuffer raw = ctx.raw(rawLength);
+			ValueCodec.decode(stored.array(), 0, length, raw.array(), 0);
+			dst.put(raw);
+		}
+		return rawLength;
+	}
+
+	/**
+	 * 把数据直接写到target中。没有压缩的数据通过{@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}
+	 * 由操作系统从文件复制到target，不经过堆内存；压缩的数据解压到线程自己的缓冲区再写出。
+	 * 查找时不生成新的对象，不使用缓存
+	 * @param key
+	 * @param target 需要是阻塞模式的，否则可能只写了一部分
+	 * @return 写出的字节数，没有这个数据返回-1
+	 * @throws IOException
+	 */
+	public long transferTo(byte[] key, WritableByteChannel target) throws IOException {
+		ReadContext ctx = READ_CONTEXT.get();
+		try {
+			OpItem op = lookup(ctx, key);
+			if (null == op) {
+				return -1;
+			}
+			DataFile df = dataFile(op);
+			if (null == df) {
+				return -1;
+			}
+			if (!OpItem.isCompressed(df.getFormat())) {
+				return df.transferTo(op.offset, op.length, target);
+			}
+			ByteBuffer stored = readStored(ctx, df, op, op.length);
+			ByteBuffer raw = ctx.raw(ValueCodec.rawLength(stored.array(), 0));
+			decode(ctx, stored, op.length, raw);
+			raw.flip();
+			long size = 0;
+			while (raw.hasRemaining()) {
+				int l = target.write(raw);
+				if (l <= 0) break;
+				size += l;
+			}
+			return size;
+		} finally {
+			ctx.release();
+		}
+	}
+
+	/**
+	 * 通过内存映射读取数据，只有不再追加数据的文件才会被映射
+	 * @param df
+	 * @param bf
+	 * @param offset
+	 * @return 是否读到了，没有读到需要通过文件读取
+	 */
+	private boolean readMapped(DataFile df, ByteBuffer bf, long offset) {
+		if (!this.config.isMappedRead()) {
+			return false;
+		}
+		if (df.readMapped(bf, offset)) {
+			return true;
+		}
+		try {
+			//换掉了或者写满了的文件不会再写入数据，可以映射；文件大小可以修改，换掉的文件不一定写满
+			long length = df.getLength();
+			if ((df != this.dataFile || length >= this.fileSize) && df.map(length, this.mappedBytes, this.config.getMaxMappedBytes())) {
+				return df.readMapped(bf, offset);
+			}
+		} catch (IOException e) {
+			log.warn("map file error:" + df, e);
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#iterator()
+	 */
+	public Iterator<byte[]> iterator() throws IOException {
+		final Iterator<BytesKey> it = this.indices.keySet().iterator();
+		return new Iterator<byte[]>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			public byte[] next() {
+				BytesKey bk = it.next();
+				if (null != bk) {
+					return bk.getData();
+				}
+				return null;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException("不支持删除，请直接调用store.remove方法");
+			}
+		};
+	}
+
+	/**
+	 * 按文件顺序遍历key/value对。取一份索引的快照，每个文件中的数据按位置顺序读，
+	 * 比通过{@link #iterator()}逐个get快得多，返回的遍历器可以分成多份同时遍历
+	 * @return 遍历器
+	 * @throws IOException
+	 */
+	public EntryScanner scanner() throws IOException {
+		Map<Integer, EntryScanner.FileEntries> files = new HashMap<Integer, EntryScanner.FileEntries>();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<BytesKey, OpItem> e : this.indices.entrySet()) {
+			OpItem op = e.getValue();
+			if (op.isExpired(now)) {
+				continue;
+			}
+			EntryScanner.FileEntries f = files.get(Integer.valueOf(op.number));
+			if (null == f) {
+				f = new EntryScanner.FileEntries(op.number);
+				files.put(Integer.valueOf(op.number), f);
+			}
+			OpItem copy = new OpItem();
+			copy.key = e.getKey().getData();
+			copy.number = op.number;
+			copy.offset = op.offset;
+			copy.length = op.length;
+			f.ops.add(copy);
+		}
+		List<EntryScanner.FileEntries> sorted = new ArrayList<EntryScanner.FileEntries>(files.values());
+		Collections.sort(sorted, new Comparator<EntryScanner.FileEntries>() {
+			public int compare(EntryScanner.FileEntries a, EntryScanner.FileEntries b) {
+				return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+			}
+		});
+		Comparator<OpItem> byOffset = new Comparator<OpItem>() {
+			public int compare(OpItem a, OpItem b) {
+				return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+			}
+		};
+		for (EntryScanner.FileEntries f : sorted) {
+			Collections.sort(f.ops, byOffset);
+		}
+		return new EntryScanner(this, sorted);
+	}
+
+	/**
+	 * 用threads个线程按文件顺序遍历所有的key/value对，每个线程负责一部分文件
+	 * @param visitor 会在多个线程中同时调用，必须是线程安全的
+	 * @param threads 线程数
+	 * @throws IOException
+	 * @see #scanner()
+	 */
+	public void scan(EntryVisitor visitor, int threads) throws IOException {
+		scanner().forEachRemaining(visitor, threads);
+	}
+
+	/**
+	 * 查找key现在的位置
+	 * @param key
+	 * @return 数据的位置，没有这个数据或者已经过期返回null
+	 */
+	OpItem locate(byte[] key) {
+		OpItem op = this.indices.get(BytesKey.valueOf(key));
+		return null == op || op.isExpired(System.currentTimeMillis()) ? null : op;
+	}
+
+	/**
+	 * 查找key现在的数据，已经过期的从索引中去掉，需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param k
+	 * @return 数据的位置，没有这个数据或者已经过期返回null
+	 */
+	private OpItem current(BytesKey k) {
+		OpItem op = this.indices.get(k);
+		if (null != op && op.isExpired(System.currentTimeMillis())) {
+			drop(k, op);
+			return null;
+		}
+		return op;
+	}
+
+	/**
+	 * 修改索引中的一个key，正在写检查点时先记下修改之前的索引项。
+	 * 需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param k
+	 * @param op
+	 */
+	private void putIndex(BytesKey k, OpItem op) {
+		Checkpoint.Snapshot s = this.snapshot;
+		if (null != s) {
+			s.modifying(k, this.indices);
+		}
+		this.indices.put(k, indexed(k, op));
+	}
+
+	/**
+	 * 放入索引之前去掉OpItem中的16字节key，它已经在索引的{@link Key128}中了，不用每个key再存一个数组。
+	 * 索引中的OpItem需要key时用索引的key，见{@link #toDel(BytesKey, OpItem)}
+	 * @param k 索引的key
+	 * @param op
+	 * @return op
+	 */
+	private static OpItem indexed(BytesKey k, OpItem op) {
+		if (k instanceof Key128) {
+			op.key = null;
+		}
+		return op;
+	}
+
+	/**
+	 * 从索引中去掉一个key，正在写检查点时先记下修改之前的索引项。
+	 * 需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param k
+	 */
+	private void removeIndex(BytesKey k) {
+		Checkpoint.Snapshot s = this.snapshot;
+		if (null != s) {
+			s.modifying(k, this.indices);
+		}
+		this.indices.remove(k);
+	}
+
+	/**
+	 * 从索引中去掉一个过期的数据，减少它所在文件的引用计数，不写删除日志：
+	 * 添加的日志中记着过期时间，启动恢复时也会丢弃它。
+	 * 需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param k
+	 * @param op
+	 */
+	private void drop(BytesKey k, OpItem op) {
+		removeIndex(k);
+		invalidate(k);
+		DataFile df = this.dataFiles.get(Integer.valueOf(op.number));
+		if (null != df && df.decrement() <= 0) {
+			this.unusedFiles.put(Integer.valueOf(op.number), Boolean.TRUE);
+		}
+		this.expiredCount.incrementAndGet();
+	}
+
+	/**
+	 * 删除时间轮中到期的一批key，由{@link Expirer}调用。
+	 * 整批只取一次读锁，每个key在自己的段锁内确认过期时间没有变过，不写删除日志
+	 * @param timers 到期的key
+	 * @throws IOException
+	 */
+	void expire(List<TimingWheel.Timer> timers) throws IOException {
+		fileLock.readLock().lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (TimingWheel.Timer t : timers) {
+				ReentrantLock kl = keyLock(t.key);
+				kl.lock();
+				try {
+					OpItem op = this.indices.get(t.key);
+					if (null != op && op.expire == t.expire && op.isExpired(now)) {
+						drop(t.key, op);
+					}
+				} finally {
+					kl.unlock();
+				}
+			}
+		} finally {
+			fileLock.readLock().unlock();
+		}
+		deleteUnused();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#remove(byte[])
+	 */
+	public boolean remove(final byte[] key) throws IOException {
+		//获得记录在那个文件，记录日志，删除内存索引，减少文件计数，判断大小是否满足大小了，并且无引用了，就删除数据文件和日志文件
+		long begin = System.nanoTime();
+		try {
+			return writeKey(key, new KeyWrite() {
+				public Boolean write() throws IOException {
+					return Boolean.valueOf(innerRemove(key));
+				}
+			});
+		} finally {
+			this.statistics.record(StoreStatistics.REMOVE, begin);
+		}
+	}
+
+	/**
+	 * 内部删除
+	 * @param key
+	 * @return 是否删除了数据
+	 * @throws IOException
+	 */
+	private boolean innerRemove(byte[] key) throws IOException {
+		boolean ret = false;
+		BytesKey k = BytesKey.valueOf(key);
+		OpItem op = current(k);
+		if (null != op) {
+			ret = innerRemove(k, op);
+			if(ret){
+				removeIndex(k);
+				invalidate(k);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 根据OpItem对象，在日志文件中记录删除的操作日志，并且修改对应数据文件的引用计数.
+	 * 引用计数变成0的文件会被登记，由{@link #deleteUnused()}在写锁内判断是否删除
+	 * @param k 被删除的key
+	 * @param op
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean innerRemove(BytesKey k, OpItem op) throws IOException {
+		DataFile df = this.dataFiles.get(new Integer(op.number));
+		LogFile lf = this.logFiles.get(new Integer(op.number));
+		if(null != df && (null != lf || df instanceof SegmentFile)){
+			//删除日志使用它写入的那个文件的格式
+			int format = getFormat(df, lf);
+			OpItem del = toDel(k, op);
+			ByteBuffer bf = WRITE_CONTEXT.get().buffer(del.size(format));
+			del.writeTo(bf, format);
+			bf.flip();
+			//单文件格式，删除日志写在数据所在的文件中
+			appendLog(null == lf ? df : lf, bf);
+			if (df.decrement() <= 0) {
+				this.unusedFiles.put(new Integer(op.number), Boolean.TRUE);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 文件中的日志记录的格式，两个文件的格式由日志文件决定
+	 * @param df
+	 * @param lf 单文件格式为null
+	 * @return 记录的格式
+	 */
+	private int getFormat(DataFile df, LogFile lf) {
+		return null == lf ? df.getFormat() : lf.getFormat();
+	}
+
+	/**
+	 * 带校验的格式下，封存一个文件现有的全部内容，两个文件的格式下数据文件先落盘。
+	 * 需要持有写锁，保证没有写入在进行
+	 * @param df
+	 * @param lf 单文件格式为null
+	 * @throws IOException
+	 */
+	private void seal(DataFile df, LogFile lf) throws IOException {
+		if (null == df || !OpItem.hasChecksum(getFormat(df, lf))) {
+			return;
+		}
+		if (null == lf) {
+			df.seal(df.getLength());
+		} else if (lf.getLength() != lf.getSealedLength()) {
+			df.force();
+			lf.seal(lf.getLength());
+		}
+	}
+
+	/**
+	 * 封存所有的文件，下次启动时不用再校验现在已有的内容，需要持有写锁
+	 */
+	private void sealAll() {
+		for (Map.Entry<Integer, DataFile> e : this.dataFiles.entrySet()) {
+			try {
+				seal(e.getValue(), this.logFiles.get(e.getKey()));
+			} catch (IOException ex) {
+				log.warn("seal error:" + e.getValue(), ex);
+			}
+		}
+	}
+
+	/**
+	 * 判断文件是否可以删了，如果已经写满并且没有引用，删除数据文件和日志文件，需要持有写锁
+	 * @param n
+	 * @param df
+	 * @param lf
+	 * @throws IOException
+	 */
+	private void deleteIfUnused(int n, DataFile df, LogFile lf) throws IOException {
+		//不是当前文件的都不会再写入了，包括没有写满就换掉的旧格式文件
+		if ((this.dataFile != df || df.getLength() >= this.fileSize) && df.isUnUsed()) {
+			if (this.dataFile == df) { //判断如果是当前文件，生成新的
+				newDataFile();
+			}
+			log.info("删除文件：" + df);
+			this.dataFiles.remove(new Integer(n));
+			this.logFiles.remove(new Integer(n));
+			df.delete();
+			if (null != lf) {
+				lf.delete();
+			}
+		}
+	}
+	
+	/**
+	 * 组提交模式下，登记被写过的文件
+	 * @param df
+	 */
+	private void markDirty(DataFile df) {
+		if (null != this.groupCommitter) {
+			this.groupCommitter.markDirty(df);
+		}
+	}
+
+	/**
+	 * 组提交模式下，完成一次写入，需要在写入的锁内调用
+	 * @return 提交序号，非组提交模式返回0
+	 */
+	private long commit() {
+		if (null != this.groupCommitter) {
+			return this.groupCommitter.commit();
+		}
+		return 0;
+	}
+
+	/**
+	 * 组提交模式下，等待指定序号之前的写入落盘，需要在锁外调用
+	 * @param seq
+	 * @throws IOException
+	 */
+	private void sync(long seq) throws IOException {
+		if (null != this.groupCommitter) {
+			this.groupCommitter.await(seq);
+		}
+	}
+
+	/**
+	 * 检查参数是否合法
+	 * @param key
+	 * @param data
+	 */
+	private void checkParam(byte[] key, byte[] data) {
+		if (null == key || null == data) throw new NullPointerException("key/data can't be null");
+		checkKey(key);
+	}
+
+	/**
+	 * 检查key的长度是否合法
+	 * @param key
+	 */
+	private void checkKey(byte[] key) {
+		int max = this.config.getMaxKeyLength();
+		if (max <= 0) {
+			if (key.length != OpItem.KEY_LENGTH) throw new IllegalArgumentException("key.length must be 16");
+		} else if (key.length == 0 || key.length > max) {
+			throw new IllegalArgumentException("key.length must be in [1, " + max + "]");
+		}
+	}
+	
+	/**
+	 * 生成一个新的数据文件，需要持有写锁
+	 * @throws FileNotFoundException
+	 */
+	private void newDataFile()
+			throws IOException {
+		//原来的当前文件不会再追加了，解除映射并截断到实际的长度
+		if (null != this.dataFile) {
+			this.dataFile.unmapForWrite();
+			this.statistics.rollover();
+		}
+		if (null != this.logFile) {
+			this.logFile.unmapForWrite();
+		}
+		seal(this.dataFile, this.logFile);
+		int n = this.number.incrementAndGet();
+		Preparer pr = this.preparer;
+		Preparer.Prepared p = null == pr ? null : pr.take(n);
+		if (null != p && p.install()) { //准备线程已经生成好了，改名之后直接换上
+			this.dataFile = p.df;
+			this.logFile = p.lf;
+			this.dataFiles.put(new Integer(n), this.dataFile);
+			if (null != this.logFile) {
+				this.logFiles.put(new Integer(n), this.logFile);
+			}
+		} else if (this.config.isSingleFileSegment()) {
+			this.dataFile = new SegmentFile(new File(path + File.separator + name + "." + n + SegmentFile.SUFFIX),
+					force, this.format);
+			this.logFile = null;
+			this.dataFiles.put(new Integer(n), this.dataFile);
+		} else {
+			this.dataFile = new DataFile(new File(path + File.separator + name + "." + n), force);
+			this.logFile = new LogFile(new File(path + File.separator + name + "." + n + ".log"), force, this.format);
+			this.dataFile.setFormat(this.logFile.getFormat());
+			this.dataFiles.put(new Integer(n), this.dataFile);
+			this.logFiles.put(new Integer(n), this.logFile);
+		}
+		mapCurrent();
+		log.info("生成新文件：" + this.dataFile);
+	}
+
+	/**
+	 * 用临时的名字生成编号为n的文件，并预先分配好空间，由准备线程调用，换文件时改成正式的名字
+	 * @param n 文件编号
+	 * @return 准备好的文件
+	 * @throws IOException
+	 */
+	Preparer.Prepared prepare(int n) throws IOException {
+		String prefix = path + File.separator + name + "." + n;
+		Preparer.Prepared p;
+		if (this.config.isSingleFileSegment()) {
+			File f = new File(prefix + SegmentFile.SUFFIX);
+			p = new Preparer.Prepared(n, new SegmentFile(new File(f.getPath() + Preparer.SUFFIX), force, this.format), f,
+					null, null);
+		} else {
+			File f = new File(prefix);
+			File lf = new File(prefix + ".log");
+			DataFile df = new DataFile(new File(f.getPath() + Preparer.SUFFIX), force);
+			LogFile l = null;
+			try {
+				l = new LogFile(new File(lf.getPath() + Preparer.SUFFIX), force, this.format);
+			} finally {
+				if (null == l) {
+					df.delete();
+				}
+			}
+			df.setFormat(l.getFormat());
+			p = new Preparer.Prepared(n, df, f, l, lf);
+		}
+		try {
+			//恢复时全0的记录表示后面是预先分配的空间，不是数据
+			p.df.preallocate(this.fileSize);
+			if (null != p.lf) {
+				p.lf.preallocate(this.logMapSize);
+			}
+		} catch (IOException e) {
+			p.discard();
+			throw e;
+		}
+		return p;
+	}
+
+	/**
+	 * 内存映射追加写的模式下，把当前文件映射到内存
+	 * @throws IOException
+	 */
+	private void mapCurrent() throws IOException {
+		if (!this.config.isMappedWrite()) {
+			return;
+		}
+		if (null != this.dataFile) {
+			this.dataFile.mapForWrite(this.fileSize);
+		}
+		if (null != this.logFile) {
+			this.logFile.mapForWrite(this.logMapSize);
+		}
+	}
+
+	/**
+	 * 类初始化的时候，需要遍历所有的日志文件，恢复内存的索引
+	 * @throws IOException
+	 */
+	private void initLoad() throws IOException {
+		log.warn("开始恢复数据");
+		final String nm = name + ".";
+		File dir = new File(path);
+		//上次没有关闭的流式写入和准备好没有换上的文件留下的临时文件
+		File[] streams = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String n) {
+				return n.startsWith(nm) && (n.endsWith(ValueWriter.SUFFIX) || n.endsWith(Preparer.SUFFIX));
+			}
+		});
+		for (File f : streams) {
+			if (!f.delete()) {
+				log.warn("删除临时文件失败：" + f);
+			}
+		}
+		File[] fs = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String n) {
+				return n.startsWith(nm) && !n.endsWith(".log") && !n.endsWith(ValueWriter.SUFFIX)
+						&& !n.endsWith(Checkpoint.SUFFIX) && !n.endsWith(Checkpoint.TEMP_SUFFIX);
+			}
+		});
+		log.warn("遍历每个数据文件");
+		List<Integer> indexList = new LinkedList<Integer>();
+		Set<Integer> segments = new HashSet<Integer>();
+		for (File f : fs) {
+			try{
+				String fn = f.getName();
+				boolean segment = fn.endsWith(SegmentFile.SUFFIX);
+				if (segment) {
+					fn = fn.substring(0, fn.length() - SegmentFile.SUFFIX.length());
+				}
+				int n = Integer.parseInt(fn.substring(nm.length()));
+				indexList.add(new Integer(n));
+				if (segment) {
+					segments.add(new Integer(n));
+				}
+			}
+			catch(Exception e){
+				log.error("parse file index error" + f, e);
+			}
+		}
+		
+		Integer[] indices = indexList.toArray(new Integer[indexList.size()]);
+		
+		//对文件顺序进行排序
+		Arrays.sort(indices);
+		
+		//有可用的检查点时，每个文件从检查点开始，只重放之后的日志
+		final Checkpoint ckp = loadCheckpoint(indices, segments);
+		this.recoveredFromCheckpoint = null != ckp;
+		
+		//每个文件的日志由线程池并行读成这个文件自己的索引，再按文件编号的顺序合并
+		long begin = System.currentTimeMillis();
+		long records = 0;
+		long verified = 0;
+		int threads = Math.max(1, Math.min(this.config.getRecoveryThreads(), indices.length));
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "store4j-recovery-" + name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<Recovered>> futures = new ArrayList<Future<Recovered>>(indices.length);
+		try {
+			for (int i = 0; i < indices.length; i++) {
+				final Integer n = indices[i];
+				final boolean segment = segments.contains(n);
+				final boolean last = i == indices.length - 1;
+				futures.add(pool.submit(new Callable<Recovered>() {
+					public Recovered call() throws IOException {
+						if (null == ckp) {
+							return recover(n, segment, last, null, null);
+						}
+						return recover(n, segment, last, ckp.files.get(n), ckp.indices.get(n));
+					}
+				}));
+			}
+			for (Future<Recovered> f : futures) {
+				Recovered r = getRecovered(f);
+				records += r.records;
+				verified += r.verified;
+				merge(r);
+			}
+			dropExpired();
+			//合并时补写的删除和丢弃的过期数据可能让之前的文件没有引用了
+			deleteUnused();
+		} finally {
+			for (Future<Recovered> f : futures) { //出错的时候，还没有开始的不用再读了
+				f.cancel(false);
+			}
+			pool.shutdown();
+		}
+		this.recoveryTime = System.currentTimeMillis() - begin;
+		this.recoveryRecords = records;
+		this.recoveryVerifiedBytes = verified;
+		//校验加载的文件，并设置当前文件
+		if(this.dataFiles.size() > 0){
+			indices = this.dataFiles.keySet().toArray(new Integer[0]);
+			Arrays.sort(indices);
+			for(int i=0; i < indices.length - 1; i++){
+				DataFile df = this.dataFiles.get(indices[i]);
+				//文件大小可以修改，旧格式的文件也可能没有写满就换掉了，非当前文件不要求写满
+				if(df.isUnUsed()){
+					throw new IllegalStateException("非当前文件的状态是used状态");
+				}
+			}
+			Integer n = indices[indices.length - 1];
+			this.number.set(n.intValue());
+			this.dataFile = this.dataFiles.get(n);
+			this.logFile = this.logFiles.get(n);
+			mapCurrent();
+			if (getFormat(this.dataFile, this.logFile) < this.format) {
+				//变长key和校验不能写到旧格式的文件中，旧文件以后只会写入删除
+				log.warn("当前文件是旧的格式，生成新文件");
+				DataFile old = this.dataFile;
+				newDataFile();
+				deleteIfUnused(n.intValue(), old, this.logFiles.get(n));
+			}
+		}
+		//校验过的内容封存起来，下次启动时不用再校验
+		sealAll();
+		log.warn("恢复数据：" + this.size());
+	}
+
+	/**
+	 * 一个文件恢复的结果，由恢复线程生成，合并时使用
+	 */
+	private static class Recovered {
+		final Integer n;
+		final boolean last;
+		DataFile df;
+		LogFile lf;
+		/** 本数据文件的索引 */
+		final Map<BytesKey, OpItem> idx = new HashMap<BytesKey, OpItem>();
+		/** 需要和之前的文件一起检查的操作日志，按日志中的顺序：对其他文件的删除，和本文件中key的添加 */
+		final List<OpItem> externals = new ArrayList<OpItem>();
+		long records = 0;
+		/** 校验过的字节数 */
+		long verified = 0;
+
+		Recovered(Integer n, boolean last) {
+			this.n = n;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * 在恢复线程中打开一个文件，读出这个文件自己的索引和引用计数，不访问总索引
+	 * @param n
+	 * @param segment 是否单文件格式
+	 * @param last 是否最后一个文件
+	 * @param state 检查点中这个文件的状态，没有为null
+	 * @param idx 检查点中这个文件的索引，没有为null
+	 * @return 恢复的结果
+	 * @throws IOException
+	 */
+	private Recovered recover(Integer n, boolean segment, boolean last, Checkpoint.FileState state,
+			Map<BytesKey, OpItem> idx) throws IOException {
+		Recovered r = new Recovered(n, last);
+		File dir = new File(path);
+		if (segment) {
+			SegmentFile sf = new SegmentFile(new File(dir, name + "." + n + SegmentFile.SUFFIX), force);
+			r.df = sf;
+		} else {
+			File f = new File(dir, name + "." + n);
+			r.df = new DataFile(f, force);
+			r.lf = new LogFile(new File(f.getAbsolutePath() + ".log"), force);
+			r.df.setFormat(r.lf.getFormat());
+		}
+		long from = 0;
+		long end = 0;
+		if (null != state) {
+			r.idx.putAll(idx);
+			r.df.increment(state.referenceCount);
+			from = state.logLength;
+			end = state.dataLength;
+		}
+		//封存之前和检查点之前的内容是可以信任的，只校验之后的部分
+		DataFile records = segment ? r.df : r.lf;
+		long verifyFrom = Long.MAX_VALUE;
+		if (OpItem.hasChecksum(records.getFormat())) {
+			verifyFrom = Math.max(from, records.getSealedLength());
+		}
+		if (segment) {
+			loadSegment(r, (SegmentFile)r.df, Math.max(from, r.df.getHeaderLength()), verifyFrom);
+		} else {
+			loadLog(r, last, from, end, verifyFrom);
+		}
+		return r;
+	}
+
+	/**
+	 * 读取检查点，并检查它和现有的文件是不是对得上
+	 * @param numbers 现有的文件编号，从小到大
+	 * @param segments 单文件格式的文件编号
+	 * @return 可用的检查点，没有或者不可用返回null
+	 */
+	private Checkpoint loadCheckpoint(Integer[] numbers, Set<Integer> segments) {
+		File f = getCheckpointFile();
+		if (!f.exists()) {
+			return null;
+		}
+		if (!this.config.isCheckpoint()) {
+			//不使用检查点的时候，日志会继续变化，旧的检查点以后也不能用了
+			log.warn("删除不再使用的检查点:" + f);
+			f.delete();
+			return null;
+		}
+		try {
+			Checkpoint ckp = Checkpoint.read(f);
+			int max = 0;
+			for (Integer n : ckp.files.keySet()) {
+				max = Math.max(max, n.intValue());
+			}
+			File dir = new File(path);
+			for (Integer n : numbers) {
+				Checkpoint.FileState state = ckp.files.get(n);
+				if (null == state) {
+					//检查点之后新生成的文件，编号一定更大；检查点中有但现在没有的文件是已经没有引用被删掉的
+					if (n.intValue() <= max) {
+						throw new IOException("文件不在检查点中:" + n);
+					}
+					continue;
+				}
+				if (state.segment != segments.contains(n)) {
+					throw new IOException("文件的格式和检查点中的不一样:" + n);
+				}
+				File lf = state.segment ? new File(dir, name + "." + n + SegmentFile.SUFFIX)
+						: new File(dir, name + "." + n + ".log");
+				if (lf.length() < state.logLength) {
+					throw new IOException("日志比检查点中的短:" + lf);
+				}
+				if (!state.segment && new File(dir, name + "." + n).length() < state.dataLength) {
+					throw new IOException("数据文件比检查点中的短:" + n);
+				}
+			}
+			log.warn("从检查点恢复:" + f);
+			return ckp;
+		} catch (IOException e) {
+			log.warn("检查点不可用，重放所有的日志:" + f, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return 检查点文件
+	 */
+	private File getCheckpointFile() {
+		return new File(path, name + Checkpoint.SUFFIX);
+	}
+
+	/**
+	 * 写一次检查点：在写锁内只记下引用计数和日志的位置，并开始记录索引的修改，
+	 * 然后在锁外把这些文件刷盘，再一边遍历索引一边写检查点文件，写入不会被挡住
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		checkpointLock.lock();
+		try {
+			List<Checkpoint.FileState> states = new ArrayList<Checkpoint.FileState>();
+			List<DataFile> files = new ArrayList<DataFile>();
+			Checkpoint.Snapshot s = new Checkpoint.Snapshot();
+			fileLock.writeLock().lock();
+			try {
+				if (null == this.dataFile) { //已经关闭了
+					return;
+				}
+				for (Map.Entry<Integer, DataFile> e : this.dataFiles.entrySet()) {
+					DataFile df = e.getValue();
+					LogFile lf = this.logFiles.get(e.getKey());
+					boolean segment = df instanceof SegmentFile;
+					long length = df.getLength();
+					states.add(new Checkpoint.FileState(e.getKey().intValue(), segment,
+							segment ? length : lf.getLength(), length, df.getReferenceCount()));
+					files.add(df);
+					if (null != lf) {
+						files.add(lf);
+					}
+				}
+				this.snapshot = s;
+			} finally {
+				fileLock.writeLock().unlock();
+			}
+			try {
+				//检查点之前的日志和数据必须先落盘
+				for (DataFile df : files) {
+					try {
+						df.force();
+					} catch (IOException e) {
+						if (df.isOpen()) {
+							throw e;
+						}
+					}
+				}
+				Checkpoint.write(getCheckpointFile(), states, this.indices, s);
+			} finally {
+				this.snapshot = null;
+			}
+			this.lastCheckpointTime = System.currentTimeMillis();
+			log.info("写检查点，索引:" + states.size() + "个文件");
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * 等待一个文件恢复完
+	 * @param f
+	 * @return 恢复的结果
+	 * @throws IOException
+	 */
+	private Recovered getRecovered(Future<Recovered> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("恢复数据时被中断");
+		} catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException) {
+				throw (IOException)c;
+			}
+			if (c instanceof RuntimeException) {
+				throw (RuntimeException)c;
+			}
+			IOException ioe = new IOException("恢复数据失败");
+			ioe.initCause(c);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * 按文件编号的顺序合并一个文件恢复的结果。
+	 * 先按日志中的顺序检查和之前的文件有关的操作，再决定删除这个文件，或者把它的索引加入总索引
+	 * @param r
+	 * @throws IOException
+	 */
+	private void merge(Recovered r) throws IOException {
+		Integer n = r.n;
+		DataFile df = r.df;
+		LogFile lf = r.lf;
+		log.warn("处理index为" +n + "的文件");
+		long now = System.currentTimeMillis();
+		for (OpItem op : r.externals) {
+			BytesKey key = BytesKey.valueOf(op.key);
+			OpItem o = this.indices.get(key);
+			if (null == o) {
+				continue;
+			}
+			if (op.op == OpItem.OP_DEL) {
+				//批量写入中对其他文件的删除，如果那个文件的日志中还没有补写上，现在补写
+				if (o.number == op.number && o.offset == op.offset) {
+					innerRemove(key, o);
+					removeIndex(key);
+				}
+			} else if (o.isExpired(now)) {
+				//过期之后又添加的，过期的数据直接丢弃，不用补写删除日志
+				drop(key, o);
+			} else {
+				//已经在之前添加过，那么必然是Update的时候，Remove的操作日志没有写入。
+				innerRemove(key, o);
+				removeIndex(key);
+			}
+		}
+		if ((!r.last || df.getLength() >= this.fileSize) && df.isUnUsed()) { //如果这个数据文件已经不是最后一个或者达到指定大小，并且不再使用，删除
+			df.delete();
+			if (null != lf) {
+				lf.delete();
+			}
+			log.warn("不用了，也超过了大小，删除");
+		} else { //否则加入map
+			//已经有新格式的文件，以后生成的文件也用这个格式
+			this.format = Math.max(this.format, getFormat(df, lf));
+			this.dataFiles.put(n, df);
+			if (null != lf) {
+				this.logFiles.put(n, lf);
+			}
+			if (!df.isUnUsed()) { //如果有索引，加入总索引 
+				for (Map.Entry<BytesKey, OpItem> e : r.idx.entrySet()) {
+					this.indices.put(e.getKey(), indexed(e.getKey(), e.getValue()));
+				}
+				log.warn("还在使用，放入索引，referenceCount:" + df.getReferenceCount() + ", index:" + r.idx.size());
+			}
+		}
+	}
+
+	/**
+	 * 恢复之后丢弃已经过期的数据，不写删除日志；还没有过期的放入时间轮
+	 */
+	private void dropExpired() {
+		long now = System.currentTimeMillis();
+		List<BytesKey> expired = new ArrayList<BytesKey>();
+		for (Map.Entry<BytesKey, OpItem> e : this.indices.entrySet()) {
+			OpItem op = e.getValue();
+			if (op.isExpired(now)) {
+				expired.add(e.getKey());
+			} else if (op.expire != 0) {
+				this.wheel.add(e.getKey(), op.expire);
+			}
+		}
+		for (BytesKey k : expired) {
+			drop(k, this.indices.get(k));
+		}
+		if (!expired.isEmpty()) {
+			log.warn("丢弃过期的数据：" + expired.size());
+		}
+	}
+
+	/**
+	 * 通过两个文件格式的日志文件恢复一个数据文件的索引。
+	 * 文件末尾不完整或者校验失败的记录，以及不完整的批量会被截掉
+	 * @param r
+	 * @param last 是否最后一个文件，最后一个文件的数据文件会被截断到最后一条添加的数据结尾
+	 * @param from 从日志的哪个位置开始
+	 * @param end 已知的数据结尾
+	 * @param verifyFrom 从日志的哪个位置开始校验记录和数据
+	 * @throws IOException
+	 */
+	private void loadLog(Recovered r, boolean last, long from, long end, long verifyFrom) throws IOException {
+		Integer n = r.n;
+		DataFile df = r.df;
+		LogFile lf = r.lf;
+		int format = lf.getFormat();
+		long size = lf.getLength();
+		long pos = Math.max(from, lf.getHeaderLength());
+		
+		//一次读入多条日志，缓冲比最长的一条记录还大
+		ByteBuffer bf = ByteBuffer.allocate(OpItem.LENGTH * RECOVERY_READ_RECORDS);
+		bf.flip();
+		//没有读完的批量写入，批量的条数和开始的位置
+		List<OpItem> batch = null;
+		int batchLength = 0;
+		long batchStart = 0;
+		while (pos < size) { //循环每一个操作
+			OpItem op = new OpItem();
+			if (!op.readFrom(bf, format)) {
+				bf.clear();
+				bf.limit((int)Math.min(bf.capacity(), size - pos));
+				lf.read(bf, pos);
+				bf.flip();
+				if (!op.readFrom(bf, format)) {
+					log.warn("截掉不完整的日志:" + lf + ", position:" + pos);
+					break;
+				}
+			}
+			r.records++;
+			if (op.op == 0) {
+				//映射写入时预先分配的空间，后面没有日志了
+				log.warn("截掉没有写入的日志:" + lf + ", position:" + pos);
+				break;
+			}
+			if (pos >= verifyFrom && !verify(r, op)) {
+				log.warn("截掉校验失败的日志:" + lf + ", position:" + pos);
+				break;
+			}
+			pos += op.size(format);
+			List<OpItem> ops = null;
+			if (op.op == OpItem.OP_BATCH) {
+				batch = new ArrayList<OpItem>();
+				batchLength = op.length;
+				batchStart = pos - op.size(format);
+			} else if (null != batch) {
+				batch.add(op);
+			} else {
+				ops = Collections.singletonList(op);
+			}
+			if (null != batch && batch.size() >= batchLength) {
+				//批量写入的日志全部读到之后才重放
+				ops = batch;
+				batch = null;
+			}
+			for (int i = 0; null != ops && i < ops.size(); i++) {
+				OpItem o = ops.get(i);
+				if (o.op == OpItem.OP_ADD && o.number == n.intValue()) {
+					end = Math.max(end, o.offset + o.length);
+				}
+				replay(r, o);
+			}
+		}
+		if (null != batch) {
+			//批量写入没有写完整，整批丢弃
+			log.warn("丢弃不完整的批量写入:" + lf + ", position:" + batchStart);
+			pos = batchStart;
+		}
+		if (pos < size) {
+			lf.truncate(pos);
+		}
+		if (last && df.getLength() > end) {
+			//数据写了但日志没有写，或者映射写入时预先分配的空间
+			log.warn("截掉没有日志的数据:" + df + ", length:" + end);
+			df.truncate(end);
+		}
+	}
+
+	/**
+	 * 通过扫描单文件格式的数据文件中的每条记录，恢复这个文件的索引。
+	 * 文件末尾不完整或者校验失败的记录，以及不完整的批量会被截掉
+	 * @param r
+	 * @param sf
+	 * @param from 从哪个位置开始
+	 * @param verifyFrom 从哪个位置开始校验记录和数据
+	 * @throws IOException
+	 */
+	private void loadSegment(Recovered r, SegmentFile sf, long from, long verifyFrom) throws IOException {
+		long size = sf.getLength();
+		long pos = from;
+		OpItem op = new OpItem();
+		while (pos < size) {
+			long next = readRecord(r, sf, pos, size, op, verifyFrom);
+			if (next > 0 && op.op == OpItem.OP_BATCH) {
+				//批量写入，先确认后面的记录是完整的
+				long p = next;
+				OpItem o = new OpItem();
+				for (int i = 0; i < op.length && p > 0; i++) {
+					p = readRecord(r, sf, p, size, o, verifyFrom);
+				}
+				if (p < 0) {
+					log.warn("丢弃不完整的批量写入:" + sf + ", position:" + pos);
+					next = -1;
+				} else {
+					pos = next;
+					continue;
+				}
+			}
+			if (next < 0) {
+				log.warn("截掉不完整或者校验失败的记录:" + sf + ", position:" + pos);
+				sf.truncate(pos);
+				break;
+			}
+			r.records++;
+			replay(r, op);
+			op = new OpItem();
+			pos = next;
+		}
+	}
+
+	/**
+	 * 读取单文件格式中的一条记录
+	 * @param r
+	 * @param sf
+	 * @param pos 记录的位置
+	 * @param size 文件的长度
+	 * @param op 读到的记录
+	 * @param verifyFrom 从哪个位置开始校验记录和数据
+	 * @return 下一条记录的位置，如果记录不完整或者校验失败返回-1
+	 * @throws IOException
+	 */
+	private long readRecord(Recovered r, SegmentFile sf, long pos, long size, OpItem op, long verifyFrom)
+			throws IOException {
+		int format = sf.getFormat();
+		if (pos + OpItem.minSize(format) > size) {
+			return -1;
+		}
+		//先按固定格式的长度读，变长key的记录更长时再读一次
+		ByteBuffer bf = ByteBuffer.allocate((int)Math.min(size - pos, 2 * OpItem.LENGTH));
+		sf.read(bf, pos);
+		bf.flip();
+		if (!op.readFrom(bf, format)) {
+			if (OpItem.FORMAT_FIXED == format || bf.remaining() < 2) {
+				return -1;
+			}
+			int length = OpItem.minSize(format) + (bf.getShort(0) & 0xFFFF);
+			if (pos + length > size) {
+				return -1;
+			}
+			bf = ByteBuffer.allocate(length);
+			sf.read(bf, pos);
+			bf.flip();
+			if (!op.readFrom(bf, format)) {
+				return -1;
+			}
+		}
+		if (op.op == 0) { //映射写入时预先分配的空间
+			return -1;
+		}
+		long next = pos + op.size(format);
+		if (op.op == OpItem.OP_ADD) {
+			if (op.offset != next || op.length < 0 || next + op.length > size) {
+				return -1;
+			}
+			next += op.length;
+		}
+		if (pos >= verifyFrom && !verify(r, op)) {
+			return -1;
+		}
+		return next;
+	}
+
+	/**
+	 * 校验带校验的格式中的一条记录，添加的记录还要读出数据校验
+	 * @param r
+	 * @param op
+	 * @return 记录和数据是否都完好
+	 * @throws IOException
+	 */
+	private boolean verify(Recovered r, OpItem op) throws IOException {
+		int format = getFormat(r.df, r.lf);
+		r.verified += op.size(format);
+		if (!op.isIntact(format)) {
+			return false;
+		}
+		if (op.op != OpItem.OP_ADD) {
+			return true;
+		}
+		DataFile df = r.df;
+		if (op.number != r.n.intValue() || op.length < 0 || op.offset + op.length > df.getLength()) {
+			return false;
+		}
+		r.verified += op.length;
+		Crc32c crc = new Crc32c();
+		ByteBuffer bf = ByteBuffer.allocate(Math.min(op.length, 64 * 1024));
+		for (long pos = op.offset, end = op.offset + op.length; pos < end; pos += bf.limit()) {
+			bf.clear();
+			bf.limit((int)Math.min(bf.capacity(), end - pos));
+			df.read(bf, pos);
+			if (bf.hasRemaining()) {
+				return false;
+			}
+			bf.flip();
+			crc.update(bf);
+		}
+		return (int)crc.getValue() == op.checksum;
+	}
+
+	/**
+	 * 恢复时在本文件内重放一条操作日志，和之前的文件有关的检查留到合并时按顺序做
+	 * @param r
+	 * @param op
+	 */
+	private void replay(Recovered r, OpItem op) {
+		BytesKey key = BytesKey.valueOf(op.key);
+		Map<BytesKey, OpItem> idx = r.idx;
+		DataFile df = r.df;
+		if (op.op == OpItem.OP_DEL && op.number != r.n.intValue()) {
+			//批量写入中对其他文件的删除
+			r.externals.add(op);
+			return;
+		}
+		switch(op.op){
+		case OpItem.OP_ADD: //如果是添加的操作，加入索引，增加引用计数
+			boolean addRefCount = true;
+			if(idx.get(key) != null){
+				//在同一个文件中add或者update过，那么只是更新内容，而不增加引用计数。
+				addRefCount = false;
+			} else {
+				//之前的文件中可能还有这个key，合并的时候检查
+				r.externals.add(op);
+			}
+			
+			idx.put(key, op);
+
+			if(addRefCount){
+				df.increment();
+			}
+			break;
+
+		case OpItem.OP_DEL: //如果是删除的操作，索引去除，减少引用计数
+			idx.remove(key);
+			df.decrement();
+			break;
+								
+		default :
+			log.warn("unknow op:" + (int)op.op);
+			break;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#size()
+	 */
+	public int size() throws IOException {
+		return this.indices.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#update(byte[], byte[])
+	 */
+	public boolean update(final byte[] key, final byte[] data) throws IOException {
+		long begin = System.nanoTime();
+		try {
+			return writeKey(key, new KeyWrite() {
+				public Boolean write() throws IOException {
+					return innerUpdate(key, data);
+				}
+			});
+		} finally {
+			this.statistics.record(StoreStatistics.UPDATE, begin);
+		}
+	}
+
+	/**
+	 * 原子的写入一批操作。
+	 * <p>所有数据通过一次写入到当前数据文件，所有日志以一条批量开始日志打头，一次写入到当前日志文件，
+	 * 然后才更新内存索引。删除其他文件中的数据时，会在批量日志写完之后再补写到那个文件的日志中。
+	 * 启动恢复时，不完整的批量日志会被整体丢弃。</p>
+	 * @param batch
+	 * @throws IOException 写入失败，或者add了已经存在的key，此时所有操作都不生效
+	 */
+	public void write(WriteBatch batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		for (WriteBatch.Entry e : batch.getEntries()) {
+			checkKey(e.key);
+		}
+		long seq = 0;
+		fileLock.writeLock().lock();
+		try {
+			innerWrite(batch);
+			seq = commit();
+		} finally {
+			fileLock.writeLock().unlock();
+		}
+		sync(seq);
+	}
+
+	/**
+	 * 内部批量写入，需要持有写锁
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void innerWrite(WriteBatch batch) throws IOException {
+		if (this.dataFile.getLength() >= this.fileSize) { //满了
+			newDataFile();
+		}
+		int num = this.number.get();
+		DataFile df = this.dataFile;
+		LogFile lf = this.logFile;
+		checkCurrent(num, df, lf);
+		
+		//先在内存里推演一遍，得到要写的日志和引用计数的变化，这期间不修改任何状态，
+		//遇到过期的key也只是记下来，批量被拒绝时索引和引用计数都不变
+		Map<BytesKey, OpItem> view = new LinkedHashMap<BytesKey, OpItem>();
+		Map<BytesKey, OpItem> expired = new LinkedHashMap<BytesKey, OpItem>();
+		List<OpItem> records = new ArrayList<OpItem>();
+		List<ByteBuffer> values = new ArrayList<ByteBuffer>();
+		Map<BytesKey, OpItem> crossRemoves = new LinkedHashMap<BytesKey, OpItem>();
+		int refDelta = 0;
+		long now = System.currentTimeMillis();
+		for (WriteBatch.Entry e : batch.getEntries()) {
+			BytesKey k = BytesKey.valueOf(e.key);
+			OpItem cur;
+			if (view.containsKey(k)) {
+				cur = view.get(k);
+			} else {
+				cur = this.indices.get(k);
+				if (null != cur && cur.isExpired(now)) {
+					expired.put(k, cur);
+					cur = null;
+				}
+			}
+			if (e.type == WriteBatch.ADD || e.type == WriteBatch.UPDATE) {
+				if (e.type == WriteBatch.ADD && null != cur) {
+					throw new IOException("发现重复的key");
+				}
+				if (e.type == WriteBatch.UPDATE && null == cur) {
+					continue;
+				}
+				//更新保留原来的过期时间
+				OpItem op = newAdd(e.key, e.data.length, num, null == cur ? 0 : cur.expire);
+				values.add(ByteBuffer.wrap(e.data));
+				records.add(op);
+				if (null == cur) {
+					refDelta++;
+				} else if (cur.number != num) {
+					//不在同一个文件上更新，才进行删除。
+					refDelta++;
+					records.add(toDel(k, cur));
+					crossRemoves.put(k, cur);
+				}
+				view.put(k, op);
+			} else {
+				if (null == cur) {
+					continue;
+				}
+				records.add(toDel(k, cur));
+				if (cur.number == num) {
+					refDelta--;
+				} else {
+					crossRemoves.put(k, cur);
+				}
+				view.put(k, null);
+			}
+		}
+		if (records.isEmpty()) {
+			dropAll(expired);
+			return;
+		}
+		
+		//写数据和日志，一条批量开始的日志加上所有的操作日志
+		OpItem head = new OpItem();
+		head.key = new byte[OpItem.KEY_LENGTH];
+		head.op = OpItem.OP_BATCH;
+		head.number = num;
+		head.length = records.size();
+		append(df, lf, head, records, values, Long.MAX_VALUE);
+		
+		//更新引用计数和索引，过期的key先去掉，再放入这次写的数据
+		dropAll(expired);
+		for (; refDelta > 0; refDelta--) {
+			df.increment();
+		}
+		for (; refDelta < 0; refDelta++) {
+			df.decrement();
+		}
+		for (Map.Entry<BytesKey, OpItem> e : view.entrySet()) {
+			if (null == e.getValue()) {
+				removeIndex(e.getKey());
+			} else {
+				putIndex(e.getKey(), e.getValue());
+			}
+			invalidate(e.getKey());
+		}
+		
+		//补写其他文件的删除日志
+		for (Map.Entry<BytesKey, OpItem> e : crossRemoves.entrySet()) {
+			innerRemove(e.getKey(), e.getValue());
+		}
+		deleteIfUnused(num, df, lf);
+		deleteUnused();
+	}
+
+	/**
+	 * 去掉批量写入时发现已经过期的key，需要持有写锁
+	 * @param expired
+	 */
+	private void dropAll(Map<BytesKey, OpItem> expired) {
+		for (Map.Entry<BytesKey, OpItem> e : expired.entrySet()) {
+			drop(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * 整理一次：找出有效数据比例低于阈值的已写满文件，按比例从低到高，
+	 * 把其中还有效的数据逐条搬到当前文件。每搬一条都是一次跨文件的更新，
+	 * 在key的锁内确认索引没有变过之后才切换，旧文件没有引用之后被删除。
+	 * 同一时间只有一个整理在进行，搬动的速度受compactionRate限制
+	 * @return 被整理掉的文件数
+	 * @throws IOException
+	 */
+	public int compact() throws IOException {
+		if (!compactLock.tryLock()) { //已经有整理在进行
+			return 0;
+		}
+		try {
+			//统计每个文件中有效数据的字节数
+			Map<Integer, Long> live = new HashMap<Integer, Long>();
+			for (OpItem op : this.indices.values()) {
+				Integer n = new Integer(op.number);
+				Long l = live.get(n);
+				live.put(n, Long.valueOf((null == l ? 0 : l.longValue()) + op.length));
+			}
+			//找出需要整理的文件，当前文件不整理
+			final Map<Integer, Double> ratios = new HashMap<Integer, Double>();
+			DataFile current = this.dataFile;
+			for (Map.Entry<Integer, DataFile> e : this.dataFiles.entrySet()) {
+				DataFile df = e.getValue();
+				Long l = live.get(e.getKey());
+				long length = df.getLength();
+				if (df == current || null == l) {
+					continue;
+				}
+				double ratio = l.doubleValue() / length;
+				if (ratio < this.compactionThreshold) {
+					ratios.put(e.getKey(), Double.valueOf(ratio));
+				}
+			}
+			if (ratios.isEmpty()) {
+				return 0;
+			}
+			List<Integer> candidates = new ArrayList<Integer>(ratios.keySet());
+			Collections.sort(candidates, new Comparator<Integer>() {
+				public int compare(Integer o1, Integer o2) {
+					return ratios.get(o1).compareTo(ratios.get(o2));
+				}
+			});
+			Map<Integer, List<Map.Entry<BytesKey, OpItem>>> entries = new HashMap<Integer, List<Map.Entry<BytesKey, OpItem>>>();
+			for (Map.Entry<BytesKey, OpItem> e : this.indices.entrySet()) {
+				Integer n = new Integer(e.getValue().number);
+				if (ratios.containsKey(n)) {
+					List<Map.Entry<BytesKey, OpItem>> l = entries.get(n);
+					if (null == l) {
+						l = new ArrayList<Map.Entry<BytesKey, OpItem>>();
+						entries.put(n, l);
+					}
+					l.add(e);
+				}
+			}
+			
+			int count = 0;
+			long bytes = 0;
+			long start = System.currentTimeMillis();
+			for (Integer n : candidates) {
+				List<Map.Entry<BytesKey, OpItem>> l = entries.get(n);
+				log.info("整理文件：" + n + ", 有效数据比例：" + ratios.get(n) + ", 有效数据：" + (null == l ? 0 : l.size()));
+				for (int i = 0; null != l && i < l.size(); i++) {
+					if (this.closed) {
+						return count;
+					}
+					OpItem op = l.get(i).getValue();
+					byte[] data = read(op);
+					if (null == data) {
+						continue;
+					}
+					if (move(l.get(i).getKey(), op, data)) {
+						bytes += data.length;
+						this.compactedBytes.addAndGet(data.length);
+						throttle(bytes, start);
+					}
+				}
+				if (!this.dataFiles.containsKey(n)) {
+					count++;
+					this.compactedFiles.incrementAndGet();
+				}
+			}
+			return count;
+		} finally {
+			compactLock.unlock();
+		}
+	}
+
+	/**
+	 * 把一条数据搬到当前文件，如果读取之后这条数据被更新或者删除了，不搬
+	 * @param k
+	 * @param op 读取数据时的操作日志
+	 * @param data
+	 * @return 是否搬了
+	 * @throws IOException
+	 */
+	private boolean move(final BytesKey k, final OpItem op, final byte[] data) throws IOException {
+		return writeKey(keyLock(k), new KeyWrite() {
+			public Boolean write() throws IOException {
+				if (closed) {
+					return Boolean.FALSE;
+				}
+				OpItem cur = current(k);
+				if (null != cur && cur.number == op.number && cur.offset == op.offset) {
+					return innerUpdate(k.getData(), data);
+				}
+				return Boolean.FALSE;
+			}
+		});
+	}
+
+	/**
+	 * 整理限速，搬动的字节数超过速度限制时等待
+	 * @param bytes 已经搬动的字节数
+	 * @param start 开始搬动的时间
+	 */
+	private void throttle(long bytes, long start) {
+		long rate = this.compactionRate;
+		if (rate <= 0) {
+			return;
+		}
+		long wait = bytes * 1000 / rate - (System.currentTimeMillis() - start);
+		if (wait <= 0) {
+			return;
+		}
+		Compactor c = this.compactor;
+		if (null != c) {
+			c.pause(wait);
+		} else {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 生成一个删除的操作日志
+	 * @param k 被删除的key，索引中的OpItem可能没有key，见{@link #indexed(BytesKey, OpItem)}
+	 * @param op 被删除数据的操作日志
+	 * @return 删除的操作日志
+	 */
+	private OpItem toDel(BytesKey k, OpItem op) {
+		OpItem o = new OpItem();
+		o.key = k.getData();
+		o.length = op.length;
+		o.number = op.number;
+		o.offset = op.offset;
+		o.op = OpItem.OP_DEL;
+		return o;
+	}
+
+	/**
+	 * 内部更新，需要持有读锁和key所在段的锁，或者持有写锁
+	 * @param key
+	 * @param data
+	 * @return 是否有更新到，当前文件已经写满返回null
+	 * @throws IOException
+	 */
+	private Boolean innerUpdate(byte[] key, byte[] data) throws IOException {
+		//对于Update的消息，我们写入OpCode为Update的日志。
+		BytesKey k = BytesKey.valueOf(key);
+		OpItem op = current(k);
+		if(null != op){
+			//先写新的数据，再替换索引，同一个key的其他写入被key的锁挡住；更新保留原来的过期时间
+			OpItem o = appendCurrent(key, ByteBuffer.wrap(data), false, op.expire);
+			if (null == o) {
+				return null;
+			}
+			putIndex(k, o);
+			invalidate(k);
+			if(o.number != op.number){
+				//不在同一个文件上更新，才进行删除。
+				innerRemove(k, op);
+			}
+			else{
+				DataFile df = this.dataFiles.get(new Integer(op.number));
+				df.decrement();
+			}
+			return Boolean.TRUE;
+		}
+		return Boolean.FALSE;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getDataFilesInfo()
+	 */
+	public String getDataFilesInfo() {
+		return this.dataFiles.toString();
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLogFilesInfo()
+	 */
+	public String getLogFilesInfo() {
+		return this.logFiles.toString();
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getNumber()
+	 */
+	public int getNumber() {
+		return this.number.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getPath()
+	 */
+	public String getPath() {
+		return path;
 	}
 
 	/* (non-Javadoc)
@@ -504,7 +3219,7 @@ public class JournalStore implements Store, JournalStoreMBean {
 	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLogFileInfo()
 	 */
 	public String getLogFileInfo() {
-		return this.logFile.toString();
+		return String.valueOf(this.logFile);
 	}
 	
 	/* (non-Javadoc)
@@ -518,24 +3233,72 @@ public class JournalStore implements Store, JournalStoreMBean {
 	 * @see com.taobao.common.store.Store#close()
 	 */
 	public void close() throws IOException {
-		for (DataFile df : this.dataFiles.values()) {
+		AsyncWriter w = null;
+		Compactor c = null;
+		Checkpointer cp = null;
+		Expirer ex = null;
+		Preparer pr = null;
+		synchronized (this) {
+			this.closed = true;
+			w = this.asyncWriter;
+			this.asyncWriter = null;
+			c = this.compactor;
+			this.compactor = null;
+			cp = this.checkpointer;
+			this.checkpointer = null;
+			ex = this.expirer;
+			this.expirer = null;
+			pr = this.preparer;
+			this.preparer = null;
+		}
+		if (null != c) { //整理会在搬完当前的数据之后停止
+			c.close();
+		}
+		if (null != cp) {
+			cp.close();
+		}
+		if (null != ex) {
+			ex.close();
+		}
+		if (null != pr) {
+			pr.close();
+		}
+		if (null != w) { //先把异步队列里的写完
+			w.close();
+		}
+		if (this.config.isCheckpoint()) { //关闭之前写一次检查点，下次启动不用重放日志
 			try {
-				df.close();
-			} catch (Exception e) {
-				log.warn("close error:" + df, e);
+				checkpoint();
+			} catch (IOException e) {
+				log.warn("checkpoint error", e);
 			}
 		}
-		this.dataFiles.clear();
-		for (LogFile lf : this.logFiles.values()) {
-			try {
-				lf.close();
-			} catch (Exception e) {
-				log.warn("close error:" + lf, e);
+		//映射写入的文件在关闭时解除映射，不能和写入同时进行
+		fileLock.writeLock().lock();
+		try {
+			//正常关闭时封存所有的文件，下次启动不用校验
+			sealAll();
+			for (DataFile df : this.dataFiles.values()) {
+				try {
+					df.close();
+				} catch (Exception e) {
+					log.warn("close error:" + df, e);
+				}
 			}
+			this.dataFiles.clear();
+			for (LogFile lf : this.logFiles.values()) {
+				try {
+					lf.close();
+				} catch (Exception e) {
+					log.warn("close error:" + lf, e);
+				}
+			}
+			this.logFiles.clear();
+			this.dataFile = null;
+			this.logFile = null;
+		} finally {
+			fileLock.writeLock().unlock();
 		}
-		this.logFiles.clear();
-		this.dataFile = null;
-		this.logFile = null;
 	}
 
 	/* (non-Javadoc)
@@ -544,4 +3307,410 @@ public class JournalStore implements Store, JournalStoreMBean {
 	public long getSize() throws IOException {
 		return size();
 	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getMappedBytes()
+	 */
+	public long getMappedBytes() {
+		return this.mappedBytes.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLastCheckpointTime()
+	 */
+	public long getLastCheckpointTime() {
+		return this.lastCheckpointTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#isRecoveredFromCheckpoint()
+	 */
+	public boolean isRecoveredFromCheckpoint() {
+		return this.recoveredFromCheckpoint;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRecoveryTime()
+	 */
+	public long getRecoveryTime() {
+		return this.recoveryTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRecoveryRecords()
+	 */
+	public long getRecoveryRecords() {
+		return this.recoveryRecords;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRecoveryVerifiedBytes()
+	 */
+	public long getRecoveryVerifiedBytes() {
+		return this.recoveryVerifiedBytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCompressionRatio()
+	 */
+	public double getCompressionRatio() {
+		long raw = this.rawBytes.get();
+		return raw == 0 ? 1.0d : (double)this.storedBytes.get() / raw;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getExpiredCount()
+	 */
+	public long getExpiredCount() {
+		return this.expiredCount.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRecoveryThroughput()
+	 */
+	public double getRecoveryThroughput() {
+		long time = this.recoveryTime;
+		return this.recoveryRecords * 1000.0d / Math.max(1, time);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#isCompactionEnabled()
+	 */
+	public boolean isCompactionEnabled() {
+		return this.compactionEnabled;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#setCompactionEnabled(boolean)
+	 */
+	public void setCompactionEnabled(boolean enabled) {
+		synchronized (this) {
+			if (enabled && null == this.compactor && !this.closed) { //第一次启动时生成整理线程
+				this.compactor = new Compactor(this, this.config.getCompactionInterval());
+			}
+			this.compactionEnabled = enabled;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCompactionThreshold()
+	 */
+	public double getCompactionThreshold() {
+		return this.compactionThreshold;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#setCompactionThreshold(double)
+	 */
+	public void setCompactionThreshold(double threshold) {
+		if (threshold < 0 || threshold > 1) throw new IllegalArgumentException("threshold must be in [0, 1]");
+		this.compactionThreshold = threshold;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCompactionRate()
+	 */
+	public long getCompactionRate() {
+		return this.compactionRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#setCompactionRate(long)
+	 */
+	public void setCompactionRate(long rate) {
+		this.compactionRate = rate;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCompactedFiles()
+	 */
+	public long getCompactedFiles() {
+		return this.compactedFiles.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCompactedBytes()
+	 */
+	public long getCompactedBytes() {
+		return this.compactedBytes.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheHitRatio()
+	 */
+	public double getCacheHitRatio() {
+		return null == this.cache ? 0 : this.cache.getHitRatio();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheHits()
+	 */
+	public long getCacheHits() {
+		return null == this.cache ? 0 : this.cache.getHits();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheMisses()
+	 */
+	public long getCacheMisses() {
+		return null == this.cache ? 0 : this.cache.getMisses();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheEvictions()
+	 */
+	public long getCacheEvictions() {
+		return null == this.cache ? 0 : this.cache.getEvictions();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheBytes()
+	 */
+	public long getCacheBytes() {
+		return null == this.cache ? 0 : this.cache.getBytes();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getCacheCount()
+	 */
+	public int getCacheCount() {
+		return null == this.cache ? 0 : this.cache.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getIndexMemory()
+	 */
+	public long getIndexMemory() {
+		if (this.indices instanceof OffHeapIndex) {
+			return ((OffHeapIndex)this.indices).getMemory();
+		}
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getIndexOverflowCount()
+	 */
+	public int getIndexOverflowCount() {
+		if (this.indices instanceof OffHeapIndex) {
+			return ((OffHeapIndex)this.indices).getOverflowCount();
+		}
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getSyncCount()
+	 */
+	public long getSyncCount() {
+		return null == this.groupCommitter ? 0 : this.groupCommitter.getSyncCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAvgSyncBatchSize()
+	 */
+	public double getAvgSyncBatchSize() {
+		return null == this.groupCommitter ? 0 : this.groupCommitter.getAvgBatchSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLastSyncBatchSize()
+	 */
+	public long getLastSyncBatchSize() {
+		return null == this.groupCommitter ? 0 : this.groupCommitter.getLastBatchSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAvgSyncLatency()
+	 */
+	public double getAvgSyncLatency() {
+		return null == this.groupCommitter ? 0 : this.groupCommitter.getAvgSyncMicros();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getLastSyncLatency()
+	 */
+	public long getLastSyncLatency() {
+		return null == this.groupCommitter ? 0 : this.groupCommitter.getLastSyncMicros();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAddCount()
+	 */
+	public long getAddCount() {
+		return this.statistics.getCount(StoreStatistics.ADD);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAddRate()
+	 */
+	public double getAddRate() {
+		return this.statistics.getRate(StoreStatistics.ADD);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAddLatencyP50()
+	 */
+	public double getAddLatencyP50() {
+		return this.statistics.getLatency(StoreStatistics.ADD, 50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAddLatencyP99()
+	 */
+	public double getAddLatencyP99() {
+		return this.statistics.getLatency(StoreStatistics.ADD, 99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAddLatencyP999()
+	 */
+	public double getAddLatencyP999() {
+		return this.statistics.getLatency(StoreStatistics.ADD, 99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getGetCount()
+	 */
+	public long getGetCount() {
+		return this.statistics.getCount(StoreStatistics.GET);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getGetRate()
+	 */
+	public double getGetRate() {
+		return this.statistics.getRate(StoreStatistics.GET);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getGetLatencyP50()
+	 */
+	public double getGetLatencyP50() {
+		return this.statistics.getLatency(StoreStatistics.GET, 50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getGetLatencyP99()
+	 */
+	public double getGetLatencyP99() {
+		return this.statistics.getLatency(StoreStatistics.GET, 99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getGetLatencyP999()
+	 */
+	public double getGetLatencyP999() {
+		return this.statistics.getLatency(StoreStatistics.GET, 99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getUpdateCount()
+	 */
+	public long getUpdateCount() {
+		return this.statistics.getCount(StoreStatistics.UPDATE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getUpdateRate()
+	 */
+	public double getUpdateRate() {
+		return this.statistics.getRate(StoreStatistics.UPDATE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getUpdateLatencyP50()
+	 */
+	public double getUpdateLatencyP50() {
+		return this.statistics.getLatency(StoreStatistics.UPDATE, 50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getUpdateLatencyP99()
+	 */
+	public double getUpdateLatencyP99() {
+		return this.statistics.getLatency(StoreStatistics.UPDATE, 99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getUpdateLatencyP999()
+	 */
+	public double getUpdateLatencyP999() {
+		return this.statistics.getLatency(StoreStatistics.UPDATE, 99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRemoveCount()
+	 */
+	public long getRemoveCount() {
+		return this.statistics.getCount(StoreStatistics.REMOVE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRemoveRate()
+	 */
+	public double getRemoveRate() {
+		return this.statistics.getRate(StoreStatistics.REMOVE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRemoveLatencyP50()
+	 */
+	public double getRemoveLatencyP50() {
+		return this.statistics.getLatency(StoreStatistics.REMOVE, 50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRemoveLatencyP99()
+	 */
+	public double getRemoveLatencyP99() {
+		return this.statistics.getLatency(StoreStatistics.REMOVE, 99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRemoveLatencyP999()
+	 */
+	public double getRemoveLatencyP999() {
+		return this.statistics.getLatency(StoreStatistics.REMOVE, 99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return this.statistics.getBytesWritten();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getWriteThroughput()
+	 */
+	public double getWriteThroughput() {
+		return this.statistics.getWriteThroughput();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getRolloverCount()
+	 */
+	public long getRolloverCount() {
+		return this.statistics.getRollovers();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAppendLockWaitCount()
+	 */
+	public long getAppendLockWaitCount() {
+		return this.statistics.getLockWaits();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#getAppendLockWaitTime()
+	 */
+	public long getAppendLockWaitTime() {
+		return this.statistics.getLockWaitTime();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.JournalStoreMBean#resetStatistics()
+	 */
+	public void resetStatistics() {
+		this.statistics.reset();
+	}
 }
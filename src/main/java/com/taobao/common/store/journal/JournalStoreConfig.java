@@ -0,0 +1,478 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+/**
+ * JournalStore的配置
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class JournalStoreConfig {
+	private boolean force = false;
+	private boolean groupCommit = false;
+	private int asyncQueueSize = 1024;
+	private boolean singleFileSegment = false;
+	private boolean mappedRead = false;
+	private long maxMappedBytes = 1024L * 1024 * 1024;
+	private boolean mappedWrite = false;
+	private boolean offHeapIndex = false;
+	private int indexCapacity = 1 << 16;
+	private boolean compaction = false;
+	private double compactionThreshold = 0.5d;
+	private long compactionRate = 10L * 1024 * 1024;
+	private long compactionInterval = 60 * 1000L;
+	private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+	private boolean checkpoint = false;
+	private long checkpointInterval = 10 * 60 * 1000L;
+	private long cacheSize = 0;
+	private int maxKeyLength = 0;
+	private boolean checksum = false;
+	private boolean compression = false;
+	private int compressionThreshold = 256;
+	private boolean expiration = false;
+	private long expirationTick = 1000L;
+	private int fileSize = JournalStore.FILE_SIZE;
+	private boolean preallocate = false;
+
+	/**
+	 * 默认配置，不强制刷盘
+	 */
+	public JournalStoreConfig() {
+	}
+
+	/**
+	 * @param force 是否每次写入都保证落盘
+	 */
+	public JournalStoreConfig(boolean force) {
+		this.force = force;
+	}
+
+	/**
+	 * @return 是否每次写入都保证落盘
+	 */
+	public boolean isForce() {
+		return force;
+	}
+
+	/**
+	 * @param force 是否每次写入都保证落盘
+	 */
+	public void setForce(boolean force) {
+		this.force = force;
+	}
+
+	/**
+	 * @return 是否使用组提交
+	 */
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * 设置是否使用组提交。只有在force为true时才生效：
+	 * 文件不再以rws方式打开，并发的写入先写到文件，再由一次force()把一批写入一起刷盘，
+	 * 每个调用者在自己的记录落盘之后才返回。
+	 * @param groupCommit 是否使用组提交
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * @return 异步写入队列的长度
+	 */
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	/**
+	 * 设置异步写入队列的长度，队列满的时候异步写入的调用者会被阻塞
+	 * @param asyncQueueSize 异步写入队列的长度
+	 */
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		if (asyncQueueSize <= 0) throw new IllegalArgumentException("asyncQueueSize must be positive");
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	/**
+	 * @return 新的数据文件是否使用单文件格式
+	 */
+	public boolean isSingleFileSegment() {
+		return singleFileSegment;
+	}
+
+	/**
+	 * 设置新的数据文件是否使用单文件格式：每条记录的操作日志和数据一次写入同一个文件name.N.seg，
+	 * 而不是分别写入name.N和name.N.log。已经存在的两种格式的文件都可以继续读取和删除，
+	 * 所以可以在原来的目录上直接切换
+	 * @param singleFileSegment 是否使用单文件格式
+	 */
+	public void setSingleFileSegment(boolean singleFileSegment) {
+		this.singleFileSegment = singleFileSegment;
+	}
+
+	/**
+	 * @return 是否通过内存映射读取已经写满的数据文件
+	 */
+	public boolean isMappedRead() {
+		return mappedRead;
+	}
+
+	/**
+	 * 设置是否通过内存映射读取已经写满的数据文件。写满的数据文件不会再写入数据，
+	 * 第一次读取时映射到内存，之后直接从映射中复制数据，文件被删除时解除映射
+	 * @param mappedRead 是否通过内存映射读取
+	 */
+	public void setMappedRead(boolean mappedRead) {
+		this.mappedRead = mappedRead;
+	}
+
+	/**
+	 * @return 最多映射到内存的字节数
+	 */
+	public long getMaxMappedBytes() {
+		return maxMappedBytes;
+	}
+
+	/**
+	 * 设置最多映射到内存的字节数，超出之后的文件仍然通过FileChannel读取
+	 * @param maxMappedBytes 最多映射到内存的字节数
+	 */
+	public void setMaxMappedBytes(long maxMappedBytes) {
+		this.maxMappedBytes = maxMappedBytes;
+	}
+
+	/**
+	 * @return 是否通过内存映射追加写入当前的数据文件和日志文件
+	 */
+	public boolean isMappedWrite() {
+		return mappedWrite;
+	}
+
+	/**
+	 * 设置是否通过内存映射追加写入当前的数据文件和日志文件。新文件生成时预先映射到内存，
+	 * 写入直接复制到映射中，不再每次调用write系统调用；文件写满换下一个文件或者关闭时，
+	 * 解除映射并截断到实际写入的长度。force为true时每次写入之后都会刷新映射
+	 * @param mappedWrite 是否通过内存映射追加写入
+	 */
+	public void setMappedWrite(boolean mappedWrite) {
+		this.mappedWrite = mappedWrite;
+	}
+
+	/**
+	 * @return 索引是否放在堆外内存中
+	 */
+	public boolean isOffHeapIndex() {
+		return offHeapIndex;
+	}
+
+	/**
+	 * 设置索引是否放在堆外内存中。堆外的索引是一个开放寻址的hash表，每个key占40字节，
+	 * 使用过期时间时占48字节，不产生堆上的对象，适合数据很多的时候减少GC的压力
+	 * @param offHeapIndex 索引是否放在堆外内存中
+	 */
+	public void setOffHeapIndex(boolean offHeapIndex) {
+		this.offHeapIndex = offHeapIndex;
+	}
+
+	/**
+	 * @return 堆外索引初始的槽数
+	 */
+	public int getIndexCapacity() {
+		return indexCapacity;
+	}
+
+	/**
+	 * 设置堆外索引初始的槽数，会调整为2的幂，超过3/4之后渐进的扩大一倍
+	 * @param indexCapacity 堆外索引初始的槽数
+	 */
+	public void setIndexCapacity(int indexCapacity) {
+		if (indexCapacity <= 0) throw new IllegalArgumentException("indexCapacity must be positive");
+		this.indexCapacity = indexCapacity;
+	}
+
+	/**
+	 * @return 是否启动后台整理
+	 */
+	public boolean isCompaction() {
+		return compaction;
+	}
+
+	/**
+	 * 设置是否启动后台整理。后台线程定期找出有效数据比例低于compactionThreshold的已写满文件，
+	 * 把其中的有效数据搬到当前文件，旧文件没有引用之后就会被删除
+	 * @param compaction 是否启动后台整理
+	 */
+	public void setCompaction(boolean compaction) {
+		this.compaction = compaction;
+	}
+
+	/**
+	 * @return 有效数据的比例低于多少时整理一个文件
+	 */
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * @param compactionThreshold 有效数据的比例低于多少时整理一个文件，0到1之间
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		if (compactionThreshold < 0 || compactionThreshold > 1) throw new IllegalArgumentException("compactionThreshold must be in [0, 1]");
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return 整理时每秒最多搬动的字节数
+	 */
+	public long getCompactionRate() {
+		return compactionRate;
+	}
+
+	/**
+	 * 设置整理时每秒最多搬动的字节数，避免整理占满磁盘影响正常的写入，小于等于0表示不限速
+	 * @param compactionRate 每秒最多搬动的字节数
+	 */
+	public void setCompactionRate(long compactionRate) {
+		this.compactionRate = compactionRate;
+	}
+
+	/**
+	 * @return 两次后台整理之间的间隔，单位毫秒
+	 */
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * @param compactionInterval 两次后台整理之间的间隔，单位毫秒
+	 */
+	public void setCompactionInterval(long compactionInterval) {
+		if (compactionInterval <= 0) throw new IllegalArgumentException("compactionInterval must be positive");
+		this.compactionInterval = compactionInterval;
+	}
+
+	/**
+	 * @return 启动恢复时并行读取日志的线程数
+	 */
+	public int getRecoveryThreads() {
+		return recoveryThreads;
+	}
+
+	/**
+	 * 设置启动恢复时并行读取日志的线程数，默认是CPU的个数。
+	 * 每个文件的日志由一个线程读成这个文件自己的索引，再按文件编号的顺序合并
+	 * @param recoveryThreads 启动恢复时并行读取日志的线程数
+	 */
+	public void setRecoveryThreads(int recoveryThreads) {
+		if (recoveryThreads <= 0) throw new IllegalArgumentException("recoveryThreads must be positive");
+		this.recoveryThreads = recoveryThreads;
+	}
+
+	/**
+	 * @return 是否使用索引的检查点
+	 */
+	public boolean isCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * 设置是否使用索引的检查点。定期和关闭时把索引、引用计数和日志的位置写到name.ckp，
+	 * 启动时读入检查点，只重放之后的日志；检查点损坏或者和文件对不上时，重放所有的日志
+	 * @param checkpoint 是否使用索引的检查点
+	 */
+	public void setCheckpoint(boolean checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * @return 定期写检查点的间隔，单位毫秒
+	 */
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * 设置定期写检查点的间隔，小于等于0表示只在关闭的时候写
+	 * @param checkpointInterval 定期写检查点的间隔，单位毫秒
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * @return 数据缓存最多缓存的字节数
+	 */
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * 设置数据缓存最多缓存的字节数，0表示不缓存。缓存使用W-TinyLFU的淘汰策略，
+	 * 同一个key同时读取时只读一次文件，更新和删除时去掉缓存
+	 * @param cacheSize 数据缓存最多缓存的字节数
+	 */
+	public void setCacheSize(long cacheSize) {
+		if (cacheSize < 0) throw new IllegalArgumentException("cacheSize can't be negative");
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * @return key的最大长度，0表示固定16字节的key
+	 */
+	public int getMaxKeyLength() {
+		return maxKeyLength;
+	}
+
+	/**
+	 * 设置key的最大长度。0表示key固定为16字节，日志记录使用原来的固定长度格式；
+	 * 大于0时key可以是1到maxKeyLength字节，新生成的文件使用带key长度的记录格式，
+	 * 原来格式的文件仍然可以直接读取，不用转换
+	 * @param maxKeyLength key的最大长度，不能超过65535
+	 */
+	public void setMaxKeyLength(int maxKeyLength) {
+		if (maxKeyLength < 0 || maxKeyLength > OpItem.MAX_KEY_LENGTH) {
+			throw new IllegalArgumentException("maxKeyLength must be in [0, " + OpItem.MAX_KEY_LENGTH + "]");
+		}
+		this.maxKeyLength = maxKeyLength;
+	}
+
+	/**
+	 * @return 新生成的文件是否使用带校验的格式
+	 */
+	public boolean isChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * 设置新生成的文件是否使用带校验的格式。每条日志记录和每个数据都带有CRC32C，
+	 * 换文件和关闭时会把文件落盘并在文件头写入封存标记，启动恢复时只校验封存之后追加的部分，
+	 * 校验失败的记录和之后的记录会被截掉。带校验的格式同时支持变长key，原来格式的文件仍然可以直接读取
+	 * @param checksum 是否使用带校验的格式
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return 新生成的文件是否压缩数据
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * 设置新生成的文件是否压缩数据。数据用LZ4压缩后写入数据文件，读取时解压，
+	 * 压缩的格式总是带校验的，也支持变长key；原来格式的文件仍然可以直接读取
+	 * @param compression 是否压缩数据
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return 压缩数据的最小长度
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * 设置压缩数据的最小长度，比这个短的数据直接存放，压缩之后没有变小的数据也直接存放
+	 * @param compressionThreshold 压缩数据的最小长度
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) {
+			throw new IllegalArgumentException("compressionThreshold must not be negative");
+		}
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return 新生成的文件是否记录过期时间
+	 */
+	public boolean isExpiration() {
+		return expiration;
+	}
+
+	/**
+	 * 设置新生成的文件是否记录过期时间，记录之后才能用{@link JournalStore#add(byte[], byte[], long)}添加会过期的数据。
+	 * 带过期时间的格式总是带校验的，数据前面也有压缩方式和原始长度，但只有同时设置了压缩才会压缩；
+	 * 原来格式的文件仍然可以直接读取
+	 * @param expiration 是否记录过期时间
+	 */
+	public void setExpiration(boolean expiration) {
+		this.expiration = expiration;
+	}
+
+	/**
+	 * @return 检查过期的间隔，单位毫秒
+	 */
+	public long getExpirationTick() {
+		return expirationTick;
+	}
+
+	/**
+	 * 设置检查过期的间隔，也是时间轮每一格的长度。数据最多在过期之后这么久被删除，在这之前也读不到
+	 * @param expirationTick 检查过期的间隔，单位毫秒
+	 */
+	public void setExpirationTick(long expirationTick) {
+		if (expirationTick <= 0) {
+			throw new IllegalArgumentException("expirationTick must be positive");
+		}
+		this.expirationTick = expirationTick;
+	}
+
+	/**
+	 * @return 数据文件的大小，单位字节
+	 */
+	public int getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * 设置数据文件的大小，文件写到这个长度之后换下一个文件，默认是{@link JournalStore#FILE_SIZE}。
+	 * 已有的存储可以改大也可以改小，只影响之后写入的文件
+	 * @param fileSize 数据文件的大小，单位字节
+	 */
+	public void setFileSize(int fileSize) {
+		if (fileSize <= 0) {
+			throw new IllegalArgumentException("fileSize must be positive");
+		}
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * @return 是否提前准备下一个文件并预先分配空间
+	 */
+	public boolean isPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * 设置是否由后台线程提前生成下一个文件，并且写入全0预先分配好文件大小的空间，
+	 * 换文件时只需要改名，追加写也不用再扩展文件。当前文件的物理长度是预先分配的大小，
+	 * 关闭或者换文件时截断到实际的长度，没有正常关闭时由恢复过程从全0的记录处截断
+	 * @param preallocate 是否提前准备下一个文件
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+}
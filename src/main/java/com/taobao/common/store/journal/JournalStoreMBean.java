@@ -82,4 +82,352 @@ public interface JournalStoreMBean {
 	 * @throws IOException
 	 */
 	long getSize() throws IOException;
-}
\ No newline at end of file
+
+	/**
+	 * 获得通过内存映射读取的数据文件一共映射了多少字节
+	 * @return 映射的字节数
+	 */
+	long getMappedBytes();
+
+	/**
+	 * 获得数据缓存的命中率
+	 * @return 数据缓存的命中率，没有缓存返回0
+	 */
+	double getCacheHitRatio();
+
+	/**
+	 * 获得数据缓存命中的次数
+	 * @return 命中的次数，没有缓存返回0
+	 */
+	long getCacheHits();
+
+	/**
+	 * 获得数据缓存没有命中的次数
+	 * @return 没有命中的次数，没有缓存返回0
+	 */
+	long getCacheMisses();
+
+	/**
+	 * 获得数据缓存淘汰或者没有接纳的次数
+	 * @return 淘汰的次数
+	 */
+	long getCacheEvictions();
+
+	/**
+	 * 获得数据缓存使用的字节数
+	 * @return 数据缓存使用的字节数
+	 */
+	long getCacheBytes();
+
+	/**
+	 * 获得数据缓存中的数据个数
+	 * @return 缓存的数据个数，没有缓存返回0
+	 */
+	int getCacheCount();
+
+	/**
+	 * 获得堆外索引占用的内存
+	 * @return 堆外索引占用的字节数，索引在堆上时返回0
+	 */
+	long getIndexMemory();
+
+	/**
+	 * 获得放不进堆外索引的槽、放在堆上的长key的个数
+	 * @return 长key的个数，索引在堆上时返回0
+	 */
+	int getIndexOverflowCount();
+
+	/**
+	 * 立即写一次检查点
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException;
+
+	/**
+	 * 获得最近一次写检查点的时间
+	 * @return 最近一次写检查点的时间，没有写过返回0
+	 */
+	long getLastCheckpointTime();
+
+	/**
+	 * 启动时是否从检查点恢复
+	 * @return 启动时是否从检查点恢复
+	 */
+	boolean isRecoveredFromCheckpoint();
+
+	/**
+	 * 获得启动恢复的耗时
+	 * @return 启动恢复的耗时，单位毫秒
+	 */
+	long getRecoveryTime();
+
+	/**
+	 * 获得启动恢复时读取的日志条数
+	 * @return 启动恢复时读取的日志条数
+	 */
+	long getRecoveryRecords();
+
+	/**
+	 * 获得启动恢复时校验的字节数，带校验的格式下只校验封存之后追加的记录和数据
+	 * @return 启动恢复时校验的字节数
+	 */
+	long getRecoveryVerifiedBytes();
+
+	/**
+	 * 获得压缩的格式下，启动以来写入的数据压缩之后和压缩之前的字节数之比
+	 * @return 压缩比，包括数据头，没有写入过压缩的数据时为1
+	 */
+	double getCompressionRatio();
+
+	/**
+	 * 获得过期之后被删除的数据个数，包括启动恢复时丢弃的
+	 * @return 过期的数据个数
+	 */
+	long getExpiredCount();
+
+	/**
+	 * 获得启动恢复的速度
+	 * @return 每秒恢复的日志条数
+	 */
+	double getRecoveryThroughput();
+
+	/**
+	 * 组提交模式下，刷盘的次数
+	 * @return 刷盘的次数，非组提交模式返回0
+	 */
+	long getSyncCount();
+
+	/**
+	 * 组提交模式下，平均每次刷盘覆盖的写入数
+	 * @return 平均每次刷盘覆盖的写入数
+	 */
+	double getAvgSyncBatchSize();
+
+	/**
+	 * 组提交模式下，最近一次刷盘覆盖的写入数
+	 * @return 最近一次刷盘覆盖的写入数
+	 */
+	long getLastSyncBatchSize();
+
+	/**
+	 * 组提交模式下，平均每次刷盘的耗时
+	 * @return 平均每次刷盘的耗时，单位微秒
+	 */
+	double getAvgSyncLatency();
+
+	/**
+	 * 组提交模式下，最近一次刷盘的耗时
+	 * @return 最近一次刷盘的耗时，单位微秒
+	 */
+	long getLastSyncLatency();
+
+	/**
+	 * 立即整理一次，把有效数据比例低的已写满文件中的数据搬到当前文件
+	 * @return 被整理掉的文件数
+	 * @throws IOException
+	 */
+	int compact() throws IOException;
+
+	/**
+	 * 后台整理是否在运行
+	 * @return 后台整理是否在运行
+	 */
+	boolean isCompactionEnabled();
+
+	/**
+	 * 启动或者暂停后台整理
+	 * @param enabled 是否启动
+	 */
+	void setCompactionEnabled(boolean enabled);
+
+	/**
+	 * 获得整理的阈值，有效数据的比例低于这个值的文件会被整理
+	 * @return 整理的阈值
+	 */
+	double getCompactionThreshold();
+
+	/**
+	 * 设置整理的阈值
+	 * @param threshold 整理的阈值，0到1之间
+	 */
+	void setCompactionThreshold(double threshold);
+
+	/**
+	 * 获得整理时每秒最多搬动的字节数
+	 * @return 每秒最多搬动的字节数，小于等于0表示不限速
+	 */
+	long getCompactionRate();
+
+	/**
+	 * 设置整理时每秒最多搬动的字节数
+	 * @param rate 每秒最多搬动的字节数，小于等于0表示不限速
+	 */
+	void setCompactionRate(long rate);
+
+	/**
+	 * 获得整理掉的文件数
+	 * @return 整理掉的文件数
+	 */
+	long getCompactedFiles();
+
+	/**
+	 * 获得整理时搬动的字节数
+	 * @return 整理时搬动的字节数
+	 */
+	long getCompactedBytes();
+
+	/**
+	 * 获得添加的次数
+	 * @return 添加的次数
+	 */
+	long getAddCount();
+
+	/**
+	 * 获得添加的速率
+	 * @return 清空统计之后平均每秒添加的次数
+	 */
+	double getAddRate();
+
+	/**
+	 * 获得添加耗时的50%分位
+	 * @return 50%的添加的耗时不超过这个值，单位微秒
+	 */
+	double getAddLatencyP50();
+
+	/**
+	 * 获得添加耗时的99%分位
+	 * @return 99%的添加的耗时不超过这个值，单位微秒
+	 */
+	double getAddLatencyP99();
+
+	/**
+	 * 获得添加耗时的99.9%分位
+	 * @return 99.9%的添加的耗时不超过这个值，单位微秒
+	 */
+	double getAddLatencyP999();
+
+	/**
+	 * 获得读取的次数
+	 * @return 读取的次数
+	 */
+	long getGetCount();
+
+	/**
+	 * 获得读取的速率
+	 * @return 清空统计之后平均每秒读取的次数
+	 */
+	double getGetRate();
+
+	/**
+	 * 获得读取耗时的50%分位
+	 * @return 50%的读取的耗时不超过这个值，单位微秒
+	 */
+	double getGetLatencyP50();
+
+	/**
+	 * 获得读取耗时的99%分位
+	 * @return 99%的读取的耗时不超过这个值，单位微秒
+	 */
+	double getGetLatencyP99();
+
+	/**
+	 * 获得读取耗时的99.9%分位
+	 * @return 99.9%的读取的耗时不超过这个值，单位微秒
+	 */
+	double getGetLatencyP999();
+
+	/**
+	 * 获得更新的次数
+	 * @return 更新的次数
+	 */
+	long getUpdateCount();
+
+	/**
+	 * 获得更新的速率
+	 * @return 清空统计之后平均每秒更新的次数
+	 */
+	double getUpdateRate();
+
+	/**
+	 * 获得更新耗时的50%分位
+	 * @return 50%的更新的耗时不超过这个值，单位微秒
+	 */
+	double getUpdateLatencyP50();
+
+	/**
+	 * 获得更新耗时的99%分位
+	 * @return 99%的更新的耗时不超过这个值，单位微秒
+	 */
+	double getUpdateLatencyP99();
+
+	/**
+	 * 获得更新耗时的99.9%分位
+	 * @return 99.9%的更新的耗时不超过这个值，单位微秒
+	 */
+	double getUpdateLatencyP999();
+
+	/**
+	 * 获得删除的次数
+	 * @return 删除的次数
+	 */
+	long getRemoveCount();
+
+	/**
+	 * 获得删除的速率
+	 * @return 清空统计之后平均每秒删除的次数
+	 */
+	double getRemoveRate();
+
+	/**
+	 * 获得删除耗时的50%分位
+	 * @return 50%的删除的耗时不超过这个值，单位微秒
+	 */
+	double getRemoveLatencyP50();
+
+	/**
+	 * 获得删除耗时的99%分位
+	 * @return 99%的删除的耗时不超过这个值，单位微秒
+	 */
+	double getRemoveLatencyP99();
+
+	/**
+	 * 获得删除耗时的99.9%分位
+	 * @return 99.9%的删除的耗时不超过这个值，单位微秒
+	 */
+	double getRemoveLatencyP999();
+
+	/**
+	 * 获得写入的字节数，包括数据和日志
+	 * @return 写入的字节数
+	 */
+	long getBytesWritten();
+
+	/**
+	 * 获得写入的速率
+	 * @return 清空统计之后平均每秒写入的字节数
+	 */
+	double getWriteThroughput();
+
+	/**
+	 * 获得换文件的次数
+	 * @return 换文件的次数
+	 */
+	long getRolloverCount();
+
+	/**
+	 * 获得等待appendLock的次数，没有竞争直接获得锁的不算
+	 * @return 等待的次数
+	 */
+	long getAppendLockWaitCount();
+
+	/**
+	 * 获得等待appendLock的总时间
+	 * @return 等待的总时间，单位微秒
+	 */
+	long getAppendLockWaitTime();
+
+	/**
+	 * 清空耗时、次数、写入字节数等统计，速率从现在开始重新计算
+	 */
+	void resetStatistics();
+}
@@ -0,0 +1,130 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <b>记录耗时分布的直方图</b>
+ * <p>和HdrHistogram一样按对数再线性划分：小于{@link #SUB_BUCKETS}的值各占一格，
+ * 之后每个2的幂区间再等分成{@link #SUB_BUCKETS}格，相对误差不超过1/{@link #SUB_BUCKETS}。
+ * 最大记录2^40纳秒（约18分钟），更大的值记在最后一格。</p>
+ * <p>和{@link StripedCounter}一样按线程分段累加，记录一次只是一次没有争抢的原子加，
+ * 计算百分位时把所有段合起来。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** 能区分的最大值的位数 */
+	private static final int MAX_BITS = 40;
+	static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+
+	/**
+	 * 值所在的格
+	 * @param value
+	 * @return 格的序号
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return value < 0 ? 0 : (int)value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		if (exp >= MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int shift = exp - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + ((int)(value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * 格中的最大值
+	 * @param bucket
+	 * @return 落在这一格的最大值
+	 */
+	static long highest(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * 记录一个耗时
+	 * @param nanos
+	 */
+	void record(long nanos) {
+		counts.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucket(nanos));
+		total.increment();
+	}
+
+	/**
+	 * @return 记录的个数
+	 */
+	long getCount() {
+		return total.get();
+	}
+
+	/**
+	 * 百分位的值
+	 * @param percentile 0到100之间
+	 * @return 不小于这个比例的记录的最小值（所在格的最大值），没有记录时返回0
+	 */
+	long getValueAtPercentile(double percentile) {
+		long[] merged = new long[BUCKETS];
+		long count = 0;
+		for (int s = 0; s < StripedCounter.STRIPES; s++) {
+			for (int b = 0; b < BUCKETS; b++) {
+				long c = counts.get(s * BUCKETS + b);
+				merged[b] += c;
+				count += c;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(Math.min(100d, Math.max(0d, percentile)) / 100d * count);
+		rank = Math.max(1, rank);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += merged[b];
+			if (seen >= rank) {
+				return highest(b);
+			}
+		}
+		return highest(BUCKETS - 1);
+	}
+
+	/**
+	 * 清空，和记录同时进行时可能留下一部分
+	 */
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 组追加日志
+ * <p>日志必须顺序追加，所以追加时持有appendLock。写入者先把自己的日志放进队列，再去拿锁，
+ * 拿到锁的线程把队列中已有的日志按顺序一起写入，同一个文件的连续多条复制到一个缓冲里一次写；
+ * 等锁的线程拿到锁时发现自己的日志已经被写了，直接返回。这样持有锁和写文件的次数按批而不是按条计算，
+ * 线程越多每批越大。</p>
+ * <p>单文件格式下，数据和记录头交错着写，记录头中有数据的位置，不能由别的线程代写，
+ * 这种写入通过{@link #lock()}直接持有appendLock。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class LogAppender {
+	/** 一次合并写入的最大字节数 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 一条等待写入的日志
+	 */
+	private static final class Pending {
+		final DataFile file;
+		final ByteBuffer bf;
+		/** 以下两个只在持有锁时读写 */
+		boolean done = false;
+		IOException error = null;
+
+		Pending(DataFile file, ByteBuffer bf) {
+			this.file = file;
+			this.bf = bf;
+		}
+	}
+
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+	private final StoreStatistics statistics;
+
+	/** 只在持有锁时使用 */
+	private final List<Pending> batch = new ArrayList<Pending>();
+	private ByteBuffer buffer = null;
+
+	/**
+	 * @param statistics 记录等待appendLock的时间
+	 */
+	LogAppender(StoreStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * 获取appendLock，没有竞争时直接获取，否则记录等待的时间
+	 */
+	void lock() {
+		if (appendLock.tryLock()) {
+			return;
+		}
+		long begin = System.nanoTime();
+		appendLock.lock();
+		this.statistics.lockWait(System.nanoTime() - begin);
+	}
+
+	void unlock() {
+		appendLock.unlock();
+	}
+
+	/**
+	 * 在文件结尾追加一段日志，返回时已经写入。写入失败时写了一半的部分会被截掉，
+	 * 同一次写入的其他日志也一起失败，不会留下半个批量，否则后面的日志会被当成这一批的
+	 * @param file
+	 * @param bf 写入之后position移到结尾
+	 * @throws IOException
+	 */
+	void append(DataFile file, ByteBuffer bf) throws IOException {
+		Pending p = new Pending(file, bf);
+		queue.offer(p);
+		lock();
+		try {
+			//自己的日志之前的都会在这里写掉，之后到的留给它们自己
+			while (!p.done) {
+				writeNext();
+			}
+		} finally {
+			unlock();
+		}
+		if (null != p.error) {
+			IOException e = new IOException("追加日志失败：" + file);
+			e.initCause(p.error);
+			throw e;
+		}
+	}
+
+	/**
+	 * 从队列中取出同一个文件的连续几条日志一次写入，需要持有锁
+	 */
+	private void writeNext() {
+		Pending first = queue.poll();
+		batch.add(first);
+		int bytes = first.bf.remaining();
+		Pending next;
+		while (null != (next = queue.peek()) && next.file == first.file
+				&& bytes + next.bf.remaining() <= BUFFER_SIZE) {
+			queue.poll();
+			batch.add(next);
+			bytes += next.bf.remaining();
+		}
+		DataFile file = first.file;
+		IOException error = null;
+		long pos = 0;
+		try {
+			pos = file.getLength();
+			if (batch.size() == 1) {
+				file.write(first.bf);
+			} else {
+				ByteBuffer b = buffer();
+				for (Pending m : batch) {
+					b.put(m.bf);
+				}
+				b.flip();
+				file.write(b);
+			}
+		} catch (IOException e) {
+			error = e;
+			try {
+				file.truncate(pos);
+			} catch (IOException t) {
+				error = t;
+			}
+		}
+		for (Pending m : batch) {
+			m.error = error;
+			m.done = true;
+		}
+		batch.clear();
+	}
+
+	/**
+	 * 合并写入用的缓冲区，第一次合并时分配
+	 */
+	private ByteBuffer buffer() {
+		if (null == buffer) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+}
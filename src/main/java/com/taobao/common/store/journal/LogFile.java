@@ -21,14 +21,27 @@ package com.taobao.common.store.journal;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
  * 一个日志文件
- * 
+ * <p>固定16字节key的格式没有文件头，每条记录{@link OpItem#LENGTH}字节；
+ * 变长key的格式以魔数和版本号开头，后面是带key长度的记录；
+ * 带校验的格式、压缩的格式和带过期时间的格式的文件头在魔数和版本号之后还有封存标记，后面是带CRC32C的记录。
+ * 打开已有的文件时通过文件头判断格式，旧的文件按原来的格式读写。</p>
+ *
  * @author dogun (yuexuqiang at gmail.com)
  */
 class LogFile extends DataFile {
+	static final int MAGIC = 0x53344A4C; //S4JL
+	static final int VERSION = 2;
+	static final int CHECKSUM_VERSION = 3;
+	static final int COMPRESSED_VERSION = 4;
+	static final int EXPIRE_VERSION = 5;
+	static final int HEADER_LENGTH = 8;
+	static final int CHECKSUM_HEADER_LENGTH = HEADER_LENGTH + SEAL_LENGTH;
+
 	/**
 	 * 默认构造函数
 	 * @param file
@@ -37,7 +50,7 @@ class LogFile extends DataFile {
 	LogFile(File file) throws IOException {
 		this(file, false);
 	}
-	
+
 	/**
 	 * 构造函数
 	 * @param file
@@ -45,13 +58,82 @@ class LogFile extends DataFile {
 	 * @throws IOException
 	 */
 	LogFile(File file, boolean force) throws IOException {
+		this(file, force, OpItem.FORMAT_FIXED);
+	}
+
+	/**
+	 * 构造函数
+	 * @param file
+	 * @param force
+	 * @param format 新文件使用的记录格式，已有的文件由文件头决定
+	 * @throws IOException
+	 */
+	LogFile(File file, boolean force, int format) throws IOException {
 		super(file, force);
-		//这个地方是为了防止操作日志文件的不完整。如果不完整，则丢弃最后不完整的数据。
-		long count = fc.size() / OpItem.LENGTH;
-		if(count * OpItem.LENGTH < fc.size()){
-			fc.truncate(count * OpItem.LENGTH);
-			fc.position(count * OpItem.LENGTH);
+		if (fc.size() >= HEADER_LENGTH) {
+			ByteBuffer bf = ByteBuffer.allocate(HEADER_LENGTH);
+			read(bf, 0);
+			bf.flip();
+			if (bf.getInt() == MAGIC) {
+				int version = bf.getInt();
+				if (version == VERSION) {
+					this.format = OpItem.FORMAT_VARIABLE;
+				} else if (version == CHECKSUM_VERSION) {
+					this.format = OpItem.FORMAT_CHECKSUM;
+				} else if (version == COMPRESSED_VERSION) {
+					this.format = OpItem.FORMAT_COMPRESSED;
+				} else if (version == EXPIRE_VERSION) {
+					this.format = OpItem.FORMAT_EXPIRE;
+				} else {
+					//更新的版本生成的文件，不能当成固定长度的记录读
+					close();
+					throw new IOException("不是可以识别的日志文件:" + file + ", version:" + version);
+				}
+			}
+		}
+		if (OpItem.hasChecksum(this.format) && fc.size() >= CHECKSUM_HEADER_LENGTH) {
+			ByteBuffer bf = ByteBuffer.allocate(SEAL_LENGTH);
+			read(bf, HEADER_LENGTH);
+			bf.flip();
+			readSeal(bf);
+		} else if (OpItem.hasChecksum(this.format) || (fc.size() == 0 && OpItem.FORMAT_FIXED != format)) {
+			//新文件，或者文件头都没有写完整
+			if (fc.size() > 0) {
+				format = this.format;
+				truncate(0);
+			}
+			ByteBuffer bf = ByteBuffer.allocate(OpItem.hasChecksum(format) ? CHECKSUM_HEADER_LENGTH : HEADER_LENGTH);
+			bf.putInt(MAGIC);
+			bf.putInt(VERSION + format - OpItem.FORMAT_VARIABLE); //版本号依次对应变长key之后的几种格式
+			if (OpItem.hasChecksum(format)) {
+				bf.put(newSeal(0));
+			}
+			bf.flip();
+			write(bf);
+			this.format = format;
+		}
+		if (OpItem.FORMAT_FIXED == this.format) {
+			//这个地方是为了防止操作日志文件的不完整。如果不完整，则丢弃最后不完整的数据。
+			//其他格式在恢复时截掉最后不完整的记录
+			long count = fc.size() / OpItem.LENGTH;
+			if(count * OpItem.LENGTH < fc.size()){
+				truncate(count * OpItem.LENGTH);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.DataFile#getHeaderLength()
+	 */
+	@Override
+	long getHeaderLength() {
+		switch (this.format) {
+		case OpItem.FORMAT_FIXED:
+			return 0;
+		case OpItem.FORMAT_VARIABLE:
+			return HEADER_LENGTH;
+		default:
+			return CHECKSUM_HEADER_LENGTH;
 		}
 	}
-	
 }
@@ -0,0 +1,55 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+
+/**
+ * 异步写入已经生效，但是之后的刷盘或者换文件失败了
+ * <p>索引已经修改，操作日志也已经写入，数据现在就可以读到，但是重启之后不一定还在。
+ * 这样的请求不能当作没有写入去重试，比如重试添加会发现重复的key。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class NotDurableException extends IOException {
+	/**
+	 * serialVersionUID
+	 */
+	private static final long serialVersionUID = 5126417358925368930L;
+
+	private final Boolean result;
+
+	/**
+	 * @param result 写入的结果
+	 * @param cause 刷盘或者换文件失败的原因
+	 */
+	public NotDurableException(Boolean result, IOException cause) {
+		super("写入已经生效，但是没有确认落盘:" + cause.getMessage());
+		initCause(cause);
+		this.result = result;
+	}
+
+	/**
+	 * @return 写入的结果，和成功时Future返回的一样
+	 */
+	public Boolean getResult() {
+		return result;
+	}
+}
@@ -0,0 +1,698 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.taobao.common.store.util.BytesKey;
+
+/**
+ * <b>放在堆外内存中的索引</b>
+ * <p>开放寻址（线性探测）的hash表，每个key占一个40字节的槽：24字节的key区 + 4字节文件编号 + 4字节长度 + 8字节偏移量，
+ * 使用过期时间的存储再加8字节的过期时间，是48字节，按装载因子0.75算，每个key平均占用53或64字节。文件编号为0表示空槽，为-1表示已删除。key区存放不超过23字节的key，不足的部分补0，最后一个字节是key的长度。
+ * 内存通过直接内存分配，按块存放，不产生堆上的对象。</p>
+ * <p>超过23字节的key不放在槽里，放在堆上的一个ConcurrentHashMap中。</p>
+ * <p>写操作之间互斥；读操作不加锁，通过版本号检查读到的是不是一致的数据，
+ * 多次读不到一致的数据时才加锁读。扩容是渐进的：新表生成之后，
+ * 每次写操作顺便把旧表中的一部分槽搬到新表，搬完之前两个表一起查找。
+ * 没有过期时间的表第一次放入有过期时间的数据时，同样渐进地换成带过期时间的槽。</p>
+ * <p>get返回的OpItem是每次新生成的，修改它不会影响索引；
+ * {@link #get(BytesKey, OpItem)}把位置填到调用者的OpItem中，查找时不生成对象。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class OffHeapIndex extends AbstractMap<BytesKey, OpItem> {
+	/** 每个槽的字节数 */
+	static final int ENTRY_LENGTH = 40;
+	/** 带过期时间的槽的字节数 */
+	static final int EXPIRE_ENTRY_LENGTH = 48;
+	/** 可以放在槽里的key的最大长度 */
+	static final int INLINE_KEY_LENGTH = 23;
+	/** 槽中key区之后的字段的位置 */
+	private static final int NUMBER = 24;
+	private static final int LENGTH = 28;
+	private static final int OFFSET = 32;
+	private static final int EXPIRE = 40;
+	/** 每块内存最多的槽数，每块40M或48M */
+	private static final int CHUNK_SLOTS = 1 << 20;
+	/** 不加锁读的最多尝试次数 */
+	private static final int OPTIMISTIC_READS = 3;
+	/** 渐进扩容时，每次写操作搬动的槽数 */
+	private static final int MIGRATE_STEP = 64;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+
+	/**
+	 * 一个hash表，按块分配的直接内存
+	 */
+	private static final class Table {
+		final ByteBuffer[] chunks;
+		final int capacity;
+		final int chunkShift;
+		final int chunkMask;
+		/** 槽中是否有过期时间 */
+		final boolean expire;
+		final int entryLength;
+		/** 已经使用的槽，包括删除的 */
+		int used;
+
+		Table(int capacity, boolean expire) {
+			this.capacity = capacity;
+			this.expire = expire;
+			this.entryLength = expire ? EXPIRE_ENTRY_LENGTH : ENTRY_LENGTH;
+			int chunkSlots = Math.min(capacity, CHUNK_SLOTS);
+			this.chunkShift = Integer.numberOfTrailingZeros(chunkSlots);
+			this.chunkMask = chunkSlots - 1;
+			this.chunks = new ByteBuffer[capacity / chunkSlots];
+			for (int i = 0; i < chunks.length; i++) {
+				chunks[i] = ByteBuffer.allocateDirect(chunkSlots * entryLength);
+			}
+		}
+
+		ByteBuffer chunk(int slot) {
+			return chunks[slot >>> chunkShift];
+		}
+
+		int pos(int slot) {
+			return (slot & chunkMask) * entryLength;
+		}
+
+		int number(int slot) {
+			return chunk(slot).getInt(pos(slot) + NUMBER);
+		}
+
+		boolean match(int slot, long k1, long k2, long k3) {
+			ByteBuffer bf = chunk(slot);
+			int p = pos(slot);
+			return bf.getLong(p) == k1 && bf.getLong(p + 8) == k2 && bf.getLong(p + 16) == k3;
+		}
+
+		OpItem read(int slot, byte[] key) {
+			OpItem op = new OpItem();
+			read(slot, key, op);
+			return op;
+		}
+
+		void read(int slot, byte[] key, OpItem op) {
+			ByteBuffer bf = chunk(slot);
+			int p = pos(slot);
+			op.op = OpItem.OP_ADD;
+			op.key = key;
+			op.number = bf.getInt(p + NUMBER);
+			op.length = bf.getInt(p + LENGTH);
+			op.offset = bf.getLong(p + OFFSET);
+			op.expire = expire ? bf.getLong(p + EXPIRE) : 0;
+		}
+
+		void write(int slot, long k1, long k2, long k3, OpItem op) {
+			ByteBuffer bf = chunk(slot);
+			int p = pos(slot);
+			bf.putLong(p, k1);
+			bf.putLong(p + 8, k2);
+			bf.putLong(p + 16, k3);
+			bf.putInt(p + LENGTH, op.length);
+			bf.putLong(p + OFFSET, op.offset);
+			if (expire) {
+				bf.putLong(p + EXPIRE, op.expire);
+			}
+			bf.putInt(p + NUMBER, op.number);
+		}
+
+		void delete(int slot) {
+			chunk(slot).putInt(pos(slot) + NUMBER, DELETED);
+		}
+
+		/**
+		 * 从槽中取出key
+		 */
+		byte[] key(int slot) {
+			ByteBuffer bf = chunk(slot).duplicate();
+			int p = pos(slot);
+			byte[] key = new byte[bf.get(p + INLINE_KEY_LENGTH) & 0xFF];
+			bf.position(p);
+			bf.get(key);
+			return key;
+		}
+
+		/**
+		 * 查找key所在的槽
+		 * @param h
+		 * @param k1
+		 * @param k2
+		 * @param k3
+		 * @param from 小于这个位置的槽已经搬走了，跳过
+		 * @return 所在的槽，没有找到返回-1
+		 */
+		int find(int h, long k1, long k2, long k3, int from) {
+			int mask = capacity - 1;
+			int slot = h & mask;
+			for (int i = 0; i < capacity; i++) {
+				int n = number(slot);
+				if (n == EMPTY) {
+					return -1;
+				}
+				if (n != DELETED && slot >= from && match(slot, k1, k2, k3)) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * 找一个可以插入的槽，调用者保证key不在表中，并且表没有满
+		 * @param h
+		 * @return 可以插入的槽
+		 */
+		int free(int h) {
+			int mask = capacity - 1;
+			int slot = h & mask;
+			while (true) {
+				int n = number(slot);
+				if (n == EMPTY || n == DELETED) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		long bytes() {
+			return (long)capacity * entryLength;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final int initialCapacity;
+	/** 新生成的表是否带过期时间，放入过有过期时间的数据之后一直为true */
+	private boolean expire;
+	/** 写操作开始时加1，结束时再加1，为奇数表示正在写 */
+	private volatile long version = 0;
+	private volatile Table table;
+	/** 正在扩容时的旧表，没有扩容时为null */
+	private volatile Table old = null;
+	/** 旧表中小于这个位置的槽已经搬到新表了 */
+	private volatile int migrated = 0;
+	private volatile int size = 0;
+	/** 放不进槽的长key */
+	private final ConcurrentHashMap<BytesKey, OpItem> overflow = new ConcurrentHashMap<BytesKey, OpItem>();
+
+	/**
+	 * @param initialCapacity 初始的槽数，会调整为2的幂
+	 * @param expire 槽中是否留出过期时间，不留的时候放入有过期时间的数据会换成留出的槽
+	 */
+	OffHeapIndex(int initialCapacity, boolean expire) {
+		int c = 16;
+		while (c < initialCapacity) {
+			c <<= 1;
+		}
+		this.initialCapacity = c;
+		this.expire = expire;
+		this.table = new Table(c, expire);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#get(java.lang.Object)
+	 */
+	@Override
+	public OpItem get(Object key) {
+		if (!(key instanceof BytesKey)) {
+			return null;
+		}
+		byte[] k = ((BytesKey)key).getData();
+		if (null == k) {
+			return null;
+		}
+		if (k.length > INLINE_KEY_LENGTH) {
+			return this.overflow.get(key);
+		}
+		OpItem op = new OpItem();
+		return get((BytesKey)key, k, op) ? op : null;
+	}
+
+	/**
+	 * 查找key，把数据的位置填到op中，不生成新的对象
+	 * @param key
+	 * @param op 没有找到时内容不确定
+	 * @return 是否找到了
+	 */
+	boolean get(BytesKey key, OpItem op) {
+		return get(key, key.getData(), op);
+	}
+
+	/**
+	 * 查找key，k是key的内容，{@link com.taobao.common.store.util.Key128}每次取内容都会生成新的数组，只取一次
+	 */
+	private boolean get(BytesKey key, byte[] k, OpItem op) {
+		if (null == k) {
+			return false;
+		}
+		if (k.length > INLINE_KEY_LENGTH) {
+			OpItem o = this.overflow.get(key);
+			if (null == o) {
+				return false;
+			}
+			op.op = o.op;
+			op.key = o.key;
+			op.number = o.number;
+			op.length = o.length;
+			op.offset = o.offset;
+			op.expire = o.expire;
+			return true;
+		}
+		long k1 = word(k, 0);
+		long k2 = word(k, 8);
+		long k3 = word(k, 16);
+		int h = hash(k1, k2, k3);
+		for (int i = 0; i < OPTIMISTIC_READS; i++) {
+			long v = this.version;
+			if ((v & 1) != 0) {
+				continue;
+			}
+			try {
+				boolean found = lookup(h, k1, k2, k3, k, op);
+				if (v == this.version) {
+					return found;
+				}
+			} catch (IndexOutOfBoundsException e) {
+				//读到了写了一半的表，重试
+			}
+		}
+		lock.lock();
+		try {
+			return lookup(h, k1, k2, k3, k, op);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		return null != get(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public OpItem put(BytesKey key, OpItem op) {
+		byte[] k = checkKey(key);
+		if (k.length > INLINE_KEY_LENGTH) {
+			return this.overflow.put(key, op);
+		}
+		long k1 = word(k, 0);
+		long k2 = word(k, 8);
+		long k3 = word(k, 16);
+		int h = hash(k1, k2, k3);
+		lock.lock();
+		this.version++;
+		try {
+			if (op.expire != 0 && !this.table.expire) {
+				expandEntry();
+			}
+			OpItem prev = null;
+			Table o = this.old;
+			if (null != o) {
+				int slot = o.find(h, k1, k2, k3, this.migrated);
+				if (slot >= 0) {
+					prev = o.read(slot, k);
+					o.delete(slot);
+				}
+			}
+			Table t = this.table;
+			int slot = t.find(h, k1, k2, k3, 0);
+			if (slot >= 0) {
+				prev = t.read(slot, k);
+			} else {
+				slot = t.free(h);
+				if (t.number(slot) == EMPTY) {
+					t.used++;
+				}
+			}
+			t.write(slot, k1, k2, k3, op);
+			if (null == prev) {
+				this.size++;
+			}
+			afterWrite();
+			return prev;
+		} finally {
+			this.version++;
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#remove(java.lang.Object)
+	 */
+	@Override
+	public OpItem remove(Object key) {
+		if (!(key instanceof BytesKey)) {
+			return null;
+		}
+		byte[] k = ((BytesKey)key).getData();
+		if (null == k) {
+			return null;
+		}
+		if (k.length > INLINE_KEY_LENGTH) {
+			return this.overflow.remove(key);
+		}
+		long k1 = word(k, 0);
+		long k2 = word(k, 8);
+		long k3 = word(k, 16);
+		int h = hash(k1, k2, k3);
+		lock.lock();
+		this.version++;
+		try {
+			OpItem prev = null;
+			Table o = this.old;
+			if (null != o) {
+				int slot = o.find(h, k1, k2, k3, this.migrated);
+				if (slot >= 0) {
+					prev = o.read(slot, k);
+					o.delete(slot);
+				}
+			}
+			Table t = this.table;
+			int slot = t.find(h, k1, k2, k3, 0);
+			if (slot >= 0) {
+				prev = t.read(slot, k);
+				t.delete(slot);
+			}
+			if (null != prev) {
+				this.size--;
+			}
+			afterWrite();
+			return prev;
+		} finally {
+			this.version++;
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#size()
+	 */
+	@Override
+	public int size() {
+		return this.size + this.overflow.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#clear()
+	 */
+	@Override
+	public void clear() {
+		lock.lock();
+		this.version++;
+		try {
+			this.old = null;
+			this.migrated = 0;
+			this.table = new Table(this.initialCapacity, this.expire);
+			this.size = 0;
+			this.overflow.clear();
+		} finally {
+			this.version++;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return 占用的堆外内存字节数，不包括放在堆上的长key
+	 */
+	long getMemory() {
+		Table o = this.old;
+		return this.table.bytes() + (null == o ? 0 : o.bytes());
+	}
+
+	/**
+	 * @return 超过{@link #INLINE_KEY_LENGTH}字节、放在堆上的key的个数
+	 */
+	int getOverflowCount() {
+		return this.overflow.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<BytesKey, OpItem>> entrySet() {
+		return new AbstractSet<Map.Entry<BytesKey, OpItem>>() {
+			@Override
+			public Iterator<Map.Entry<BytesKey, OpItem>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return OffHeapIndex.this.size();
+			}
+		};
+	}
+
+	/**
+	 * 遍历一个表的所有槽，再遍历长key，是弱一致的：开始遍历之后的修改不一定能看到
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<BytesKey, OpItem>> {
+		private final Table t;
+		private final Iterator<Map.Entry<BytesKey, OpItem>> overflows = overflow.entrySet().iterator();
+		private int slot = -1;
+		private Map.Entry<BytesKey, OpItem> next;
+		private Map.Entry<BytesKey, OpItem> last;
+
+		EntryIterator() {
+			finishResize();
+			this.t = table;
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (null == next && ++slot < t.capacity) {
+				lock.lock();
+				try {
+					int n = t.number(slot);
+					if (n != EMPTY && n != DELETED) {
+						byte[] key = t.key(slot);
+						next = new SimpleEntry(BytesKey.valueOf(key), t.read(slot, key));
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (null == next && overflows.hasNext()) {
+				Map.Entry<BytesKey, OpItem> e = overflows.next();
+				next = new SimpleEntry(e.getKey(), e.getValue());
+			}
+		}
+
+		public boolean hasNext() {
+			return null != next;
+		}
+
+		public Map.Entry<BytesKey, OpItem> next() {
+			if (null == next) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			advance();
+			return last;
+		}
+
+		public void remove() {
+			if (null == last) {
+				throw new IllegalStateException();
+			}
+			OffHeapIndex.this.remove(last.getKey());
+			last = null;
+		}
+	}
+
+	/**
+	 * 一个索引项
+	 */
+	private static class SimpleEntry implements Map.Entry<BytesKey, OpItem> {
+		private final BytesKey key;
+		private final OpItem value;
+
+		SimpleEntry(BytesKey key, OpItem value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		public BytesKey getKey() {
+			return key;
+		}
+
+		public OpItem getValue() {
+			return value;
+		}
+
+		public OpItem setValue(OpItem value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * 查找，不加锁的时候可能读到不一致的数据，由调用者检查版本号
+	 */
+	private boolean lookup(int h, long k1, long k2, long k3, byte[] key, OpItem op) {
+		Table t = this.table;
+		int slot = t.find(h, k1, k2, k3, 0);
+		if (slot >= 0) {
+			t.read(slot, key, op);
+			return true;
+		}
+		Table o = this.old;
+		if (null != o) {
+			slot = o.find(h, k1, k2, k3, this.migrated);
+			if (slot >= 0) {
+				o.read(slot, key, op);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 写操作之后，推进渐进扩容，或者在表太满时开始扩容，需要持有锁
+	 */
+	private void afterWrite() {
+		if (null != this.old) {
+			migrate(MIGRATE_STEP);
+		} else if (this.table.used > this.table.capacity * LOAD_FACTOR) {
+			Table t = this.table;
+			//有效的数据多就扩大一倍，否则只是清理删除的槽
+			int capacity = this.size > t.capacity * LOAD_FACTOR / 2 ? t.capacity << 1 : t.capacity;
+			this.old = t;
+			this.migrated = 0;
+			this.table = new Table(capacity, this.expire);
+			migrate(MIGRATE_STEP);
+		}
+	}
+
+	/**
+	 * 换成带过期时间的槽：先完成正在进行的扩容，再开始一次同样大小的渐进扩容，需要持有锁
+	 */
+	private void expandEntry() {
+		if (null != this.old) {
+			migrate(this.old.capacity);
+		}
+		this.expire = true;
+		this.old = this.table;
+		this.migrated = 0;
+		this.table = new Table(this.old.capacity, true);
+	}
+
+	/**
+	 * 把旧表中的一部分槽搬到新表，需要持有锁
+	 * @param count 搬动的槽数
+	 */
+	private void migrate(int count) {
+		Table o = this.old;
+		Table t = this.table;
+		int m = this.migrated;
+		int end = Math.min(o.capacity, m + count);
+		for (; m < end; m++) {
+			int n = o.number(m);
+			if (n != EMPTY && n != DELETED) {
+				ByteBuffer bf = o.chunk(m);
+				int p = o.pos(m);
+				long k1 = bf.getLong(p);
+				long k2 = bf.getLong(p + 8);
+				long k3 = bf.getLong(p + 16);
+				int slot = t.free(hash(k1, k2, k3));
+				if (t.number(slot) == EMPTY) {
+					t.used++;
+				}
+				t.write(slot, k1, k2, k3, o.read(m, null));
+			}
+			this.migrated = m + 1;
+		}
+		if (end == o.capacity) {
+			//旧表的内存在没有读者引用之后由GC回收，不能主动释放
+			this.old = null;
+			this.migrated = 0;
+		}
+	}
+
+	/**
+	 * 一次完成正在进行的扩容
+	 */
+	private void finishResize() {
+		lock.lock();
+		this.version++;
+		try {
+			if (null != this.old) {
+				migrate(this.old.capacity);
+			}
+		} finally {
+			this.version++;
+			lock.unlock();
+		}
+	}
+
+	private byte[] checkKey(BytesKey key) {
+		byte[] k = null == key ? null : key.getData();
+		if (null == k) throw new NullPointerException("key can't be null");
+		return k;
+	}
+
+	/**
+	 * 取key区中从off开始的8个字节，key之后的部分为0，key区的最后一个字节是key的长度
+	 */
+	private static long word(byte[] b, int off) {
+		long v = 0;
+		for (int i = off; i < off + 8; i++) {
+			int c = i < b.length ? b[i] & 0xFF : i == INLINE_KEY_LENGTH ? b.length : 0;
+			v = (v << 8) | c;
+		}
+		return v;
+	}
+
+	/**
+	 * 三个long混合之后的hash值
+	 */
+	private static int hash(long k1, long k2, long k3) {
+		long h = (k1 * 0x9E3779B97F4A7C15L ^ k2) * 0x9E3779B97F4A7C15L ^ k3;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+}
@@ -21,9 +21,16 @@ package com.taobao.common.store.journal;
 
 import java.nio.ByteBuffer;
 
+import com.taobao.common.store.util.Crc32c;
 
 /**
  * 一个日志记录 操作+数据key+数据文件编号+偏移量+长度
+ * <p>有三种格式：固定16字节key的格式，每条记录{@link #LENGTH}字节；
+ * 变长key的格式，记录以2字节的key长度开头，每条记录{@link #VAR_HEADER_LENGTH}加上key的长度；
+ * 带校验的格式，在变长key的格式后面加上数据的CRC32C和这条记录的CRC32C；
+ * 压缩的格式的记录和带校验的格式一样，只是数据前面有压缩方式和原始长度，见{@link ValueCodec}；
+ * 带过期时间的格式在压缩的格式的长度之后、校验之前多出8字节的过期时间。
+ * 用哪种格式由记录所在的文件决定。</p>
  * 
  * @author dogun (yuexuqiang at gmail.com)
  *
@@ -31,15 +38,43 @@ import java.nio.ByteBuffer;
 public class OpItem {
 	public static final byte OP_ADD = 1;
 	public static final byte OP_DEL = 2;
+	/** 批量写入的开始，length为后面属于这一批的日志条数 */
+	public static final byte OP_BATCH = 3;
 	
 	public static final int KEY_LENGTH = 16;
 	public static final int LENGTH = KEY_LENGTH + 1 + 4 + 8 + 4;
 	
+	/** 变长key的最大长度 */
+	public static final int MAX_KEY_LENGTH = 0xFFFF;
+	/** 变长key格式中key之外的长度：key长度 + 操作 + 文件编号 + 偏移量 + 长度 */
+	public static final int VAR_HEADER_LENGTH = 2 + 1 + 4 + 8 + 4;
+	/** 带校验的格式在变长key的格式之后多出的长度：数据的CRC32C + 记录的CRC32C */
+	public static final int CHECKSUM_LENGTH = 4 + 4;
+	/** 带过期时间的格式多出的长度 */
+	public static final int EXPIRE_LENGTH = 8;
+	
+	/** 固定16字节key的格式 */
+	static final int FORMAT_FIXED = 0;
+	/** 变长key的格式 */
+	static final int FORMAT_VARIABLE = 1;
+	/** 带校验的变长key的格式 */
+	static final int FORMAT_CHECKSUM = 2;
+	/** 带校验的变长key的格式，数据可以压缩 */
+	static final int FORMAT_COMPRESSED = 3;
+	/** 压缩的格式加上过期时间 */
+	static final int FORMAT_EXPIRE = 4;
+	
 	byte op;
 	byte[] key;
 	int number;
 	long offset;
 	int length;
+	/** 数据的CRC32C，只有带校验的格式中的添加才有 */
+	int checksum;
+	/** 过期的时间，从1970年开始的毫秒数，0表示不过期，只有带过期时间的格式中的添加才有 */
+	long expire;
+	/** 从带校验的格式中读到的记录的CRC32C */
+	private int recordChecksum;
 	
 	/**
 	 * 将一个操作转换成字节数组
@@ -47,14 +82,124 @@ public class OpItem {
 	 * @return 字节数组
 	 */
 	byte[] toByte() {
-		byte[] data = new byte[LENGTH];
-		ByteBuffer bf = ByteBuffer.wrap(data);
+		return toByte(FORMAT_FIXED);
+	}
+
+	/**
+	 * 将一个操作转换成指定格式的字节数组
+	 * @param format 记录的格式
+	 * @return 字节数组
+	 */
+	byte[] toByte(int format) {
+		ByteBuffer bf = ByteBuffer.allocate(size(format));
+		writeTo(bf, format);
+		return bf.array();
+	}
+
+	/**
+	 * 指定格式下这条记录的字节数
+	 * @param format 记录的格式
+	 * @return 字节数
+	 */
+	int size(int format) {
+		return minSize(format) + (FORMAT_FIXED == format ? 0 : key.length);
+	}
+
+	/**
+	 * 指定格式的记录是否带校验
+	 * @param format 记录的格式
+	 * @return 是否带校验
+	 */
+	static boolean hasChecksum(int format) {
+		return format >= FORMAT_CHECKSUM;
+	}
+
+	/**
+	 * 指定格式的数据前面是否有压缩方式和原始长度
+	 * @param format 记录的格式
+	 * @return 数据是否可以压缩
+	 */
+	static boolean isCompressed(int format) {
+		return format >= FORMAT_COMPRESSED;
+	}
+
+	/**
+	 * 指定格式的记录中是否有过期时间
+	 * @param format 记录的格式
+	 * @return 是否有过期时间
+	 */
+	static boolean hasExpire(int format) {
+		return format >= FORMAT_EXPIRE;
+	}
+
+	/**
+	 * 是否已经过期
+	 * @param now 现在的时间，从1970年开始的毫秒数
+	 * @return 是否已经过期
+	 */
+	boolean isExpired(long now) {
+		return expire != 0 && expire <= now;
+	}
+
+	/**
+	 * 指定格式下一条记录最少的字节数，读到这么多字节之后就能知道整条记录的长度
+	 * @param format 记录的格式
+	 * @return 字节数
+	 */
+	static int minSize(int format) {
+		switch (format) {
+		case FORMAT_FIXED:
+			return LENGTH;
+		case FORMAT_VARIABLE:
+			return VAR_HEADER_LENGTH;
+		case FORMAT_CHECKSUM:
+		case FORMAT_COMPRESSED:
+			return VAR_HEADER_LENGTH + CHECKSUM_LENGTH;
+		default:
+			return VAR_HEADER_LENGTH + EXPIRE_LENGTH + CHECKSUM_LENGTH;
+		}
+	}
+
+	/**
+	 * 将一个操作直接写入bf，bf的position会向后移动LENGTH
+	 * @param bf
+	 */
+	void writeTo(ByteBuffer bf) {
+		writeTo(bf, FORMAT_FIXED);
+	}
+
+	/**
+	 * 将一个操作按指定格式写入bf，bf的position会向后移动{@link #size(int)}
+	 * @param bf
+	 * @param format 记录的格式
+	 */
+	void writeTo(ByteBuffer bf, int format) {
+		writeTo(bf, format, key);
+	}
+
+	/**
+	 * 将一个操作按指定格式写入bf，key用给出的数组，索引中的OpItem可能没有key
+	 * @param bf
+	 * @param format 记录的格式
+	 * @param key
+	 */
+	void writeTo(ByteBuffer bf, int format, byte[] key) {
+		int start = bf.position();
+		if (FORMAT_FIXED != format) {
+			bf.putShort((short)key.length);
+		}
 		bf.put(key);
 		bf.put(op);
 		bf.putInt(number);
 		bf.putLong(offset);
 		bf.putInt(length);
-		return bf.array();
+		if (hasExpire(format)) {
+			bf.putLong(expire);
+		}
+		if (hasChecksum(format)) {
+			bf.putInt(checksum);
+			bf.putInt(Crc32c.checksum(bf, start, bf.position()));
+		}
 	}
 
 	/**
@@ -62,7 +207,14 @@ public class OpItem {
 	 * @param data
 	 */
 	void parse(byte[] data) {
-		ByteBuffer bf = ByteBuffer.wrap(data);
+		readFrom(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * 从bf中读出一个操作日志，bf的position会向后移动LENGTH
+	 * @param bf
+	 */
+	void readFrom(ByteBuffer bf) {
 		key = new byte[16];
 		bf.get(key);
 		op = bf.get();
@@ -70,6 +222,63 @@ public class OpItem {
 		offset = bf.getLong();
 		length = bf.getInt();
 	}
+
+	/**
+	 * 从bf中按指定格式读出一个操作日志。带校验的格式不在这里校验，需要时调用{@link #isIntact()}
+	 * @param bf
+	 * @param format 记录的格式
+	 * @return 是否读到了，bf中剩下的不是一条完整的记录时返回false，bf的position不变
+	 */
+	boolean readFrom(ByteBuffer bf, int format) {
+		if (FORMAT_FIXED == format) {
+			if (bf.remaining() < LENGTH) {
+				return false;
+			}
+			readFrom(bf);
+			return true;
+		}
+		if (bf.remaining() < 2) {
+			return false;
+		}
+		int keyLength = bf.getShort(bf.position()) & 0xFFFF;
+		if (bf.remaining() < minSize(format) + keyLength) {
+			return false;
+		}
+		bf.getShort();
+		key = new byte[keyLength];
+		bf.get(key);
+		op = bf.get();
+		number = bf.getInt();
+		offset = bf.getLong();
+		length = bf.getInt();
+		if (hasExpire(format)) {
+			expire = bf.getLong();
+		}
+		if (hasChecksum(format)) {
+			checksum = bf.getInt();
+			recordChecksum = bf.getInt();
+		}
+		return true;
+	}
+
+	/**
+	 * 从带校验的格式中读到的记录是否完好
+	 * @return 记录的CRC32C是否对得上
+	 */
+	boolean isIntact() {
+		return isIntact(FORMAT_CHECKSUM);
+	}
+
+	/**
+	 * 从带校验的格式中读到的记录是否完好
+	 * @param format 记录的格式
+	 * @return 记录的CRC32C是否对得上
+	 */
+	boolean isIntact(int format) {
+		ByteBuffer bf = ByteBuffer.allocate(size(format));
+		writeTo(bf, format);
+		return bf.getInt(bf.capacity() - 4) == recordChecksum;
+	}
 	
 	@Override
 	public String toString() {
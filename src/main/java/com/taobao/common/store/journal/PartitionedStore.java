@@ -0,0 +1,589 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.common.store.Store;
+import com.taobao.common.store.util.Util;
+
+/**
+ * <b>按key的hash分区的存储</b>
+ * <p>数据分散到多个独立的{@link JournalStore}中，每个分区有自己的文件、锁和索引，
+ * 不同分区的写入可以同时进行。所有的文件放在path/name目录下，每个分区一个子目录，
+ * 子目录名是分区的序号。</p>
+ * <p>分区个数在创建时确定，记录在path/name/name.partitions文件中：魔数 + 版本号 + 分区个数 + CRC32。
+ * 版本号对应key到分区的hash函数，以后打开时使用同样的分区个数和hash函数，不能修改。</p>
+ * <p>打开和关闭时各个分区同时进行。单条的操作直接转给key所在的分区，
+ * 需要其他接口时可以通过{@link #getPartition(byte[])}获得key所在的分区。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class PartitionedStore implements Store, PartitionedStoreMBean {
+	static Logger log = Logger.getLogger(PartitionedStore.class);
+
+	static final String SUFFIX = ".partitions";
+	static final int MAGIC = 0x53344A50; //S4JP
+	static final int VERSION = 1;
+	/** 分区文件的长度：魔数 + 版本号 + 分区个数 + CRC32 */
+	static final int META_LENGTH = 4 + 4 + 4 + 8;
+
+	private final String path;
+	private final String name;
+	private final JournalStore[] partitions;
+
+	/**
+	 * 打开已经存在的分区存储，分区个数从磁盘上读取
+	 * @param path
+	 * @param name
+	 * @param config 每个分区使用的配置
+	 * @throws IOException 存储不存在，或者分区文件损坏
+	 */
+	public PartitionedStore(String path, String name, JournalStoreConfig config) throws IOException {
+		this(path, name, 0, config);
+	}
+
+	/**
+	 * 打开或者创建分区存储
+	 * @param path
+	 * @param name
+	 * @param partitions 分区个数，已经存在时必须和创建时一样，为0表示使用磁盘上记录的个数
+	 * @param config 每个分区使用的配置
+	 * @throws IOException
+	 */
+	public PartitionedStore(String path, String name, int partitions, JournalStoreConfig config)
+			throws IOException {
+		if (partitions < 0) {
+			throw new IllegalArgumentException("partitions must not be negative");
+		}
+		this.path = path;
+		this.name = name;
+		File dir = new File(path, name);
+		File meta = new File(dir, name + SUFFIX);
+		if (meta.exists()) {
+			int n = readMeta(meta);
+			if (partitions > 0 && partitions != n) {
+				throw new IllegalArgumentException("分区个数和创建时不一致：" + partitions + ", 创建时:" + n);
+			}
+			partitions = n;
+		} else {
+			if (partitions == 0) {
+				throw new IOException("分区存储不存在：" + dir);
+			}
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("不能创建目录：" + dir);
+			}
+			writeMeta(meta, partitions);
+		}
+		this.partitions = open(dir, partitions, config);
+		Util.registMBean(this, name);
+	}
+
+	/**
+	 * 读取分区文件
+	 * @param meta
+	 * @return 分区个数
+	 * @throws IOException 文件损坏或者版本不对
+	 */
+	private static int readMeta(File meta) throws IOException {
+		ByteBuffer bf = ByteBuffer.allocate(META_LENGTH);
+		RandomAccessFile raf = new RandomAccessFile(meta, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			while (bf.hasRemaining()) {
+				if (fc.read(bf) < 0) {
+					throw new IOException("分区文件不完整：" + meta);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bf.array(), 0, META_LENGTH - 8);
+		bf.flip();
+		if (bf.getInt() != MAGIC || crc.getValue() != bf.getLong(META_LENGTH - 8)) {
+			throw new IOException("分区文件校验失败：" + meta);
+		}
+		int version = bf.getInt();
+		if (version != VERSION) {
+			throw new IOException("不能识别的分区文件版本：" + version);
+		}
+		int n = bf.getInt();
+		if (n <= 0) {
+			throw new IOException("分区个数不对：" + n);
+		}
+		return n;
+	}
+
+	/**
+	 * 写分区文件，刷盘之后才创建分区
+	 * @param meta
+	 * @param partitions
+	 * @throws IOException
+	 */
+	private static void writeMeta(File meta, int partitions) throws IOException {
+		ByteBuffer bf = ByteBuffer.allocate(META_LENGTH);
+		bf.putInt(MAGIC);
+		bf.putInt(VERSION);
+		bf.putInt(partitions);
+		CRC32 crc = new CRC32();
+		crc.update(bf.array(), 0, bf.position());
+		bf.putLong(crc.getValue());
+		bf.flip();
+		Checkpoint.write(meta, bf);
+	}
+
+	/**
+	 * 同时打开所有的分区，有一个失败时关闭已经打开的
+	 * @param dir
+	 * @param n
+	 * @param config
+	 * @return 所有的分区
+	 * @throws IOException
+	 */
+	private JournalStore[] open(final File dir, int n, final JournalStoreConfig config) throws IOException {
+		List<Callable<JournalStore>> tasks = new ArrayList<Callable<JournalStore>>(n);
+		for (int i = 0; i < n; i++) {
+			final int p = i;
+			tasks.add(new Callable<JournalStore>() {
+				public JournalStore call() throws IOException {
+					File d = new File(dir, String.valueOf(p));
+					if (!d.exists() && !d.mkdirs()) {
+						throw new IOException("不能创建目录：" + d);
+					}
+					return new JournalStore(d.getAbsolutePath(), name + "-" + p, config);
+				}
+			});
+		}
+		List<Future<JournalStore>> futures = invokeAll(tasks, "open");
+		JournalStore[] stores = new JournalStore[n];
+		IOException error = null;
+		for (int i = 0; i < n; i++) {
+			try {
+				stores[i] = get(futures.get(i));
+			} catch (IOException e) {
+				error = null == error ? e : error;
+			} catch (RuntimeException e) {
+				if (null == error) {
+					error = new IOException("打开分区失败：" + i);
+					error.initCause(e);
+				}
+			}
+		}
+		if (null != error) {
+			for (JournalStore s : stores) {
+				if (null != s) {
+					try {
+						s.close();
+					} catch (IOException e) {
+						log.warn("close error", e);
+					}
+				}
+			}
+			throw error;
+		}
+		return stores;
+	}
+
+	/**
+	 * 每个分区一个线程同时执行，最多和CPU个数一样多的线程
+	 * @param tasks
+	 * @param action 线程名中的动作
+	 * @return 每个任务的结果
+	 * @throws IOException
+	 */
+	private <T> List<Future<T>> invokeAll(List<Callable<T>> tasks, final String action) throws IOException {
+		int threads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "store4j-" + action + "-" + name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			return pool.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待分区时被中断");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * 获得一个已经完成的任务的结果
+	 */
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待分区时被中断");
+		} catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException) {
+				throw (IOException)c;
+			}
+			if (c instanceof RuntimeException) {
+				throw (RuntimeException)c;
+			}
+			IOException ioe = new IOException("分区操作失败");
+			ioe.initCause(c);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * key所在的分区序号。分区文件的版本号对应这个函数，修改它会让已有的数据找不到
+	 * @param key
+	 * @param n 分区个数
+	 * @return 分区序号
+	 */
+	static int partition(byte[] key, int n) {
+		//FNV-1a，再把高位混合到低位
+		int h = 0x811C9DC5;
+		for (int i = 0; i < key.length; i++) {
+			h ^= key[i] & 0xFF;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return (h & 0x7FFFFFFF) % n;
+	}
+
+	/**
+	 * 获得key所在的分区
+	 * @param key
+	 * @return 分区
+	 */
+	public JournalStore getPartition(byte[] key) {
+		if (null == key) throw new NullPointerException("key can't be null");
+		return this.partitions[partition(key, this.partitions.length)];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#add(byte[], byte[])
+	 */
+	public void add(byte[] key, byte[] data) throws IOException {
+		getPartition(key).add(key, data);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#remove(byte[])
+	 */
+	public boolean remove(byte[] key) throws IOException {
+		return getPartition(key).remove(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#get(byte[])
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		return getPartition(key).get(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#update(byte[], byte[])
+	 */
+	public boolean update(byte[] key, byte[] data) throws IOException {
+		return getPartition(key).update(key, data);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#size()
+	 */
+	public int size() throws IOException {
+		long size = getSize();
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.Store#iterator()
+	 */
+	public Iterator<byte[]> iterator() throws IOException {
+		return new Iterator<byte[]>() {
+			private int p = 0;
+			private Iterator<byte[]> it = null;
+			private Iterator<byte[]> last = null;
+
+			public boolean hasNext() {
+				while (null == it || !it.hasNext()) {
+					if (p >= partitions.length) {
+						return false;
+					}
+					try {
+						it = partitions[p++].iterator();
+					} catch (IOException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				}
+				return true;
+			}
+
+			public byte[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = it;
+				return it.next();
+			}
+
+			public void remove() {
+				if (null == last) {
+					throw new IllegalStateException();
+				}
+				last.remove();
+			}
+		};
+	}
+
+	/**
+	 * 同时关闭所有的分区
+	 * @throws IOException 第一个关闭失败的分区的异常
+	 */
+	public void close() throws IOException {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(this.partitions.length);
+		for (final JournalStore s : this.partitions) {
+			tasks.add(new Callable<Object>() {
+				public Object call() throws IOException {
+					s.close();
+					return null;
+				}
+			});
+		}
+		IOException error = null;
+		for (Future<Object> f : invokeAll(tasks, "close")) {
+			try {
+				get(f);
+			} catch (IOException e) {
+				error = null == error ? e : error;
+			}
+		}
+		if (null != error) {
+			throw error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getPath()
+	 */
+	public String getPath() {
+		return this.path;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getName()
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getPartitionCount()
+	 */
+	public int getPartitionCount() {
+		return this.partitions.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getPartitionSizes()
+	 */
+	public String getPartitionSizes() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (JournalStore s : this.partitions) {
+			if (sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(s.getSize());
+		}
+		return sb.toString();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getSize()
+	 */
+	public long getSize() throws IOException {
+		long size = 0;
+		for (JournalStore s : this.partitions) {
+			size += s.getSize();
+		}
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getMappedBytes()
+	 */
+	public long getMappedBytes() {
+		long bytes = 0;
+		for (JournalStore s : this.partitions) {
+			bytes += s.getMappedBytes();
+		}
+		return bytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCacheHitRatio()
+	 */
+	public double getCacheHitRatio() {
+		//按次数汇总，访问多的分区占的权重大
+		long hits = 0;
+		long total = 0;
+		for (JournalStore s : this.partitions) {
+			long h = s.getCacheHits();
+			hits += h;
+			total += h + s.getCacheMisses();
+		}
+		return total == 0 ? 0 : hits * 1.0d / total;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCacheHits()
+	 */
+	public long getCacheHits() {
+		long hits = 0;
+		for (JournalStore s : this.partitions) {
+			hits += s.getCacheHits();
+		}
+		return hits;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCacheMisses()
+	 */
+	public long getCacheMisses() {
+		long misses = 0;
+		for (JournalStore s : this.partitions) {
+			misses += s.getCacheMisses();
+		}
+		return misses;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCacheBytes()
+	 */
+	public long getCacheBytes() {
+		long bytes = 0;
+		for (JournalStore s : this.partitions) {
+			bytes += s.getCacheBytes();
+		}
+		return bytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getIndexMemory()
+	 */
+	public long getIndexMemory() {
+		long bytes = 0;
+		for (JournalStore s : this.partitions) {
+			bytes += s.getIndexMemory();
+		}
+		return bytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getIndexOverflowCount()
+	 */
+	public int getIndexOverflowCount() {
+		int count = 0;
+		for (JournalStore s : this.partitions) {
+			count += s.getIndexOverflowCount();
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getRecoveryTime()
+	 */
+	public long getRecoveryTime() {
+		long time = 0;
+		for (JournalStore s : this.partitions) {
+			time = Math.max(time, s.getRecoveryTime());
+		}
+		return time;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getRecoveryRecords()
+	 */
+	public long getRecoveryRecords() {
+		long records = 0;
+		for (JournalStore s : this.partitions) {
+			records += s.getRecoveryRecords();
+		}
+		return records;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getSyncCount()
+	 */
+	public long getSyncCount() {
+		long count = 0;
+		for (JournalStore s : this.partitions) {
+			count += s.getSyncCount();
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCompactedFiles()
+	 */
+	public long getCompactedFiles() {
+		long files = 0;
+		for (JournalStore s : this.partitions) {
+			files += s.getCompactedFiles();
+		}
+		return files;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.PartitionedStoreMBean#getCompactedBytes()
+	 */
+	public long getCompactedBytes() {
+		long bytes = 0;
+		for (JournalStore s : this.partitions) {
+			bytes += s.getCompactedBytes();
+		}
+		return bytes;
+	}
+}
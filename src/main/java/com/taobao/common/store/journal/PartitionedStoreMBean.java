@@ -0,0 +1,134 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+
+/**
+ * 分区存储的MBean，统计值是所有分区的汇总
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public interface PartitionedStoreMBean {
+
+	/**
+	 * 获取存储的路径
+	 * @return the path
+	 */
+	String getPath();
+
+	/**
+	 * 获取存储的名字
+	 * @return the name
+	 */
+	String getName();
+
+	/**
+	 * 获得分区的个数
+	 * @return 分区的个数
+	 */
+	int getPartitionCount();
+
+	/**
+	 * 获得每个分区的数据个数
+	 * @return 每个分区的数据个数，用逗号分隔
+	 * @throws IOException
+	 */
+	String getPartitionSizes() throws IOException;
+
+	/**
+	 * 获得数据的个数
+	 * @return 所有分区的数据个数
+	 * @throws IOException
+	 */
+	long getSize() throws IOException;
+
+	/**
+	 * 获得通过内存映射读取的数据文件一共映射了多少字节
+	 * @return 所有分区映射的字节数
+	 */
+	long getMappedBytes();
+
+	/**
+	 * 获得数据缓存的命中率
+	 * @return 所有分区命中的次数除以查找的次数，没有缓存返回0
+	 */
+	double getCacheHitRatio();
+
+	/**
+	 * 获得数据缓存命中的次数
+	 * @return 所有分区命中的次数
+	 */
+	long getCacheHits();
+
+	/**
+	 * 获得数据缓存没有命中的次数
+	 * @return 所有分区没有命中的次数
+	 */
+	long getCacheMisses();
+
+	/**
+	 * 获得数据缓存使用的字节数
+	 * @return 所有分区缓存使用的字节数
+	 */
+	long getCacheBytes();
+
+	/**
+	 * 获得堆外索引占用的内存
+	 * @return 所有分区堆外索引占用的字节数
+	 */
+	long getIndexMemory();
+
+	/**
+	 * 获得放不进堆外索引的槽、放在堆上的长key的个数
+	 * @return 所有分区的长key的个数
+	 */
+	int getIndexOverflowCount();
+
+	/**
+	 * 获得启动恢复的耗时，分区是同时恢复的
+	 * @return 最慢的分区恢复的毫秒数
+	 */
+	long getRecoveryTime();
+
+	/**
+	 * 获得启动恢复时重放的日志条数
+	 * @return 所有分区重放的日志条数
+	 */
+	long getRecoveryRecords();
+
+	/**
+	 * 获得组提交的刷盘次数
+	 * @return 所有分区的刷盘次数
+	 */
+	long getSyncCount();
+
+	/**
+	 * 获得整理掉的文件数
+	 * @return 所有分区整理掉的文件数
+	 */
+	long getCompactedFiles();
+
+	/**
+	 * 获得整理时搬动的字节数
+	 * @return 所有分区整理时搬动的字节数
+	 */
+	long getCompactedBytes();
+}
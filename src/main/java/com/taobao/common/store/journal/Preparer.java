@@ -0,0 +1,204 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 提前准备下一个文件的线程
+ * <p>当前文件还在写的时候，用临时的名字生成下一个编号的文件并预先分配好空间，
+ * 换文件时由{@link JournalStore}改成正式的名字直接换上，添加不用再等待创建和打开文件。
+ * 准备好一个之后等待它被取走，换文件时没有准备好就由换文件的线程自己创建，准备好的会作废。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class Preparer implements Runnable {
+	static Logger log = Logger.getLogger(Preparer.class);
+
+	/** 准备的文件使用的临时后缀，启动时遗留的会被删除 */
+	static final String SUFFIX = ".pre";
+
+	/** 准备失败之后重试的间隔，单位毫秒 */
+	private static final long RETRY_INTERVAL = 1000L;
+
+	private final JournalStore store;
+	private final Thread thread;
+	private volatile boolean running = true;
+	//已经准备好，还没有被取走的文件
+	private Prepared prepared = null;
+
+	/**
+	 * @param store
+	 */
+	Preparer(JournalStore store) {
+		this.store = store;
+		this.thread = new Thread(this, "store4j-preparer-" + store.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			int n = store.getNumber() + 1;
+			synchronized (this) {
+				if (null != prepared && prepared.number != n) { //换文件时没有等到，已经过时了
+					prepared.discard();
+					prepared = null;
+				}
+				if (null != prepared) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					continue;
+				}
+			}
+			Prepared p = null;
+			try {
+				p = store.prepare(n);
+			} catch (Throwable e) {
+				log.error("prepare error", e);
+				synchronized (this) {
+					if (running) {
+						try {
+							wait(RETRY_INTERVAL);
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+				continue;
+			}
+			synchronized (this) {
+				if (running) {
+					prepared = p;
+					p = null;
+				}
+			}
+			if (null != p) { //已经关闭了
+				p.discard();
+			}
+		}
+	}
+
+	/**
+	 * 取走准备好的文件，需要持有换文件的写锁
+	 * @param n 要换上的文件编号
+	 * @return 准备好的文件，没有准备好或者编号不对返回null
+	 */
+	synchronized Prepared take(int n) {
+		Prepared p = this.prepared;
+		this.prepared = null;
+		notifyAll();
+		if (null != p && p.number != n) {
+			p.discard();
+			return null;
+		}
+		return p;
+	}
+
+	/**
+	 * 停止线程，删除准备好还没有用的文件
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (null != prepared) {
+				prepared.discard();
+				prepared = null;
+			}
+		}
+	}
+
+	/**
+	 * 用临时的名字生成的一组文件：两个文件的格式下是数据文件和日志文件，单文件的格式下只有数据文件
+	 */
+	static class Prepared {
+		final int number;
+		final DataFile df;
+		final LogFile lf;
+		private final File dataFile;
+		private final File logFile;
+
+		/**
+		 * @param number 文件编号
+		 * @param df 用临时名字打开的数据文件
+		 * @param dataFile 数据文件正式的名字
+		 * @param lf 用临时名字打开的日志文件，单文件的格式下为null
+		 * @param logFile 日志文件正式的名字
+		 */
+		Prepared(int number, DataFile df, File dataFile, LogFile lf, File logFile) {
+			this.number = number;
+			this.df = df;
+			this.dataFile = dataFile;
+			this.lf = lf;
+			this.logFile = logFile;
+		}
+
+		/**
+		 * 改成正式的名字，失败的时候删除这组文件
+		 * @return 是否成功
+		 */
+		boolean install() {
+			try {
+				df.renameTo(dataFile);
+				if (null != lf) {
+					lf.renameTo(logFile);
+				}
+				return true;
+			} catch (IOException e) {
+				log.warn("install prepared file error:" + df, e);
+				discard();
+				return false;
+			}
+		}
+
+		/**
+		 * 关闭并删除这组文件
+		 */
+		void discard() {
+			try {
+				df.delete();
+				if (null != lf) {
+					lf.delete();
+				}
+			} catch (IOException e) {
+				log.warn("discard prepared file error:" + df, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 单文件格式的数据文件，数据和操作日志写在同一个文件中
+ * <p>文件格式为：文件头 + 记录 + 记录 + ...<br />
+ * 文件头为魔数和版本号，每条记录为一个{@link OpItem}，如果是添加的操作，后面紧跟着数据，
+ * 这时OpItem的offset就是数据在这个文件中的位置。删除的操作只有OpItem，写在被删除数据所在的文件中。</p>
+ * <p>版本1的记录是固定16字节key的格式，版本2的记录是变长key的格式，
+ * 版本3的记录是带校验的格式，版本4是压缩的格式，版本5是带过期时间的格式，这三个版本的文件头在魔数和版本号之后还有封存标记。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class SegmentFile extends DataFile {
+	static final String SUFFIX = ".seg";
+	static final int MAGIC = 0x53344A53; //S4JS
+	static final int VERSION = 1;
+	static final int VARIABLE_KEY_VERSION = 2;
+	static final int CHECKSUM_VERSION = 3;
+	static final int COMPRESSED_VERSION = 4;
+	static final int EXPIRE_VERSION = 5;
+	static final int HEADER_LENGTH = 8;
+	static final int CHECKSUM_HEADER_LENGTH = HEADER_LENGTH + SEAL_LENGTH;
+
+	/**
+	 * 构造函数，会打开指定的文件，新文件会写入文件头
+	 * @param file
+	 * @param force
+	 * @throws IOException
+	 */
+	SegmentFile(File file, boolean force) throws IOException {
+		this(file, force, OpItem.FORMAT_FIXED);
+	}
+
+	/**
+	 * 构造函数，会打开指定的文件，新文件会写入文件头
+	 * @param file
+	 * @param force
+	 * @param format 新文件使用的记录格式，已有的文件由文件头决定
+	 * @throws IOException
+	 */
+	SegmentFile(File file, boolean force, int format) throws IOException {
+		super(file, force);
+		if (fc.size() >= HEADER_LENGTH) {
+			ByteBuffer bf = ByteBuffer.allocate(HEADER_LENGTH);
+			read(bf, 0);
+			bf.flip();
+			int magic = bf.getInt();
+			int version = bf.getInt();
+			if (magic != MAGIC || version < VERSION || version > EXPIRE_VERSION) {
+				close();
+				throw new IOException("不是可以识别的数据文件:" + file + ", version:" + version);
+			}
+			this.format = version - VERSION; //版本号依次对应每种记录格式
+			if (!OpItem.hasChecksum(this.format)) {
+				return;
+			}
+			if (fc.size() >= CHECKSUM_HEADER_LENGTH) {
+				bf = ByteBuffer.allocate(SEAL_LENGTH);
+				read(bf, HEADER_LENGTH);
+				bf.flip();
+				readSeal(bf);
+				return;
+			}
+			format = this.format;
+		}
+		//新文件，或者文件头都没有写完整
+		ByteBuffer bf = ByteBuffer.allocate(OpItem.hasChecksum(format) ? CHECKSUM_HEADER_LENGTH : HEADER_LENGTH);
+		bf.putInt(MAGIC);
+		bf.putInt(VERSION + format);
+		if (OpItem.hasChecksum(format)) {
+			bf.put(newSeal(0));
+		}
+		bf.flip();
+		truncate(0);
+		write(bf);
+		this.format = format;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.taobao.common.store.journal.DataFile#getHeaderLength()
+	 */
+	@Override
+	long getHeaderLength() {
+		return OpItem.hasChecksum(this.format) ? CHECKSUM_HEADER_LENGTH : HEADER_LENGTH;
+	}
+}
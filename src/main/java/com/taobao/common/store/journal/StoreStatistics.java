@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+/**
+ * <b>存储的运行统计</b>
+ * <p>记录添加、读取、更新、删除的耗时分布，写入的字节数，换文件的次数，以及等待appendLock的次数和时间。
+ * 计数都是分段累加的，多个线程同时记录时不会争抢同一个缓存行；速率按{@link #reset()}之后经过的时间计算。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class StoreStatistics {
+	static final int ADD = 0;
+	static final int GET = 1;
+	static final int UPDATE = 2;
+	static final int REMOVE = 3;
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[] {
+			new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram() };
+	private final StripedCounter bytesWritten = new StripedCounter();
+	private final StripedCounter rollovers = new StripedCounter();
+	private final StripedCounter lockWaits = new StripedCounter();
+	private final StripedCounter lockWaitNanos = new StripedCounter();
+	private volatile long resetTime = System.nanoTime();
+
+	/**
+	 * 记录一次操作的耗时
+	 * @param op 操作的类型
+	 * @param begin 操作开始时的{@link System#nanoTime()}
+	 */
+	void record(int op, long begin) {
+		latencies[op].record(System.nanoTime() - begin);
+	}
+
+	/**
+	 * 记录写入的字节数
+	 * @param bytes
+	 */
+	void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * 记录一次换文件
+	 */
+	void rollover() {
+		rollovers.increment();
+	}
+
+	/**
+	 * 记录一次等待appendLock
+	 * @param nanos 等待的纳秒数
+	 */
+	void lockWait(long nanos) {
+		lockWaits.increment();
+		lockWaitNanos.add(nanos);
+	}
+
+	/**
+	 * @param op 操作的类型
+	 * @return 操作的次数
+	 */
+	long getCount(int op) {
+		return latencies[op].getCount();
+	}
+
+	/**
+	 * @param op 操作的类型
+	 * @return 每秒的操作次数
+	 */
+	double getRate(int op) {
+		return perSecond(getCount(op));
+	}
+
+	/**
+	 * @param op 操作的类型
+	 * @param percentile 0到100之间
+	 * @return 耗时的百分位，单位微秒
+	 */
+	double getLatency(int op, double percentile) {
+		return latencies[op].getValueAtPercentile(percentile) / 1000.0d;
+	}
+
+	/**
+	 * @return 写入的字节数
+	 */
+	long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return 每秒写入的字节数
+	 */
+	double getWriteThroughput() {
+		return perSecond(getBytesWritten());
+	}
+
+	/**
+	 * @return 换文件的次数
+	 */
+	long getRollovers() {
+		return rollovers.get();
+	}
+
+	/**
+	 * @return 等待appendLock的次数
+	 */
+	long getLockWaits() {
+		return lockWaits.get();
+	}
+
+	/**
+	 * @return 等待appendLock的总时间，单位微秒
+	 */
+	long getLockWaitTime() {
+		return lockWaitNanos.get() / 1000;
+	}
+
+	/**
+	 * 清空所有统计，重新开始计算速率
+	 */
+	void reset() {
+		for (LatencyHistogram h : latencies) {
+			h.reset();
+		}
+		bytesWritten.reset();
+		rollovers.reset();
+		lockWaits.reset();
+		lockWaitNanos.reset();
+		resetTime = System.nanoTime();
+	}
+
+	private double perSecond(long n) {
+		long nanos = Math.max(1, System.nanoTime() - resetTime);
+		return n * 1000000000.0d / nanos;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段的计数器
+ * <p>每个线程按线程编号累加到其中一段，段之间隔开一个缓存行，多个线程同时累加时不会争抢同一个缓存行；
+ * 读取时把所有段加起来，读取和累加同时进行时结果是近似的。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class StripedCounter {
+	/** 段数，必须是2的幂 */
+	static final int STRIPES = 16;
+	/** 相邻两段之间隔开的long个数，一个缓存行是64字节 */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * 当前线程使用的段
+	 * @return 段的序号
+	 */
+	static int stripe() {
+		return (int)Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	/**
+	 * 累加
+	 * @param delta
+	 */
+	void add(long delta) {
+		cells.addAndGet(stripe() * PADDING, delta);
+	}
+
+	/**
+	 * 加1
+	 */
+	void increment() {
+		add(1);
+	}
+
+	/**
+	 * @return 所有段的和
+	 */
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * 清零，和累加同时进行时可能留下一部分
+	 */
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.taobao.common.store.util.BytesKey;
+
+/**
+ * <b>分层的时间轮</b>
+ * <p>记录每个会过期的key什么时候过期，{@link #advance(long)}一次取出所有到期的key。
+ * 时间按tick分格，共{@link #LEVELS}层，每层{@link #SLOTS}格，第n层的一格是第n-1层转一圈的时间：
+ * 一秒的tick下四层分别覆盖约1分钟、1小时、3天和半年，更远的先放在最高层，转到时再重新放。
+ * 放入和取出都是O(1)的，高层的格转到时把其中的key搬到低层。</p>
+ * <p>key被删除或者更新时不从时间轮中去掉，到期时由调用者检查索引中的过期时间是不是还对得上。
+ * 所有方法都在这个对象上同步。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class TimingWheel {
+	/** 每层格数的位数 */
+	private static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	static final int LEVELS = 4;
+
+	/**
+	 * 时间轮中的一个key
+	 */
+	static final class Timer {
+		final BytesKey key;
+		/** 过期的时间，毫秒 */
+		final long expire;
+		/** 过期时间所在的格，向上取整 */
+		final long tick;
+
+		Timer(BytesKey key, long expire, long tick) {
+			this.key = key;
+			this.expire = expire;
+			this.tick = tick;
+		}
+	}
+
+	private final long tickMillis;
+	private final List<List<Timer>> slots = new ArrayList<List<Timer>>(LEVELS * SLOTS);
+	/** 已经转到的格，这一格和之前的都已经取出了 */
+	private long current;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis 每一格的毫秒数
+	 * @param now 现在的时间
+	 */
+	TimingWheel(long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.current = now / tickMillis;
+		for (int i = 0; i < LEVELS * SLOTS; i++) {
+			slots.add(new ArrayList<Timer>());
+		}
+	}
+
+	/**
+	 * 放入一个key
+	 * @param key
+	 * @param expire 过期的时间，毫秒
+	 */
+	synchronized void add(BytesKey key, long expire) {
+		//向上取整，转到这一格的时候一定已经过期了
+		long tick = expire / tickMillis + (expire % tickMillis == 0 ? 0 : 1);
+		place(new Timer(key, expire, tick));
+		size++;
+	}
+
+	/**
+	 * 转到now所在的格，取出所有到期的key
+	 * @param now 现在的时间
+	 * @return 到期的key，可能已经被删除或者更新了
+	 */
+	synchronized List<Timer> advance(long now) {
+		List<Timer> expired = new ArrayList<Timer>();
+		long target = now / tickMillis;
+		while (current < target) {
+			current++;
+			//高层的格转到时，先把其中的key搬到低层
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((current & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					List<Timer> slot = slot(level, current >>> (SLOT_BITS * level));
+					if (!slot.isEmpty()) {
+						List<Timer> timers = new ArrayList<Timer>(slot);
+						slot.clear();
+						for (Timer t : timers) {
+							if (t.tick == current) {
+								slot(0, current).add(t);
+							} else {
+								place(t);
+							}
+						}
+					}
+				}
+			}
+			List<Timer> slot = slot(0, current);
+			expired.addAll(slot);
+			slot.clear();
+		}
+		size -= expired.size();
+		return expired;
+	}
+
+	/**
+	 * @return 时间轮中的key数，包括已经被删除或者更新的
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * 把一个key放到对应的层和格
+	 */
+	private void place(Timer t) {
+		if (t.tick <= current) {
+			//已经过期了，下一格取出
+			slot(0, current + 1).add(t);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = SLOT_BITS * level;
+			if ((t.tick >>> shift) - (current >>> shift) < SLOTS) {
+				slot(level, t.tick >>> shift).add(t);
+				return;
+			}
+		}
+		//超出最高层的范围，先放在最高层最远的一格，转到时重新放
+		int shift = SLOT_BITS * (LEVELS - 1);
+		slot(LEVELS - 1, (current >>> shift) + SLOTS - 1).add(t);
+	}
+
+	private List<Timer> slot(int level, long index) {
+		return slots.get(level * SLOTS + (int)(index & (SLOTS - 1)));
+	}
+}
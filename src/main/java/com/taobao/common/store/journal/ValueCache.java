@@ -0,0 +1,465 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.taobao.common.store.util.BytesKey;
+import com.taobao.common.store.util.Key128;
+
+/**
+ * <b>按字节数限制大小的数据缓存</b>
+ * <p>淘汰策略是W-TinyLFU：新数据先进入一个很小的LRU窗口，被挤出窗口时，
+ * 和主缓存中最久没有访问的数据比较访问频率，频率高的留下，这样一次性扫描大量数据不会冲掉常用的数据。
+ * 主缓存分为试用区和保护区，试用区的数据再次被访问时进入保护区。
+ * 访问频率由一个定期减半的Count-Min Sketch估计。</p>
+ * <p>每个缓存项记录了数据所在的文件编号和偏移量，只有和索引中的位置一致时才算命中，
+ * 所以即使更新和读取同时进行，也不会读到旧的数据。</p>
+ * <p>读取不加锁：所有的缓存项同时放在一个ConcurrentHashMap中，读到之后把这次访问记到按线程分段的环形缓冲里，
+ * 缓冲满了就丢弃。缓冲积累到一半时，谁拿到锁谁把访问记录一起计入频率和LRU顺序，拿不到锁的直接返回。
+ * 放入和删除仍然持有锁，并顺便处理缓冲中的访问记录。
+ * 调用者查找用的key可能是重用的，缓冲中不记录它：命中时记录缓存项，缓存项中有放入时的key；没有命中时只记录hash。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class ValueCache {
+	/** 窗口占总大小的比例 */
+	private static final double WINDOW_RATIO = 0.01d;
+	/** 保护区占主缓存的比例 */
+	private static final double PROTECTED_RATIO = 0.8d;
+	/** 超过总大小的这个比例的数据不缓存 */
+	private static final int MAX_ENTRY_RATIO = 16;
+	/** 每段访问缓冲的大小，必须是2的幂 */
+	private static final int READ_BUFFER_SIZE = 64;
+
+	/**
+	 * 一个缓存项
+	 */
+	private static class Entry {
+		/** 放入时的key，不会被修改 */
+		final BytesKey key;
+		final int number;
+		final long offset;
+		final byte[] data;
+
+		Entry(BytesKey key, int number, long offset, byte[] data) {
+			this.key = key;
+			this.number = number;
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	/** 访问缓冲中表示没有命中的记录，只计入频率 */
+	private static final Entry MISS = new Entry(null, -1, -1, null);
+
+	/**
+	 * 一段访问缓冲，多个线程写入，持有锁的线程读出。写入时有冲突或者缓冲满了，这次访问就丢弃
+	 */
+	private static final class ReadBuffer {
+		private final AtomicReferenceArray<Entry> accessed = new AtomicReferenceArray<Entry>(READ_BUFFER_SIZE);
+		/** 访问的key的hash，在accessed中对应的位置写入之前写好 */
+		private final int[] hashes = new int[READ_BUFFER_SIZE];
+		private final AtomicLong writes = new AtomicLong(0);
+		/** 只在持有锁时修改 */
+		private volatile long reads = 0;
+
+		/**
+		 * 记录一次访问
+		 * @param e 命中的缓存项，没有命中时是{@link ValueCache#MISS}
+		 * @param hash 访问的key的hash
+		 * @return 缓冲中还没有处理的访问记录数，没有记下时返回缓冲的大小
+		 */
+		int offer(Entry e, int hash) {
+			long w = writes.get();
+			long pending = w - reads;
+			if (pending >= READ_BUFFER_SIZE || !writes.compareAndSet(w, w + 1)) {
+				return READ_BUFFER_SIZE;
+			}
+			int i = (int)w & (READ_BUFFER_SIZE - 1);
+			hashes[i] = hash;
+			accessed.lazySet(i, e);
+			return (int)pending + 1;
+		}
+
+		/**
+		 * 取出所有已经写好的访问记录，需要持有锁
+		 */
+		void drain(ValueCache cache) {
+			long r = reads;
+			long w = writes.get();
+			for (; r < w; r++) {
+				int i = (int)r & (READ_BUFFER_SIZE - 1);
+				Entry e = accessed.get(i);
+				if (null == e) { //还没有写进来，下次再处理
+					break;
+				}
+				accessed.lazySet(i, null);
+				cache.onAccess(e, hashes[i]);
+			}
+			reads = r;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final long capacity;
+	private final long windowCapacity;
+	private final long protectedCapacity;
+	private final long maxEntry;
+
+	//按访问顺序排列，第一个是最久没有访问的
+	private final LinkedHashMap<BytesKey, Entry> window = new LinkedHashMap<BytesKey, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<BytesKey, Entry> probation = new LinkedHashMap<BytesKey, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<BytesKey, Entry> protect = new LinkedHashMap<BytesKey, Entry>(16, 0.75f, true);
+	private long windowBytes = 0;
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+
+	/** 所有的缓存项，读取时不加锁；和三个区一起在持有锁时修改 */
+	private final ConcurrentHashMap<BytesKey, Entry> entries = new ConcurrentHashMap<BytesKey, Entry>();
+	private final ReadBuffer[] readBuffers = new ReadBuffer[StripedCounter.STRIPES];
+
+	private final FrequencySketch sketch;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * @param capacity 最多缓存的字节数
+	 */
+	ValueCache(long capacity) {
+		this.capacity = capacity;
+		this.windowCapacity = Math.max(1, (long)(capacity * WINDOW_RATIO));
+		this.protectedCapacity = (long)((capacity - windowCapacity) * PROTECTED_RATIO);
+		this.maxEntry = capacity / MAX_ENTRY_RATIO;
+		this.sketch = new FrequencySketch((int)Math.min(1 << 24, Math.max(1024, capacity / 1024)));
+		for (int i = 0; i < readBuffers.length; i++) {
+			readBuffers[i] = new ReadBuffer();
+		}
+	}
+
+	/**
+	 * 取缓存的数据
+	 * @param k
+	 * @param op 索引中的位置
+	 * @return 缓存的数据，不能修改；没有缓存或者位置不一致返回null
+	 */
+	byte[] get(BytesKey k, OpItem op) {
+		Entry e = entries.get(k);
+		if (readBuffers[StripedCounter.stripe()].offer(null == e ? MISS : e, k.hashCode()) >= READ_BUFFER_SIZE / 2
+				&& lock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (null != e && e.number == op.number && e.offset == op.offset) {
+			hits.increment();
+			return e.data;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * 把缓冲中的访问记录计入频率和LRU顺序，需要持有锁
+	 */
+	private void drainReads() {
+		for (ReadBuffer b : readBuffers) {
+			b.drain(this);
+		}
+	}
+
+	/**
+	 * 处理一次访问，需要持有锁
+	 * @param accessed 命中的缓存项，没有命中时是{@link #MISS}
+	 * @param hash 访问的key的hash
+	 */
+	private void onAccess(Entry accessed, int hash) {
+		sketch.increment(hash);
+		if (MISS == accessed) {
+			return;
+		}
+		BytesKey k = accessed.key;
+		//按访问顺序排列的LinkedHashMap，get会把它移到最后
+		if (null != window.get(k) || null != protect.get(k)) {
+			return;
+		}
+		Entry e = probation.remove(k);
+		if (null != e) {
+			//试用区的数据再次被访问，进入保护区
+			probationBytes -= e.data.length;
+			protect.put(k, e);
+			protectedBytes += e.data.length;
+			demote();
+		}
+	}
+
+	/**
+	 * 缓存从文件中读到的数据
+	 * @param k
+	 * @param op 数据的位置
+	 * @param data
+	 */
+	void put(BytesKey k, OpItem op, byte[] data) {
+		if (data.length > maxEntry) {
+			return;
+		}
+		if (!(k instanceof Key128)) {
+			//缓存会一直持有key，不能用调用者可能修改或者重用的数组
+			k = new BytesKey(k.getData().clone());
+		}
+		lock.lock();
+		try {
+			drainReads();
+			remove(k);
+			Entry e = new Entry(k, op.number, op.offset, data);
+			window.put(k, e);
+			entries.put(k, e);
+			windowBytes += data.length;
+			//挤出窗口的数据，和主缓存中最久没有访问的数据比较访问频率
+			Iterator<Map.Entry<BytesKey, Entry>> it = window.entrySet().iterator();
+			while (windowBytes > windowCapacity && it.hasNext()) {
+				Map.Entry<BytesKey, Entry> candidate = it.next();
+				it.remove();
+				windowBytes -= candidate.getValue().data.length;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 数据被更新或者删除了，去掉缓存
+	 * @param k
+	 */
+	void invalidate(BytesKey k) {
+		if (!entries.containsKey(k)) {
+			//同时放入的是按旧位置读到的数据，读取时位置对不上，不会命中
+			return;
+		}
+		lock.lock();
+		try {
+			remove(k);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 挤出窗口的数据尝试进入主缓存的试用区
+	 */
+	private void admit(BytesKey k, Entry e) {
+		long mainCapacity = capacity - windowCapacity;
+		int frequency = sketch.frequency(k);
+		while (probationBytes + protectedBytes + e.data.length > mainCapacity) {
+			if (probation.isEmpty() && protect.isEmpty()) {
+				entries.remove(k);
+				return;
+			}
+			LinkedHashMap<BytesKey, Entry> from = probation.isEmpty() ? protect : probation;
+			Map.Entry<BytesKey, Entry> victim = from.entrySet().iterator().next();
+			if (frequency <= sketch.frequency(victim.getKey())) {
+				//新数据的访问频率不够高，不进入
+				entries.remove(k);
+				evictions.incrementAndGet();
+				return;
+			}
+			from.remove(victim.getKey());
+			entries.remove(victim.getKey());
+			if (from == probation) {
+				probationBytes -= victim.getValue().data.length;
+			} else {
+				protectedBytes -= victim.getValue().data.length;
+			}
+			evictions.incrementAndGet();
+		}
+		probation.put(k, e);
+		probationBytes += e.data.length;
+	}
+
+	/**
+	 * 保护区满了，把最久没有访问的数据放回试用区
+	 */
+	private void demote() {
+		Iterator<Map.Entry<BytesKey, Entry>> it = protect.entrySet().iterator();
+		while (protectedBytes > protectedCapacity && it.hasNext()) {
+			Map.Entry<BytesKey, Entry> e = it.next();
+			it.remove();
+			protectedBytes -= e.getValue().data.length;
+			probation.put(e.getKey(), e.getValue());
+			probationBytes += e.getValue().data.length;
+		}
+	}
+
+	private void remove(BytesKey k) {
+		entries.remove(k);
+		Entry e = window.remove(k);
+		if (null != e) {
+			windowBytes -= e.data.length;
+		}
+		e = probation.remove(k);
+		if (null != e) {
+			probationBytes -= e.data.length;
+		}
+		e = protect.remove(k);
+		if (null != e) {
+			protectedBytes -= e.data.length;
+		}
+	}
+
+	/**
+	 * @return 命中率
+	 */
+	double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : h * 1.0d / total;
+	}
+
+	/**
+	 * @return 命中的次数
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return 没有命中的次数
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return 淘汰或者没有被接纳的次数
+	 */
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return 缓存的数据个数
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return window.size() + probation.size() + protect.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return 缓存的字节数
+	 */
+	long getBytes() {
+		lock.lock();
+		try {
+			return windowBytes + probationBytes + protectedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <b>估计访问频率的Count-Min Sketch</b>
+	 * <p>4行计数器，每个计数器最大15，总的访问次数达到计数器个数的10倍时所有计数器减半，
+	 * 让过去的热点慢慢冷却。</p>
+	 */
+	static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int[] SEEDS = {0x97CB3127, 0xB4B82E5F, 0x8AEB4A5B, 0x5A3F27C1};
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int size = 0;
+
+		/**
+		 * @param width 每行的计数器个数，会调整为2的幂
+		 */
+		FrequencySketch(int width) {
+			int w = 1;
+			while (w < width) {
+				w <<= 1;
+			}
+			this.table = new byte[DEPTH][w];
+			this.mask = w - 1;
+			this.sampleSize = 10 * w;
+		}
+
+		/**
+		 * @param hashCode key的hashCode
+		 */
+		void increment(int hashCode) {
+			int h = hash(hashCode);
+			boolean added = false;
+			for (int i = 0; i < DEPTH; i++) {
+				int idx = index(h, i);
+				if (table[i][idx] < 15) {
+					table[i][idx]++;
+					added = true;
+				}
+			}
+			if (added && ++size >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(BytesKey k) {
+			int h = hash(k.hashCode());
+			int f = Integer.MAX_VALUE;
+			for (int i = 0; i < DEPTH; i++) {
+				f = Math.min(f, table[i][index(h, i)]);
+			}
+			return f;
+		}
+
+		private int index(int h, int i) {
+			int x = (h ^ SEEDS[i]) * 0x9E3779B9;
+			return (x ^ (x >>> 16)) & mask;
+		}
+
+		private void reset() {
+			for (byte[] row : table) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte)(row[i] >> 1);
+				}
+			}
+			size /= 2;
+		}
+
+		private static int hash(int h) {
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h;
+		}
+	}
+}
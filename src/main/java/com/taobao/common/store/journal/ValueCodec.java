@@ -0,0 +1,141 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.taobao.common.store.util.Lz4;
+
+/**
+ * 压缩的格式中数据的编码
+ * <p>每个数据前面有一个头：压缩方式(1字节) + 原始长度(4字节)，后面是压缩之后的数据。
+ * 小于阈值的数据、压缩之后没有变小的数据不压缩，压缩方式为{@link #NONE}。
+ * 操作日志中的长度是编码之后的长度，校验和也是对编码之后的数据算的。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class ValueCodec {
+	static final byte NONE = 0;
+	static final byte LZ4 = 1;
+	/** 数据头的长度：压缩方式 + 原始长度 */
+	static final int HEADER_LENGTH = 1 + 4;
+
+	/**
+	 * 编码bf中剩下的数据，bf的position不变
+	 * @param bf
+	 * @param threshold 小于这个长度的数据不压缩
+	 * @return 编码之后的数据
+	 */
+	static ByteBuffer encode(ByteBuffer bf, int threshold) {
+		int length = bf.remaining();
+		byte[] src;
+		int off;
+		if (bf.hasArray()) {
+			src = bf.array();
+			off = bf.arrayOffset() + bf.position();
+		} else {
+			src = new byte[length];
+			bf.duplicate().get(src);
+			off = 0;
+		}
+		if (length >= threshold) {
+			byte[] dst = new byte[HEADER_LENGTH + Lz4.maxCompressedLength(length)];
+			int len = Lz4.compress(src, off, length, dst, HEADER_LENGTH);
+			if (len < length) {
+				return header(dst, LZ4, length, len);
+			}
+		}
+		byte[] dst = new byte[HEADER_LENGTH + length];
+		System.arraycopy(src, off, dst, HEADER_LENGTH, length);
+		return header(dst, NONE, length, length);
+	}
+
+	/**
+	 * 在编码之后的数据前面写上数据头
+	 */
+	private static ByteBuffer header(byte[] dst, byte codec, int rawLength, int length) {
+		ByteBuffer bf = ByteBuffer.wrap(dst, 0, HEADER_LENGTH + length);
+		bf.put(0, codec);
+		bf.putInt(1, rawLength);
+		return bf;
+	}
+
+	/**
+	 * 获得编码之前的长度
+	 * @param stored 编码之后的数据，至少包含数据头
+	 * @param off
+	 * @return 原始长度
+	 */
+	static int rawLength(byte[] stored, int off) {
+		return ByteBuffer.wrap(stored, off, HEADER_LENGTH).getInt(off + 1);
+	}
+
+	/**
+	 * 解码一个数据
+	 * @param stored
+	 * @param off
+	 * @param length 编码之后的长度
+	 * @return 原始数据
+	 * @throws IOException 数据头不对，或者压缩的数据损坏了
+	 */
+	static byte[] decode(byte[] stored, int off, int length) throws IOException {
+		if (length < HEADER_LENGTH) {
+			throw new IOException("数据长度不对:" + length);
+		}
+		byte[] data = new byte[rawLength(stored, off)];
+		decode(stored, off, length, data, 0);
+		return data;
+	}
+
+	/**
+	 * 解码一个数据到dst中，dst的剩余空间不能小于原始长度
+	 * @param stored
+	 * @param off
+	 * @param length 编码之后的长度
+	 * @param dst
+	 * @param dstOff
+	 * @return 原始长度
+	 * @throws IOException 数据头不对，或者压缩的数据损坏了
+	 */
+	static int decode(byte[] stored, int off, int length, byte[] dst, int dstOff) throws IOException {
+		byte codec = stored[off];
+		int rawLength = rawLength(stored, off);
+		int len = length - HEADER_LENGTH;
+		if (codec == NONE && len == rawLength) {
+			System.arraycopy(stored, off + HEADER_LENGTH, dst, dstOff, len);
+			return len;
+		}
+		if (codec != LZ4 || rawLength < 0) {
+			throw new IOException("不能识别的数据编码:" + codec + ", 原始长度:" + rawLength);
+		}
+		try {
+			int n = Lz4.decompress(stored, off + HEADER_LENGTH, len, dst, dstOff, rawLength);
+			if (n != rawLength) {
+				throw new IOException("解压之后的长度不对:" + n + ", 原始长度:" + rawLength);
+			}
+			return n;
+		} catch (IllegalArgumentException e) {
+			IOException ioe = new IOException("解压数据失败");
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 按位置读取数据文件中一段数据的输入流，每次读取都是一次定位读，不会移动文件指针，
+ * 多个流可以同时读同一个文件
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class ValueInputStream extends InputStream {
+	private final DataFile df;
+	/** 数据在文件中的起始位置 */
+	private final long offset;
+	private final int length;
+	/** 已经读过的字节数 */
+	private int pos = 0;
+	private int mark = 0;
+
+	/**
+	 * @param df
+	 * @param offset 数据在文件中的起始位置
+	 * @param length 数据的长度
+	 */
+	ValueInputStream(DataFile df, long offset, int length) {
+		this.df = df;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (pos >= length) {
+			return -1;
+		}
+		ByteBuffer bf = ByteBuffer.wrap(b, off, Math.min(len, length - pos));
+		if (!df.readMapped(bf, offset + pos)) {
+			df.read(bf, offset + pos);
+		}
+		int n = bf.position() - off;
+		if (n <= 0 && len > 0) {
+			throw new IOException("数据不完整：" + df + ", offset:" + (offset + pos));
+		}
+		pos += n;
+		return n;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipped = (int)Math.min(n, length - pos);
+		pos += skipped;
+		return skipped;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() {
+		return length - pos;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#markSupported()
+	 */
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#mark(int)
+	 */
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = pos;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#reset()
+	 */
+	@Override
+	public synchronized void reset() {
+		pos = mark;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.taobao.common.store.util.Util;
+
+/**
+ * <b>流式写入一个数据</b>
+ * <p>写入的数据先放在内存中，超过{@link #MEMORY_LIMIT}之后写到存储目录下的临时文件中。
+ * {@link #close()}时把临时文件映射到内存，作为一个数据添加到存储中，然后删除临时文件，
+ * 整个数据不会放在堆上。压缩的格式下，临时文件的开头留出数据头，写入的数据不压缩。</p>
+ * <p>关闭之前写入的数据是看不到的，key已经存在时关闭会抛出异常；
+ * {@link #abort()}放弃写入的数据。不是线程安全的。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class ValueWriter extends OutputStream implements WritableByteChannel {
+	/** 临时文件的后缀 */
+	static final String SUFFIX = ".stream";
+	/** 放在内存中的最大字节数，更大的数据写到临时文件 */
+	static final int MEMORY_LIMIT = 64 * 1024;
+
+	private final JournalStore store;
+	private final byte[] key;
+	private final File dir;
+	private final String prefix;
+	/** 压缩的格式下临时文件开头留出的数据头长度，其他格式为0 */
+	private final int headerLength;
+	private byte[] buf = new byte[256];
+	private int count = 0;
+	/** 写到临时文件的数据长度，不包括数据头 */
+	private long length = 0;
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private FileChannel fc = null;
+	private boolean closed = false;
+
+	/**
+	 * @param store
+	 * @param key
+	 * @param dir 临时文件所在的目录
+	 * @param prefix 临时文件名的前缀
+	 * @param framed 是否写成压缩的格式中存放的形式
+	 */
+	ValueWriter(JournalStore store, byte[] key, File dir, String prefix, boolean framed) {
+		this.store = store;
+		this.key = key;
+		this.dir = dir;
+		this.prefix = prefix;
+		this.headerLength = framed ? ValueCodec.HEADER_LENGTH : 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		int len = src.remaining();
+		if (null == fc && count + len <= MEMORY_LIMIT) {
+			if (count + len > buf.length) {
+				byte[] b = new byte[Math.min(MEMORY_LIMIT, Math.max(buf.length * 2, count + len))];
+				System.arraycopy(buf, 0, b, 0, count);
+				buf = b;
+			}
+			src.get(buf, count, len);
+			count += len;
+			return len;
+		}
+		if (null == fc) {
+			spill();
+		}
+		while (src.hasRemaining()) {
+			fc.write(src, headerLength + length + (len - src.remaining()));
+		}
+		length += len;
+		return len;
+	}
+
+	/**
+	 * 内存中放不下了，把已经写入的数据转到临时文件
+	 */
+	private void spill() throws IOException {
+		file = File.createTempFile(prefix, SUFFIX, dir);
+		raf = new RandomAccessFile(file, "rw");
+		fc = raf.getChannel();
+		ByteBuffer bf = ByteBuffer.wrap(buf, 0, count);
+		while (bf.hasRemaining()) {
+			fc.write(bf, headerLength + bf.position());
+		}
+		length = count;
+		buf = null;
+		count = 0;
+	}
+
+	/**
+	 * 已经写入的字节数
+	 * @return 字节数
+	 */
+	public long getLength() {
+		return null == fc ? count : length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * 把写入的数据作为一个数据添加到存储中，已经关闭的不做任何事情
+	 * @throws IOException key已经存在，或者写入失败
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (null == fc) {
+			store.add(key, ByteBuffer.wrap(buf, 0, count), false);
+			buf = null;
+			return;
+		}
+		MappedByteBuffer m = null;
+		try {
+			if (length > Integer.MAX_VALUE - headerLength) {
+				throw new IOException("数据太大：" + length);
+			}
+			if (headerLength > 0) {
+				ByteBuffer header = ByteBuffer.allocate(headerLength);
+				header.put(ValueCodec.NONE);
+				header.putInt((int)length);
+				header.flip();
+				while (header.hasRemaining()) {
+					fc.write(header, header.position());
+				}
+			}
+			m = fc.map(FileChannel.MapMode.READ_ONLY, 0, headerLength + length);
+			store.add(key, m, headerLength > 0);
+		} finally {
+			Util.release(m);
+			discard();
+		}
+	}
+
+	/**
+	 * 放弃写入的数据，删除临时文件
+	 * @throws IOException
+	 */
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buf = null;
+		discard();
+	}
+
+	/**
+	 * 关闭并删除临时文件
+	 */
+	private void discard() throws IOException {
+		if (null == fc) {
+			return;
+		}
+		try {
+			raf.close();
+		} finally {
+			if (!file.delete()) {
+				JournalStore.log.warn("删除临时文件失败：" + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <b>一批写操作</b>
+ * <p>通过{@link JournalStore#write(WriteBatch)}一次写入，要么全部生效，要么全部不生效。
+ * 操作按加入的顺序执行，update和remove一个不存在的key时什么也不做，
+ * add一个已经存在的key会让整批写入失败。key的长度由store的配置决定，在写入时检查。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class WriteBatch {
+	static final byte ADD = 1;
+	static final byte UPDATE = 2;
+	static final byte REMOVE = 3;
+
+	/**
+	 * 批量写入中的一个操作
+	 */
+	static class Entry {
+		final byte type;
+		final byte[] key;
+		final byte[] data;
+
+		Entry(byte type, byte[] key, byte[] data) {
+			this.type = type;
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * 添加一个数据
+	 * @param key
+	 * @param data
+	 * @return this
+	 */
+	public WriteBatch add(byte[] key, byte[] data) {
+		checkParam(key, data);
+		entries.add(new Entry(ADD, key, data));
+		return this;
+	}
+
+	/**
+	 * 更新一个数据
+	 * @param key
+	 * @param data
+	 * @return this
+	 */
+	public WriteBatch update(byte[] key, byte[] data) {
+		checkParam(key, data);
+		entries.add(new Entry(UPDATE, key, data));
+		return this;
+	}
+
+	/**
+	 * 删除一个数据
+	 * @param key
+	 * @return this
+	 */
+	public WriteBatch remove(byte[] key) {
+		if (null == key) throw new NullPointerException("key can't be null");
+		entries.add(new Entry(REMOVE, key, null));
+		return this;
+	}
+
+	/**
+	 * @return 操作的个数
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return 是否没有任何操作
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * 清空所有操作，以便重用
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return 所有的操作
+	 */
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	private void checkParam(byte[] key, byte[] data) {
+		if (null == key || null == data) throw new NullPointerException("key/data can't be null");
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.journal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步写入的结果，由写线程完成，不支持取消
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+class WriteFuture<T> implements Future<T> {
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile T result;
+	private volatile Throwable error;
+
+	/**
+	 * 设置成功的结果
+	 * @param result
+	 */
+	void complete(T result) {
+		this.result = result;
+		latch.countDown();
+	}
+
+	/**
+	 * 设置失败的原因
+	 * @param error
+	 */
+	void fail(Throwable error) {
+		this.error = error;
+		latch.countDown();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get()
+	 */
+	public T get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return getResult();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (null != error) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+}
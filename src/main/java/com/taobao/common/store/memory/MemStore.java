@@ -40,14 +40,14 @@ public class MemStore implements Store {
 	 * @see com.taobao.common.store.Store#add(byte[], byte[])
 	 */
 	public void add(byte[] key, byte[] data) throws IOException {
-		datas.put(new BytesKey(key), data);
+		datas.put(BytesKey.valueOf(key), data);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.taobao.common.store.Store#get(byte[])
 	 */
 	public byte[] get(byte[] key) throws IOException {
-		return datas.get(new BytesKey(key));
+		return datas.get(BytesKey.valueOf(key));
 	}
 
 	/* (non-Javadoc)
@@ -78,7 +78,7 @@ public class MemStore implements Store {
 	 * @see com.taobao.common.store.Store#remove(byte[])
 	 */
 	public boolean remove(byte[] key) throws IOException {
-		return null != datas.remove(new BytesKey(key));
+		return null != datas.remove(BytesKey.valueOf(key));
 	}
 
 	/* (non-Javadoc)
@@ -92,7 +92,7 @@ public class MemStore implements Store {
 	 * @see com.taobao.common.store.Store#update(byte[], byte[])
 	 */
 	public boolean update(byte[] key, byte[] data) throws IOException {
-		datas.put(new BytesKey(key), data);
+		datas.put(BytesKey.valueOf(key), data);
 		return true;
 	}
 
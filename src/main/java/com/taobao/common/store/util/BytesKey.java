@@ -40,6 +40,18 @@ public class BytesKey implements Serializable {
 		this.data = data;
 	}
 
+	/**
+	 * 生成不可变的key，16字节的key用{@link Key128}表示，比较和计算hash都只用两个long
+	 * @param data
+	 * @return key
+	 */
+	public static BytesKey valueOf(byte[] data) {
+		if (null != data && data.length == Key128.LENGTH) {
+			return Key128.valueOf(data, 0);
+		}
+		return new BytesKey(data);
+	}
+
 	/**
 	 * @return the data
 	 */
@@ -56,17 +68,36 @@ public class BytesKey implements Serializable {
 	
 	@Override
 	public int hashCode() {
+		return hash(this.data);
+	}
+
+	/**
+	 * 按内容计算hash，和内容相同的BytesKey的hashCode一样，不用为了算hash生成BytesKey
+	 * @param data
+	 * @return hash值
+	 */
+	public static int hash(byte[] data) {
+		if (null == data) {
+			return 0;
+		}
+		if (data.length == Key128.LENGTH) { //和内容相同的Key128一样
+			return Key128.hash(Key128.word(data, 0), Key128.word(data, 8));
+		}
 		int h = 0;
-		if (null != this.data) {
-	        for (int i = 0; i < this.data.length; i++) {
-	            h = 31*h + data[i++];
-	        }
+		for (int i = 0; i < data.length; i++) {
+			h = 31 * h + data[i];
 		}
-        return h;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
 	}
 	
 	@Override
 	public boolean equals(Object o) {
+		if (o instanceof Key128) {
+			return o.equals(this);
+		}
 		if (null == o || !(o instanceof BytesKey)) {
 			return false;
 		}
@@ -0,0 +1,164 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C(Castagnoli)校验和，一次处理8个字节的查表实现
+ * <p>jdk9之前没有自带的CRC32C，这里自己实现，结果和java.util.zip.CRC32C一样</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class Crc32c implements Checksum {
+	/** Castagnoli多项式的反转表示 */
+	private static final int POLY = 0x82F63B78;
+	private static final int[][] TABLE = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i;
+			for (int k = 0; k < 8; k++) {
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+			}
+			TABLE[0][i] = c;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < 8; t++) {
+				TABLE[t][i] = (TABLE[t - 1][i] >>> 8) ^ TABLE[0][TABLE[t - 1][i] & 0xFF];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	/**
+	 * 计算一段字节数组的CRC32C
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return 校验和
+	 */
+	public static int checksum(byte[] b, int off, int len) {
+		return ~update(0xFFFFFFFF, b, off, len);
+	}
+
+	/**
+	 * 计算bf中剩下的字节的CRC32C，bf的position不变
+	 * @param bf
+	 * @return 校验和
+	 */
+	public static int checksum(ByteBuffer bf) {
+		return checksum(bf, bf.position(), bf.limit());
+	}
+
+	/**
+	 * 计算bf中[from, to)的CRC32C，按绝对位置读取，不改变bf的position，也不生成新的对象
+	 * @param bf
+	 * @param from
+	 * @param to
+	 * @return 校验和
+	 */
+	public static int checksum(ByteBuffer bf, int from, int to) {
+		return ~update(0xFFFFFFFF, bf, from, to);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(int)
+	 */
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xFF];
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(byte[], int, int)
+	 */
+	public void update(byte[] b, int off, int len) {
+		crc = update(crc, b, off, len);
+	}
+
+	/**
+	 * 在c的基础上加入字节数组的一段，每次处理8个字节
+	 */
+	private static int update(int c, byte[] b, int off, int len) {
+		int end = off + len;
+		while (end - off >= 8) {
+			int lo = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			c = TABLE[7][lo & 0xFF] ^ TABLE[6][(lo >>> 8) & 0xFF] ^ TABLE[5][(lo >>> 16) & 0xFF] ^ TABLE[4][lo >>> 24]
+					^ TABLE[3][b[off + 4] & 0xFF] ^ TABLE[2][b[off + 5] & 0xFF]
+					^ TABLE[1][b[off + 6] & 0xFF] ^ TABLE[0][b[off + 7] & 0xFF];
+			off += 8;
+		}
+		while (off < end) {
+			c = (c >>> 8) ^ TABLE[0][(c ^ b[off++]) & 0xFF];
+		}
+		return c;
+	}
+
+	/**
+	 * 在c的基础上加入bf中[from, to)的字节。堆外的缓冲区每次按小端读出8个字节，不复制到数组
+	 */
+	private static int update(int c, ByteBuffer bf, int from, int to) {
+		if (bf.hasArray()) {
+			return update(c, bf.array(), bf.arrayOffset() + from, to - from);
+		}
+		boolean little = bf.order() == ByteOrder.LITTLE_ENDIAN;
+		while (to - from >= 8) {
+			long v = bf.getLong(from);
+			if (!little) {
+				v = Long.reverseBytes(v);
+			}
+			int lo = c ^ (int)v;
+			int hi = (int)(v >>> 32);
+			c = TABLE[7][lo & 0xFF] ^ TABLE[6][(lo >>> 8) & 0xFF] ^ TABLE[5][(lo >>> 16) & 0xFF] ^ TABLE[4][lo >>> 24]
+					^ TABLE[3][hi & 0xFF] ^ TABLE[2][(hi >>> 8) & 0xFF]
+					^ TABLE[1][(hi >>> 16) & 0xFF] ^ TABLE[0][hi >>> 24];
+			from += 8;
+		}
+		while (from < to) {
+			c = (c >>> 8) ^ TABLE[0][(c ^ bf.get(from++)) & 0xFF];
+		}
+		return c;
+	}
+
+	/**
+	 * 加入bf中剩下的字节，bf的position不变
+	 * @param bf
+	 */
+	public void update(ByteBuffer bf) {
+		crc = update(crc, bf, bf.position(), bf.limit());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#getValue()
+	 */
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#reset()
+	 */
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.util;
+
+/**
+ * 16字节的key，比如{@link UniqId}生成的MD5，按大端存成两个long。
+ * <br />
+ * hashCode和equals只比较这两个long，和内容相同的{@link BytesKey}相等，hashCode也一样，
+ * 所以两种key可以在同一个map中混用
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public final class Key128 extends BytesKey {
+	/**
+	 * serialVersionUID
+	 */
+	private static final long serialVersionUID = 3721452283317498817L;
+
+	/** key的字节数 */
+	public static final int LENGTH = 16;
+
+	private final long hi;
+	private final long lo;
+
+	/**
+	 * @param hi 前8个字节
+	 * @param lo 后8个字节
+	 */
+	public Key128(long hi, long lo) {
+		super(null);
+		this.hi = hi;
+		this.lo = lo;
+	}
+
+	/**
+	 * 从字节数组中解出key，不保留对数组的引用
+	 * @param b
+	 * @param off key的起始位置，之后至少有16个字节
+	 * @return key
+	 */
+	public static Key128 valueOf(byte[] b, int off) {
+		return new Key128(word(b, off), word(b, off + 8));
+	}
+
+	/**
+	 * @return 前8个字节
+	 */
+	public long getHi() {
+		return hi;
+	}
+
+	/**
+	 * @return 后8个字节
+	 */
+	public long getLo() {
+		return lo;
+	}
+
+	/**
+	 * 每次生成一个新的字节数组
+	 * @see com.taobao.common.store.util.BytesKey#getData()
+	 */
+	@Override
+	public byte[] getData() {
+		byte[] b = new byte[LENGTH];
+		for (int i = 0; i < 8; i++) {
+			b[i] = (byte)(hi >>> (56 - i * 8));
+			b[i + 8] = (byte)(lo >>> (56 - i * 8));
+		}
+		return b;
+	}
+
+	/**
+	 * 不可修改
+	 * @see com.taobao.common.store.util.BytesKey#setData(byte[])
+	 */
+	@Override
+	public void setData(byte[] data) {
+		throw new UnsupportedOperationException("Key128 is immutable");
+	}
+
+	@Override
+	public int hashCode() {
+		return hash(hi, lo);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof Key128) {
+			Key128 k = (Key128)o;
+			return hi == k.hi && lo == k.lo;
+		}
+		if (null == o || !(o instanceof BytesKey)) {
+			return false;
+		}
+		byte[] d = ((BytesKey)o).getData();
+		return null != d && d.length == LENGTH && hi == word(d, 0) && lo == word(d, 8);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toHexString(hi) + ":" + Long.toHexString(lo);
+	}
+
+	/**
+	 * 按大端读出从off开始的8个字节
+	 */
+	static long word(byte[] b, int off) {
+		return (b[off] & 0xFFL) << 56 | (b[off + 1] & 0xFFL) << 48 | (b[off + 2] & 0xFFL) << 40
+				| (b[off + 3] & 0xFFL) << 32 | (b[off + 4] & 0xFFL) << 24 | (b[off + 5] & 0xFFL) << 16
+				| (b[off + 6] & 0xFFL) << 8 | (b[off + 7] & 0xFFL);
+	}
+
+	/**
+	 * 两个long混合之后的hash值，每一位都会影响结果
+	 */
+	static int hash(long hi, long lo) {
+		long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package com.taobao.common.store.util;
+
+/**
+ * LZ4块格式的压缩和解压，纯java实现
+ * <p>压缩使用单个哈希表找4字节的重复，匹配不到的时候步长逐渐变大，速度优先；
+ * 输出是标准的LZ4块格式，可以用其他的LZ4实现解压。</p>
+ *
+ * @author dogun (yuexuqiang at gmail.com)
+ */
+public class Lz4 {
+	private static final int MIN_MATCH = 4;
+	/** 最后一个匹配必须在结尾的这么多字节之前开始 */
+	private static final int MF_LIMIT = 12;
+	/** 最后这么多字节必须是字面量 */
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_OFFSET = 0xFFFF;
+	private static final int MAX_HASH_LOG = 12;
+	private static final int MIN_HASH_LOG = 8;
+
+	/**
+	 * 压缩len字节最多需要的空间
+	 * @param len
+	 * @return 最多需要的字节数
+	 */
+	public static int maxCompressedLength(int len) {
+		return len + len / 255 + 16;
+	}
+
+	/**
+	 * 压缩src的[srcOff, srcOff + srcLen)到dst的dstOff开始的位置，
+	 * dst剩下的空间不能小于{@link #maxCompressedLength(int)}
+	 * @param src
+	 * @param srcOff
+	 * @param srcLen
+	 * @param dst
+	 * @param dstOff
+	 * @return 压缩后的字节数
+	 */
+	public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		int end = srcOff + srcLen;
+		int anchor = srcOff;
+		int dp = dstOff;
+		if (srcLen >= MF_LIMIT + 1) {
+			//哈希表的大小随输入变化，小的数据不用分配大表；表里存的是位置+1，0表示空
+			int hashLog = MIN_HASH_LOG;
+			while (hashLog < MAX_HASH_LOG && (1 << hashLog) < srcLen) {
+				hashLog++;
+			}
+			int[] table = new int[1 << hashLog];
+			int shift = 32 - hashLog;
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int sp = srcOff;
+			int searches = 0;
+			while (sp < mfLimit) {
+				int seq = readInt(src, sp);
+				int h = (seq * -1640531535) >>> shift;
+				int ref = table[h] - 1 + srcOff;
+				table[h] = sp - srcOff + 1;
+				if (ref < srcOff || sp - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+					//连续匹配不到时加大步长
+					sp += 1 + (searches++ >>> 6);
+					continue;
+				}
+				searches = 0;
+				//向前扩展
+				while (sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+					sp--;
+					ref--;
+				}
+				int ml = MIN_MATCH;
+				while (sp + ml < matchLimit && src[sp + ml] == src[ref + ml]) {
+					ml++;
+				}
+				dp = writeSequence(src, anchor, sp - anchor, dst, dp, sp - ref, ml);
+				sp += ml;
+				anchor = sp;
+				if (sp - 2 < mfLimit) {
+					table[(readInt(src, sp - 2) * -1640531535) >>> shift] = sp - 2 - srcOff + 1;
+				}
+			}
+		}
+		//最后的字面量
+		int lit = end - anchor;
+		dp = writeLength(dst, dp, lit);
+		System.arraycopy(src, anchor, dst, dp, lit);
+		return dp + lit - dstOff;
+	}
+
+	/**
+	 * 解压src的[srcOff, srcOff + srcLen)到dst的dstOff开始的位置
+	 * @param src
+	 * @param srcOff
+	 * @param srcLen
+	 * @param dst
+	 * @param dstOff
+	 * @param dstLen dst最多可以写入的字节数
+	 * @return 解压后的字节数
+	 * @throws IllegalArgumentException 压缩的数据不对，或者dst放不下
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+		int sp = srcOff;
+		int send = srcOff + srcLen;
+		int dp = dstOff;
+		int dend = dstOff + dstLen;
+		while (true) {
+			if (sp >= send) {
+				throw new IllegalArgumentException("malformed lz4 input at " + (sp - srcOff));
+			}
+			int token = src[sp++] & 0xFF;
+			int lit = token >>> 4;
+			if (lit == 15) {
+				int b;
+				do {
+					if (sp >= send) {
+						throw new IllegalArgumentException("malformed lz4 input at " + (sp - srcOff));
+					}
+					b = src[sp++] & 0xFF;
+					lit += b;
+				} while (b == 255);
+			}
+			if (lit > send - sp || lit > dend - dp) {
+				throw new IllegalArgumentException("malformed lz4 input at " + (sp - srcOff));
+			}
+			System.arraycopy(src, sp, dst, dp, lit);
+			sp += lit;
+			dp += lit;
+			if (sp == send) { //最后一段只有字面量
+				return dp - dstOff;
+			}
+			if (send - sp < 2) {
+				throw new IllegalArgumentException("malformed lz4 input at " + (sp - srcOff));
+			}
+			int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+			sp += 2;
+			if (offset == 0 || offset > dp - dstOff) {
+				throw new IllegalArgumentException("malformed lz4 offset at " + (sp - srcOff));
+			}
+			int ml = token & 15;
+			if (ml == 15) {
+				int b;
+				do {
+					if (sp >= send) {
+						throw new IllegalArgumentException("malformed lz4 input at " + (sp - srcOff));
+					}
+					b = src[sp++] & 0xFF;
+					ml += b;
+				} while (b == 255);
+			}
+			ml += MIN_MATCH;
+			if (ml > dend - dp) {
+				throw new IllegalArgumentException("lz4 output overflow at " + (sp - srcOff));
+			}
+			int ref = dp - offset;
+			if (offset >= ml) {
+				System.arraycopy(dst, ref, dst, dp, ml);
+				dp += ml;
+			} else { //和要写的部分重叠，逐字节复制
+				for (int i = 0; i < ml; i++) {
+					dst[dp++] = dst[ref++];
+				}
+			}
+		}
+	}
+
+	/**
+	 * 写一个序列：字面量 + 匹配
+	 */
+	private static int writeSequence(byte[] src, int litOff, int lit, byte[] dst, int dp, int offset, int ml) {
+		int tokenPos = dp;
+		dp = writeLength(dst, dp, lit);
+		System.arraycopy(src, litOff, dst, dp, lit);
+		dp += lit;
+		dst[dp++] = (byte)offset;
+		dst[dp++] = (byte)(offset >>> 8);
+		int len = ml - MIN_MATCH;
+		if (len >= 15) {
+			dst[tokenPos] |= 15;
+			len -= 15;
+			while (len >= 255) {
+				dst[dp++] = (byte)255;
+				len -= 255;
+			}
+			dst[dp++] = (byte)len;
+		} else {
+			dst[tokenPos] |= len;
+		}
+		return dp;
+	}
+
+	/**
+	 * 写token和字面量的长度，token的低4位由调用者填
+	 */
+	private static int writeLength(byte[] dst, int dp, int lit) {
+		if (lit >= 15) {
+			dst[dp++] = (byte)0xF0;
+			int len = lit - 15;
+			while (len >= 255) {
+				dst[dp++] = (byte)255;
+				len -= 255;
+			}
+			dst[dp++] = (byte)len;
+		} else {
+			dst[dp++] = (byte)(lit << 4);
+		}
+		return dp;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+}
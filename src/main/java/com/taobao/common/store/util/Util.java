@@ -19,6 +19,11 @@
  */
 package com.taobao.common.store.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
 
 /**
  * store4j使用的util类
@@ -27,6 +32,8 @@ package com.taobao.common.store.util;
  *
  */
 public class Util {
+	private static final Logger log = Logger.getLogger(Util.class);
+
     /**
      * 将一个对象注册给MBeanServer
      * @param o
@@ -34,4 +41,41 @@ public class Util {
     public static void registMBean(Object o, String name) {
     	MyMBeanServer.getInstance().registMBean(o, name);
     }
+
+    /**
+     * 立即释放一个direct或者mapped的ByteBuffer占用的内存，释放之后不能再访问这个buffer。
+     * 如果当前的JVM不支持，只能等GC回收
+     * @param bf
+     */
+    public static void release(ByteBuffer bf) {
+    	if (null == bf || !bf.isDirect()) {
+    		return;
+    	}
+    	try {
+    		//jdk9以上
+    		Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+    		Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    		Field f = unsafeClass.getDeclaredField("theUnsafe");
+    		f.setAccessible(true);
+    		invokeCleaner.invoke(f.get(null), bf);
+    		return;
+    	} catch (NoSuchMethodException e) {
+    		//jdk8及以下，使用DirectBuffer.cleaner()
+    	} catch (Exception e) {
+    		log.warn("release buffer error", e);
+    		return;
+    	}
+    	try {
+    		Method cleanerMethod = bf.getClass().getMethod("cleaner");
+    		cleanerMethod.setAccessible(true);
+    		Object cleaner = cleanerMethod.invoke(bf);
+    		if (null != cleaner) {
+    			Method clean = cleaner.getClass().getMethod("clean");
+    			clean.setAccessible(true);
+    			clean.invoke(cleaner);
+    		}
+    	} catch (Exception e) {
+    		log.warn("release buffer error", e);
+    	}
+    }
 }
@@ -23,10 +23,28 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.Assert;
 
@@ -34,9 +52,19 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.taobao.common.store.journal.EntryScanner;
+import com.taobao.common.store.journal.EntryVisitor;
 import com.taobao.common.store.journal.JournalStore;
+import com.taobao.common.store.journal.JournalStoreConfig;
+import com.taobao.common.store.journal.NotDurableException;
 import com.taobao.common.store.journal.OpItem;
+import com.taobao.common.store.journal.PartitionedStore;
+import com.taobao.common.store.journal.ValueWriter;
+import com.taobao.common.store.journal.WriteBatch;
+import com.taobao.common.store.memory.MemStore;
 import com.taobao.common.store.util.BytesKey;
+import com.taobao.common.store.util.Crc32c;
+import com.taobao.common.store.util.Key128;
 import com.taobao.common.store.util.UniqId;
 
 /**
@@ -58,7 +86,14 @@ public class JournalStoreTest {
     @Before
     public void setUp() throws Exception {
         String path = getPath();
-        File dir = new File(path);
+        cleanFiles();
+
+        this.store = new JournalStore(path, getStoreName());
+        assertEquals(0, this.store.size());
+    }
+
+    private void cleanFiles() {
+        File dir = new File(getPath());
         if (!dir.exists() && !dir.mkdirs()) {
             throw new IllegalStateException("can't make dir " + dir);
         }
@@ -69,9 +104,6 @@ public class JournalStoreTest {
                 throw new IllegalStateException("can't delete " + f);
             }
         }
-
-        this.store = new JournalStore(path, getStoreName());
-        assertEquals(0, this.store.size());
     }
 
     @After
@@ -483,6 +515,2132 @@ public class JournalStoreTest {
     	lf.close();
     }
     
+    /**
+     * 测试组提交
+     * 		多个线程并发写入，每次写入都要落盘
+     * 		刷盘的次数应该不多于写入的次数
+     * 		重新打开store，数据都还在
+     * @throws Exception
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+    	after();
+    	JournalStoreConfig config = new JournalStoreConfig(true);
+    	config.setGroupCommit(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	final int threadNum = 8;
+    	final int totalPerThread = 200;
+    	Thread[] ts = new Thread[threadNum];
+    	for (int i = 0; i < threadNum; i++) {
+    		final int id = i;
+    		ts[i] = new Thread() {
+    			public void run() {
+    				for (int k = 0; k < totalPerThread; k++) {
+    					try {
+    						store.add(JournalStoreTest.getId(id, k), ("data" + k).getBytes());
+    					} catch (IOException e) {
+    						throw new IllegalStateException(e);
+    					}
+    				}
+    			}
+    		};
+    		ts[i].start();
+    	}
+    	for (Thread t : ts) {
+    		t.join();
+    	}
+    	assertEquals(threadNum * totalPerThread, store.size());
+    	Assert.assertTrue(store.getSyncCount() > 0);
+    	Assert.assertTrue(store.getSyncCount() <= threadNum * totalPerThread + 1);
+    	Assert.assertTrue(store.getAvgSyncBatchSize() >= 1);
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(threadNum * totalPerThread, store.size());
+    	assertEquals("data7", new String(store.get(getId(3, 7))));
+    	Assert.assertTrue(store.update(getId(3, 7), "updated".getBytes()));
+    	Assert.assertTrue(store.remove(getId(3, 8)));
+    	assertEquals("updated", new String(store.get(getId(3, 7))));
+    }
+    
+    /**
+     * 测试异步写入
+     * 		用很小的队列异步添加大量数据，保证队列满时会阻塞而不是出错
+     * 		重复添加的key只让对应的Future失败
+     * 		异步更新和删除的结果是按顺序生效的
+     * 		重新打开store，数据都还在
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncWrite() throws Exception {
+    	after();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setAsyncQueueSize(16);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	final int num = 2000;
+    	List<Future<Boolean>> fs = new ArrayList<Future<Boolean>>();
+    	for (int k = 0; k < num; k++) {
+    		fs.add(store.addAsync(getId(1, k), ("data" + k).getBytes()));
+    	}
+    	Future<Boolean> dup = store.addAsync(getId(1, 0), "dup".getBytes());
+    	Future<Boolean> upd = store.updateAsync(getId(1, 1), "updated".getBytes());
+    	Future<Boolean> rem = store.removeAsync(getId(1, 2));
+    	Future<Boolean> remMissing = store.removeAsync(getId(2, 2));
+    	for (Future<Boolean> f : fs) {
+    		Assert.assertTrue(f.get());
+    	}
+    	try {
+    		dup.get();
+    		Assert.fail();
+    	} catch (ExecutionException e) {
+    		Assert.assertTrue(e.getCause() instanceof IOException);
+    	}
+    	Assert.assertTrue(upd.get());
+    	Assert.assertTrue(rem.get());
+    	Assert.assertFalse(remMissing.get());
+    	
+    	assertEquals(num - 1, store.size());
+    	assertEquals("data0", new String(store.get(getId(1, 0))));
+    	assertEquals("updated", new String(store.get(getId(1, 1))));
+    	assertNull(store.get(getId(1, 2)));
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(num - 1, store.size());
+    	assertEquals("data" + (num - 1), new String(store.get(getId(1, num - 1))));
+    	assertEquals("updated", new String(store.get(getId(1, 1))));
+    }
+    
+    /**
+     * 测试异步写入生效之后出错
+     * 		已经生效的请求以NotDurableException完成，带着写入的结果
+     * 		没有生效的请求失败，可以重试
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncWriteFailure() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setAsyncQueueSize(16);
+    	config.setFileSize(1024 * 1024);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertTrue(store.addAsync(getId(1, 0), new byte[config.getFileSize()]).get());
+    	
+    	//占住接下来的文件名，换文件时会出错
+    	List<File> blocks = new ArrayList<File>();
+    	for (int n = 2; n <= 3; n++) {
+    		File f = new File(getPath(), getStoreName() + "." + n);
+    		Assert.assertTrue(f.mkdir());
+    		blocks.add(f);
+    	}
+    	//删除已经生效，之后删掉写满的当前文件要换文件，失败了
+    	try {
+    		store.removeAsync(getId(1, 0)).get();
+    		Assert.fail();
+    	} catch (ExecutionException e) {
+    		Assert.assertTrue(e.getCause() instanceof NotDurableException);
+    		Assert.assertTrue(((NotDurableException)e.getCause()).getResult());
+    	}
+    	assertNull(store.get(getId(1, 0)));
+    	//写之前换文件失败，没有生效
+    	try {
+    		store.addAsync(getId(1, 1), "data".getBytes()).get();
+    		Assert.fail();
+    	} catch (ExecutionException e) {
+    		Assert.assertTrue(e.getCause() instanceof IOException);
+    		Assert.assertFalse(e.getCause() instanceof NotDurableException);
+    	}
+    	assertNull(store.get(getId(1, 1)));
+    	
+    	for (File f : blocks) {
+    		Assert.assertTrue(f.delete());
+    	}
+    	Assert.assertTrue(store.addAsync(getId(1, 1), "data".getBytes()).get());
+    	assertEquals(1, store.size());
+    	after();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(1, store.size());
+    	assertNull(store.get(getId(1, 0)));
+    	assertEquals("data", new String(store.get(getId(1, 1))));
+    }
+    
+    /**
+     * 测试批量写入
+     * 		一批中包含添加、更新、删除，以及对同一个key的多次操作
+     * 		包含重复添加的批次整体失败，不留下任何修改
+     * 		重新打开store，结果一致
+     * @throws Exception
+     */
+    @Test
+    public void testWriteBatch() throws Exception {
+    	byte[] key1 = getId(1, 1);
+    	byte[] key2 = getId(1, 2);
+    	byte[] key3 = getId(1, 3);
+    	byte[] key4 = getId(1, 4);
+    	store.add(key1, "a".getBytes());
+    	store.add(key2, "b".getBytes());
+    	
+    	WriteBatch batch = new WriteBatch();
+    	batch.add(key3, "c".getBytes())
+    		.update(key1, "a2".getBytes())
+    		.remove(key2)
+    		.add(key4, "d".getBytes())
+    		.update(key4, "d2".getBytes())
+    		.remove(key4)
+    		.update(getId(9, 9), "none".getBytes());
+    	store.write(batch);
+    	assertEquals(2, store.size());
+    	assertEquals("a2", new String(store.get(key1)));
+    	assertNull(store.get(key2));
+    	assertEquals("c", new String(store.get(key3)));
+    	assertNull(store.get(key4));
+    	
+    	batch.clear();
+    	batch.add(key4, "d".getBytes()).add(key3, "dup".getBytes());
+    	try {
+    		store.write(batch);
+    		Assert.fail();
+    	} catch (IOException e) {
+    		//expected
+    	}
+    	assertNull(store.get(key4));
+    	assertEquals("c", new String(store.get(key3)));
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals(2, store.size());
+    	assertEquals("a2", new String(store.get(key1)));
+    	assertEquals("c", new String(store.get(key3)));
+    }
+    
+    /**
+     * 测试批量写入跨文件删除时引用计数的正确性
+     * 		在第一个文件中添加一个消息，然后填满这个文件
+     * 		用一个批量删除这个消息并添加新的消息
+     * 		判断第一个文件被删除
+     * @throws Exception
+     */
+    @Test
+    public void testWriteBatchInDifferentFile() throws Exception {
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	
+    	final int messageLength = 1024 * 1024 * 8;
+    	final int count = JournalStore.FILE_SIZE / messageLength + 3;
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	Assert.assertTrue(new File(getFilePrefix() + "1").exists());
+    	
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	store.write(new WriteBatch().remove(key).add(key2, "NewData".getBytes()));
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1.log").exists());
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals(1, store.size());
+    	assertEquals("NewData", new String(store.get(key2)));
+    }
+    
+    /**
+     * 测试批量写入的日志不完整的情况
+     * 	写入一个完整的消息，再写入一个只有一半的批量日志
+     * 	创建store
+     * 	批量中的消息不存在，并且不完整的批量日志被截掉
+     * @throws Exception
+     */
+    @Test
+    public void testBrokenBatch() throws Exception {
+    	after();
+    	RandomAccessFile df = new RandomAccessFile(getFilePrefix() + "1", "rw");
+    	RandomAccessFile lf = new RandomAccessFile(getFilePrefix() + "1.log", "rw");
+    	
+    	byte[] key = UniqId.getInstance().getUniqIDHash(); 
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	add(df, lf, key, "Message".getBytes(), 1);
+    	//批量开始，后面应该有两条日志，但是只写了一条
+    	lf.write(new byte[16]);
+    	lf.write(OpItem.OP_BATCH);
+    	lf.writeInt(1);
+    	lf.writeLong(0);
+    	lf.writeInt(2);
+    	add(df, lf, key2, "Message2".getBytes(), 1);
+    	
+    	df.close();
+    	lf.close();
+    	
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals(1, store.size());
+    	assertEquals("Message", new String(store.get(key)));
+    	assertNull(store.get(key2));
+    	after();
+    	
+    	lf = new RandomAccessFile(getFilePrefix() + "1.log", "r");
+    	assertEquals(OpItem.LENGTH, lf.length());
+    	lf.close();
+    }
+    
+    /**
+     * 测试单文件格式
+     * 		添加、更新、删除、批量写入
+     * 		重新打开store，结果一致，并且没有生成日志文件
+     * 		在文件末尾写入不完整的记录，重新打开store，不完整的记录被截掉
+     * @throws Exception
+     */
+    @Test
+    public void testSingleFileSegment() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setSingleFileSegment(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	byte[] key1 = getId(1, 1);
+    	byte[] key2 = getId(1, 2);
+    	byte[] key3 = getId(1, 3);
+    	store.add(key1, "a".getBytes());
+    	store.add(key2, "b".getBytes());
+    	Assert.assertTrue(store.update(key1, "a2".getBytes()));
+    	Assert.assertTrue(store.remove(key2));
+    	store.write(new WriteBatch().add(key3, "c".getBytes()).add(key2, "b2".getBytes()));
+    	assertEquals("a2", new String(store.get(key1)));
+    	assertEquals("b2", new String(store.get(key2)));
+    	assertEquals("c", new String(store.get(key3)));
+    	
+    	after();
+    	Assert.assertTrue(new File(getFilePrefix() + "1.seg").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1.log").exists());
+    	long length = new File(getFilePrefix() + "1.seg").length();
+    	
+    	RandomAccessFile sf = new RandomAccessFile(getFilePrefix() + "1.seg", "rw");
+    	sf.seek(length);
+    	sf.write(getId(1, 4));
+    	sf.write(OpItem.OP_ADD);
+    	sf.writeInt(1);
+    	sf.writeLong(length + OpItem.LENGTH);
+    	sf.writeInt(100);
+    	sf.write("only part of the data".getBytes());
+    	sf.close();
+    	
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(3, store.size());
+    	assertEquals("a2", new String(store.get(key1)));
+    	assertEquals("b2", new String(store.get(key2)));
+    	assertEquals("c", new String(store.get(key3)));
+    	assertNull(store.get(getId(1, 4)));
+    	assertEquals(length, new File(getFilePrefix() + "1.seg").length());
+    }
+    
+    /**
+     * 测试从两个文件的格式切换到单文件格式
+     * 		用两个文件的格式添加数据
+     * 		用单文件格式打开，原来的数据可以读取，新的数据写入单文件格式的文件
+     * 		填满文件，删除原来的数据，原来的文件被删除
+     * @throws Exception
+     */
+    @Test
+    public void testMigrateToSingleFileSegment() throws Exception {
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	final int messageLength = 1024 * 1024 * 8;
+    	final int count = JournalStore.FILE_SIZE / messageLength + 3;
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	after();
+    	
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setSingleFileSegment(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key2, "NewData".getBytes());
+    	Assert.assertTrue(store.update(key, "UpdatedData".getBytes()));
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1.log").exists());
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(2, store.size());
+    	assertEquals("UpdatedData", new String(store.get(key)));
+    	assertEquals("NewData", new String(store.get(key2)));
+    }
+    
+    /**
+     * 测试通过内存映射读取写满的文件
+     * 		在第一个文件中添加消息，然后填满这个文件
+     * 		读取消息，第一个文件被映射
+     * 		删除消息，第一个文件被删除，并且解除映射
+     * 		映射的上限不够时，仍然可以通过文件读取
+     * @throws Exception
+     */
+    @Test
+    public void testMappedRead() throws Exception {
+    	after();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setMappedRead(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	store.add(key2, "SecondData".getBytes());
+    	final int messageLength = 1024 * 1024 * 8;
+    	final int count = JournalStore.FILE_SIZE / messageLength + 3;
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	assertEquals(0, store.getMappedBytes());
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	Assert.assertTrue(store.getMappedBytes() >= JournalStore.FILE_SIZE);
+    	assertEquals("SecondData", new String(store.get(key2)));
+    	
+    	store.remove(key);
+    	store.remove(key2);
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	assertEquals(0, store.getMappedBytes());
+    	
+    	byte[] key3 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key3, "ThirdData".getBytes());
+    	after();
+    	config.setMaxMappedBytes(1024);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	assertEquals("ThirdData", new String(store.get(key3)));
+    	assertEquals(0, store.getMappedBytes());
+    }
+    
+    @Test
+    public void testMappedWrite() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setMappedWrite(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	store.add(key2, "SecondData".getBytes());
+    	//映射期间文件是预先分配的大小
+    	assertEquals(JournalStore.FILE_SIZE, new File(getFilePrefix() + "1").length());
+    	Assert.assertTrue(store.update(key2, "UpdatedData".getBytes()));
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	assertEquals("UpdatedData", new String(store.get(key2)));
+    	
+    	final int messageLength = 1024 * 1024 * 8;
+    	final int count = JournalStore.FILE_SIZE / messageLength + 1;
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	Assert.assertTrue(store.update(key, "NewData".getBytes()));
+    	assertEquals(2, store.getNumber());
+    	//换文件之后，原来的文件截断到实际长度
+    	long length = new File(getFilePrefix() + "1").length();
+    	Assert.assertTrue(length >= JournalStore.FILE_SIZE && length < JournalStore.FILE_SIZE + messageLength);
+    	assertEquals(0, new File(getFilePrefix() + "1.log").length() % OpItem.LENGTH);
+    	after();
+    	
+    	//关闭之后，当前文件截断到实际长度
+    	assertEquals("NewData".length(), new File(getFilePrefix() + "2").length());
+    	assertEquals(OpItem.LENGTH, new File(getFilePrefix() + "2.log").length());
+    	
+    	//模拟映射写入时崩溃，文件末尾留下预先分配的空间
+    	RandomAccessFile df = new RandomAccessFile(getFilePrefix() + "2", "rw");
+    	df.setLength(JournalStore.FILE_SIZE);
+    	df.close();
+    	RandomAccessFile lf = new RandomAccessFile(getFilePrefix() + "2.log", "rw");
+    	lf.setLength(OpItem.LENGTH * 100);
+    	lf.close();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(2, store.size());
+    	assertEquals("NewData", new String(store.get(key)));
+    	assertEquals("UpdatedData", new String(store.get(key2)));
+    	byte[] key3 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key3, "ThirdData".getBytes());
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals(3, store.size());
+    	assertEquals("NewData", new String(store.get(key)));
+    	assertEquals("ThirdData", new String(store.get(key3)));
+    }
+    
+    @Test
+    public void testOffHeapIndex() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setOffHeapIndex(true);
+    	config.setIndexCapacity(16);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	//不使用过期时间，每个槽40字节
+    	assertEquals(16 * 40, store.getIndexMemory());
+    	
+    	//初始容量很小，会经过多次扩容，扩容期间同时读
+    	final int count = 50000;
+    	final List<byte[]> keys = new ArrayList<byte[]>();
+    	for (int i = 0; i < count; i++) {
+    		keys.add(UniqId.getInstance().getUniqIDHash());
+    	}
+    	final List<Throwable> errors = new ArrayList<Throwable>();
+    	Thread reader = new Thread() {
+    		public void run() {
+    			try {
+    				for (int i = 0; i < count; i++) {
+    					byte[] data = store.get(keys.get(0));
+    					if (null != data && !"0".equals(new String(data))) {
+    						throw new IllegalStateException("wrong data:" + new String(data));
+    					}
+    				}
+    			} catch (Throwable e) {
+    				errors.add(e);
+    			}
+    		}
+    	};
+    	reader.start();
+    	for (int i = 0; i < count; i++) {
+    		store.add(keys.get(i), String.valueOf(i).getBytes());
+    	}
+    	reader.join();
+    	assertEquals(0, errors.size());
+    	assertEquals(count, store.size());
+    	Assert.assertTrue(store.getIndexMemory() >= count * 32);
+    	
+    	for (int i = 0; i < count; i += 2) {
+    		Assert.assertTrue(store.remove(keys.get(i)));
+    	}
+    	for (int i = 1; i < count; i += 4) {
+    		Assert.assertTrue(store.update(keys.get(i), ("u" + i).getBytes()));
+    	}
+    	assertEquals(count / 2, store.size());
+    	int n = 0;
+    	for (Iterator<byte[]> it = store.iterator(); it.hasNext(); it.next()) {
+    		n++;
+    	}
+    	assertEquals(count / 2, n);
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(count / 2, store.size());
+    	for (int i = 0; i < count; i++) {
+    		byte[] data = store.get(keys.get(i));
+    		if (i % 2 == 0) {
+    			Assert.assertNull(data);
+    		} else if (i % 4 == 1) {
+    			assertEquals("u" + i, new String(data));
+    		} else {
+    			assertEquals(String.valueOf(i), new String(data));
+    		}
+    	}
+    }
+    
+    /**
+     * 堆外索引每个key的占用：没有过期时间的槽40字节，有过期时间的槽48字节，
+     * 加上装载因子0.75留出的空槽，每个key平均占用槽的4/3。超过23字节的key放在堆上，不占用槽
+     * @throws Exception
+     */
+    @Test
+    public void testOffHeapIndexFootprint() throws Exception {
+    	final int capacity = 1024;
+    	final int keys = capacity * 3 / 4;
+    	final int longKeys = 100;
+    	for (int c = 0; c < 2; c++) {
+    		int slot = c == 0 ? 40 : 48;
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setOffHeapIndex(true);
+    		config.setIndexCapacity(capacity);
+    		config.setMaxKeyLength(100);
+    		config.setExpiration(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(capacity * slot, store.getIndexMemory());
+    		
+    		//装到装载因子为止不扩容，最长的23字节的key也放在槽里
+    		for (int i = 0; i < keys - 1; i++) {
+    			store.add(getId(i, c), "v".getBytes());
+    		}
+    		byte[] inline = new byte[23];
+    		Arrays.fill(inline, (byte)c);
+    		store.add(inline, "inline".getBytes());
+    		assertEquals(keys, store.size());
+    		assertEquals(0, store.getIndexOverflowCount());
+    		assertEquals(capacity * slot, store.getIndexMemory());
+    		assertEquals(slot * 4 / 3, store.getIndexMemory() / keys);
+    		
+    		//24字节的key放在堆上，堆外内存不变
+    		List<byte[]> overflows = new ArrayList<byte[]>();
+    		for (int i = 0; i < longKeys; i++) {
+    			byte[] k = new byte[24];
+    			System.arraycopy(getId(i, c), 0, k, 0, 16);
+    			k[23] = 1;
+    			overflows.add(k);
+    			store.add(k, ("long" + i).getBytes());
+    		}
+    		assertEquals(keys + longKeys, store.size());
+    		assertEquals(longKeys, store.getIndexOverflowCount());
+    		assertEquals(capacity * slot, store.getIndexMemory());
+    		assertEquals("inline", new String(store.get(inline)));
+    		assertEquals("long0", new String(store.get(overflows.get(0).clone())));
+    		Assert.assertTrue(store.remove(overflows.get(0)));
+    		assertEquals(longKeys - 1, store.getIndexOverflowCount());
+    		
+    		//恢复时长key还是放回堆上
+    		after();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(keys + longKeys - 1, store.size());
+    		assertEquals(longKeys - 1, store.getIndexOverflowCount());
+    		assertEquals(capacity * slot, store.getIndexMemory());
+    		Assert.assertNull(store.get(overflows.get(0)));
+    		assertEquals("long1", new String(store.get(overflows.get(1))));
+    	}
+    }
+    
+    @Test
+    public void testCompaction() throws Exception {
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	byte[] key2 = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	final int messageLength = 1024 * 1024 * 8;
+    	final int count = JournalStore.FILE_SIZE / messageLength + 1;
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	store.add(key2, "SecondData".getBytes());
+    	Assert.assertTrue(new File(getFilePrefix() + "1").exists());
+    	
+    	//文件1中只有一条有效数据，会被搬到文件2，然后文件1被删除
+    	store.setCompactionRate(0);
+    	assertEquals(1, store.compact());
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1.log").exists());
+    	assertEquals(1, store.getCompactedFiles());
+    	assertEquals("OriginalData".length(), store.getCompactedBytes());
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	assertEquals(0, store.compact());
+    	
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals(2, store.size());
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	assertEquals("SecondData", new String(store.get(key2)));
+    	
+    	//后台整理
+    	for(int i = 0; i < count; i++){
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	store.add(UniqId.getInstance().getUniqIDHash(), "ThirdData".getBytes());
+    	Assert.assertTrue(new File(getFilePrefix() + "2").exists());
+    	after();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setCompaction(true);
+    	config.setCompactionInterval(100);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	for (int i = 0; i < 50 && new File(getFilePrefix() + "2").exists(); i++) {
+    		Thread.sleep(100);
+    	}
+    	Assert.assertFalse(new File(getFilePrefix() + "2").exists());
+    	assertEquals(3, store.size());
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	assertEquals("SecondData", new String(store.get(key2)));
+    }
+    
+    @Test
+    public void testParallelRecovery() throws Exception {
+    	//数据分布在多个文件中，并且有跨文件的更新和删除
+    	List<byte[]> keys = new ArrayList<byte[]>();
+    	for (int i = 0; i < 100; i++) {
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		keys.add(k);
+    		store.add(k, ("data" + i).getBytes());
+    	}
+    	final int messageLength = 1024 * 1024 * 8;
+    	for (int j = 0; j < 3; j++) {
+    		for (int i = 0; i < JournalStore.FILE_SIZE / messageLength + 1; i++) {
+    			byte[] k = UniqId.getInstance().getUniqIDHash();
+    			store.add(k, new byte[messageLength]);
+    			store.remove(k);
+    		}
+    		for (int i = j; i < keys.size(); i += 3) {
+    			store.update(keys.get(i), ("update" + j + "-" + i).getBytes());
+    		}
+    		store.remove(keys.get(j * 10));
+    	}
+    	Assert.assertTrue(store.getNumber() >= 4);
+    	Map<BytesKey, String> expected = new HashMap<BytesKey, String>();
+    	for (byte[] k : keys) {
+    		byte[] data = store.get(k);
+    		expected.put(new BytesKey(k), null == data ? null : new String(data));
+    	}
+    	
+    	for (int threads = 1; threads <= 4; threads += 3) {
+    		after();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setRecoveryThreads(threads);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(97, store.size());
+    		Assert.assertTrue(store.getRecoveryRecords() > 0);
+    		for (byte[] k : keys) {
+    			byte[] data = store.get(k);
+    			assertEquals(expected.get(new BytesKey(k)), null == data ? null : new String(data));
+    		}
+    	}
+    }
+    
+    @Test
+    public void testCheckpoint() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setCheckpoint(true);
+    	config.setCheckpointInterval(0);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	List<byte[]> keys = new ArrayList<byte[]>();
+    	for (int i = 0; i < 100; i++) {
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		keys.add(k);
+    		store.add(k, ("data" + i).getBytes());
+    	}
+    	final int messageLength = 1024 * 1024 * 8;
+    	for (int i = 0; i < JournalStore.FILE_SIZE / messageLength + 1; i++) {
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		store.add(k, new byte[messageLength]);
+    		store.remove(k);
+    	}
+    	for (int i = 0; i < 50; i++) {
+    		store.update(keys.get(i), ("update" + i).getBytes());
+    	}
+    	store.remove(keys.get(99));
+    	
+    	//关闭时写检查点，启动时不用重放日志
+    	after();
+    	File ckp = new File(getPath(), getStoreName() + ".ckp");
+    	Assert.assertTrue(ckp.exists());
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertTrue(store.isRecoveredFromCheckpoint());
+    	assertEquals(0, store.getRecoveryRecords());
+    	assertEquals(99, store.size());
+    	
+    	//检查点之后的日志需要重放
+    	store.checkpoint();
+    	for (int i = 50; i < 60; i++) {
+    		store.update(keys.get(i), ("update" + i).getBytes());
+    	}
+    	store.remove(keys.get(0));
+    	byte[] old = new byte[(int)ckp.length()];
+    	RandomAccessFile raf = new RandomAccessFile(ckp, "r");
+    	raf.readFully(old);
+    	raf.close();
+    	after();
+    	raf = new RandomAccessFile(ckp, "rw");
+    	raf.setLength(0);
+    	raf.write(old);
+    	raf.close();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertTrue(store.isRecoveredFromCheckpoint());
+    	//跨文件的更新有两条日志
+    	assertEquals(21, store.getRecoveryRecords());
+    	checkCheckpointData(keys);
+    	
+    	//损坏的检查点，重放所有的日志
+    	after();
+    	raf = new RandomAccessFile(ckp, "rw");
+    	raf.seek(20);
+    	raf.write(raf.read() ^ 0xFF);
+    	raf.close();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertFalse(store.isRecoveredFromCheckpoint());
+    	checkCheckpointData(keys);
+    	
+    	//不使用检查点时，删除旧的检查点
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	Assert.assertFalse(ckp.exists());
+    	checkCheckpointData(keys);
+    }
+    
+    private void checkCheckpointData(List<byte[]> keys) throws IOException {
+    	assertEquals(98, store.size());
+    	Assert.assertNull(store.get(keys.get(0)));
+    	Assert.assertNull(store.get(keys.get(99)));
+    	for (int i = 1; i < 99; i++) {
+    		assertEquals(i < 60 ? "update" + i : "data" + i, new String(store.get(keys.get(i))));
+    	}
+    }
+    
+    @Test
+    public void testCheckpointWhileWriting() throws Exception {
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		final JournalStoreConfig config = new JournalStoreConfig();
+    		config.setCheckpoint(true);
+    		config.setCheckpointInterval(0);
+    		config.setOffHeapIndex(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		final int count = 20000;
+    		for (int i = 0; i < count; i++) {
+    			store.add(getId(1, i), ("data" + i).getBytes());
+    			store.add(getId(2, i), ("data" + i).getBytes());
+    		}
+    		
+    		//两个线程各自修改自己的key，同时在写检查点
+    		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    		final List<Map<BytesKey, byte[]>> expects = new ArrayList<Map<BytesKey, byte[]>>();
+    		final AtomicBoolean stop = new AtomicBoolean(false);
+    		Thread[] ts = new Thread[2];
+    		for (int t = 0; t < ts.length; t++) {
+    			final int id = t + 1;
+    			final Map<BytesKey, byte[]> expect = new HashMap<BytesKey, byte[]>();
+    			for (int i = 0; i < count; i++) {
+    				expect.put(new BytesKey(getId(id, i)), ("data" + i).getBytes());
+    			}
+    			expects.add(expect);
+    			ts[t] = new Thread() {
+    				public void run() {
+    					try {
+    						int added = 0;
+    						for (int r = 0; !stop.get(); r++) {
+    							for (int i = r % 7; i < count; i += 7) {
+    								byte[] k = JournalStoreTest.getId(id, i);
+    								byte[] d = ("round" + r).getBytes();
+    								if (!expect.containsKey(new BytesKey(k))) {
+    									store.add(k, d);
+    									expect.put(new BytesKey(k), d);
+    								} else if (i % 3 == 0) {
+    									Assert.assertTrue(store.remove(k));
+    									expect.remove(new BytesKey(k));
+    								} else {
+    									Assert.assertTrue(store.update(k, d));
+    									expect.put(new BytesKey(k), d);
+    								}
+    								if (i % 5 == 0) { //新的key
+    									k = JournalStoreTest.getId(id + 2, added++);
+    									store.add(k, d);
+    									expect.put(new BytesKey(k), d);
+    								}
+    							}
+    						}
+    					} catch (Throwable e) {
+    						errors.add(e);
+    					}
+    				}
+    			};
+    			ts[t].start();
+    		}
+    		File ckp = new File(getPath(), getStoreName() + ".ckp");
+    		for (int i = 0; i < 5; i++) {
+    			store.checkpoint();
+    		}
+    		RandomAccessFile raf = new RandomAccessFile(ckp, "r");
+    		byte[] old = new byte[(int)raf.length()];
+    		raf.readFully(old);
+    		raf.close();
+    		Thread.sleep(200);
+    		stop.set(true);
+    		for (Thread t : ts) {
+    			t.join();
+    		}
+    		assertEquals(0, errors.size());
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		for (Map<BytesKey, byte[]> expect : expects) {
+    			expected.putAll(expect);
+    		}
+    		checkData(expected);
+    		
+    		//从写入期间的检查点恢复，和重放所有的日志结果一样
+    		after();
+    		raf = new RandomAccessFile(ckp, "rw");
+    		raf.setLength(0);
+    		raf.write(old);
+    		raf.close();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		Assert.assertTrue(store.isRecoveredFromCheckpoint());
+    		Assert.assertTrue(store.getRecoveryRecords() > 0);
+    		checkData(expected);
+    		String files = store.getDataFilesInfo();
+    		after();
+    		config.setCheckpoint(false);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		Assert.assertFalse(store.isRecoveredFromCheckpoint());
+    		checkData(expected);
+    		assertEquals(files, store.getDataFilesInfo());
+    	}
+    }
+    
+    @Test
+    public void testCache() throws Exception {
+    	after();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setCacheSize(1024 * 1024);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	
+    	byte[] key = UniqId.getInstance().getUniqIDHash();
+    	store.add(key, "OriginalData".getBytes());
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	byte[] data = store.get(key);
+    	assertEquals("OriginalData", new String(data));
+    	Assert.assertTrue(store.getCacheHitRatio() > 0);
+    	Assert.assertTrue(store.getCacheBytes() > 0);
+    	//返回的是副本，修改它不影响缓存
+    	data[0] = 'X';
+    	assertEquals("OriginalData", new String(store.get(key)));
+    	
+    	Assert.assertTrue(store.update(key, "UpdatedData".getBytes()));
+    	assertEquals("UpdatedData", new String(store.get(key)));
+    	assertEquals("UpdatedData", new String(store.get(key)));
+    	store.write(new WriteBatch().update(key, "BatchData".getBytes()));
+    	assertEquals("BatchData", new String(store.get(key)));
+    	Assert.assertTrue(store.remove(key));
+    	assertNull(store.get(key));
+    	assertEquals(0, store.getCacheBytes());
+    	
+    	//读到调用者缓冲区时查找用的key是线程重用的，删除之后缓存中不能留下数据
+    	List<byte[]> scratch = new ArrayList<byte[]>();
+    	for (int i = 0; i < 200; i++) {
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		scratch.add(k);
+    		store.add(k, new byte[1024]);
+    		store.get(k);
+    	}
+    	ByteBuffer dst = ByteBuffer.allocate(1024);
+    	for (int n = 0; n < 3; n++) {
+    		for (byte[] k : scratch) {
+    			dst.clear();
+    			assertEquals(1024, store.get(k, dst));
+    		}
+    	}
+    	Assert.assertTrue(store.getCacheCount() > 0);
+    	for (byte[] k : scratch) {
+    		Assert.assertTrue(store.remove(k));
+    	}
+    	assertEquals(0, store.getCacheCount());
+    	assertEquals(0, store.getCacheBytes());
+    	
+    	//超过大小之后淘汰
+    	List<byte[]> keys = new ArrayList<byte[]>();
+    	for (int i = 0; i < 200; i++) {
+    		byte[] k = UniqId.getInstance().getUniqIDHash();
+    		keys.add(k);
+    		store.add(k, new byte[10240]);
+    		store.get(k);
+    	}
+    	Assert.assertTrue(store.getCacheBytes() <= 1024 * 1024);
+    	Assert.assertTrue(store.getCacheEvictions() > 0);
+    	
+    	//同时读同一个key
+    	final byte[] hot = keys.get(0);
+    	final List<Throwable> errors = new ArrayList<Throwable>();
+    	Thread[] ts = new Thread[8];
+    	for (int i = 0; i < ts.length; i++) {
+    		ts[i] = new Thread() {
+    			public void run() {
+    				try {
+    					for (int j = 0; j < 1000; j++) {
+    						if (store.get(hot).length != 10240) {
+    							throw new IllegalStateException("wrong data");
+    						}
+    					}
+    				} catch (Throwable e) {
+    					errors.add(e);
+    				}
+    			}
+    		};
+    		ts[i].start();
+    	}
+    	for (Thread t : ts) {
+    		t.join();
+    	}
+    	assertEquals(0, errors.size());
+    }
+    
+    /**
+     * 不同的key从1个线程到32个线程同时添加，输出每秒添加的次数。
+     * 热身之后每种线程数取几轮的中位数：线程多了不能明显变慢，有多个CPU时要比单线程快。
+     * 数据通过CAS预留的位置同时写，等待appendLock的日志由拿到锁的线程一起写
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWriteScaling() throws Exception {
+    	final int total = 1024 * 32;
+    	final int rounds = 5;
+    	int[] threads = {1, 2, 4, 8, 16, 32};
+    	long[][] rates = new long[threads.length][rounds];
+    	concurrentAdds(8, total); //热身
+    	for (int round = 0; round < rounds; round++) {
+    		for (int i = 0; i < threads.length; i++) {
+    			rates[i][round] = concurrentAdds(threads[i], total);
+    		}
+    	}
+    	long[] median = new long[threads.length];
+    	for (int i = 0; i < threads.length; i++) {
+    		Arrays.sort(rates[i]);
+    		median[i] = rates[i][rounds / 2];
+    	}
+    	long fastest = 0;
+    	for (int i = 0; i < threads.length; i++) {
+    		System.out.println("threads: " + threads[i] + ", adds/s: " + median[i]);
+    		if (i > 0) {
+    			//只有一个CPU时多线程最多和单线程一样快，机器上的其他负载也会让结果有波动
+    			Assert.assertTrue("threads: " + threads[i], median[i] >= median[0] * 7 / 10);
+    			fastest = Math.max(fastest, median[i]);
+    		}
+    	}
+    	if (Runtime.getRuntime().availableProcessors() > 1) {
+    		Assert.assertTrue(fastest >= median[0]);
+    	}
+    }
+    
+    /**
+     * 在新的存储中用指定个数的线程添加total个不同的key，key事先生成好，不计入时间
+     * @param threads
+     * @param total
+     * @return 每秒添加的次数
+     * @throws Exception
+     */
+    private long concurrentAdds(int threads, int total) throws Exception {
+    	after();
+    	cleanFiles();
+    	store = new JournalStore(getPath(), getStoreName());
+    	final byte[] value = new byte[512];
+    	final int count = total / threads;
+    	final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    	Thread[] ts = new Thread[threads];
+    	for (int i = 0; i < ts.length; i++) {
+    		final byte[][] keys = new byte[count][];
+    		for (int j = 0; j < count; j++) {
+    			keys[j] = UniqId.getInstance().getUniqIDHash();
+    		}
+    		ts[i] = new Thread() {
+    			public void run() {
+    				try {
+    					for (int j = 0; j < count; j++) {
+    						store.add(keys[j], value);
+    					}
+    				} catch (Throwable e) {
+    					errors.add(e);
+    				}
+    			}
+    		};
+    	}
+    	long start = System.nanoTime();
+    	for (Thread t : ts) {
+    		t.start();
+    	}
+    	for (Thread t : ts) {
+    		t.join();
+    	}
+    	long cost = System.nanoTime() - start;
+    	assertEquals(0, errors.size());
+    	assertEquals(count * threads, store.size());
+    	return count * threads * 1000000000L / cost;
+    }
+    
+    /**
+     * 多个线程同时添加、更新、删除，中间换了几次文件，检查数据和引用计数都是对的
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWriteRollover() throws Exception {
+    	final int threads = 8;
+    	final int count = 300;
+    	final int valueLength = 1024 * 48;
+    	final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    	final List<Map<BytesKey, byte[]>> expects = new ArrayList<Map<BytesKey, byte[]>>();
+    	Thread[] ts = new Thread[threads];
+    	for (int i = 0; i < threads; i++) {
+    		final Map<BytesKey, byte[]> expect = new HashMap<BytesKey, byte[]>();
+    		expects.add(expect);
+    		ts[i] = new Thread() {
+    			public void run() {
+    				try {
+    					List<byte[]> keys = new ArrayList<byte[]>();
+    					for (int j = 0; j < count; j++) {
+    						byte[] key = UniqId.getInstance().getUniqIDHash();
+    						byte[] data = new byte[valueLength];
+    						Arrays.fill(data, (byte)j);
+    						store.add(key, data);
+    						keys.add(key);
+    						expect.put(new BytesKey(key), data);
+    						if (j % 3 == 1) { //更新前面的一条
+    							byte[] k = keys.get(j / 2);
+    							if (expect.containsKey(new BytesKey(k))) {
+    								byte[] d = new byte[valueLength / 2];
+    								Arrays.fill(d, (byte)-j);
+    								if (!store.update(k, d)) {
+    									throw new IllegalStateException("update failed");
+    								}
+    								expect.put(new BytesKey(k), d);
+    							}
+    						} else if (j % 3 == 2) { //删除前面的一条
+    							byte[] k = keys.get(j - 2);
+    							if (store.remove(k) != (null != expect.remove(new BytesKey(k)))) {
+    								throw new IllegalStateException("remove failed");
+    							}
+    						}
+    					}
+    				} catch (Throwable e) {
+    					errors.add(e);
+    				}
+    			}
+    		};
+    		ts[i].start();
+    	}
+    	for (Thread t : ts) {
+    		t.join();
+    	}
+    	assertEquals(0, errors.size());
+    	Assert.assertTrue(store.getNumber() >= 3);
+    	Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    	for (Map<BytesKey, byte[]> expect : expects) {
+    		expected.putAll(expect);
+    	}
+    	checkData(expected);
+    	
+    	//重启之后恢复出来的一样
+    	store.close();
+    	store = new JournalStore(getPath(), getStoreName());
+    	checkData(expected);
+    	
+    	//全部删掉之后，除了当前文件都被删除了
+    	for (Map<BytesKey, byte[]> expect : expects) {
+    		for (BytesKey k : expect.keySet()) {
+    			Assert.assertTrue(store.remove(k.getData()));
+    		}
+    		expect.clear();
+    	}
+    	assertEquals(0, store.size());
+    	int files = 0;
+    	for (File f : new File(getPath()).listFiles()) {
+    		if (f.getName().startsWith(getStoreName() + ".") && !f.getName().endsWith(".log")) {
+    			files++;
+    		}
+    	}
+    	assertEquals(1, files);
+    }
+    
+    /**
+     * 变长key：两个文件的格式、单文件格式、堆外索引
+     * @throws Exception
+     */
+    @Test
+    public void testVariableKey() throws Exception {
+    	for (int c = 0; c < 3; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setMaxKeyLength(100);
+    		config.setSingleFileSegment(c == 1);
+    		config.setOffHeapIndex(c == 2);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		int[] lengths = {1, 8, 16, 23, 24, 50, 100};
+    		for (int i = 0; i < lengths.length; i++) {
+    			byte[] key = new byte[lengths[i]];
+    			Arrays.fill(key, (byte)(i + 1));
+    			store.add(key, ("data" + i).getBytes());
+    			expected.put(new BytesKey(key), ("data" + i).getBytes());
+    		}
+    		//前缀相同、长度不同的key是不同的key
+    		byte[] prefix = new byte[7];
+    		Arrays.fill(prefix, (byte)2);
+    		Assert.assertNull(store.get(prefix));
+    		Assert.assertTrue(store.update(new byte[] {1}, "update".getBytes()));
+    		expected.put(new BytesKey(new byte[] {1}), "update".getBytes());
+    		byte[] k50 = new byte[50];
+    		Arrays.fill(k50, (byte)6);
+    		Assert.assertTrue(store.remove(k50));
+    		expected.remove(new BytesKey(k50));
+    		byte[] k30 = "a natural id instead of an md5".getBytes();
+    		store.write(new WriteBatch().add(k30, "batch".getBytes()).update(new byte[8], "none".getBytes()));
+    		expected.put(new BytesKey(k30), "batch".getBytes());
+    		try {
+    			store.add(new byte[101], "data".getBytes());
+    			Assert.fail();
+    		} catch (IllegalArgumentException e) {
+    			//expected
+    		}
+    		try {
+    			store.add(new byte[0], "data".getBytes());
+    			Assert.fail();
+    		} catch (IllegalArgumentException e) {
+    			//expected
+    		}
+    		checkData(expected);
+    		int count = 0;
+    		for (Iterator<byte[]> it = store.iterator(); it.hasNext();) {
+    			Assert.assertTrue(expected.containsKey(new BytesKey(it.next())));
+    			count++;
+    		}
+    		assertEquals(expected.size(), count);
+    		
+    		//重启之后恢复出来的一样
+    		store.close();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    	}
+    }
+    
+    /**
+     * 固定16字节key的旧文件，在配置了变长key之后可以直接读取，新的数据写到新格式的文件中
+     * @throws Exception
+     */
+    @Test
+    public void testVariableKeyCompatibility() throws Exception {
+    	Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    	List<byte[]> keys = new ArrayList<byte[]>();
+    	for (int i = 0; i < 10; i++) {
+    		byte[] key = UniqId.getInstance().getUniqIDHash();
+    		keys.add(key);
+    		store.add(key, ("old" + i).getBytes());
+    		expected.put(new BytesKey(key), ("old" + i).getBytes());
+    	}
+    	store.close();
+    	
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setMaxKeyLength(64);
+    	config.setCheckpoint(true);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	checkData(expected);
+    	assertEquals(2, store.getNumber());
+    	assertEquals(33 * 10, new File(getFilePrefix() + "1.log").length());
+    	
+    	//旧文件中的数据可以更新和删除，删除日志按旧的格式写
+    	Assert.assertTrue(store.remove(keys.get(0)));
+    	expected.remove(new BytesKey(keys.get(0)));
+    	Assert.assertTrue(store.update(keys.get(1), "new1".getBytes()));
+    	expected.put(new BytesKey(keys.get(1)), "new1".getBytes());
+    	assertEquals(33 * 12, new File(getFilePrefix() + "1.log").length());
+    	byte[] key = "user:10086".getBytes();
+    	store.add(key, "variable".getBytes());
+    	expected.put(new BytesKey(key), "variable".getBytes());
+    	checkData(expected);
+    	
+    	//从检查点和从日志恢复都一样
+    	store.close();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertTrue(store.isRecoveredFromCheckpoint());
+    	checkData(expected);
+    	store.close();
+    	config.setCheckpoint(false);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	Assert.assertFalse(store.isRecoveredFromCheckpoint());
+    	checkData(expected);
+    	
+    	//旧文件没有引用之后被删除
+    	for (int i = 2; i < keys.size(); i++) {
+    		Assert.assertTrue(store.remove(keys.get(i)));
+    	}
+    	Assert.assertFalse(new File(getFilePrefix() + "1").exists());
+    	Assert.assertFalse(new File(getFilePrefix() + "1.log").exists());
+    	store.close();
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	assertEquals(2, store.size());
+    }
+    
+    /**
+     * 测试带校验的格式
+     * 		两种文件格式下，添加、更新、删除、批量写入
+     * 		正常关闭之后重新打开，所有的内容都已经封存，不用校验
+     * 		封存之后又写入了数据，模拟宕机时的文件，最后一个数据损坏，重新打开store，损坏的数据被截掉
+     * @throws Exception
+     */
+    @Test
+    public void testUnknownLogVersion() throws Exception {
+    	after();
+    	cleanFiles();
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setMaxKeyLength(64);
+    	store = new JournalStore(getPath(), getStoreName(), config);
+    	store.add("key".getBytes(), "value".getBytes());
+    	after();
+    	//更新的版本生成的日志文件，不能当成固定长度的记录读
+    	RandomAccessFile lf = new RandomAccessFile(getFilePrefix() + "1.log", "rw");
+    	lf.seek(4);
+    	lf.writeInt(99);
+    	lf.close();
+    	try {
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		Assert.fail();
+    	} catch (IOException e) {
+    		store = null;
+    	}
+    	cleanFiles();
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setChecksum(true);
+    		config.setSingleFileSegment(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		for (int i = 0; i < 10; i++) {
+    			store.add(getId(1, i), ("data" + i).getBytes());
+    			expected.put(new BytesKey(getId(1, i)), ("data" + i).getBytes());
+    		}
+    		Assert.assertTrue(store.update(getId(1, 0), "update".getBytes()));
+    		expected.put(new BytesKey(getId(1, 0)), "update".getBytes());
+    		Assert.assertTrue(store.remove(getId(1, 1)));
+    		expected.remove(new BytesKey(getId(1, 1)));
+    		store.write(new WriteBatch().add(getId(1, 10), "batch".getBytes()).remove(getId(1, 2)));
+    		expected.put(new BytesKey(getId(1, 10)), "batch".getBytes());
+    		expected.remove(new BytesKey(getId(1, 2)));
+    		checkData(expected);
+    		
+    		store.close();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(0, store.getRecoveryVerifiedBytes());
+    		checkData(expected);
+    		
+    		//封存之后写入的数据，在关闭之前保存文件的内容，模拟宕机
+    		store.add(getId(2, 1), "tail1".getBytes());
+    		store.add(getId(2, 2), "tail2".getBytes());
+    		expected.put(new BytesKey(getId(2, 1)), "tail1".getBytes());
+    		Map<File, byte[]> image = readFiles();
+    		store.close();
+    		writeFiles(image);
+    		
+    		//最后一个数据的最后一个字节损坏
+    		RandomAccessFile df = new RandomAccessFile(getFilePrefix() + (c == 1 ? "1.seg" : "1"), "rw");
+    		df.seek(df.length() - 1);
+    		byte b = df.readByte();
+    		df.seek(df.length() - 1);
+    		df.write(b + 1);
+    		df.close();
+    		
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		//只校验了封存之后的两条记录和它们的数据
+    		assertEquals(2 * (OpItem.VAR_HEADER_LENGTH + 16 + OpItem.CHECKSUM_LENGTH) + 10, store.getRecoveryVerifiedBytes());
+    		assertNull(store.get(getId(2, 2)));
+    		checkData(expected);
+    		store.add(getId(2, 2), "tail2".getBytes());
+    		assertEquals("tail2", new String(store.get(getId(2, 2))));
+    	}
+    }
+    
+    @Test
+    public void testCompression() throws Exception {
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setCompression(true);
+    		config.setCompressionThreshold(64);
+    		config.setSingleFileSegment(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		
+    		//可以压缩的数据、小于阈值的数据和随机的数据
+    		Random random = new Random(c);
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		long raw = 0;
+    		for (int i = 0; i < 100; i++) {
+    			byte[] data;
+    			if (i % 10 == 0) {
+    				data = ("small" + i).getBytes();
+    			} else if (i % 10 == 1) {
+    				data = new byte[1000];
+    				random.nextBytes(data);
+    			} else {
+    				StringBuilder sb = new StringBuilder();
+    				while (sb.length() < 4096) {
+    					sb.append("{\"id\":").append(i).append(",\"name\":\"value").append(sb.length()).append("\"}");
+    				}
+    				data = sb.toString().getBytes();
+    			}
+    			store.add(getId(1, i), data);
+    			expected.put(new BytesKey(getId(1, i)), data);
+    			raw += data.length;
+    		}
+    		byte[] update = new byte[8192];
+    		Assert.assertTrue(store.update(getId(1, 2), update));
+    		expected.put(new BytesKey(getId(1, 2)), update);
+    		Assert.assertTrue(store.remove(getId(1, 3)));
+    		expected.remove(new BytesKey(getId(1, 3)));
+    		store.write(new WriteBatch().add(getId(1, 100), update).remove(getId(1, 4)));
+    		expected.put(new BytesKey(getId(1, 100)), update);
+    		expected.remove(new BytesKey(getId(1, 4)));
+    		checkData(expected);
+    		Assert.assertTrue(store.getCompressionRatio() < 0.5d);
+    		
+    		//数据文件比原始数据小
+    		File df = new File(getFilePrefix() + (c == 1 ? "1.seg" : "1"));
+    		Assert.assertTrue(df.length() < raw / 2);
+    		
+    		//重新打开，校验并解压之前写入的数据
+    		store.close();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    		
+    		//不压缩的配置仍然可以读取压缩的文件
+    		store.close();
+    		store = new JournalStore(getPath(), getStoreName(), new JournalStoreConfig());
+    		checkData(expected);
+    	}
+    }
+    
+    private void checkData(Map<BytesKey, byte[]> expected) throws IOException {
+    	assertEquals(expected.size(), store.size());
+    	for (Map.Entry<BytesKey, byte[]> e : expected.entrySet()) {
+    		Assert.assertTrue(Arrays.equals(e.getValue(), store.get(e.getKey().getData())));
+    	}
+    }
+    
+    @Test
+    public void testBufferGet() throws Exception {
+    	for (int c = 0; c < 4; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setOffHeapIndex(c == 1);
+    		config.setCompression(c == 2);
+    		config.setCompressionThreshold(16);
+    		config.setCacheSize(c == 3 ? 1024 * 1024 : 0);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		
+    		byte[] data = getMsg1K().replace('\0', 'a').getBytes();
+    		for (int i = 0; i < 10; i++) {
+    			store.add(getId(1, i), data);
+    		}
+    		store.add(getId(2, 0), new byte[0]);
+    		if (c == 3) {
+    			store.get(getId(1, 0));
+    		}
+    		
+    		assertEquals(data.length, store.getLength(getId(1, 0)));
+    		assertEquals(0, store.getLength(getId(2, 0)));
+    		assertEquals(-1, store.getLength(getId(3, 0)));
+    		
+    		//堆上的缓冲区和直接内存的缓冲区，数据写在position之后
+    		ByteBuffer[] buffers = { ByteBuffer.allocate(data.length + 10), ByteBuffer.allocateDirect(data.length + 10) };
+    		for (ByteBuffer bf : buffers) {
+    			bf.position(10);
+    			assertEquals(data.length, store.get(getId(1, 0), bf));
+    			Assert.assertFalse(bf.hasRemaining());
+    			bf.position(10);
+    			byte[] read = new byte[data.length];
+    			bf.get(read);
+    			Assert.assertTrue(Arrays.equals(data, read));
+    			
+    			bf.position(11);
+    			try {
+    				store.get(getId(1, 1), bf);
+    				Assert.fail();
+    			} catch (BufferOverflowException e) {
+    				assertEquals(11, bf.position());
+    			}
+    			bf.clear();
+    			assertEquals(-1, store.get(getId(3, 0), bf));
+    			assertEquals(0, store.get(getId(2, 0), bf));
+    			assertEquals(0, bf.position());
+    		}
+    		
+    		//传输到文件和流
+    		File f = new File(getPath(), "transfer");
+    		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    		assertEquals(data.length, store.transferTo(getId(1, 2), raf.getChannel()));
+    		assertEquals(data.length, store.transferTo(getId(1, 3), raf.getChannel()));
+    		assertEquals(-1, store.transferTo(getId(3, 0), raf.getChannel()));
+    		assertEquals(2 * data.length, raf.length());
+    		byte[] read = new byte[data.length];
+    		raf.seek(data.length);
+    		raf.readFully(read);
+    		raf.close();
+    		f.delete();
+    		Assert.assertTrue(Arrays.equals(data, read));
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		assertEquals(data.length, store.transferTo(getId(1, 4), Channels.newChannel(out)));
+    		Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+    	}
+    }
+    
+    @Test
+    public void testStreaming() throws Exception {
+    	for (int c = 0; c < 3; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setSingleFileSegment(c == 1);
+    		config.setCompression(c == 2);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		
+    		//3M的数据分多次写入，一半通过流一半通过channel
+    		Random random = new Random(c);
+    		byte[] large = new byte[3 * 1024 * 1024 + 7];
+    		random.nextBytes(large);
+    		ValueWriter w = store.openWriter(getId(1, 0));
+    		int half = large.length / 2;
+    		for (int i = 0; i < half; i += 1000) {
+    			w.write(large, i, Math.min(1000, half - i));
+    		}
+    		w.write(ByteBuffer.wrap(large, half, large.length - half));
+    		assertEquals(large.length, w.getLength());
+    		assertNull(store.get(getId(1, 0)));
+    		w.close();
+    		
+    		//小的数据不用临时文件
+    		w = store.openWriter(getId(1, 1));
+    		w.write("small".getBytes());
+    		w.close();
+    		
+    		//放弃的数据不会添加，重复的key关闭时失败
+    		w = store.openWriter(getId(1, 2));
+    		w.write(large);
+    		w.abort();
+    		w = store.openWriter(getId(1, 1));
+    		w.write(large);
+    		try {
+    			w.close();
+    			Assert.fail();
+    		} catch (IOException e) {
+    		}
+    		store.add(getId(1, 3), "0123456789".getBytes());
+    		
+    		for (int r = 0; r < 2; r++) {
+    			assertNull(store.get(getId(1, 2)));
+    			Assert.assertTrue(Arrays.equals(large, store.get(getId(1, 0))));
+    			assertEquals("small", new String(store.get(getId(1, 1))));
+    			for (String n : new File(getPath()).list()) {
+    				Assert.assertFalse(n.endsWith(".stream"));
+    			}
+    			
+    			//流式读取
+    			InputStream in = store.getInputStream(getId(1, 0));
+    			assertEquals(large.length, in.available());
+    			byte[] read = new byte[large.length];
+    			int size = 0;
+    			for (int l; (l = in.read(read, size, Math.min(4096, read.length - size))) > 0;) {
+    				size += l;
+    			}
+    			assertEquals(-1, in.read());
+    			in.close();
+    			Assert.assertTrue(Arrays.equals(large, read));
+    			assertNull(store.getInputStream(getId(1, 2)));
+    			
+    			//读取一部分
+    			byte[] range = new byte[100];
+    			System.arraycopy(large, 1000000, range, 0, range.length);
+    			Assert.assertTrue(Arrays.equals(range, store.get(getId(1, 0), 1000000, 100)));
+    			assertEquals("789", new String(store.get(getId(1, 3), 7, 100)));
+    			assertEquals(0, store.get(getId(1, 3), 20, 100).length);
+    			assertNull(store.get(getId(1, 2), 0, 100));
+    			
+    			//重新打开之后读取，上次没有关闭的临时文件会被删除
+    			store.openWriter(getId(1, 4)).write(large);
+    			store.close();
+    			store = new JournalStore(getPath(), getStoreName(), config);
+    		}
+    	}
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+    	store.resetStatistics();
+    	byte[] data = new byte[100];
+    	for (int i = 0; i < 200; i++) {
+    		store.add(getId(1, i), data);
+    	}
+    	for (int i = 0; i < 300; i++) {
+    		store.get(getId(1, i));
+    	}
+    	for (int i = 0; i < 50; i++) {
+    		Assert.assertTrue(store.update(getId(1, i), data));
+    		Assert.assertTrue(store.remove(getId(1, i + 100)));
+    	}
+    	assertEquals(200, store.getAddCount());
+    	assertEquals(300, store.getGetCount());
+    	assertEquals(50, store.getUpdateCount());
+    	assertEquals(50, store.getRemoveCount());
+    	Assert.assertTrue(store.getAddRate() > 0);
+    	Assert.assertTrue(store.getAddLatencyP50() > 0);
+    	Assert.assertTrue(store.getAddLatencyP50() <= store.getAddLatencyP99());
+    	Assert.assertTrue(store.getAddLatencyP99() <= store.getAddLatencyP999());
+    	Assert.assertTrue(store.getGetLatencyP999() > 0);
+    	//至少写入了添加和更新的数据
+    	Assert.assertTrue(store.getBytesWritten() >= 250 * data.length);
+    	Assert.assertTrue(store.getWriteThroughput() > 0);
+
+    	store.resetStatistics();
+    	assertEquals(0, store.getAddCount());
+    	assertEquals(0, store.getBytesWritten());
+    	assertEquals(0, store.getAppendLockWaitCount());
+    	Assert.assertTrue(0 == store.getAddLatencyP99());
+
+    	//多个线程同时写入时计数不会丢
+    	Thread[] threads = new Thread[8];
+    	for (int t = 0; t < threads.length; t++) {
+    		final int n = t;
+    		threads[t] = new Thread() {
+    			@Override
+    			public void run() {
+    				try {
+    					for (int i = 0; i < 500; i++) {
+    						store.add(JournalStoreTest.getId(2 + n, i), new byte[10]);
+    					}
+    				} catch (IOException e) {
+    					throw new RuntimeException(e);
+    				}
+    			}
+    		};
+    		threads[t].start();
+    	}
+    	for (Thread t : threads) {
+    		t.join();
+    	}
+    	assertEquals(4000, store.getAddCount());
+    	Assert.assertTrue(store.getAppendLockWaitTime() >= 0);
+    }
+
+    @Test
+    public void testScanner() throws Exception {
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setCompression(c == 1);
+    		config.setSingleFileSegment(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+
+    		//小的数据夹着比一次读入还大的数据，第一种配置写满几个文件
+    		final Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		Random random = new Random(c);
+    		int bigs = c == 0 ? JournalStore.FILE_SIZE / (1024 * 1024 * 8) * 2 : 2;
+    		for (int i = 0; i < 500; i++) {
+    			byte[] data = new byte[i % (500 / bigs) == 0 ? 1024 * 1024 * 8 : random.nextInt(2000)];
+    			random.nextBytes(data);
+    			store.add(getId(1, i), data);
+    			expected.put(new BytesKey(getId(1, i)), data);
+    		}
+    		for (int i = 0; i < 500; i += 7) {
+    			Assert.assertTrue(store.remove(getId(1, i)));
+    			expected.remove(new BytesKey(getId(1, i)));
+    		}
+    		for (int i = 1; i < 500; i += 11) {
+    			byte[] data = ("updated" + i).getBytes();
+    			if (store.update(getId(1, i), data)) {
+    				expected.put(new BytesKey(getId(1, i)), data);
+    			}
+    		}
+
+    		EntryScanner scanner = store.scanner();
+    		assertEquals(expected.size(), scanner.estimateSize());
+    		if (c == 0) {
+    			Assert.assertTrue(scanner.getFileCount() > 1);
+    		}
+    		final Map<BytesKey, byte[]> seen = new HashMap<BytesKey, byte[]>();
+    		EntryVisitor collect = new EntryVisitor() {
+    			public void visit(byte[] key, byte[] value) {
+    				synchronized (seen) {
+    					Assert.assertNull(seen.put(new BytesKey(key), value));
+    				}
+    			}
+    		};
+    		scanner.forEachRemaining(collect);
+    		checkScanned(expected, seen);
+    		Assert.assertFalse(scanner.tryAdvance(collect));
+
+    		//分成多份同时遍历
+    		seen.clear();
+    		store.scan(collect, 4);
+    		checkScanned(expected, seen);
+
+    		//快照之后删除的不会访问到，更新的访问到新的值
+    		scanner = store.scanner();
+    		EntryScanner split = scanner.trySplit();
+    		Assert.assertEquals(c == 0, null != split);
+    		store.remove(getId(1, 2));
+    		expected.remove(new BytesKey(getId(1, 2)));
+    		store.update(getId(1, 3), "after".getBytes());
+    		expected.put(new BytesKey(getId(1, 3)), "after".getBytes());
+    		seen.clear();
+    		scanner.forEachRemaining(collect);
+    		if (null != split) {
+    			split.forEachRemaining(collect);
+    		}
+    		checkScanned(expected, seen);
+    	}
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+    	try {
+    		store.add(getId(1, 0), "data".getBytes(), 1000);
+    		Assert.fail();
+    	} catch (IllegalStateException e) {
+    		//没有配置带过期时间的格式
+    	}
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setExpiration(true);
+    		config.setExpirationTick(20);
+    		config.setSingleFileSegment(c == 1);
+    		config.setOffHeapIndex(c == 1);
+    		config.setCheckpoint(c == 1);
+    		config.setCheckpointInterval(0);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+
+    		for (int i = 0; i < 100; i++) {
+    			store.add(getId(1, i), ("short" + i).getBytes(), 300);
+    			store.add(getId(2, i), ("long" + i).getBytes(), 600000);
+    			store.add(getId(3, i), ("never" + i).getBytes());
+    		}
+    		assertEquals("short1", new String(store.get(getId(1, 1))));
+    		assertEquals(6, store.getLength(getId(1, 1)));
+    		//更新保留原来的过期时间
+    		Assert.assertTrue(store.update(getId(1, 2), "updated".getBytes()));
+    		assertEquals("updated", new String(store.get(getId(1, 2))));
+
+    		//过期之后读不到，由时间轮删除
+    		Thread.sleep(400);
+    		assertNull(store.get(getId(1, 1)));
+    		assertNull(store.get(getId(1, 2)));
+    		assertEquals(-1, store.getLength(getId(1, 3)));
+    		assertEquals("long1", new String(store.get(getId(2, 1))));
+    		assertEquals("never1", new String(store.get(getId(3, 1))));
+    		for (int i = 0; i < 100 && store.size() > 200; i++) {
+    			Thread.sleep(20);
+    		}
+    		assertEquals(200, store.size());
+    		assertEquals(100, store.getExpiredCount());
+    		Assert.assertFalse(store.update(getId(1, 4), "late".getBytes()));
+    		Assert.assertFalse(store.remove(getId(1, 4)));
+    		//过期的key可以重新添加
+    		store.add(getId(1, 5), "again".getBytes());
+    		assertEquals("again", new String(store.get(getId(1, 5))));
+
+    		//重启时丢弃过期的数据，不写删除日志
+    		for (int i = 0; i < 50; i++) {
+    			store.add(getId(4, i), ("restart" + i).getBytes(), 200);
+    		}
+    		store.close();
+    		File records = new File(getFilePrefix() + (c == 1 ? "1.seg" : "1.log"));
+    		long length = records.length();
+    		Thread.sleep(300);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(length, records.length());
+    		//运行时过期的99个没有删除日志，重放日志时和新过期的50个一起丢弃；检查点中已经没有那99个了
+    		assertEquals(c == 1 ? 50 : 149, store.getExpiredCount());
+    		assertEquals(201, store.size());
+    		assertNull(store.get(getId(4, 1)));
+    		assertNull(store.get(getId(1, 1)));
+    		assertEquals("again", new String(store.get(getId(1, 5))));
+    		assertEquals("long1", new String(store.get(getId(2, 1))));
+
+    		//没有过期的重新放入时间轮
+    		store.add(getId(5, 0), "soon".getBytes(), 100);
+    		store.close();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals("soon", new String(store.get(getId(5, 0))));
+    		for (int i = 0; i < 100 && store.size() > 201; i++) {
+    			Thread.sleep(20);
+    		}
+    		assertEquals(201, store.size());
+    		
+    		//不配置过期时间打开，堆外索引读到带过期时间的数据时换成带过期时间的槽
+    		store.add(getId(5, 1), "soon".getBytes(), 200);
+    		store.close();
+    		config.setExpiration(false);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(202, store.size());
+    		assertEquals("soon", new String(store.get(getId(5, 1))));
+    		assertEquals("long1", new String(store.get(getId(2, 1))));
+    		assertEquals("never1", new String(store.get(getId(3, 1))));
+    		Thread.sleep(300);
+    		assertNull(store.get(getId(5, 1)));
+    		assertEquals("long1", new String(store.get(getId(2, 1))));
+    		
+    		//时间轮还没有删除时，流式读取和部分读取也读不到过期的数据
+    		store.close();
+    		config.setExpiration(true);
+    		config.setExpirationTick(60000);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		store.add(getId(5, 2), "soon".getBytes(), 100);
+    		InputStream in = store.getInputStream(getId(5, 2));
+    		assertNotNull(in);
+    		in.close();
+    		assertEquals("so", new String(store.get(getId(5, 2), 0, 2)));
+    		Thread.sleep(200);
+    		assertEquals(202, store.size());
+    		assertNull(store.getInputStream(getId(5, 2)));
+    		assertNull(store.get(getId(5, 2), 0, 2));
+    		assertEquals("long1", new String(store.get(getId(2, 1), 0, 5)));
+    		
+    		//被拒绝的批量不去掉过期的key，写入成功时才去掉
+    		long expiredCount = store.getExpiredCount();
+    		try {
+    			store.write(new WriteBatch().add(getId(5, 2), "again".getBytes()).add(getId(2, 1), "dup".getBytes()));
+    			Assert.fail();
+    		} catch (IOException e) {
+    			//重复的key
+    		}
+    		assertEquals(202, store.size());
+    		assertEquals(expiredCount, store.getExpiredCount());
+    		store.write(new WriteBatch().add(getId(5, 2), "again".getBytes()));
+    		assertEquals(202, store.size());
+    		assertEquals(expiredCount + 1, store.getExpiredCount());
+    		assertEquals("again", new String(store.get(getId(5, 2))));
+    	}
+    }
+
+    @Test
+    public void testChangeFileSize() throws Exception {
+    	final int messageLength = 100 * 1024;
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setFileSize(1024 * 1024);
+    		config.setSingleFileSegment(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		for (int i = 0; i < 30; i++) {
+    			byte[] data = new byte[messageLength];
+    			Arrays.fill(data, (byte)i);
+    			store.add(getId(1, i), data);
+    			expected.put(new BytesKey(getId(1, i)), data);
+    		}
+    		Assert.assertTrue(store.getNumber() >= 3);
+    		
+    		//改大之后，之前写满的文件比新的大小短，也可以打开
+    		after();
+    		config.setFileSize(4 * 1024 * 1024);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    		int number = store.getNumber();
+    		for (int i = 0; i < 20; i++) {
+    			byte[] data = new byte[messageLength];
+    			Arrays.fill(data, (byte)-i);
+    			store.add(getId(2, i), data);
+    			expected.put(new BytesKey(getId(2, i)), data);
+    		}
+    		//按新的大小换文件，按旧的大小这里已经换了两次
+    		assertEquals(number, store.getNumber());
+    		after();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    		
+    		//再改小也可以
+    		after();
+    		config.setFileSize(1024 * 1024);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    	}
+    }
+
+    @Test
+    public void testPreallocate() throws Exception {
+    	final int fileSize = 1024 * 1024;
+    	final int messageLength = 100 * 1024;
+    	for (int c = 0; c < 2; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setFileSize(fileSize);
+    		config.setPreallocate(true);
+    		config.setSingleFileSegment(c == 1);
+    		config.setChecksum(c == 1);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		String suffix = c == 1 ? ".seg" : "";
+
+    		//后台线程用临时的名字准备好下一个文件，并且预先分配好空间
+    		File next = new File(getFilePrefix() + "2" + suffix + ".pre");
+    		for (int i = 0; i < 500 && next.length() < fileSize; i++) {
+    			Thread.sleep(10);
+    		}
+    		assertEquals(fileSize, next.length());
+    		Thread.sleep(100);
+
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		for (int i = 0; i < fileSize / messageLength + 2; i++) {
+    			byte[] data = new byte[messageLength];
+    			Arrays.fill(data, (byte)i);
+    			store.add(getId(1, i), data);
+    			expected.put(new BytesKey(getId(1, i)), data);
+    		}
+    		assertEquals(2, store.getNumber());
+    		//换上的是准备好的文件，物理长度是预先分配的大小，写满的文件按实际长度保留
+    		Assert.assertFalse(next.exists());
+    		assertEquals(fileSize, new File(getFilePrefix() + "2" + suffix).length());
+    		long length = new File(getFilePrefix() + "1" + suffix).length();
+    		Assert.assertTrue(length >= fileSize && length < fileSize + messageLength * 2);
+
+    		//模拟崩溃：文件末尾是预先分配的全0，还有没换上的下一个文件
+    		Thread.sleep(100);
+    		Map<File, byte[]> image = readFiles();
+    		after();
+    		Assert.assertTrue(new File(getFilePrefix() + "2" + suffix).length() < fileSize);
+    		Assert.assertFalse(new File(getFilePrefix() + "3" + suffix + ".pre").exists());
+    		writeFiles(image);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		assertEquals(2, store.getNumber());
+    		checkData(expected);
+    		//恢复之后接着写，重启之后数据完整
+    		for (int i = 0; i < fileSize / messageLength; i++) {
+    			byte[] data = new byte[messageLength];
+    			Arrays.fill(data, (byte)(i + 100));
+    			store.add(getId(2, i), data);
+    			expected.put(new BytesKey(getId(2, i)), data);
+    		}
+    		Assert.assertTrue(store.remove(getId(1, 0)));
+    		expected.remove(new BytesKey(getId(1, 0)));
+    		after();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    	}
+    }
+
+    @Test
+    public void testDirectBufferAdd() throws Exception {
+    	//堆外的缓冲区按绝对位置计算校验，和字节数组的结果一样
+    	byte[] bytes = new byte[1027];
+    	new Random(1).nextBytes(bytes);
+    	ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+    	direct.position(3);
+    	direct.put(bytes);
+    	direct.position(3);
+    	assertEquals(Crc32c.checksum(bytes, 0, bytes.length), Crc32c.checksum(direct));
+    	direct.order(ByteOrder.LITTLE_ENDIAN);
+    	assertEquals(Crc32c.checksum(bytes, 0, bytes.length), Crc32c.checksum(direct));
+    	assertEquals(3, direct.position());
+
+    	for (int c = 0; c < 3; c++) {
+    		after();
+    		cleanFiles();
+    		JournalStoreConfig config = new JournalStoreConfig();
+    		config.setSingleFileSegment(c == 1);
+    		config.setChecksum(c == 1);
+    		config.setCompression(c == 2);
+    		store = new JournalStore(getPath(), getStoreName(), config);
+
+    		Map<BytesKey, byte[]> expected = new HashMap<BytesKey, byte[]>();
+    		ByteBuffer key = ByteBuffer.allocateDirect(OpItem.KEY_LENGTH + 1);
+    		ByteBuffer value = ByteBuffer.allocateDirect(3 * 1024 * 1024);
+    		for (int i = 0; i < 200; i++) {
+    			//最后一个比每个线程保留的写缓冲区大
+    			byte[] data = new byte[i == 199 ? 2 * 1024 * 1024 : i * 10 + 1];
+    			Arrays.fill(data, (byte)i);
+    			key.clear();
+    			key.put((byte)-1).put(getId(1, i)).flip();
+    			key.position(1);
+    			value.clear();
+    			value.position(5);
+    			value.put(data).flip();
+    			value.position(5);
+    			store.add(key, value);
+    			assertEquals(1, key.position());
+    			assertEquals(5, value.position());
+    			assertEquals(5 + data.length, value.limit());
+    			expected.put(new BytesKey(getId(1, i)), data);
+    		}
+    		store.add(ByteBuffer.wrap(getId(2, 0)), ByteBuffer.wrap("heap".getBytes()));
+    		expected.put(new BytesKey(getId(2, 0)), "heap".getBytes());
+    		try {
+    			store.add(ByteBuffer.wrap(getId(2, 0)), ByteBuffer.wrap("again".getBytes()));
+    			Assert.fail();
+    		} catch (IOException e) {
+    			//重复的key
+    		}
+    		Assert.assertTrue(store.remove(getId(1, 0)));
+    		expected.remove(new BytesKey(getId(1, 0)));
+    		checkData(expected);
+
+    		after();
+    		store = new JournalStore(getPath(), getStoreName(), config);
+    		checkData(expected);
+    	}
+    }
+
+    @Test
+    public void testKey128() throws Exception {
+    	byte[] id = UniqId.getInstance().getUniqIDHash();
+    	BytesKey plain = new BytesKey(id);
+    	BytesKey key = BytesKey.valueOf(id);
+    	Assert.assertTrue(key instanceof Key128);
+    	Assert.assertTrue(Arrays.equals(id, key.getData()));
+    	assertEquals(plain.hashCode(), key.hashCode());
+    	Assert.assertTrue(plain.equals(key));
+    	Assert.assertTrue(key.equals(plain));
+    	Assert.assertTrue(key.equals(Key128.valueOf(id, 0)));
+    	Assert.assertFalse(key.equals(new BytesKey(new byte[15])));
+    	Assert.assertFalse(BytesKey.valueOf(new byte[15]) instanceof Key128);
+
+    	//每个字节都参与hash，只有一个字节不同的key也能分开
+    	Set<Integer> hashes = new HashSet<Integer>();
+    	for (int i = 0; i < 16; i++) {
+    		byte[] b = id.clone();
+    		b[i]++;
+    		hashes.add(BytesKey.valueOf(b).hashCode());
+    		Assert.assertFalse(key.equals(BytesKey.valueOf(b)));
+    		Assert.assertFalse(plain.equals(BytesKey.valueOf(b)));
+    	}
+    	assertEquals(16, hashes.size());
+
+    	//两种key可以在同一个map中混用
+    	Map<BytesKey, String> map = new HashMap<BytesKey, String>();
+    	map.put(key, "value");
+    	assertEquals("value", map.get(plain));
+    	map.put(plain, "plain");
+    	assertEquals(1, map.size());
+
+    	MemStore ms = new MemStore();
+    	ms.add(id, "mem".getBytes());
+    	assertEquals("mem", new String(ms.get(id.clone())));
+    	Assert.assertTrue(Arrays.equals(id, ms.iterator().next()));
+    	Assert.assertTrue(ms.remove(id.clone()));
+
+    	store.add(id, "data".getBytes());
+    	assertEquals("data", new String(store.get(id.clone())));
+    	Iterator<byte[]> it = store.iterator();
+    	Assert.assertTrue(Arrays.equals(id, it.next()));
+    	Assert.assertTrue(store.update(id, "updated".getBytes()));
+    	after();
+    	store = new JournalStore(getPath(), getStoreName());
+    	assertEquals("updated", new String(store.get(id)));
+    	Assert.assertTrue(store.remove(id.clone()));
+    	assertEquals(0, store.size());
+    }
+
+    private void checkScanned(Map<BytesKey, byte[]> expected, Map<BytesKey, byte[]> seen) {
+    	assertEquals(expected.size(), seen.size());
+    	for (Map.Entry<BytesKey, byte[]> e : expected.entrySet()) {
+    		Assert.assertTrue(Arrays.equals(e.getValue(), seen.get(e.getKey())));
+    	}
+    }
+
+    @Test
+    public void testPartitionedStore() throws Exception {
+    	String path = "tmp" + File.separator + "partitioned-store-test";
+    	deleteDir(new File(path));
+    	try {
+    		new PartitionedStore(path, getStoreName(), new JournalStoreConfig());
+    		Assert.fail();
+    	} catch (IOException e) {
+    	}
+    	PartitionedStore ps = new PartitionedStore(path, getStoreName(), 4, new JournalStoreConfig());
+    	assertEquals(4, ps.getPartitionCount());
+    	Map<BytesKey, String> expected = new HashMap<BytesKey, String>();
+    	for (int i = 0; i < 1000; i++) {
+    		ps.add(getId(1, i), ("data" + i).getBytes());
+    		expected.put(new BytesKey(getId(1, i)), "data" + i);
+    	}
+    	Assert.assertTrue(ps.update(getId(1, 0), "update".getBytes()));
+    	expected.put(new BytesKey(getId(1, 0)), "update");
+    	Assert.assertTrue(ps.remove(getId(1, 1)));
+    	expected.remove(new BytesKey(getId(1, 1)));
+    	Assert.assertFalse(ps.remove(getId(1, 1)));
+    	
+    	//每个分区都有数据，汇总的个数和遍历的结果一致
+    	String[] sizes = ps.getPartitionSizes().split(",");
+    	assertEquals(4, sizes.length);
+    	for (String size : sizes) {
+    		Assert.assertTrue(Integer.parseInt(size) > 100);
+    	}
+    	checkPartitionedData(ps, expected);
+    	ps.close();
+    	
+    	//分区个数记录在磁盘上，不能修改
+    	try {
+    		new PartitionedStore(path, getStoreName(), 8, new JournalStoreConfig());
+    		Assert.fail();
+    	} catch (IllegalArgumentException e) {
+    	}
+    	ps = new PartitionedStore(path, getStoreName(), new JournalStoreConfig());
+    	assertEquals(4, ps.getPartitionCount());
+    	checkPartitionedData(ps, expected);
+    	ps.close();
+    	
+    	//缓存命中率按所有分区的次数汇总，不是各个分区命中率的平均
+    	JournalStoreConfig config = new JournalStoreConfig();
+    	config.setCacheSize(1024 * 1024);
+    	ps = new PartitionedStore(path, getStoreName(), config);
+    	for (int i = 0; i < 100; i++) {
+    		ps.get(getId(1, 2));
+    	}
+    	ps.get(getId(1, 3));
+    	assertEquals(99, ps.getCacheHits());
+    	assertEquals(2, ps.getCacheMisses());
+    	assertEquals(99 / 101.0d, ps.getCacheHitRatio(), 0.0001d);
+    	ps.close();
+    }
+    
+    private void checkPartitionedData(PartitionedStore ps, Map<BytesKey, String> expected) throws IOException {
+    	assertEquals(expected.size(), ps.size());
+    	for (Map.Entry<BytesKey, String> e : expected.entrySet()) {
+    		assertEquals(e.getValue(), new String(ps.get(e.getKey().getData())));
+    	}
+    	int count = 0;
+    	for (Iterator<byte[]> it = ps.iterator(); it.hasNext();) {
+    		Assert.assertTrue(expected.containsKey(new BytesKey(it.next())));
+    		count++;
+    	}
+    	assertEquals(expected.size(), count);
+    }
+    
+    private void deleteDir(File dir) {
+    	File[] fs = dir.listFiles();
+    	if (null != fs) {
+    		for (File f : fs) {
+    			deleteDir(f);
+    		}
+    	}
+    	dir.delete();
+    }
+    
+    private Map<File, byte[]> readFiles() throws IOException {
+    	Map<File, byte[]> image = new HashMap<File, byte[]>();
+    	for (File f : new File(getPath()).listFiles()) {
+    		RandomAccessFile raf = new RandomAccessFile(f, "r");
+    		byte[] data = new byte[(int)raf.length()];
+    		raf.readFully(data);
+    		raf.close();
+    		image.put(f, data);
+    	}
+    	return image;
+    }
+    
+    private void writeFiles(Map<File, byte[]> image) throws IOException {
+    	cleanFiles();
+    	for (Map.Entry<File, byte[]> e : image.entrySet()) {
+    		RandomAccessFile raf = new RandomAccessFile(e.getKey(), "rw");
+    		raf.write(e.getValue());
+    		raf.close();
+    	}
+    }
+    
     private void remove(RandomAccessFile lf, byte[] key, long offset, int number, int dataLength) 
 			throws IOException {
 		lf.write(key);